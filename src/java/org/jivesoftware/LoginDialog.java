@@ -93,8 +93,10 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.ChatStateManager;
+import org.jivesoftware.spark.PluginManager;
 import org.jivesoftware.spark.SessionManager;
 import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.StartupMilestones;
 import org.jivesoftware.spark.Workspace;
 import org.jivesoftware.spark.component.RolloverButton;
 import org.jivesoftware.spark.util.BrowserLauncher;
@@ -1203,6 +1205,13 @@ public class LoginDialog {
 			      // Creates the Spark  Workspace and add to MainWindow
 			      Workspace workspace = Workspace.getInstance();
 
+			      // Plugins are initialized as soon as the startup milestones
+			      // they wait for are reached.
+			      final PluginManager pluginManager = PluginManager.getInstance();
+			      mainWindow.addMainWindowListener(pluginManager);
+			      pluginManager.initializePlugins();
+			      StartupMilestones.getInstance().reach(StartupMilestones.CONNECTED);
+
 			      LayoutSettings settings = LayoutSettingsManager.getLayoutSettings();
 			      int x = settings.getMainWindowX();
 			      int y = settings.getMainWindowY();
@@ -1249,6 +1258,7 @@ public class LoginDialog {
 
 			      // Build the layout in the workspace
 			      workspace.buildLayout();
+			      StartupMilestones.getInstance().reach(StartupMilestones.WORKSPACE_SHOWN);
 			 	}
 			 });
 		}
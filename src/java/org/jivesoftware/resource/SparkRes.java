@@ -20,6 +20,7 @@
 package org.jivesoftware.resource;
 
 import org.jivesoftware.spark.PluginRes;
+import org.jivesoftware.spark.util.IconRegistry;
 import org.jivesoftware.spark.util.log.Log;
 
 import javax.swing.ImageIcon;
@@ -338,6 +339,12 @@ public class SparkRes {
     
     static ClassLoader cl = SparkRes.class.getClassLoader();
 
+    private static final IconRegistry icons = new IconRegistry(new IconRegistry.Locator() {
+        public URL getURL(String name) {
+            return SparkRes.getURL(name);
+        }
+    });
+
     static {
         prb = (PropertyResourceBundle)ResourceBundle.getBundle("org/jivesoftware/resource/spark");
     }
@@ -347,17 +354,45 @@ public class SparkRes {
         return pluginString != null ? pluginString : prb.getString(propertyName);
     }
 
+    /**
+     * Returns the icon with the given name. Icons are loaded once and shared, so
+     * callers must copy an icon before changing it.
+     *
+     * @param imageName the name of the icon.
+     * @return the icon, or null if it could not be found.
+     */
     public static ImageIcon getImageIcon(String imageName) {
         try {
-            final URL imageURL = getURL(imageName);
-            return new ImageIcon(imageURL);
+            final ImageIcon icon = icons.getIcon(imageName);
+            if (icon != null) {
+                return icon;
+            }
         }
         catch (Exception ex) {
-            Log.error(imageName + " not found.");
+            // Reported below.
         }
+        Log.error(imageName + " not found.");
         return null;
     }
 
+    /**
+     * Loads the given icons in the background, ahead of their first use.
+     *
+     * @param imageNames the names of the icons.
+     */
+    public static void preloadImageIcons(String... imageNames) {
+        icons.preload(imageNames);
+    }
+
+    /**
+     * Returns the registry holding the icons of Spark.
+     *
+     * @return the icon registry.
+     */
+    public static IconRegistry getIconRegistry() {
+        return icons;
+    }
+
     public static URL getURL(String propertyName) {
     	URL pluginUrl = PluginRes.getSparkURL(propertyName);
         return pluginUrl != null ? pluginUrl : cl.getResource(getString(propertyName));
@@ -23,6 +23,8 @@ import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.ChatManagerListener;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.OrFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
@@ -121,6 +123,11 @@ public class ChatManager implements ChatManagerListener {
      */
     private SmackChatStateListener smackChatStateListener = null;    
 
+    /**
+     * Routes the presences and messages received to the chat rooms.
+     */
+    private final PacketDispatcher packetDispatcher = new PacketDispatcher();
+
     /**
      * Returns the singleton instance of <CODE>ChatManager</CODE>,
      * creating it if necessary.
@@ -152,6 +159,19 @@ public class ChatManager implements ChatManagerListener {
         addSparkTabHandler(new DefaultTabHandler());
         // Add a Message Handler        
         SparkManager.getConnection().getChatManager().addChatListener(this);
+
+        SparkManager.getConnection().addPacketListener(packetDispatcher,
+            new OrFilter(new PacketTypeFilter(Presence.class), new PacketTypeFilter(Message.class)));
+    }
+
+    /**
+     * Returns the dispatcher chat rooms register with to receive the presences
+     * and messages of their participants.
+     *
+     * @return the packet dispatcher.
+     */
+    public PacketDispatcher getPacketDispatcher() {
+        return packetDispatcher;
     }
 
 
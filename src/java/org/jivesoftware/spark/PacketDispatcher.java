@@ -0,0 +1,121 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.spark.util.log.Log;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Routes the packets received on the connection to the listeners registered for
+ * their sender, such as chat rooms. A single packet listener is registered on the
+ * connection for all rooms, and every packet is routed with a hash lookup on the
+ * full and the bare address of its sender, instead of the filter of every room
+ * being evaluated for every packet.
+ * <p/>
+ * A listener registered for a bare address receives the packets sent from every
+ * resource of it, like a <code>FromMatchesFilter</code> on the bare address. A
+ * listener registered for a full address only receives the packets sent from that
+ * resource. Addresses are compared ignoring case.
+ *
+ * @see ChatManager#getPacketDispatcher()
+ */
+public class PacketDispatcher implements PacketListener {
+
+    private final Map<String, List<PacketListener>> listeners = new ConcurrentHashMap<String, List<PacketListener>>();
+
+    /**
+     * Registers a listener for the packets sent from an address.
+     *
+     * @param jid      the bare or full address of the sender.
+     * @param listener the listener.
+     */
+    public synchronized void addPacketListener(String jid, PacketListener listener) {
+        final String key = jid.toLowerCase();
+        List<PacketListener> list = listeners.get(key);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<PacketListener>();
+            listeners.put(key, list);
+        }
+        list.add(listener);
+    }
+
+    /**
+     * Removes a listener from all addresses it was registered for.
+     *
+     * @param listener the listener.
+     */
+    public synchronized void removePacketListener(PacketListener listener) {
+        final Iterator<List<PacketListener>> iterator = listeners.values().iterator();
+        while (iterator.hasNext()) {
+            final List<PacketListener> list = iterator.next();
+            list.remove(listener);
+            if (list.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of addresses listeners are registered for.
+     *
+     * @return the number of addresses.
+     */
+    public int getAddressCount() {
+        return listeners.size();
+    }
+
+    public void processPacket(Packet packet) {
+        final String from = packet.getFrom();
+        if (from == null) {
+            return;
+        }
+        final String fullJID = from.toLowerCase();
+        dispatch(fullJID, packet);
+
+        final String bareJID = StringUtils.parseBareAddress(fullJID);
+        if (!bareJID.equals(fullJID)) {
+            dispatch(bareJID, packet);
+        }
+    }
+
+    private void dispatch(String jid, Packet packet) {
+        final List<PacketListener> list = listeners.get(jid);
+        if (list == null) {
+            return;
+        }
+        for (PacketListener listener : list) {
+            try {
+                listener.processPacket(packet);
+            }
+            catch (Exception e) {
+                // One failing room must not keep the packet from the others.
+                Log.error("Error dispatching packet from " + jid, e);
+            }
+        }
+    }
+}
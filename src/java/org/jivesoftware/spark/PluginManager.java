@@ -31,9 +31,12 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
 import java.util.StringTokenizer;
@@ -47,7 +50,6 @@ import javax.swing.JPanel;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
 import org.dom4j.Node;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.MainWindowListener;
@@ -57,9 +59,11 @@ import org.jivesoftware.spark.PluginRes.ResourceType;
 import org.jivesoftware.spark.component.tabbedPane.SparkTabbedPane;
 import org.jivesoftware.spark.plugin.Plugin;
 import org.jivesoftware.spark.plugin.PluginClassLoader;
+import org.jivesoftware.spark.plugin.PluginCache;
 import org.jivesoftware.spark.plugin.PluginDependency;
+import org.jivesoftware.spark.plugin.PluginDescriptor;
+import org.jivesoftware.spark.plugin.PluginStartup;
 import org.jivesoftware.spark.plugin.PublicPlugin;
-import org.jivesoftware.spark.util.StringUtils;
 import org.jivesoftware.spark.util.URLFileSystem;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.settings.JiveInfo;
@@ -71,7 +75,7 @@ import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
  * @author Derek DeMoro
  */
 public class PluginManager implements MainWindowListener {
-    private final List<Plugin> plugins = new ArrayList<Plugin>();
+    private final List<Plugin> plugins = new CopyOnWriteArrayList<Plugin>();
 
     private final List<PublicPlugin> publicPlugins = new CopyOnWriteArrayList<PublicPlugin>();
     private static PluginManager singleton;
@@ -86,6 +90,10 @@ public class PluginManager implements MainWindowListener {
 
     private Collection<String> _blacklistPlugins;
 
+    private PluginCache cache;
+
+    private PluginStartup startup;
+
     /**
      * Returns the singleton instance of <CODE>PluginManager</CODE>,
      * creating it if necessary.
@@ -125,6 +133,11 @@ public class PluginManager implements MainWindowListener {
             PLUGINS_DIRECTORY.mkdirs();
         }
 
+        // Checksums and plugin.xml files of unchanged plugins are read from the cache.
+        if (cache == null) {
+            cache = new PluginCache(new File(PLUGINS_DIRECTORY, PluginCache.FILE_NAME));
+        }
+
         _blacklistPlugins = Default.getPluginBlacklist();
     }
 
@@ -132,6 +145,7 @@ public class PluginManager implements MainWindowListener {
         // Current Plugin directory
         File newPlugins = new File(Spark.getLogDirectory().getParentFile(), "plugins").getAbsoluteFile();
         newPlugins.mkdirs();
+        cache = new PluginCache(new File(newPlugins, PluginCache.FILE_NAME));
         deleteOldPlugins(newPlugins);
 
         File[] files = PLUGINS_DIRECTORY.listFiles();
@@ -187,8 +201,8 @@ public class PluginManager implements MainWindowListener {
 			try {
 			    File f = new File(installPath + jarFile.getName());
 			    if (installerFiles.contains(f)) {
-				String oldfile = StringUtils.getMD5Checksum(jarFile.getAbsolutePath());
-				String newfile = StringUtils.getMD5Checksum(f.getAbsolutePath());
+				String oldfile = cache.getChecksum(jarFile);
+				String newfile = cache.getChecksum(f);
 
 				Log.debug(f.getAbsolutePath() + "   " + jarFile.getAbsolutePath());
 				Log.debug(newfile + " " + oldfile + " equal:" + oldfile.equals(newfile));
@@ -258,15 +272,13 @@ public class PluginManager implements MainWindowListener {
         }
 
         loadPluginResources();
+
+        cache.save();
     }
     
 	private boolean hasDependencies(File pluginFile) {
-		SAXReader saxReader = new SAXReader();
-		Document pluginXML = null;
 		try {
-			pluginXML = saxReader.read(pluginFile);
-			List<? extends Node> dependencies = pluginXML.selectNodes("plugin/depends/plugin");
-			return dependencies != null && dependencies.size() > 0 ? true : false;
+			return !cache.getDescriptor(pluginFile).getDependencies().isEmpty();
 		} catch (DocumentException e) {
 			Log.error(e);
 			return false;
@@ -282,29 +294,24 @@ public class PluginManager implements MainWindowListener {
     private Plugin loadPublicPlugin(File pluginDir) {
 
         File pluginFile = new File(pluginDir, "plugin.xml");
-        SAXReader saxReader = new SAXReader();
-        Document pluginXML = null;
+        PluginDescriptor descriptor;
         try {
-            pluginXML = saxReader.read(pluginFile);
+            descriptor = cache.getDescriptor(pluginFile);
         }
         catch (DocumentException e) {
             Log.error(e);
+            return null;
         }
 
         Plugin pluginClass = null;
+        PublicPlugin publicPlugin = new PublicPlugin();
 
-        List<? extends Node> plugins = pluginXML.selectNodes("/plugin");
-        for (Node plugin1 : plugins) {
-            PublicPlugin publicPlugin = new PublicPlugin();
-
-            String clazz = null;
-            String name;
-            String minVersion;
-
-            try {
-
-                name = plugin1.selectSingleNode("name").getText();
-                clazz = plugin1.selectSingleNode("class").getText();
+        String clazz = descriptor.getPluginClass();
+        String name = descriptor.getName();
+        if (name == null || clazz == null) {
+            Log.error("Unable to load plugin " + clazz + ".");
+            return null;
+        }
 
 		try {
 		    String lower = name.replaceAll("[^0-9a-zA-Z]","").toLowerCase();
@@ -319,109 +326,89 @@ public class PluginManager implements MainWindowListener {
 		    return null;
 		}
 
-                // Check for minimum Spark version
-                try {
-                    minVersion = plugin1.selectSingleNode("minSparkVersion").getText();
-
-                    String buildNumber = JiveInfo.getVersion();
-                    boolean ok = buildNumber.compareTo(minVersion) >= 0;
-
-                    if (!ok) {
-                        return null;
-                    }
-                }
-                catch (Exception e) {
-                    Log.error("Unable to load plugin " + name + " due to missing <minSparkVersion>-Tag in plugin.xml.");
-                    return null;
-                }
-
-                // Check for minimum Java version
-                try {
-                  String javaversion = plugin1.selectSingleNode("java").getText().replaceAll("[^0-9]", "");
-                  javaversion = javaversion == null? "0" : javaversion;
-                  int jv = Integer.parseInt(attachMissingZero(javaversion));
-
-                  String myversion = System.getProperty("java.version").replaceAll("[^0-9]", "");
-                  int mv = Integer.parseInt(attachMissingZero(myversion));
-
-                  boolean ok = (mv >= jv);
-
-                  if (!ok) {
-                      Log.error("Unable to load plugin " + name +
-                	    " due to old JavaVersion.\nIt Requires "+plugin1.selectSingleNode("java").getText()+
-                	    " you have "+ System.getProperty("java.version"));
-                      return null;
-                  }
-
-                }
-                catch (NullPointerException e) {
-                    Log.warning("Plugin "+name+" has no <java>-Tag, consider getting a newer Version");
-                }
-
-                // set dependencies
-                try {
-                   List<? extends Node> dependencies = plugin1.selectNodes("depends/plugin");
-                   for (Node depend1 : dependencies) {
-                      Element depend = (Element) depend1;
-                  	 PluginDependency dependency = new PluginDependency();
-                  	 dependency.setVersion(depend.selectSingleNode("version").getText());
-                  	 dependency.setName(depend.selectSingleNode("name").getText());
-                  	 publicPlugin.addDependency(dependency);
-                   }
-                }
-                catch (Exception e) {
-               	 e.printStackTrace();
-                }
-
-
-                // Do operating system check.
-                boolean operatingSystemOK = isOperatingSystemOK(plugin1);
-                if (!operatingSystemOK) {
-                    return null;
-                }
-
-                publicPlugin.setPluginClass(clazz);
-                publicPlugin.setName(name);
-
-                try {
-                    String version = plugin1.selectSingleNode("version").getText();
-                    publicPlugin.setVersion(version);
-
-                    String author = plugin1.selectSingleNode("author").getText();
-                    publicPlugin.setAuthor(author);
-
-                    String email = plugin1.selectSingleNode("email").getText();
-                    publicPlugin.setEmail(email);
-
-                    String description = plugin1.selectSingleNode("description").getText();
-                    publicPlugin.setDescription(description);
+        // Check for minimum Spark version
+        String minVersion = descriptor.getMinSparkVersion();
+        if (minVersion == null) {
+            Log.error("Unable to load plugin " + name + " due to missing <minSparkVersion>-Tag in plugin.xml.");
+            return null;
+        }
+        String buildNumber = JiveInfo.getVersion();
+        if (buildNumber.compareTo(minVersion) < 0) {
+            return null;
+        }
+
+        // Check for minimum Java version
+        if (descriptor.getJava() != null) {
+          String javaversion = descriptor.getJava().replaceAll("[^0-9]", "");
+          String myversion = System.getProperty("java.version").replaceAll("[^0-9]", "");
+          boolean ok;
+          try {
+              int jv = Integer.parseInt(attachMissingZero(javaversion));
+              int mv = Integer.parseInt(attachMissingZero(myversion));
+              ok = (mv >= jv);
+          }
+          catch (NumberFormatException e) {
+              // Skip only this plugin, not the ones loaded after it.
+              Log.error("Unable to load plugin " + name + " due to unreadable <java>-Tag " + descriptor.getJava() + ".", e);
+              return null;
+          }
+
+          if (!ok) {
+              Log.error("Unable to load plugin " + name +
+        	    " due to old JavaVersion.\nIt Requires "+descriptor.getJava()+
+        	    " you have "+ System.getProperty("java.version"));
+              return null;
+          }
+        }
+        else {
+            Log.warning("Plugin "+name+" has no <java>-Tag, consider getting a newer Version");
+        }
+
+        // set dependencies
+        for (PluginDependency dependency : descriptor.getDependencies()) {
+            publicPlugin.addDependency(dependency);
+        }
+
+        // set the startup milestones to wait for
+        for (String milestone : descriptor.getMilestones()) {
+            if (StartupMilestones.getMilestones().contains(milestone)) {
+                publicPlugin.addMilestone(milestone);
+            }
+            else {
+                Log.warning("Plugin " + name + " waits for unknown milestone " + milestone);
+            }
+        }
 
-                    String homePage = plugin1.selectSingleNode("homePage").getText();
-                    publicPlugin.setHomePage(homePage);
-                }
-                catch (Exception e) {
-                    Log.debug("We can ignore these.");
-                }
+        // Do operating system check.
+        boolean operatingSystemOK = isOperatingSystemOK(descriptor);
+        if (!operatingSystemOK) {
+            return null;
+        }
 
+        publicPlugin.setPluginClass(clazz);
+        publicPlugin.setName(name);
 
-                try {
-                    pluginClass = (Plugin) getParentClassLoader().loadClass(clazz).newInstance();
-                    Log.debug(name + " has been loaded.");
-                    publicPlugin.setPluginDir(pluginDir);
-                    publicPlugins.add(publicPlugin);
+        // Plugins that do not touch the user interface while initializing
+        // may be initialized in the background.
+        publicPlugin.setBackground(descriptor.isBackground());
 
+        publicPlugin.setVersion(descriptor.getVersion());
+        publicPlugin.setAuthor(descriptor.getAuthor());
+        publicPlugin.setEmail(descriptor.getEmail());
+        publicPlugin.setDescription(descriptor.getDescription());
+        publicPlugin.setHomePage(descriptor.getHomePage());
 
-                    registerPlugin(pluginClass);
-                }
-                catch (Throwable e) {
-                    Log.error("Unable to load plugin " + clazz + ".", e);
-                }
-            }
-            catch (Exception ex) {
-                Log.error("Unable to load plugin " + clazz + ".", ex);
-            }
+        try {
+            pluginClass = (Plugin) getParentClassLoader().loadClass(clazz).newInstance();
+            Log.debug(name + " has been loaded.");
+            publicPlugin.setPluginDir(pluginDir);
+            publicPlugins.add(publicPlugin);
 
 
+            registerPlugin(pluginClass);
+        }
+        catch (Throwable e) {
+            Log.error("Unable to load plugin " + clazz + ".", e);
         }
 
         return pluginClass;
@@ -450,31 +437,36 @@ public class PluginManager implements MainWindowListener {
         catch (DocumentException e) {
             Log.error(e);
         }
+        // The classes are loaded on this thread, only the plugins are created on
+        // the event dispatch thread.
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
         List<? extends Node> plugins = pluginXML.selectNodes("/plugins/plugin");
-        for (final Object plugin1 : plugins) {
-
-          		EventQueue.invokeLater(new Runnable() {
-         			public void run() {
-                     String clazz = null;
-                     String name;
-                     try {
-                         Element plugin = (Element) plugin1;
-
-                         name = plugin.selectSingleNode("name").getText();
-                         clazz = plugin.selectSingleNode("class").getText();
-                         Plugin pluginClass = (Plugin) Class.forName(clazz).newInstance();
-                         Log.debug(name + " has been loaded. Internal plugin.");
-
-                         registerPlugin(pluginClass);
-                     }
-                     catch (Throwable ex) {
-                         Log.error("Unable to load plugin " + clazz + ".", ex);
-                     }
-         			}
-          		});
+        for (Node plugin : plugins) {
+            String clazz = null;
+            try {
+                clazz = plugin.selectSingleNode("class").getText();
+                classes.add(Class.forName(clazz, false, getClass().getClassLoader()));
+            }
+            catch (Throwable ex) {
+                Log.error("Unable to load plugin " + clazz + ".", ex);
+            }
+        }
 
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                for (Class<?> clazz : classes) {
+                    try {
+                        Plugin pluginClass = (Plugin) clazz.newInstance();
+                        Log.debug(clazz.getName() + " has been loaded. Internal plugin.");
 
-        }
+                        registerPlugin(pluginClass);
+                    }
+                    catch (Throwable ex) {
+                        Log.error("Unable to load plugin " + clazz.getName() + ".", ex);
+                    }
+                }
+            }
+        });
     }
 
     private void updateClasspath() {
@@ -567,115 +559,60 @@ public class PluginManager implements MainWindowListener {
     }
 
     /**
-     * Loads and initalizes all Plugins.
+     * Loads and initalizes all Plugins. Plugins are initialized after the plugins
+     * they depend on, once the startup milestones they wait for were reached, see
+     * {@link PluginStartup} and {@link StartupMilestones}.
      *
      * @see Plugin
      */
     public void initializePlugins() {
-      try
-		{
-      	int j = 0;
-			boolean dependsfound = false;
-
-      	// Dependency check
-      	for (int i = 0; i< publicPlugins.size(); i++) {
-      		// if dependencies are available, check these
-      		if((publicPlugins.get(i)).getDependency().size()>0) {
-      			List<PluginDependency> dependencies = (publicPlugins.get(i)).getDependency();
-
-      			// go trough all dependencies
-      			for( PluginDependency dependency : dependencies) {
-      				j = 0;
-      				dependsfound = false;
-      				// look for the specific plugin
-      				for(PublicPlugin plugin1 :publicPlugins) {
-
-      					if(plugin1.getName()!= null
-      						&& plugin1.getName().equals(dependency.getName()))	{
-      						// if the version is compatible then reorder
-      						if(dependency.compareVersion(plugin1.getVersion())){
-      							dependsfound = true;
-      							// when depended Plugin hadn't been installed yet
-      							if(j>i){
-
-      								// find the position of plugins-List because it has more entries
-      								int counter = 0, x = 0, z = 0;
-      								for(Plugin plug : plugins) {
-      									// find the position of the aim-object
-      									if(plug.getClass().toString().substring(6).equals(publicPlugins.get(j).getPluginClass())) {
-      										x = counter;
-      									}
-      									// find the change-position
-      									else if(plug.getClass().toString().substring(6).equals(publicPlugins.get(i).getPluginClass())) {
-      										z = counter;
-      									}
-      									counter ++;
-      								}
-      								// change the order
-      								publicPlugins.add(i, publicPlugins.get(j));
-      								publicPlugins.remove(j+1);
-
-      								plugins.add(z, plugins.get(x));
-      								plugins.remove(x+1);
-
-      								// start again, to check the other dependencies
-      								i--;
-      							}
-      						}
-      						// else don't load the plugin and show an error
-      						else {
-      							Log.error("Depended Plugin " + dependency.getName() + " hasn't the right version (" + dependency.getVersion() + "<>" + plugin1.getVersion());
-      						}
-      						break;
-      					}
-      					j++;
-      				}
-      				// if the depended Plugin wasn't found, then show error
-      				if(!dependsfound) {
-      					Log.error("Depended Plugin " + dependency.getName() + " is missing for the Plugin " + (publicPlugins.get(i)).getName());
-
-      					// find the posiion of plugins-List because it has more entries
-      					int counter = 0;
-							for(Plugin plug : plugins) {
-								// find the delete-position
-								if(plug.getClass().toString().substring(6).equals(publicPlugins.get(i).getPluginClass())) {
-									break;
-								}
-								counter ++;
-							}
-      					// delete the Plugin, because the depended Plugin is missing
-							publicPlugins.remove(i);
-							plugins.remove(counter);
-							i--;
-							break;
-      				}
-      			}
-      		}
-      	}
-
-			EventQueue.invokeLater(new Runnable() {
-			      public void run() {
-			          for (Plugin plugin1 : plugins) {
-			              long start = System.currentTimeMillis();
-			              Log.debug("Trying to initialize " + plugin1);
-			              try {
-			                  plugin1.initialize();
-			              }
-			              catch (Throwable e) {
-			                  Log.error(e);
-			              }
-
-			              long end = System.currentTimeMillis();
-			              Log.debug("Took " + (end - start) + " ms. to load " + plugin1);
-			          }
-			      }
-			  });
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-		}
+        final Map<String, PublicPlugin> publicByClass = new HashMap<String, PublicPlugin>();
+        for (PublicPlugin publicPlugin : publicPlugins) {
+            publicByClass.put(publicPlugin.getPluginClass(), publicPlugin);
+        }
+
+        final PluginStartup pluginStartup = new PluginStartup();
+        for (Plugin plugin : plugins) {
+            final PublicPlugin publicPlugin = publicByClass.get(plugin.getClass().getName());
+            if (publicPlugin != null) {
+                final List<String> milestones = publicPlugin.getMilestones().isEmpty()
+                        ? StartupMilestones.getMilestones() : publicPlugin.getMilestones();
+                pluginStartup.add(publicPlugin.getName(), publicPlugin.getVersion(), plugin,
+                        publicPlugin.isBackground(), publicPlugin.getDependency(), milestones);
+            }
+            else {
+                pluginStartup.add(plugin.getClass().getName(), null, plugin, false, Collections.<PluginDependency>emptyList(),
+                        StartupMilestones.getMilestones());
+            }
+        }
+        startup = pluginStartup;
+        StartupMilestones.getInstance().addMilestoneListener(new StartupMilestones.MilestoneListener() {
+            public void milestoneReached(String milestone) {
+                pluginStartup.reach(milestone);
+            }
+        });
 
+        // Plugins whose dependencies are missing are not loaded.
+        final Map<Plugin, String> skipped = pluginStartup.start();
+        for (Map.Entry<Plugin, String> entry : skipped.entrySet()) {
+            Log.error(entry.getValue());
+            plugins.remove(entry.getKey());
+            publicPlugins.remove(publicByClass.get(entry.getKey().getClass().getName()));
+        }
+    }
+
+    /**
+     * Returns when and where every plugin was initialized.
+     *
+     * @return the timeline of the initialization of the plugins, empty if the plugins
+     *         were not initialized yet.
+     */
+    public List<PluginStartup.Timing> getStartupTimeline() {
+        final PluginStartup pluginStartup = startup;
+        if (pluginStartup == null) {
+            return Collections.emptyList();
+        }
+        return pluginStartup.getTimeline();
     }
 
     public void shutdown() {
@@ -950,39 +887,31 @@ public class PluginManager implements MainWindowListener {
     /**
      * Checks the plugin for required operating system.
      *
-     * @param plugin the Plugin element to check.
+     * @param plugin the definition of the plugin to check.
      * @return true if the operating system is ok for the plugin to run on.
      */
-    private boolean isOperatingSystemOK(Node plugin) {
+    private boolean isOperatingSystemOK(PluginDescriptor plugin) {
         // Check for operating systems
-        try {
-
-            final Element osElement = (Element)plugin.selectSingleNode("os");
-            if (osElement != null) {
-                String operatingSystem = osElement.getText();
-
-                boolean ok = false;
-
-                final String currentOS = JiveInfo.getOS().toLowerCase();
-
-                // Iterate through comma delimited string
-                StringTokenizer tkn = new StringTokenizer(operatingSystem, ",");
-                while (tkn.hasMoreTokens()) {
-                    String os = tkn.nextToken().toLowerCase();
-                    if (currentOS.contains(os) || currentOS.equalsIgnoreCase(os)) {
-                        ok = true;
-                    }
+        String operatingSystem = plugin.getOs();
+        if (operatingSystem != null) {
+            boolean ok = false;
+
+            final String currentOS = JiveInfo.getOS().toLowerCase();
+
+            // Iterate through comma delimited string
+            StringTokenizer tkn = new StringTokenizer(operatingSystem, ",");
+            while (tkn.hasMoreTokens()) {
+                String os = tkn.nextToken().toLowerCase();
+                if (currentOS.contains(os) || currentOS.equalsIgnoreCase(os)) {
+                    ok = true;
                 }
+            }
 
-                if (!ok) {
-                    Log.debug("Unable to load plugin " + plugin.selectSingleNode("name").getText() + " due to invalid operating system. Required OS = " + operatingSystem);
-                    return false;
-                }
+            if (!ok) {
+                Log.debug("Unable to load plugin " + plugin.getName() + " due to invalid operating system. Required OS = " + operatingSystem);
+                return false;
             }
         }
-        catch (Exception e) {
-            Log.error(e);
-        }
 
         return true;
     }
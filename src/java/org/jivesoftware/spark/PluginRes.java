@@ -23,6 +23,7 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.spark.plugin.PluginClassLoader;
 
 public abstract class PluginRes {
@@ -75,6 +76,8 @@ public abstract class PluginRes {
 
 	public static void putSparkRes(String key, String value) {
 		putRes(key, value, sparkResCache);
+		// The plugin replaces the image, drop the one already loaded.
+		SparkRes.getIconRegistry().invalidate(key);
 	}
 
 	public static void putDefaultRes(String key, String value) {
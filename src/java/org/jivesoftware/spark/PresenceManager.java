@@ -60,6 +60,10 @@ public class PresenceManager {
         PRESENCES.add(phonePresence);
         PRESENCES.add(dndPresence);
 	PRESENCES.add(invisible);
+
+        // Presence icons are drawn for every contact, have them ready before the roster arrives.
+        SparkRes.preloadImageIcons(SparkRes.INVISIBLE, SparkRes.CLEAR_BALL_ICON, SparkRes.GREEN_BALL,
+            SparkRes.FREE_TO_CHAT_IMAGE, SparkRes.ON_PHONE_IMAGE, SparkRes.IM_AWAY, SparkRes.IM_DND);
     }
 
     /**
@@ -0,0 +1,164 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jivesoftware.spark.util.log.Log;
+
+/**
+ * The milestones Spark reaches while starting up, which plugins may wait for
+ * before they are initialized. A plugin declares the milestones it waits for in
+ * its plugin.xml, such as <code>&lt;depends&gt;&lt;milestone&gt;roster&lt;/milestone&gt;&lt;/depends&gt;</code>,
+ * a plugin that declares none waits for all of them.
+ */
+public class StartupMilestones {
+
+    /**
+     * The user logged in.
+     */
+    public static final String CONNECTED = "connected";
+
+    /**
+     * The main window shows the workspace.
+     */
+    public static final String WORKSPACE_SHOWN = "workspace";
+
+    /**
+     * The roster was loaded into the contact list and the presence of the user
+     * was sent.
+     */
+    public static final String ROSTER_LOADED = "roster";
+
+    /**
+     * Listens for milestones being reached.
+     */
+    public interface MilestoneListener {
+
+        /**
+         * Called once a milestone was reached, on the thread that reached it.
+         *
+         * @param milestone the milestone.
+         */
+        void milestoneReached(String milestone);
+    }
+
+    private static final List<String> MILESTONES = Collections.unmodifiableList(Arrays.asList(CONNECTED, WORKSPACE_SHOWN, ROSTER_LOADED));
+
+    private static StartupMilestones singleton;
+    private static final Object LOCK = new Object();
+
+    private final Set<String> reached = new LinkedHashSet<String>();
+    private final List<MilestoneListener> listeners = new ArrayList<MilestoneListener>();
+    private final long created = System.currentTimeMillis();
+
+    /**
+     * Returns the singleton instance of <CODE>StartupMilestones</CODE>,
+     * creating it if necessary.
+     * <p/>
+     *
+     * @return the singleton instance of <Code>StartupMilestones</CODE>
+     */
+    public static StartupMilestones getInstance() {
+        // Synchronize on LOCK to ensure that we don't end up creating
+        // two singletons.
+        synchronized (LOCK) {
+            if (null == singleton) {
+                singleton = new StartupMilestones();
+            }
+        }
+        return singleton;
+    }
+
+    protected StartupMilestones() {
+    }
+
+    /**
+     * Returns all milestones, in the order they are usually reached.
+     *
+     * @return the milestones.
+     */
+    public static List<String> getMilestones() {
+        return MILESTONES;
+    }
+
+    /**
+     * Tells the listeners that a milestone was reached, unless it was reached before.
+     *
+     * @param milestone the milestone.
+     */
+    public void reach(String milestone) {
+        final List<MilestoneListener> toNotify;
+        synchronized (reached) {
+            if (!reached.add(milestone)) {
+                return;
+            }
+            toNotify = new ArrayList<MilestoneListener>(listeners);
+        }
+        Log.debug("Startup milestone " + milestone + " reached after " + (System.currentTimeMillis() - created) + " ms.");
+        for (MilestoneListener listener : toNotify) {
+            listener.milestoneReached(milestone);
+        }
+    }
+
+    /**
+     * Returns true if a milestone was reached.
+     *
+     * @param milestone the milestone.
+     * @return true if the milestone was reached.
+     */
+    public boolean isReached(String milestone) {
+        synchronized (reached) {
+            return reached.contains(milestone);
+        }
+    }
+
+    /**
+     * Adds a listener, which is told at once of the milestones already reached.
+     *
+     * @param listener the listener.
+     */
+    public void addMilestoneListener(MilestoneListener listener) {
+        final List<String> alreadyReached;
+        synchronized (reached) {
+            listeners.add(listener);
+            alreadyReached = new ArrayList<String>(reached);
+        }
+        for (String milestone : alreadyReached) {
+            listener.milestoneReached(milestone);
+        }
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeMilestoneListener(MilestoneListener listener) {
+        synchronized (reached) {
+            listeners.remove(listener);
+        }
+    }
+}
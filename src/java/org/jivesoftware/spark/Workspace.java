@@ -25,7 +25,6 @@ import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
-import java.util.TimerTask;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -62,7 +61,6 @@ import org.jivesoftware.spark.ui.ContactList;
 import org.jivesoftware.spark.ui.conferences.ConferenceServices;
 import org.jivesoftware.spark.ui.status.StatusBar;
 import org.jivesoftware.spark.util.ModelUtil;
-import org.jivesoftware.spark.util.TaskEngine;
 import org.jivesoftware.spark.util.UIComponentRegistry;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.plugin.alerts.BroadcastPlugin;
@@ -266,19 +264,9 @@ public class Workspace extends JPanel implements PacketListener {
         bookmarkPlugin = new BookmarkPlugin();
         bookmarkPlugin.initialize();
 
-        // Schedule loading of the plugins after two seconds.
-        TaskEngine.getInstance().schedule(new TimerTask() {
-            public void run() {
-                final PluginManager pluginManager = PluginManager.getInstance();
-
-                SparkManager.getMainWindow().addMainWindowListener(pluginManager);
-                pluginManager.initializePlugins();
-
-                // Subscriptions are always manual
-                Roster roster = SparkManager.getConnection().getRoster();
-                roster.setSubscriptionMode(Roster.SubscriptionMode.manual);
-            }
-        }, 2000);
+        // Subscriptions are always manual
+        Roster roster = SparkManager.getConnection().getRoster();
+        roster.setSubscriptionMode(Roster.SubscriptionMode.manual);
 
         // Check URI Mappings
         SparkManager.getChatManager().handleURIMapping(Spark.ARGUMENTS);
@@ -31,7 +31,7 @@ import org.jivesoftware.spark.ui.ContactItem;
  * extend JPanel here directly and customize here.
  *
  */
-public class JContactItemRenderer extends ContactItem implements ListCellRenderer {
+public class JContactItemRenderer extends ContactItem implements ListCellRenderer<ContactItem> {
 	JPanelRenderer basicPanelRenderer;
 	
 	public JContactItemRenderer() {
@@ -41,22 +41,22 @@ public class JContactItemRenderer extends ContactItem implements ListCellRendere
 	}
 
 	@Override
-	public Component getListCellRendererComponent(JList list, Object value, int index, 
+	public Component getListCellRendererComponent(JList<? extends ContactItem> list, ContactItem renderItem, int index,
 			boolean isSelected, boolean cellHasFocus) {
 		
 		basicPanelRenderer.getListCellRendererComponent(list, this, index, isSelected, cellHasFocus);
-		ContactItem renderItem = (ContactItem)value;
 		setFocusable(false);
+		// Only read the state of the item, lightweight items have no labels to copy from.
 		setNickname(renderItem.getNickname());
 		setAlias(renderItem.getAlias());
 		setIcon(renderItem.getIcon());
 		setStatus(renderItem.getStatus());
-		getNicknameLabel().setFont(renderItem.getNicknameLabel().getFont());
-		getNicknameLabel().setForeground(renderItem.getNicknameLabel().getForeground());
-		getDescriptionLabel().setFont(renderItem.getDescriptionLabel().getFont());
-		getDescriptionLabel().setText(renderItem.getDescriptionLabel().getText());
-		getSpecialImageLabel().setIcon(renderItem.getSpecialImageLabel().getIcon());
-		getSideIcon().setIcon(renderItem.getSideIcon().getIcon());
+		getNicknameLabel().setFont(renderItem.getNicknameFont());
+		getNicknameLabel().setForeground(renderItem.getNicknameForeground());
+		getDescriptionLabel().setFont(renderItem.getDescriptionFont());
+		getDescriptionLabel().setText(renderItem.getDescriptionText());
+		getSpecialImageLabel().setIcon(renderItem.getSpecialIcon());
+		getSideIcon().setIcon(renderItem.getSideIconImage());
 		return this;
 	}
 }
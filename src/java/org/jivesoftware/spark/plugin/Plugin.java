@@ -35,9 +35,10 @@ public interface Plugin {
      * for use during this classes lifecycle. <code>Plugin</code> authors should take
      * care to ensure that any extraneous initialization is not preformed on this method, and
      * any startup code that can be delayed until a later time is delayed, as
-     * the <code>Plugin</code>'s are synchronously initialized during the
+     * the <code>Plugin</code>'s are initialized on the event dispatch thread during the
      * startup of Spark, and each <code>Plugin</code> has the potential to
-     * negatively impact the startup time of the product.
+     * negatively impact the startup time of the product. A <code>Plugin</code>
+     * whose plugin.xml sets <code>background</code> is initialized on another thread.
      *
      * @see org.jivesoftware.spark.PluginManager
      */
@@ -0,0 +1,217 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.dom4j.DocumentException;
+import org.jivesoftware.spark.util.StringUtils;
+import org.jivesoftware.spark.util.log.Log;
+
+/**
+ * Keeps what Spark learns about plugin files between starts: the checksums of
+ * plugin jars and the parsed plugin.xml of expanded plugins. Every entry records
+ * the size and modification time of its file, and is used again only as long as
+ * the file did not change.
+ * <p/>
+ * The cache is written to a temporary file that then replaces the previous one,
+ * so that a start never reads a half written cache.
+ */
+public class PluginCache {
+
+    /**
+     * The name of the cache file in the plugins directory.
+     */
+    public static final String FILE_NAME = "plugins.cache";
+
+    private static final String CHECKSUM = "checksum.";
+    private static final String DESCRIPTOR = "descriptor.";
+
+    private final File file;
+    private final Properties properties = new Properties();
+    private boolean changed;
+
+    /**
+     * Reads the cache from a file. A missing or unreadable file gives an empty
+     * cache.
+     *
+     * @param file the cache file.
+     */
+    public PluginCache(File file) {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+            }
+            catch (Exception e) {
+                // The cache is only rebuilt, which is not worth a warning.
+                Log.debug("Unable to read plugin cache " + file + ", rebuilding it: " + e);
+                properties.clear();
+            }
+            finally {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * Returns the MD5 checksum of a file, computing it only if the file changed
+     * since it was last computed.
+     *
+     * @param jar the file.
+     * @return the checksum.
+     * @throws NoSuchAlgorithmException if MD5 is not available.
+     * @throws IOException              if the file could not be read.
+     */
+    public synchronized String getChecksum(File jar) throws NoSuchAlgorithmException, IOException {
+        final String prefix = CHECKSUM + jar.getAbsolutePath() + "|";
+        if (isCurrent(prefix, jar)) {
+            final String checksum = properties.getProperty(prefix + "md5");
+            if (checksum != null) {
+                return checksum;
+            }
+        }
+        final String checksum = computeChecksum(jar);
+        invalidate(prefix);
+        properties.setProperty(prefix + "md5", checksum);
+        stamp(prefix, jar);
+        return checksum;
+    }
+
+    /**
+     * Returns the definition of a plugin, parsing its plugin.xml only if the file
+     * changed since it was last parsed.
+     *
+     * @param pluginXML the plugin.xml file.
+     * @return the definition of the plugin.
+     * @throws DocumentException if the file could not be read.
+     */
+    public synchronized PluginDescriptor getDescriptor(File pluginXML) throws DocumentException {
+        final String prefix = DESCRIPTOR + pluginXML.getAbsolutePath() + "|";
+        if (isCurrent(prefix, pluginXML)) {
+            final PluginDescriptor descriptor = PluginDescriptor.load(properties, prefix);
+            if (descriptor != null) {
+                return descriptor;
+            }
+        }
+        invalidate(prefix);
+        final PluginDescriptor descriptor = parseDescriptor(pluginXML);
+        descriptor.store(properties, prefix);
+        stamp(prefix, pluginXML);
+        return descriptor;
+    }
+
+    /**
+     * Writes the cache if it changed, without the entries of files that no longer
+     * exist.
+     */
+    public synchronized void save() {
+        for (String key : new ArrayList<String>(properties.stringPropertyNames())) {
+            if (key.endsWith("|stamp")) {
+                final String prefix = key.substring(0, key.length() - "stamp".length());
+                final String path = prefix.substring(prefix.indexOf('.') + 1, prefix.length() - 1);
+                if (!new File(path).exists()) {
+                    invalidate(prefix);
+                }
+            }
+        }
+        if (!changed) {
+            return;
+        }
+
+        final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, "Spark plugin cache");
+            out.close();
+            out = null;
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            changed = false;
+        }
+        catch (IOException e) {
+            Log.warning("Unable to write plugin cache " + file, e);
+            temp.delete();
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    protected String computeChecksum(File jar) throws NoSuchAlgorithmException, IOException {
+        return StringUtils.getMD5Checksum(jar.getAbsolutePath());
+    }
+
+    protected PluginDescriptor parseDescriptor(File pluginXML) throws DocumentException {
+        return PluginDescriptor.parse(pluginXML);
+    }
+
+    private boolean isCurrent(String prefix, File file) {
+        return getStamp(file).equals(properties.getProperty(prefix + "stamp"));
+    }
+
+    private void stamp(String prefix, File file) {
+        properties.setProperty(prefix + "stamp", getStamp(file));
+        changed = true;
+    }
+
+    private void invalidate(String prefix) {
+        for (String key : new ArrayList<String>(properties.stringPropertyNames())) {
+            if (key.startsWith(prefix)) {
+                properties.remove(key);
+                changed = true;
+            }
+        }
+    }
+
+    private static String getStamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Node;
+import org.dom4j.io.SAXReader;
+
+/**
+ * The definition of a plugin as read from its plugin.xml, which can be kept in a
+ * {@link PluginCache} so that the file is not parsed again at the next start.
+ */
+public class PluginDescriptor {
+
+    private String name;
+    private String pluginClass;
+    private String version;
+    private String author;
+    private String email;
+    private String description;
+    private String homePage;
+    private String minSparkVersion;
+    private String java;
+    private String os;
+    private boolean background;
+    private final List<PluginDependency> dependencies = new ArrayList<PluginDependency>();
+    private final List<String> milestones = new ArrayList<String>();
+
+    private PluginDescriptor() {
+    }
+
+    /**
+     * Reads the definition of a plugin.
+     *
+     * @param pluginXML the plugin.xml file.
+     * @return the definition of the plugin.
+     * @throws DocumentException if the file could not be read.
+     */
+    public static PluginDescriptor parse(File pluginXML) throws DocumentException {
+        final Document document = new SAXReader().read(pluginXML);
+        final PluginDescriptor descriptor = new PluginDescriptor();
+        final Node plugin = document.selectSingleNode("/plugin");
+        if (plugin == null) {
+            return descriptor;
+        }
+        descriptor.name = getText(plugin, "name");
+        descriptor.pluginClass = getText(plugin, "class");
+        descriptor.version = getText(plugin, "version");
+        descriptor.author = getText(plugin, "author");
+        descriptor.email = getText(plugin, "email");
+        descriptor.description = getText(plugin, "description");
+        descriptor.homePage = getText(plugin, "homePage");
+        descriptor.minSparkVersion = getText(plugin, "minSparkVersion");
+        descriptor.java = getText(plugin, "java");
+        descriptor.os = getText(plugin, "os");
+        final String background = getText(plugin, "background");
+        descriptor.background = background != null && Boolean.parseBoolean(background.trim());
+
+        for (Object depend : plugin.selectNodes("depends/plugin")) {
+            final PluginDependency dependency = new PluginDependency();
+            dependency.setName(getText((Node)depend, "name"));
+            dependency.setVersion(getText((Node)depend, "version"));
+            descriptor.dependencies.add(dependency);
+        }
+        for (Object milestone : plugin.selectNodes("depends/milestone")) {
+            descriptor.milestones.add(((Node)milestone).getText().trim());
+        }
+        return descriptor;
+    }
+
+    /**
+     * Reads a definition kept by {@link #store(Properties, String)}.
+     *
+     * @param properties the properties holding the definition.
+     * @param prefix     the prefix of the keys of the definition.
+     * @return the definition, or null if the properties do not hold one.
+     */
+    static PluginDescriptor load(Properties properties, String prefix) {
+        if (properties.getProperty(prefix + "descriptor") == null) {
+            return null;
+        }
+        final PluginDescriptor descriptor = new PluginDescriptor();
+        descriptor.name = properties.getProperty(prefix + "name");
+        descriptor.pluginClass = properties.getProperty(prefix + "class");
+        descriptor.version = properties.getProperty(prefix + "version");
+        descriptor.author = properties.getProperty(prefix + "author");
+        descriptor.email = properties.getProperty(prefix + "email");
+        descriptor.description = properties.getProperty(prefix + "description");
+        descriptor.homePage = properties.getProperty(prefix + "homePage");
+        descriptor.minSparkVersion = properties.getProperty(prefix + "minSparkVersion");
+        descriptor.java = properties.getProperty(prefix + "java");
+        descriptor.os = properties.getProperty(prefix + "os");
+        descriptor.background = Boolean.parseBoolean(properties.getProperty(prefix + "background"));
+        try {
+            final int dependencies = Integer.parseInt(properties.getProperty(prefix + "depends", "0"));
+            for (int i = 0; i < dependencies; i++) {
+                final PluginDependency dependency = new PluginDependency();
+                dependency.setName(properties.getProperty(prefix + "depends." + i + ".name"));
+                dependency.setVersion(properties.getProperty(prefix + "depends." + i + ".version"));
+                descriptor.dependencies.add(dependency);
+            }
+            final int milestones = Integer.parseInt(properties.getProperty(prefix + "milestones", "0"));
+            for (int i = 0; i < milestones; i++) {
+                descriptor.milestones.add(properties.getProperty(prefix + "milestones." + i, ""));
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        return descriptor;
+    }
+
+    /**
+     * Keeps the definition in properties.
+     *
+     * @param properties the properties to keep the definition in.
+     * @param prefix     the prefix of the keys of the definition.
+     */
+    void store(Properties properties, String prefix) {
+        properties.setProperty(prefix + "descriptor", "1");
+        put(properties, prefix + "name", name);
+        put(properties, prefix + "class", pluginClass);
+        put(properties, prefix + "version", version);
+        put(properties, prefix + "author", author);
+        put(properties, prefix + "email", email);
+        put(properties, prefix + "description", description);
+        put(properties, prefix + "homePage", homePage);
+        put(properties, prefix + "minSparkVersion", minSparkVersion);
+        put(properties, prefix + "java", java);
+        put(properties, prefix + "os", os);
+        properties.setProperty(prefix + "background", Boolean.toString(background));
+        properties.setProperty(prefix + "depends", Integer.toString(dependencies.size()));
+        for (int i = 0; i < dependencies.size(); i++) {
+            put(properties, prefix + "depends." + i + ".name", dependencies.get(i).getName());
+            put(properties, prefix + "depends." + i + ".version", dependencies.get(i).getVersion());
+        }
+        properties.setProperty(prefix + "milestones", Integer.toString(milestones.size()));
+        for (int i = 0; i < milestones.size(); i++) {
+            put(properties, prefix + "milestones." + i, milestones.get(i));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPluginClass() {
+        return pluginClass;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getHomePage() {
+        return homePage;
+    }
+
+    /**
+     * Returns the oldest version of Spark the plugin runs on.
+     *
+     * @return the version, or null if the plugin does not tell.
+     */
+    public String getMinSparkVersion() {
+        return minSparkVersion;
+    }
+
+    /**
+     * Returns the oldest version of Java the plugin runs on.
+     *
+     * @return the version, or null if the plugin does not tell.
+     */
+    public String getJava() {
+        return java;
+    }
+
+    /**
+     * Returns the operating systems the plugin runs on, separated by commas.
+     *
+     * @return the operating systems, or null if the plugin runs on all.
+     */
+    public String getOs() {
+        return os;
+    }
+
+    /**
+     * Returns true if the plugin may be initialized off the event dispatch thread.
+     *
+     * @return true if the plugin is initialized in the background.
+     */
+    public boolean isBackground() {
+        return background;
+    }
+
+    public List<PluginDependency> getDependencies() {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * Returns the startup milestones the plugin waits for.
+     *
+     * @return the milestones, empty if the plugin waits for all of them.
+     */
+    public List<String> getMilestones() {
+        return Collections.unmodifiableList(milestones);
+    }
+
+    private static String getText(Node parent, String name) {
+        final Node node = parent.selectSingleNode(name);
+        return node != null ? node.getText() : null;
+    }
+
+    private static void put(Properties properties, String key, String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.plugin;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.log.Log;
+
+/**
+ * Initializes plugins in the order of their dependencies. A plugin is initialized
+ * once all plugins it depends on were initialized and the startup milestones it
+ * waits for were reached, plugins that do not depend on each other do not wait for
+ * each other.
+ * <p/>
+ * Plugins are initialized on the event dispatch thread in the order they were
+ * added, one per event so that the user interface stays responsive in between.
+ * Plugins that ask to be initialized in the background are initialized on the
+ * threads of the {@link TaskEngine}, at the same time as other plugins, and must
+ * register their user interface on the event dispatch thread themselves.
+ * <p/>
+ * The time every plugin waited and took is kept in a timeline.
+ */
+public class PluginStartup {
+
+    /**
+     * When and where a plugin was initialized.
+     */
+    public static class Timing {
+        private final String name;
+        private final boolean background;
+        private final long ready;
+        private final long started;
+        private final long finished;
+        private final Throwable error;
+
+        Timing(String name, boolean background, long ready, long started, long finished, Throwable error) {
+            this.name = name;
+            this.background = background;
+            this.ready = ready;
+            this.started = started;
+            this.finished = finished;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns true if the plugin was initialized in the background rather than
+         * on the event dispatch thread.
+         *
+         * @return true if initialized in the background.
+         */
+        public boolean isBackground() {
+            return background;
+        }
+
+        /**
+         * Returns when the plugins it depends on were initialized, in milliseconds
+         * since the startup started.
+         *
+         * @return the time the plugin was ready to be initialized.
+         */
+        public long getReady() {
+            return ready;
+        }
+
+        /**
+         * Returns when the plugin started to initialize, in milliseconds since the
+         * startup started.
+         *
+         * @return the time the plugin started to initialize.
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Returns when the plugin was initialized, in milliseconds since the startup
+         * started.
+         *
+         * @return the time the plugin was initialized.
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns the error thrown by the plugin while initializing.
+         *
+         * @return the error, or null if the plugin initialized.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public String toString() {
+            return name + (background ? " (background)" : "") + ": ready at " + ready + " ms, waited "
+                    + (started - ready) + " ms, took " + (finished - started) + " ms"
+                    + (error != null ? ", failed: " + error : "");
+        }
+    }
+
+    private static final class Step {
+        final int index;
+        final String name;
+        final String version;
+        final Plugin plugin;
+        final boolean background;
+        final Collection<PluginDependency> dependencies;
+        final Collection<String> milestones;
+        final List<Step> dependents = new ArrayList<Step>();
+        int waitingFor;
+        long ready;
+
+        Step(int index, String name, String version, Plugin plugin, boolean background, Collection<PluginDependency> dependencies,
+             Collection<String> milestones) {
+            this.index = index;
+            this.name = name;
+            this.version = version;
+            this.plugin = plugin;
+            this.background = background;
+            this.dependencies = dependencies;
+            this.milestones = milestones;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<Step>();
+    private final TreeSet<Step> readyOnEventThread = new TreeSet<Step>(new Comparator<Step>() {
+        public int compare(Step step1, Step step2) {
+            return step1.index - step2.index;
+        }
+    });
+    private final List<Timing> timeline = new ArrayList<Timing>();
+    private final Set<String> reached = new HashSet<String>();
+    private final Map<String, List<Step>> waitingForMilestone = new HashMap<String, List<Step>>();
+    private final Object lock = new Object();
+    private CountDownLatch done;
+    private boolean eventScheduled;
+    private long startTime;
+
+    /**
+     * Adds a plugin to initialize.
+     *
+     * @param name         the name of the plugin, which other plugins depend on.
+     * @param version      the version of the plugin, or null.
+     * @param plugin       the plugin.
+     * @param background   true to initialize the plugin off the event dispatch thread.
+     * @param dependencies the plugins the plugin depends on.
+     */
+    public void add(String name, String version, Plugin plugin, boolean background, Collection<PluginDependency> dependencies) {
+        add(name, version, plugin, background, dependencies, Collections.<String>emptyList());
+    }
+
+    /**
+     * Adds a plugin to initialize once some milestones were reached.
+     *
+     * @param name         the name of the plugin, which other plugins depend on.
+     * @param version      the version of the plugin, or null.
+     * @param plugin       the plugin.
+     * @param background   true to initialize the plugin off the event dispatch thread.
+     * @param dependencies the plugins the plugin depends on.
+     * @param milestones   the milestones the plugin waits for.
+     * @see #reach(String)
+     */
+    public void add(String name, String version, Plugin plugin, boolean background, Collection<PluginDependency> dependencies,
+                    Collection<String> milestones) {
+        synchronized (lock) {
+            steps.add(new Step(steps.size(), name, version, plugin, background, dependencies, milestones));
+        }
+    }
+
+    /**
+     * Initializes the plugins that only waited for a milestone. A milestone may be
+     * reached before the startup starts.
+     *
+     * @param milestone the milestone reached.
+     */
+    public void reach(String milestone) {
+        final List<Step> ready = new ArrayList<Step>();
+        synchronized (lock) {
+            if (!reached.add(milestone)) {
+                return;
+            }
+            final List<Step> waiting = waitingForMilestone.remove(milestone);
+            if (waiting != null) {
+                for (Step step : waiting) {
+                    if (--step.waitingFor == 0) {
+                        ready.add(step);
+                    }
+                }
+            }
+        }
+        for (Step step : ready) {
+            schedule(step);
+        }
+    }
+
+    /**
+     * Starts initializing the plugins. Plugins that depend on a plugin that is
+     * missing, of a version that does not match, or that depend on themselves
+     * through other plugins are not initialized, and neither are the plugins that
+     * depend on them.
+     *
+     * @return the plugins that will not be initialized, with the reason.
+     */
+    public Map<Plugin, String> start() {
+        final Map<Plugin, String> skipped = new LinkedHashMap<Plugin, String>();
+        final List<Step> ready = new ArrayList<Step>();
+        synchronized (lock) {
+            startTime = System.currentTimeMillis();
+
+            // The first plugin of a name is the one others depend on.
+            final Map<String, Step> byName = new HashMap<String, Step>();
+            for (Step step : steps) {
+                if (step.name != null && !byName.containsKey(step.name)) {
+                    byName.put(step.name, step);
+                }
+            }
+
+            final Map<Step, String> reasons = new HashMap<Step, String>();
+            for (Step step : steps) {
+                for (PluginDependency dependency : step.dependencies) {
+                    final Step required = byName.get(dependency.getName());
+                    if (required == null) {
+                        reasons.put(step, "Depended Plugin " + dependency.getName() + " is missing for the Plugin " + step.name);
+                    }
+                    else if (!dependency.compareVersion(required.version)) {
+                        reasons.put(step, "Depended Plugin " + dependency.getName() + " hasn't the right version ("
+                                + dependency.getVersion() + "<>" + required.version + ") for the Plugin " + step.name);
+                    }
+                    else if (required != step) {
+                        required.dependents.add(step);
+                        step.waitingFor++;
+                    }
+                }
+            }
+
+            // Visits the plugins in the order of their dependencies. Plugins never
+            // visited depend on a plugin that is skipped, or on themselves.
+            final List<Step> order = new ArrayList<Step>();
+            final Map<Step, Integer> waiting = new HashMap<Step, Integer>();
+            for (Step step : steps) {
+                waiting.put(step, step.waitingFor);
+                if (step.waitingFor == 0 && !reasons.containsKey(step)) {
+                    order.add(step);
+                }
+            }
+            for (int i = 0; i < order.size(); i++) {
+                for (Step dependent : order.get(i).dependents) {
+                    final int count = waiting.get(dependent) - 1;
+                    waiting.put(dependent, count);
+                    if (count == 0 && !reasons.containsKey(dependent)) {
+                        order.add(dependent);
+                    }
+                }
+            }
+            if (order.size() < steps.size()) {
+                final Set<Step> started = new HashSet<Step>(order);
+                for (Step step : steps) {
+                    if (!started.contains(step)) {
+                        final String reason = reasons.get(step);
+                        skipped.put(step.plugin, reason != null ? reason : "A plugin the Plugin " + step.name
+                                + " depends on is not initialized, or depends on it");
+                    }
+                    step.dependents.retainAll(started);
+                }
+                steps.retainAll(started);
+            }
+
+            // Milestones are reached from outside, they do not take part in the order.
+            for (Step step : steps) {
+                for (String milestone : new HashSet<String>(step.milestones)) {
+                    if (!reached.contains(milestone)) {
+                        List<Step> waitingSteps = waitingForMilestone.get(milestone);
+                        if (waitingSteps == null) {
+                            waitingSteps = new ArrayList<Step>();
+                            waitingForMilestone.put(milestone, waitingSteps);
+                        }
+                        waitingSteps.add(step);
+                        step.waitingFor++;
+                    }
+                }
+            }
+
+            done = new CountDownLatch(steps.size());
+            for (Step step : steps) {
+                if (step.waitingFor == 0) {
+                    ready.add(step);
+                }
+            }
+        }
+
+        for (Step step : ready) {
+            schedule(step);
+        }
+        return skipped;
+    }
+
+    /**
+     * Waits until all plugins were initialized.
+     *
+     * @param timeout the longest time to wait.
+     * @param unit    the unit of the timeout.
+     * @return true if all plugins were initialized.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        final CountDownLatch latch;
+        synchronized (lock) {
+            latch = done;
+        }
+        return latch != null && latch.await(timeout, unit);
+    }
+
+    /**
+     * Returns the plugins initialized so far, in the order they were initialized.
+     *
+     * @return the timeline of the startup.
+     */
+    public List<Timing> getTimeline() {
+        synchronized (lock) {
+            return Collections.unmodifiableList(new ArrayList<Timing>(timeline));
+        }
+    }
+
+    private void schedule(final Step step) {
+        synchronized (lock) {
+            step.ready = System.currentTimeMillis() - startTime;
+            if (!step.background) {
+                readyOnEventThread.add(step);
+                if (!eventScheduled) {
+                    eventScheduled = true;
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            initializeOnEventThread();
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                initialize(step);
+            }
+        });
+    }
+
+    private void initializeOnEventThread() {
+        final Step step;
+        synchronized (lock) {
+            step = readyOnEventThread.pollFirst();
+        }
+        initialize(step);
+
+        // Gives the event queue a turn before the next plugin.
+        synchronized (lock) {
+            if (readyOnEventThread.isEmpty()) {
+                eventScheduled = false;
+            }
+            else {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        initializeOnEventThread();
+                    }
+                });
+            }
+        }
+    }
+
+    private void initialize(Step step) {
+        final long started = System.currentTimeMillis() - startTime;
+        Throwable error = null;
+        Log.debug("Trying to initialize " + step.plugin);
+        try {
+            step.plugin.initialize();
+        }
+        catch (Throwable e) {
+            error = e;
+            Log.error(e);
+        }
+        final Timing timing = new Timing(step.name, step.background, step.ready, started, System.currentTimeMillis() - startTime, error);
+        Log.debug("Took " + (timing.getFinished() - timing.getStarted()) + " ms. to load " + step.plugin);
+
+        final List<Step> ready = new ArrayList<Step>();
+        synchronized (lock) {
+            timeline.add(timing);
+            for (Step dependent : step.dependents) {
+                if (--dependent.waitingFor == 0) {
+                    ready.add(dependent);
+                }
+            }
+            done.countDown();
+            if (done.getCount() == 0) {
+                Log.debug("Initialized " + timeline.size() + " plugins in " + timing.getFinished() + " ms: " + timeline);
+            }
+        }
+        for (Step dependent : ready) {
+            schedule(dependent);
+        }
+    }
+}
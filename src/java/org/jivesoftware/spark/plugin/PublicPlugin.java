@@ -38,7 +38,9 @@ public class PublicPlugin {
     private boolean largeIconAvailable;
     private String minVersion;
     private File pluginDir;
+    private boolean background;
     private List<PluginDependency> dependencies = new ArrayList<PluginDependency>(); 
+    private List<String> milestones = new ArrayList<String>();
     
     public String getName() {
         return name;
@@ -152,6 +154,20 @@ public class PublicPlugin {
         this.minVersion = minVersion;
     }
     
+    /**
+     * Returns true if the plugin may be initialized off the event dispatch thread,
+     * as set by the <code>background</code> element of its plugin.xml.
+     *
+     * @return true if the plugin is initialized in the background.
+     */
+    public boolean isBackground() {
+        return background;
+    }
+
+    public void setBackground(boolean background) {
+        this.background = background;
+    }
+
     public void addDependency(PluginDependency dependency) {
    	 dependencies.add(dependency);
     }
@@ -159,4 +175,18 @@ public class PublicPlugin {
     public List<PluginDependency> getDependency() {
    	 return dependencies;
     }
+
+    public void addMilestone(String milestone) {
+        milestones.add(milestone);
+    }
+
+    /**
+     * Returns the startup milestones the plugin waits for, as listed in its plugin.xml.
+     *
+     * @return the milestones, empty if the plugin waits for all of them.
+     * @see org.jivesoftware.spark.StartupMilestones
+     */
+    public List<String> getMilestones() {
+        return milestones;
+    }
 }
@@ -29,6 +29,7 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -45,6 +46,7 @@ import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
+import javax.swing.text.MutableAttributeSet;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
@@ -56,6 +58,7 @@ import org.jivesoftware.spark.util.BrowserLauncher;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.plugin.emoticons.EmoticonManager;
+import org.jivesoftware.sparkimpl.plugin.emoticons.EmoticonMatcher;
 import org.jivesoftware.sparkimpl.settings.local.LocalPreferences;
 import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
 
@@ -262,23 +265,36 @@ public class ChatArea extends JTextPane implements MouseListener, MouseMotionLis
      * @throws BadLocationException if location is not available to insert into.
      */
     public void insert(String text) throws BadLocationException {
+        if (getDocument() instanceof ChatDocument) {
+            // Add the whole message in one edit.
+            append(format(text, styles));
+            resetDecorations();
+            return;
+        }
+
         boolean bold = false;
         boolean italic = false;
         boolean underlined = false;
 
+        // Find all emoticons in one pass, the tokens below pick up the ones they contain.
+        final List<EmoticonMatcher.Match> emoticons = areEmoticonsShown()
+            ? emoticonManager.getMatcher().find(text) : Collections.<EmoticonMatcher.Match>emptyList();
+        int emoticon = 0;
+        int position = 0;
+
         final StringTokenizer tokenizer = new StringTokenizer(text, " \n \t", true);
         while (tokenizer.hasMoreTokens()) {
             String textFound = tokenizer.nextToken();
-            if ((textFound.startsWith("http://") || textFound.startsWith("ftp://")
-                    || textFound.startsWith("https://") || textFound.startsWith("www.")) &&
-                    textFound.indexOf(".") > 1) {
+            final int start = position;
+            position += textFound.length();
+            if (isLink(textFound)) {
                 insertLink(textFound);
             }
-            else if ( textFound.startsWith("\\\\")  || (textFound.indexOf("://") > 0 && textFound.indexOf(".") < 1) ) {
+            else if (isAddress(textFound)) {
                 insertAddress(textFound);
             }     
-            else if (!insertImage(textFound)) {
-                insertText(textFound);
+            else {
+                emoticon = insertWithEmoticons(textFound, start, emoticons, emoticon);
             }
         }
 
@@ -288,6 +304,141 @@ public class ChatArea extends JTextPane implements MouseListener, MouseMotionLis
         StyleConstants.setUnderline(styles, underlined);
     }
 
+    /**
+     * Formats a message into styled runs the way {@link #insert(String)} inserts it:
+     * links and network addresses are underlined and emoticons are replaced by their
+     * images. Neither the document nor the given attributes are changed, so a message
+     * can be formatted away from the Swing thread and added later with
+     * {@link #append(FormattedText)}.
+     *
+     * @param text       the message.
+     * @param attributes the attributes of the message text.
+     * @return the formatted message.
+     */
+    public FormattedText format(String text, AttributeSet attributes) {
+        // Work on a copy, the caller keeps changing its attributes for the next message.
+        final MutableAttributeSet style = new SimpleAttributeSet(attributes);
+        final FormattedText formatted = new FormattedText();
+        final List<EmoticonMatcher.Match> emoticons = areEmoticonsShown()
+            ? emoticonManager.getMatcher().find(text) : Collections.<EmoticonMatcher.Match>emptyList();
+        int emoticon = 0;
+        int position = 0;
+
+        final StringTokenizer tokenizer = new StringTokenizer(text, " \n \t", true);
+        while (tokenizer.hasMoreTokens()) {
+            final String token = tokenizer.nextToken();
+            final int start = position;
+            final int end = start + token.length();
+            position = end;
+
+            final boolean link = isLink(token);
+            if (link || isAddress(token)) {
+                style.addAttribute("link", token);
+                StyleConstants.setForeground(style, (Color)UIManager.get(link ? "Link.foreground" : "Address.foreground"));
+                StyleConstants.setUnderline(style, true);
+                formatted.append(token, style);
+                StyleConstants.setUnderline(style, false);
+                StyleConstants.setForeground(style, (Color)UIManager.get("TextPane.foreground"));
+                style.removeAttribute("link");
+                continue;
+            }
+
+            style.removeAttribute("link");
+            int appended = start;
+            while (emoticon < emoticons.size() && emoticons.get(emoticon).getStart() < end) {
+                final EmoticonMatcher.Match match = emoticons.get(emoticon++);
+                if (match.getStart() < start || match.getEnd() > end) {
+                    continue;
+                }
+                final String key = token.substring(match.getStart() - start, match.getEnd() - start);
+                final Icon icon = emoticonManager.getEmoticonImage(key.toLowerCase());
+                if (icon == null) {
+                    continue;
+                }
+                formatted.append(token.substring(appended - start, match.getStart() - start), style);
+                formatted.appendIcon(icon);
+                appended = match.getEnd();
+            }
+            formatted.append(appended == start ? token : token.substring(appended - start), style);
+        }
+        return formatted;
+    }
+
+    /**
+     * Turns bold, italics and underlining of {@link #styles} off, as inserting a
+     * message does.
+     */
+    protected void resetDecorations() {
+        StyleConstants.setBold(styles, false);
+        StyleConstants.setItalic(styles, false);
+        StyleConstants.setUnderline(styles, false);
+    }
+
+    /**
+     * Adds formatted text to the end of the document, in a single edit if the
+     * document supports it.
+     *
+     * @param text the formatted text.
+     * @throws BadLocationException if the location is not available for insertion.
+     */
+    public void append(FormattedText text) throws BadLocationException {
+        final Document doc = getDocument();
+        if (doc instanceof ChatDocument) {
+            ((ChatDocument)doc).append(text);
+        }
+        else {
+            text.insertInto(getStyledDocument(), doc.getLength());
+        }
+        setCaretPosition(doc.getLength());
+    }
+
+    private static boolean isLink(String token) {
+        return (token.startsWith("http://") || token.startsWith("ftp://")
+            || token.startsWith("https://") || token.startsWith("www.")) && token.indexOf(".") > 1;
+    }
+
+    private static boolean isAddress(String token) {
+        return token.startsWith("\\\\") || (token.indexOf("://") > 0 && token.indexOf(".") < 1);
+    }
+
+    /**
+     * Inserts a token of a message, replacing the emoticons found in it by their images.
+     *
+     * @param token      the token.
+     * @param start      the index of the token in the message.
+     * @param emoticons  the emoticons found in the message.
+     * @param next       the index of the first emoticon not before the token.
+     * @return the index of the first emoticon after the token.
+     * @throws BadLocationException if the location is not available for insertion.
+     */
+    private int insertWithEmoticons(String token, int start, List<EmoticonMatcher.Match> emoticons, int next) throws BadLocationException {
+        final int end = start + token.length();
+        int inserted = start;
+        while (next < emoticons.size() && emoticons.get(next).getStart() < end) {
+            final EmoticonMatcher.Match match = emoticons.get(next++);
+            if (match.getStart() < start || match.getEnd() > end) {
+                // Spans whitespace, leave it as text.
+                continue;
+            }
+            final String key = token.substring(match.getStart() - start, match.getEnd() - start);
+            if (match.getStart() > inserted) {
+                insertText(token.substring(inserted - start, match.getStart() - start));
+            }
+            if (!insertImage(key)) {
+                insertText(key);
+            }
+            inserted = match.getEnd();
+        }
+        if (inserted < end) {
+            insertText(inserted == start ? token : token.substring(inserted - start));
+        }
+        return next;
+    }
+
+    private boolean areEmoticonsShown() {
+        return emoticonsAvailable && (forceEmoticons || SettingsManager.getLocalPreferences().areEmoticonsEnabled());
+    }
+
     /**
      * Inserts text into the current document.
      *
@@ -34,13 +34,13 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
-import java.util.regex.Pattern;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -60,9 +60,6 @@ import org.jivesoftware.Spark;
 import org.jivesoftware.resource.Res;
 import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.smack.PacketListener;
-import org.jivesoftware.smack.filter.AndFilter;
-import org.jivesoftware.smack.filter.FromContainsFilter;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
@@ -75,6 +72,7 @@ import org.jivesoftware.spark.component.tabbedPane.SparkTabbedPaneListener;
 import org.jivesoftware.spark.ui.conferences.GroupChatRoomListener;
 import org.jivesoftware.spark.ui.rooms.ChatRoomImpl;
 import org.jivesoftware.spark.ui.rooms.GroupChatRoom;
+import org.jivesoftware.spark.util.KeywordMatcher;
 import org.jivesoftware.spark.util.SwingTimerTask;
 import org.jivesoftware.spark.util.SwingWorker;
 import org.jivesoftware.spark.util.TaskEngine;
@@ -283,11 +281,12 @@ public class ChatContainer extends SparkTabbedPane implements MessageListener, C
         createFrameIfNeeded();
        
         room.setBorder(BorderFactory.createMatteBorder(1, 0, 0, 0, Color.LIGHT_GRAY));
-        AndFilter presenceFilter = new AndFilter(new PacketTypeFilter(Presence.class), new FromContainsFilter(room.getRoomname()));
-
         // Next, create a packet listener. We use an anonymous inner class for brevity.
         PacketListener myListener = new PacketListener() {
             public void processPacket(final Packet packet) {
+                if (!(packet instanceof Presence)) {
+                    return;
+                }
                 SwingUtilities.invokeLater(new Runnable() {
                     public void run() {
                         handleRoomPresence((Presence)packet);
@@ -298,7 +297,7 @@ public class ChatContainer extends SparkTabbedPane implements MessageListener, C
 
         room.registeredToFrame(chatFrame);
         
-        SparkManager.getConnection().addPacketListener(myListener, presenceFilter);
+        SparkManager.getChatManager().getPacketDispatcher().addPacketListener(room.getRoomname(), myListener);
 
         // Add to PresenceMap
         presenceMap.put(room.getRoomname(), myListener);
@@ -555,7 +554,7 @@ public class ChatContainer extends SparkTabbedPane implements MessageListener, C
 
         final PacketListener listener = presenceMap.get(room.getRoomname());
         if (listener != null) {
-            SparkManager.getConnection().removePacketListener(listener);
+            SparkManager.getChatManager().getPacketDispatcher().removePacketListener(listener);
         }
 
         fireChatRoomClosed(room);
@@ -608,8 +607,8 @@ public class ChatContainer extends SparkTabbedPane implements MessageListener, C
         room.leaveChatRoom();
 
         final PacketListener listener = presenceMap.get(room.getRoomname());
-        if (listener != null && SparkManager.getConnection().isConnected()) {
-            SparkManager.getConnection().removePacketListener(listener);
+        if (listener != null) {
+            SparkManager.getChatManager().getPacketDispatcher().removePacketListener(listener);
         }
     }
 
@@ -1136,12 +1135,16 @@ public class ChatContainer extends SparkTabbedPane implements MessageListener, C
             }
             if (localPref.isMucHighToastEnabled()) {
                 // allowed to check for new messages containing name
-                String myNickName = chatRoom.getNickname();
-                String myUserName = SparkManager.getSessionManager().getUsername();
-                Pattern usernameMatch = Pattern.compile(myUserName, Pattern.CASE_INSENSITIVE);
-                Pattern nicknameMatch = Pattern.compile(myNickName, Pattern.CASE_INSENSITIVE);
-                
-                if (usernameMatch.matcher(lastChatMessage.getBody()).find() || nicknameMatch.matcher(lastChatMessage.getBody()).find()) {
+                boolean mentioned;
+                if (chatRoom instanceof GroupChatRoom) {
+                    mentioned = ((GroupChatRoom)chatRoom).isHighlighted(lastChatMessage.getBody());
+                } else {
+                    String myNickName = chatRoom.getNickname();
+                    String myUserName = SparkManager.getSessionManager().getUsername();
+                    mentioned = new KeywordMatcher(Arrays.asList(myUserName, myNickName)).find(lastChatMessage.getBody());
+                }
+
+                if (mentioned) {
                     // match, send new message
                     boolean customMsgS = true;
                     String customMsgTextS = Res.getString("group.chat.name.match") + " " + finalRoomName + " by " + fromNickName + " (" + lastChatMessage.getBody() + ")";
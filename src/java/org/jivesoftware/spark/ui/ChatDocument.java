@@ -0,0 +1,234 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The document of a transcript. Formatted text is appended to it in a single edit,
+ * so that a whole message, or a whole page of history, causes one document event
+ * and one layout pass instead of one for every word.
+ * <p/>
+ * The document remembers where the messages marked in the appended text start.
+ * When a scrollback is set, the oldest messages are dropped once the document
+ * has a quarter more lines than the scrollback, so that the document is edited
+ * at the top once in a while instead of for every new message. Messages dropped
+ * can be added back in front with {@link #prepend(FormattedText)}.
+ */
+public class ChatDocument extends DefaultStyledDocument {
+
+    private static final long serialVersionUID = 3946213867423516930L;
+
+    /**
+     * Where the messages start, in document order.
+     */
+    private final LinkedList<Position> messages = new LinkedList<Position>();
+
+    private int scrollback;
+
+    /**
+     * Appends formatted text to the end of the document in a single edit, then drops
+     * the oldest messages if the document holds too many lines.
+     *
+     * @param text the formatted text.
+     * @throws BadLocationException if the document changes while the text is added.
+     */
+    public void append(FormattedText text) throws BadLocationException {
+        insert(getLength(), text);
+        trim();
+    }
+
+    /**
+     * Inserts formatted text at the start of the document in a single edit. Used to
+     * page older messages back in, the text should end with a newline. The
+     * scrollback is not applied until text is appended again.
+     *
+     * @param text the formatted text.
+     * @throws BadLocationException if the document changes while the text is added.
+     */
+    public void prepend(FormattedText text) throws BadLocationException {
+        insert(0, text);
+    }
+
+    /**
+     * Sets the number of lines kept when text is appended.
+     *
+     * @param lines the number of lines, 0 keeps all lines.
+     */
+    public void setScrollback(int lines) {
+        scrollback = lines;
+    }
+
+    /**
+     * Returns the number of lines kept when text is appended.
+     *
+     * @return the number of lines, 0 if all lines are kept.
+     */
+    public int getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Returns the number of messages in the document.
+     *
+     * @return the number of messages marked in the text added and not removed since.
+     */
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    public void remove(int offs, int len) throws BadLocationException {
+        // The positions of removed messages would be left on the text after them.
+        final Iterator<Position> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            final int offset = iterator.next().getOffset();
+            if (offset >= offs && offset < offs + len) {
+                iterator.remove();
+            }
+        }
+        super.remove(offs, len);
+    }
+
+    private void insert(int offset, FormattedText text) throws BadLocationException {
+        if (text.isEmpty()) {
+            return;
+        }
+        final ElementSpec[] specs;
+        readLock();
+        try {
+            specs = createSpecs(text, offset);
+        }
+        finally {
+            readUnlock();
+        }
+        insert(offset, specs);
+
+        final List<Position> added = new ArrayList<Position>();
+        for (Integer start : text.getMessageStarts()) {
+            added.add(createPosition(offset + start));
+        }
+        if (offset == 0) {
+            // A position at the start of the document stays there when text is inserted.
+            if (!messages.isEmpty() && messages.getFirst().getOffset() == 0) {
+                messages.set(0, createPosition(text.getLength()));
+            }
+            messages.addAll(0, added);
+        }
+        else {
+            messages.addAll(added);
+        }
+    }
+
+    /**
+     * Drops the oldest messages once there are a quarter more lines than the
+     * scrollback, keeping at most as many lines as the scrollback. The document
+     * is cut where a message starts, so a message is either kept or dropped whole.
+     */
+    private void trim() throws BadLocationException {
+        if (scrollback <= 0) {
+            return;
+        }
+        final Element root = getDefaultRootElement();
+        // The last paragraph holds the newline implied at the end of the document.
+        final int lines = root.getElementCount() - 1;
+        if (lines <= scrollback + scrollback / 4) {
+            return;
+        }
+        final int first = root.getElement(lines - scrollback).getStartOffset();
+        for (Position position : messages) {
+            final int offset = position.getOffset();
+            if (offset >= first) {
+                if (offset > 0) {
+                    remove(0, offset);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Describes the elements of the inserted text the way insertString() would for
+     * each run: a content element per run, and a new paragraph after each newline.
+     * <p/>
+     * The content is in place when the elements are built, and positions at the
+     * offset move with it, so the elements that insertString() would look at are
+     * the ones holding the character before the offset.
+     */
+    private ElementSpec[] createSpecs(FormattedText text, int offset) throws BadLocationException {
+        final Element before = offset > 0 ? getCharacterElement(offset - 1) : getCharacterElement(0);
+        final AttributeSet beforeAttributes = before.getAttributes();
+        final boolean afterNewline = offset > 0 && getText(offset - 1, 1).charAt(0) == '\n';
+        // The last paragraph, or the one ended by the newline before the text.
+        final AttributeSet paragraphAttributes = afterNewline ? getParagraphElement(offset).getAttributes()
+            : getParagraphElement(offset > 0 ? offset - 1 : 0).getAttributes();
+
+        final List<ElementSpec> specs = new ArrayList<ElementSpec>();
+        ElementSpec lastStart = null;
+        if (afterNewline) {
+            specs.add(new ElementSpec(paragraphAttributes, ElementSpec.EndTagType));
+            lastStart = new ElementSpec(paragraphAttributes, ElementSpec.StartTagType);
+            specs.add(lastStart);
+        }
+
+        for (FormattedText.Run run : text.getRuns()) {
+            final char[] chars = run.text.toString().toCharArray();
+            int start = 0;
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == '\n') {
+                    specs.add(new ElementSpec(run.attributes, ElementSpec.ContentType, chars, start, i + 1 - start));
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    lastStart = new ElementSpec(paragraphAttributes, ElementSpec.StartTagType);
+                    specs.add(lastStart);
+                    start = i + 1;
+                }
+            }
+            if (start < chars.length) {
+                specs.add(new ElementSpec(run.attributes, ElementSpec.ContentType, chars, start, chars.length - start));
+            }
+        }
+
+        final ElementSpec first = specs.get(0);
+        if (first.getType() == ElementSpec.ContentType && beforeAttributes.isEqual(first.getAttributes())) {
+            first.setDirection(ElementSpec.JoinPreviousDirection);
+        }
+        if (lastStart != null && afterNewline) {
+            // The last new paragraph joins the old last paragraph.
+            lastStart.setDirection(ElementSpec.JoinNextDirection);
+        }
+        else if (lastStart != null) {
+            // The last new paragraph takes over the rest of the old last paragraph.
+            lastStart.setDirection(ElementSpec.JoinFractureDirection);
+            final ElementSpec last = specs.get(specs.size() - 1);
+            if (last.getType() == ElementSpec.ContentType && last.getDirection() != ElementSpec.JoinPreviousDirection
+                && beforeAttributes.isEqual(last.getAttributes())) {
+                last.setDirection(ElementSpec.JoinNextDirection);
+            }
+        }
+        return specs.toArray(new ElementSpec[specs.size()]);
+    }
+}
@@ -117,6 +117,14 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
     private final List<String> packetIDList;
     private final List<MessageListener> messageListeners;
     private List<Message> transcript;
+    /**
+     * The number of messages added to the transcript, including the ones trimmed.
+     */
+    private int transcriptCount;
+    /**
+     * The number of messages kept in the transcript, 0 to keep all.
+     */
+    private final int scrollback;
     private List<FileDropListener> fileDropListeners;
 
     private MouseAdapter transcriptWindowMouseListener;
@@ -140,6 +148,7 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
 
         messageListeners = new ArrayList<MessageListener>();
         transcript = new ArrayList<Message>();
+        scrollback = SettingsManager.getLocalPreferences().getChatScrollback();
 
         editorWrapperBar = new JPanel(new BorderLayout());
         editorBarLeft = new JPanel(new FlowLayout(FlowLayout.LEFT, 1, 1));
@@ -286,6 +295,34 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
         });
 
 
+        // Page older messages in when the user scrolls up to the top.
+        textScroller.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+
+            private int lastValue;
+
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                final JScrollBar scrollBar = textScroller.getVerticalScrollBar();
+                final boolean scrolledToTop = e.getValue() == scrollBar.getMinimum() && lastValue > e.getValue();
+                lastValue = e.getValue();
+                if (!scrolledToTop || transcriptWindow.getHistoryPager() == null) {
+                    return;
+                }
+
+                final int height = scrollBar.getMaximum();
+                if (transcriptWindow.loadOlderMessages()) {
+                    // Keep the messages that were at the top in view once the page is laid out.
+                    EventQueue.invokeLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            scrollBar.setValue(scrollBar.getMaximum() - height);
+                        }
+                    });
+                }
+            }
+        });
+
         // Speed up scrolling. It was way too slow.
         textScroller.getVerticalScrollBar().setBlockIncrement(200);
         textScroller.getVerticalScrollBar().setUnitIncrement(20);
@@ -569,6 +606,8 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
         newMessage.setProperty("date", new Date());
 
         transcript.add(newMessage);
+        transcriptCount++;
+        trimTranscript();
 
         // Add current date if this is the current agent
         if (updateDate && transcriptWindow.getLastUpdated() != null) {
@@ -595,6 +634,19 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
         newMessage.setBody(body);
         newMessage.setProperty("date", date);
         transcript.add(newMessage);
+        transcriptCount++;
+        trimTranscript();
+    }
+
+    /**
+     * Drops the oldest messages once the transcript holds a quarter more messages than
+     * the scrollback. Messages of one-to-one chats have been persisted by then, see
+     * {@link org.jivesoftware.sparkimpl.plugin.transcripts.ChatTranscriptPlugin#persistChatRoom(ChatRoom)}.
+     */
+    private void trimTranscript() {
+        if (scrollback > 0 && transcript.size() > scrollback + scrollback / 4) {
+            transcript.subList(0, transcript.size() - scrollback).clear();
+        }
     }
 
     /**
@@ -757,7 +809,8 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
     /**
      * Returns a map of the current Chat Transcript which is a list of all
      * ChatResponses and their order. You should retrieve this map to get
-     * any current chat transcript state.
+     * any current chat transcript state. Only the most recent messages are kept,
+     * see {@link org.jivesoftware.sparkimpl.settings.local.LocalPreferences#getChatScrollback()}.
      *
      * @return - the map of current chat responses.
      */
@@ -765,6 +818,18 @@ public abstract class ChatRoom extends BackgroundPanel implements ActionListener
         return transcript;
     }
 
+    /**
+     * Returns the number of messages added to the transcript since the room was
+     * opened, including the oldest ones no longer returned by {@link #getTranscripts()}.
+     * The first message of getTranscripts() is message number
+     * <code>getTranscriptCount() - getTranscripts().size()</code>.
+     *
+     * @return the number of messages added.
+     */
+    public int getTranscriptCount() {
+        return transcriptCount;
+    }
+
     /**
      * Disables the ChatRoom toolbar.
      */
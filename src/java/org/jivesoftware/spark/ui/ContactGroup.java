@@ -26,6 +26,7 @@ import org.jivesoftware.spark.SparkManager;
 import org.jivesoftware.spark.Workspace;
 import org.jivesoftware.spark.component.VerticalFlowLayout;
 import org.jivesoftware.spark.component.panes.CollapsiblePane;
+import org.jivesoftware.spark.component.panes.CollapsiblePaneListener;
 import org.jivesoftware.spark.component.renderer.JContactItemRenderer;
 import org.jivesoftware.spark.util.GraphicUtils;
 import org.jivesoftware.spark.util.ModelUtil;
@@ -70,9 +71,14 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
     private List<ContactGroupListener> listeners = new ArrayList<ContactGroupListener>();
     private List<ContactItem> offlineContacts = new ArrayList<ContactItem>();
 
+    // Bare JID lookups for the lists above, and the ContactList index this group reports to.
+    private final JIDIndex<ContactItem> contactItemsByJID = new JIDIndex<ContactItem>();
+    private final JIDIndex<ContactItem> offlineContactsByJID = new JIDIndex<ContactItem>();
+    private JIDIndex<ContactGroup> groupsByJID;
+
     private String groupName;
-    private DefaultListModel model;
-    private JList contactItemList;
+    private DefaultListModel<ContactItem> model;
+    private JList<ContactItem> contactItemList;
     private boolean sharedGroup;
     private JPanel listPanel;
 
@@ -88,6 +94,11 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
 
     private LocalPreferences preferences;
 
+    /**
+     * True if the offline contacts are listed below the online contacts of this group.
+     */
+    private boolean offlineContactsShown;
+
     private ContactList contactList =  Workspace.getInstance().getContactList();    
     
     private DisplayWindowTask timerTask = null;
@@ -99,16 +110,22 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      */
     public ContactGroup(String groupName) {
         // Initialize Model and UI
-        model = new DefaultListModel();
-        contactItemList = new JList(model);
+        model = new DefaultListModel<ContactItem>();
+        contactItemList = new JList<ContactItem>(model);
 
         preferences = SettingsManager.getLocalPreferences();
+        offlineContactsShown = !preferences.isOfflineGroupVisible() && preferences.isOfflineUsersShown();
 
         setTitle(getGroupTitle(groupName));
 
         // Use JPanel Renderer
         contactItemList.setCellRenderer(new JContactItemRenderer());
 
+        if (preferences.isLightweightContactListEnabled()) {
+            // All rows have the same height, so measure one instead of every contact on each change.
+            contactItemList.setPrototypeCellValue(UIComponentRegistry.createContactListItem(groupName, null, null));
+        }
+
         this.groupName = groupName;
 
         listPanel = new JPanel(new VerticalFlowLayout(VerticalFlowLayout.TOP, 0, 0, true, false));
@@ -158,7 +175,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
 
             public void keyPressed(KeyEvent keyEvent) {
                 if (keyEvent.getKeyChar() == KeyEvent.VK_ENTER) {
-                    ContactItem item = (ContactItem)contactItemList.getSelectedValue();
+                    ContactItem item = contactItemList.getSelectedValue();
                     fireContactItemDoubleClicked(item);
                 }
 
@@ -177,7 +194,33 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
         // Add Popup Window
         addPopupWindow();
 
+        // Only look up the vCards of contacts that can be seen.
+        addCollapsiblePaneListener(new CollapsiblePaneListener() {
+            public void paneExpanded() {
+                final List<String> jids = getJIDs();
+                if (!jids.isEmpty()) {
+                    SparkManager.getVCardManager().prioritizeQueued(jids);
+                }
+            }
+
+            public void paneCollapsed() {
+                final List<String> jids = getJIDs();
+                if (!jids.isEmpty()) {
+                    SparkManager.getVCardManager().cancelQueued(jids);
+                }
+            }
+        });
+    }
 
+    private List<String> getJIDs() {
+        final List<String> jids = new ArrayList<String>(contactItems.size() + offlineContacts.size());
+        for (ContactItem item : contactItems) {
+            jids.add(item.getJID());
+        }
+        for (ContactItem item : offlineContacts) {
+            jids.add(item.getJID());
+        }
+        return jids;
     }
 
     /**
@@ -190,22 +233,10 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      */
     public void addOfflineContactItem(final String alias, final String nickname, final String jid, final String status) {
     	if(EventQueue.isDispatchThread()) {
-    	   // Build new ContactItem
-	   final ContactItem offlineItem = UIComponentRegistry.createContactItem(alias, nickname, jid);
-    	   offlineItem.setGroupName(getGroupName());
-
-    	   final Presence offlinePresence = PresenceManager.getPresence(jid);
-    	   offlineItem.setPresence(offlinePresence);
+    	   final ContactItem offlineItem = createOfflineContactItem(alias, nickname, jid, status);
 
-    	   // set offline icon
-    	   offlineItem.setIcon(PresenceManager.getIconFromPresence(offlinePresence));
-
-    	   // Set status if applicable.
-    	   if (ModelUtil.hasLength(status)) {
-    		   offlineItem.setStatusText(status);
-    	   }
     	   // Add to offline contacts.
-    	   offlineContacts.add(offlineItem);
+    	   addToOfflineContacts(offlineItem);
 
     	   insertOfflineContactItem(offlineItem);
        }
@@ -214,22 +245,10 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
 	    		// invokeAndWait, because the contacts must be added before they can moved to offline group
 		      	 EventQueue.invokeAndWait(new Runnable(){
 		      		 public void run() {
-		      			 // Build new ContactItem
-					 final ContactItem offlineItem = UIComponentRegistry.createContactItem(alias, nickname, jid);
-		      			 offlineItem.setGroupName(getGroupName());
-
-		      			 final Presence offlinePresence = PresenceManager.getPresence(jid);
-		      			 offlineItem.setPresence(offlinePresence);
+		      			 final ContactItem offlineItem = createOfflineContactItem(alias, nickname, jid, status);
 
-		      			 // set offline icon
-		      			 offlineItem.setIcon(PresenceManager.getIconFromPresence(offlinePresence));
-
-		      			 // Set status if applicable.
-		      			 if (ModelUtil.hasLength(status)) {
-		      				 offlineItem.setStatusText(status);
-		      			 }
 		      			 // Add to offline contacts.
-		      			 offlineContacts.add(offlineItem);
+		      			 addToOfflineContacts(offlineItem);
 
 		      			 insertOfflineContactItem(offlineItem);
 		      		 }
@@ -241,6 +260,49 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
        }
     }
 
+    /**
+     * Creates the <code>ContactItem</code> for an offline contact of this group.
+     *
+     * @param alias    the alias of the offline contact.
+     * @param nickname the nickname of the offline contact.
+     * @param jid      the jid of the offline contact.
+     * @param status   the current status of the offline contact.
+     * @return the new ContactItem.
+     */
+    ContactItem createOfflineContactItem(String alias, String nickname, String jid, String status) {
+        // Build new ContactItem
+        final ContactItem offlineItem = UIComponentRegistry.createContactListItem(alias, nickname, jid);
+        offlineItem.setGroupName(getGroupName());
+
+        final Presence offlinePresence = PresenceManager.getPresence(jid);
+        offlineItem.setPresence(offlinePresence);
+
+        // set offline icon
+        offlineItem.setIcon(PresenceManager.getIconFromPresence(offlinePresence));
+
+        // Set status if applicable.
+        if (ModelUtil.hasLength(status)) {
+            offlineItem.setStatusText(status);
+        }
+        return offlineItem;
+    }
+
+    /**
+     * Adds offline contacts created with {@link #createOfflineContactItem(String, String, String, String)}
+     * and updates the ui model once.
+     *
+     * @param offlineItems the offline contact items, preferably sorted.
+     */
+    void addOfflineContactItems(Collection<ContactItem> offlineItems) {
+        if (offlineItems.isEmpty()) {
+            return;
+        }
+        for (ContactItem offlineItem : offlineItems) {
+            addToOfflineContacts(offlineItem);
+        }
+        rebuildModel();
+    }
+
     /**
      * Inserts a new offline <code>ContactItem</code> into the ui model.
      *
@@ -251,7 +313,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
             return;
         }
 
-        if (!preferences.isOfflineGroupVisible()) {
+        if (offlineContactsShown) {
             Collections.sort(offlineContacts, itemComparator);
             int index = offlineContacts.indexOf(offlineItem);
 
@@ -277,42 +339,51 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      * @param item the offline contact item to remove.
      */
     public void removeOfflineContactItem(ContactItem item) {
-        offlineContacts.remove(item);
+        if (offlineContacts.remove(item)) {
+            offlineContactsByJID.remove(item.getJID(), item);
+            unregisterJID(item.getJID());
+        }
         //removeContactItem(item);
     }
 
+    private void addToOfflineContacts(ContactItem offlineItem) {
+        offlineContacts.add(offlineItem);
+        offlineContactsByJID.add(offlineItem.getJID(), offlineItem);
+        registerJID(offlineItem.getJID());
+    }
+
     /**
      * Removes an offline <code>ContactItem</code> from the offline contact model and ui.
      *
      * @param jid the offline contact item to remove.
      */
     public void removeOfflineContactItem(String jid) {
-        final List<ContactItem> items = new ArrayList<ContactItem>(offlineContacts);
-        for (ContactItem item : items) {
-            if (item.getJID().equals(jid)) {
-                removeOfflineContactItem(item);
-            }
+        for (ContactItem item : offlineContactsByJID.get(jid)) {
+            removeOfflineContactItem(item);
         }
     }
 
     /**
-     * Toggles the visibility of Offline Contacts.
+     * Toggles the visibility of Offline Contacts. The ui model is rebuilt in a single
+     * pass, and only if the visibility changes.
      *
      * @param show true if offline contacts should be shown, otherwise false.
      */
     public void toggleOfflineVisibility(boolean show) {
-        final List<ContactItem> items = new ArrayList<ContactItem>(offlineContacts);
-        for (ContactItem item : items) {
-            if (show) {
-                insertOfflineContactItem(item);
-            }
-            else {
-                model.removeElement(item);
-            }
-        }
-        if (model.getSize() == 0) {
-            model.addElement(noContacts);
+        if (show == offlineContactsShown) {
+            return;
         }
+        offlineContactsShown = show;
+        rebuildModel();
+    }
+
+    /**
+     * Returns true if the offline contacts are listed in this group.
+     *
+     * @return true if offline contacts are shown.
+     */
+    public boolean isOfflineVisible() {
+        return offlineContactsShown;
     }
 
 
@@ -335,6 +406,8 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
 
         item.setGroupName(getGroupName());
         contactItems.add(item);
+        contactItemsByJID.add(item.getJID(), item);
+        registerJID(item.getJID());
 
         List<ContactItem> tempItems = getContactItems();
 
@@ -345,14 +418,13 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
         int index = tempItems.indexOf(item);
 
 
-        Object[] objs = contactItemList.getSelectedValues();
+        List<ContactItem> selected = contactItemList.getSelectedValuesList();
 
         model.insertElementAt(item, index);
 
-        int[] intList = new int[objs.length];
-        for (int i = 0; i < objs.length; i++) {
-            ContactItem contact = (ContactItem)objs[i];
-            intList[i] = model.indexOf(contact);
+        int[] intList = new int[selected.size()];
+        for (int i = 0; i < intList.length; i++) {
+            intList[i] = model.indexOf(selected.get(i));
         }
 
         if (intList.length > 0) {
@@ -362,9 +434,83 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
         fireContactItemAdded(item);
     }
 
+    /**
+     * Adds several <code>ContactItem</code>s to the ContactGroup, updating the ui model once.
+     *
+     * @param items the ContactItems, preferably sorted.
+     */
+    public void addContactItems(Collection<ContactItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        for (ContactItem item : items) {
+            // Remove from offline group if it exists
+            removeOfflineContactItem(item.getJID());
+
+            if (isOfflineGroup()) {
+                setOfflineGroupNameFont(item);
+            }
+
+            item.setGroupName(getGroupName());
+            contactItems.add(item);
+            contactItemsByJID.add(item.getJID(), item);
+            registerJID(item.getJID());
+        }
+
+        rebuildModel();
+
+        for (ContactItem item : items) {
+            fireContactItemAdded(item);
+        }
+    }
+
+    /**
+     * Replaces the contents of the ui model with the sorted contacts, followed by the
+     * sorted offline contacts if they are shown in this group.
+     */
+    private void rebuildModel() {
+        // The lists are mostly sorted already, which sorting takes advantage of.
+        Collections.sort(contactItems, itemComparator);
+        Collections.sort(offlineContacts, itemComparator);
+
+        final List<ContactItem> selected = contactItemList.getSelectedValuesList();
+
+        final DefaultListModel<ContactItem> newModel = new DefaultListModel<ContactItem>();
+        newModel.ensureCapacity(contactItems.size() + offlineContacts.size());
+        for (ContactItem item : contactItems) {
+            newModel.addElement(item);
+        }
+        if (offlineContactsShown) {
+            for (ContactItem item : offlineContacts) {
+                newModel.addElement(item);
+            }
+        }
+        if (newModel.isEmpty()) {
+            newModel.addElement(noContacts);
+        }
+
+        model = newModel;
+        contactItemList.setModel(newModel);
+
+        if (!selected.isEmpty()) {
+            final List<Integer> indices = new ArrayList<Integer>();
+            for (ContactItem value : selected) {
+                int index = newModel.indexOf(value);
+                if (index != -1) {
+                    indices.add(index);
+                }
+            }
+            final int[] intList = new int[indices.size()];
+            for (int i = 0; i < intList.length; i++) {
+                intList[i] = indices.get(i);
+            }
+            contactItemList.setSelectedIndices(intList);
+        }
+        updateTitle();
+    }
+
 	protected void setOfflineGroupNameFont(ContactItem item) {
-		item.getNicknameLabel().setFont(new Font("Dialog", Font.PLAIN, 11));
-		item.getNicknameLabel().setForeground(Color.GRAY);
+		item.setNicknameStyle(new Font("Dialog", Font.PLAIN, 11), Color.GRAY);
 	}
 
     /**
@@ -449,7 +595,10 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      * @param item the ContactItem to remove.
      */
     public void removeContactItem(ContactItem item) {
-        contactItems.remove(item);
+        if (contactItems.remove(item)) {
+            contactItemsByJID.remove(item.getJID(), item);
+            unregisterJID(item.getJID());
+        }
         if (contactItems.isEmpty()) {
             removeContactGroup(this);
         }
@@ -515,12 +664,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      * @return the ContactItem.
      */
     public ContactItem getContactItemByJID(String bareJID) {
-        for (ContactItem item : new ArrayList<ContactItem>(contactItems)) {
-            if (item != null && item.getJID().equals(bareJID)) {
-                return item;
-            }
-        }
-        return null;
+        return contactItemsByJID.getFirst(bareJID);
     }
 
     /**
@@ -530,12 +674,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      * @return the ContactItem.
      */
     public ContactItem getOfflineContactItemByJID(String bareJID) {
-        for (ContactItem item : new ArrayList<ContactItem>(offlineContacts)) {
-            if (item.getJID().equals(bareJID)) {
-                return item;
-            }
-        }
-        return null;
+        return offlineContactsByJID.getFirst(bareJID);
     }
 
     /**
@@ -567,6 +706,59 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
         return list;
     }
 
+    /**
+     * Returns true if the ContactGroup holds a <code>ContactItem</code> for the
+     * user, either online or offline.
+     *
+     * @param bareJID the bareJID of the user.
+     * @return true if the user is in this group.
+     */
+    public boolean containsJID(String bareJID) {
+        return contactItemsByJID.contains(bareJID) || offlineContactsByJID.contains(bareJID);
+    }
+
+    /**
+     * Sets the index of the <code>ContactList</code> this group belongs to. The group
+     * registers itself there for every user it holds, so that the list can find the
+     * groups of a user without visiting the others.
+     *
+     * @param index the index, or null to unregister from the current one.
+     */
+    void setJIDIndex(JIDIndex<ContactGroup> index) {
+        if (groupsByJID == index) {
+            return;
+        }
+        if (groupsByJID != null) {
+            for (ContactItem item : contactItems) {
+                groupsByJID.remove(item.getJID(), this);
+            }
+            for (ContactItem item : offlineContacts) {
+                groupsByJID.remove(item.getJID(), this);
+            }
+        }
+        groupsByJID = index;
+        if (groupsByJID != null) {
+            for (ContactItem item : contactItems) {
+                groupsByJID.add(item.getJID(), this);
+            }
+            for (ContactItem item : offlineContacts) {
+                groupsByJID.add(item.getJID(), this);
+            }
+        }
+    }
+
+    private void registerJID(String bareJID) {
+        if (groupsByJID != null) {
+            groupsByJID.add(bareJID, this);
+        }
+    }
+
+    private void unregisterJID(String bareJID) {
+        if (groupsByJID != null && !containsJID(bareJID)) {
+            groupsByJID.remove(bareJID, this);
+        }
+    }
+
     /**
      * Returns the name of the ContactGroup.
      *
@@ -652,7 +844,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
 
                 if (!selected) {
                     contactItemList.setSelectedIndex(index);
-                    fireContactItemClicked((ContactItem)contactItemList.getSelectedValue());
+                    fireContactItemClicked(contactItemList.getSelectedValue());
                 }
             }
 
@@ -758,7 +950,7 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
      *
      * @return the JList.
      */
-    public JList getList() {
+    public JList<ContactItem> getList() {
         return contactItemList;
     }
 
@@ -1051,15 +1243,15 @@ public class ContactGroup extends CollapsiblePane implements MouseListener {
     private boolean needToChangePopup(MouseEvent e) {
     	ContactInfoWindow contact = UIComponentRegistry.getContactInfoWindow();
         int loc = getList().locationToIndex(e.getPoint());
-        ContactItem item = (ContactItem)getList().getModel().getElementAt(loc);
+        ContactItem item = getList().getModel().getElementAt(loc);
         return item == null || contact == null || contact.getContactItem() == null ? true : !contact.getContactItem().getJID().equals(item.getJID());
     }
 
-    protected DefaultListModel getModel() {
+    protected DefaultListModel<ContactItem> getModel() {
         return model;
     }
 
-    protected JList getContactItemList() {
+    protected JList<ContactItem> getContactItemList() {
         return contactItemList;
     }
 }
\ No newline at end of file
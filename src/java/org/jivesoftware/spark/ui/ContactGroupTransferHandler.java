@@ -209,7 +209,7 @@ public class ContactGroupTransferHandler extends TransferHandler {
         ContactItem newContact = UIComponentRegistry.createContactItem(Res.getString("group.empty"), null, null);
         newContact.setPresence(item.getPresence());
         newContact.setIcon(item.getIcon());
-        newContact.getNicknameLabel().setFont(item.getNicknameLabel().getFont());
+        newContact.getNicknameLabel().setFont(item.getNicknameFont());
 
         if (!PresenceManager.isOnline(item.getJID())) {
             contactGroup.addOfflineContactItem(item.getAlias(), item.getNickname(), item.getJID(), null);
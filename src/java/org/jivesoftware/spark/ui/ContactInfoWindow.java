@@ -29,6 +29,7 @@ import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.event.MouseEvent;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -48,7 +49,7 @@ import org.jivesoftware.smackx.packet.LastActivity;
 import org.jivesoftware.smackx.LastActivityManager;
 import org.jivesoftware.spark.SparkManager;
 import org.jivesoftware.spark.ui.ContactItem;
-import org.jivesoftware.spark.util.GraphicUtils;
+import org.jivesoftware.spark.util.AvatarCache;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.plugin.gateways.transports.Transport;
@@ -168,7 +169,7 @@ public class ContactInfoWindow extends JPanel {
         int loc = group.getList().locationToIndex(e.getPoint());
 
 
-        ContactItem item = (ContactItem)group.getList().getModel().getElementAt(loc);
+        ContactItem item = group.getList().getModel().getElementAt(loc);
         if (item == null || item.getJID() == null) {
             return;
         }
@@ -288,11 +289,11 @@ public class ContactInfoWindow extends JPanel {
             URL avatarURL = contactItem.getAvatarURL();
             ImageIcon icon = null;
             if (avatarURL != null) {
-                icon = new ImageIcon(avatarURL);
+                // Avatar files are named after the hash of the photo.
+                icon = AvatarCache.getInstance().getIcon(new File(avatarURL.getPath()).getName(), avatarURL, 96, 96, false);
             }
 
             if (icon != null && icon.getIconHeight() > 1) {
-                icon = GraphicUtils.scaleImageIcon(icon, 96, 96);
                 avatarLabel.setIcon(icon);
             }
             else {
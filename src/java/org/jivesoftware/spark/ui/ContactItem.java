@@ -46,7 +46,7 @@ import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.spark.ChatManager;
 import org.jivesoftware.spark.PresenceManager;
 import org.jivesoftware.spark.SparkManager;
-import org.jivesoftware.spark.util.GraphicUtils;
+import org.jivesoftware.spark.util.AvatarCache;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.plugin.layout.LayoutSettings;
@@ -56,6 +56,10 @@ import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
 
 /**
  * Represent a single contact within the <code>ContactList</code>.
+ * <p/>
+ * A contact created without its UI is lightweight: it only keeps what the
+ * contact list renderer paints and creates its labels the first time they are
+ * asked for, so that plugins working with the labels keep working.
  */
 public class ContactItem extends JPanel {
 
@@ -86,8 +90,21 @@ public class ContactItem extends JPanel {
 
     private int iconSize;
 
+    private String sideIconHash;
+
     private boolean avatarsShowing;
 
+    private final boolean lightweight;
+
+    // What lightweight contacts paint until their labels are created.
+    private String displayText = "";
+    private Font nicknameFont;
+    private Color nicknameForeground;
+    private Font descriptionFont;
+    private String descriptionText = "";
+    private Icon specialIcon;
+    private Icon sideIconImage;
+
 	public ContactItem(String alias, String nickname, String fullyQualifiedJID) {
 		this(alias, nickname, fullyQualifiedJID, true);
 	}
@@ -98,9 +115,10 @@ public class ContactItem extends JPanel {
      * @param alias             the alias of the contact
      * @param nickname          the nickname of the contact.
      * @param fullyQualifiedJID the fully-qualified jid of the contact (ex. derek@jivesoftware.com)
+     * @param initUi            false to create a lightweight contact that is only painted by a renderer.
      */
     public ContactItem(String alias, String nickname, String fullyQualifiedJID, boolean initUi) {
-        setLayout(new GridBagLayout());
+        lightweight = !initUi;
 
         // Set Default Font
         final LocalPreferences pref = SettingsManager.getLocalPreferences();
@@ -117,7 +135,14 @@ public class ContactItem extends JPanel {
         this.nickname = nickname;
         this.fullyQualifiedJID = fullyQualifiedJID;
 
-        if (initUi) {
+        if (lightweight) {
+		nicknameFont = UIManager.getFont("Label.font");
+		nicknameForeground = UIManager.getColor("Label.foreground");
+		descriptionFont = new Font("Dialog", Font.PLAIN, fontSize);
+		setDisplayName();
+        }
+        else {
+		setLayout(new GridBagLayout());
 		displayNameLabel = new JLabel();
 		descriptionLabel = new JLabel();
 		imageLabel = new JLabel();
@@ -233,9 +258,16 @@ public class ContactItem extends JPanel {
         int windowWidth = settings.getMainWindowWidth();
 
         if (nickLength > windowWidth) {
-            displayNameLabel.setText(StringUtils.unescapeNode(displayName).substring(0, windowWidth) + "...");
+            setDisplayText(StringUtils.unescapeNode(displayName).substring(0, windowWidth) + "...");
         } else {
-            displayNameLabel.setText(StringUtils.unescapeNode(displayName));
+            setDisplayText(StringUtils.unescapeNode(displayName));
+        }
+    }
+
+    private void setDisplayText(String text) {
+        displayText = text;
+        if (displayNameLabel != null) {
+            displayNameLabel.setText(text);
         }
     }
 
@@ -265,7 +297,9 @@ public class ContactItem extends JPanel {
      */
     public void setIcon(Icon icon) {
         this.icon = icon;
-        imageLabel.setIcon(icon);
+        if (imageLabel != null) {
+            imageLabel.setIcon(icon);
+        }
     }
 
     /**
@@ -318,6 +352,7 @@ public class ContactItem extends JPanel {
      * @return the nickname label.
      */
     public JLabel getNicknameLabel() {
+        createLabels();
         return displayNameLabel;
     }
 
@@ -327,9 +362,133 @@ public class ContactItem extends JPanel {
      * @return the description label.
      */
     public JLabel getDescriptionLabel() {
+        createLabels();
         return descriptionLabel;
     }
 
+    /**
+     * Returns the text of the nickname label.
+     *
+     * @return the displayed name.
+     */
+    public String getDisplayText() {
+        return displayNameLabel != null ? displayNameLabel.getText() : displayText;
+    }
+
+    /**
+     * Returns the font of the nickname label.
+     *
+     * @return the nickname font.
+     */
+    public Font getNicknameFont() {
+        return displayNameLabel != null ? displayNameLabel.getFont() : nicknameFont;
+    }
+
+    /**
+     * Returns the color of the nickname label.
+     *
+     * @return the nickname color.
+     */
+    public Color getNicknameForeground() {
+        return displayNameLabel != null ? displayNameLabel.getForeground() : nicknameForeground;
+    }
+
+    /**
+     * Returns the font of the description label.
+     *
+     * @return the description font.
+     */
+    public Font getDescriptionFont() {
+        return descriptionLabel != null ? descriptionLabel.getFont() : descriptionFont;
+    }
+
+    /**
+     * Returns the text of the description label.
+     *
+     * @return the description.
+     */
+    public String getDescriptionText() {
+        return descriptionLabel != null ? descriptionLabel.getText() : descriptionText;
+    }
+
+    /**
+     * Returns the icon set with {@link #setSpecialIcon(Icon)}.
+     *
+     * @return the special icon.
+     */
+    public Icon getSpecialIcon() {
+        return specialImageLabel != null ? specialImageLabel.getIcon() : specialIcon;
+    }
+
+    /**
+     * Returns the icon set with {@link #setSideIcon(Icon)}.
+     *
+     * @return the side icon.
+     */
+    public Icon getSideIconImage() {
+        return sideIcon != null ? sideIcon.getIcon() : sideIconImage;
+    }
+
+    /**
+     * Returns true if this contact has no UI of its own.
+     *
+     * @return true if lightweight.
+     */
+    public boolean isLightweight() {
+        return lightweight;
+    }
+
+    /**
+     * Creates the labels of a lightweight contact from its current state. They are
+     * never laid out, but keep working for code that changes them directly.
+     */
+    private void createLabels() {
+        if (!lightweight) {
+            return;
+        }
+        if (displayNameLabel == null) {
+            displayNameLabel = new JLabel(displayText);
+            displayNameLabel.setFont(nicknameFont);
+            displayNameLabel.setForeground(nicknameForeground);
+        }
+        if (descriptionLabel == null) {
+            descriptionLabel = new JLabel(descriptionText);
+            descriptionLabel.setFont(descriptionFont);
+            descriptionLabel.setForeground((Color)UIManager.get("ContactItemDescription.foreground"));
+        }
+        if (specialImageLabel == null) {
+            specialImageLabel = new JLabel(specialIcon);
+        }
+        if (sideIcon == null) {
+            sideIcon = new JLabel(sideIconImage);
+        }
+    }
+
+    /**
+     * Changes the nickname label, without creating it for lightweight contacts.
+     *
+     * @param font       the new font, or null to keep the current one.
+     * @param foreground the new color, or null to keep the current one.
+     */
+    void setNicknameStyle(Font font, Color foreground) {
+        if (displayNameLabel != null) {
+            if (font != null) {
+                displayNameLabel.setFont(font);
+            }
+            if (foreground != null) {
+                displayNameLabel.setForeground(foreground);
+            }
+        }
+        else {
+            if (font != null) {
+                nicknameFont = font;
+            }
+            if (foreground != null) {
+                nicknameForeground = foreground;
+            }
+        }
+    }
+
     /**
      * Returns the current presence of the contact.
      *
@@ -357,7 +516,7 @@ public class ContactItem extends JPanel {
             if (hash != null) {
                 this.hash = hash;
 
-                if (!hashExists(hash)) {
+                if (!hashExists(hash) || SparkManager.getVCardManager().isAvatarOutdated(getJID(), hash)) {
                     updateAvatar();
                     updateAvatarInSideIcon();
                 }
@@ -408,7 +567,7 @@ public class ContactItem extends JPanel {
     }
 
     public String toString() {
-        return displayNameLabel.getText();
+        return getDisplayText();
     }
 
 
@@ -457,22 +616,21 @@ public class ContactItem extends JPanel {
             isAvailable = true;
         }
         else if (!presence.isAvailable()) {
-            getNicknameLabel().setFont(new Font("Dialog", Font.PLAIN, fontSize));
-            getNicknameLabel().setForeground((Color)UIManager.get("ContactItemOffline.color"));
+            setNicknameStyle(new Font("Dialog", Font.PLAIN, fontSize), (Color)UIManager.get("ContactItemOffline.color"));
 
             RosterEntry entry = SparkManager.getConnection().getRoster().getEntry(getJID());
             if (entry != null && (entry.getType() == RosterPacket.ItemType.none || entry.getType() == RosterPacket.ItemType.from)
                     && RosterPacket.ItemStatus.SUBSCRIPTION_PENDING == entry.getStatus()) {
                 // Do not move out of group.
                 setIcon(SparkRes.getImageIcon(SparkRes.SMALL_QUESTION));
-                getNicknameLabel().setFont(new Font("Dialog", Font.PLAIN, fontSize));
+                setNicknameStyle(new Font("Dialog", Font.PLAIN, fontSize), null);
                 setStatusText(Res.getString("status.pending"));
             }
             else {
             	//We should keep the offline bullet (not available) instead of putting icon null.
             	setIcon(SparkRes.getImageIcon(SparkRes.CLEAR_BALL_ICON));
                 setFont(new Font("Dialog", Font.PLAIN, fontSize));
-                getNicknameLabel().setFont(new Font("Dialog", Font.PLAIN, fontSize));
+                setNicknameStyle(new Font("Dialog", Font.PLAIN, fontSize), null);
                 setAvailable(false);
                 if (ModelUtil.hasLength(status)) {
                     setStatusText(status);
@@ -482,7 +640,7 @@ public class ContactItem extends JPanel {
                 }
             }
 
-            sideIcon.setIcon(null);
+            setSideIcon(null);
             setAvailable(false);
             return;
         }
@@ -504,11 +662,11 @@ public class ContactItem extends JPanel {
         }
 
         // Always change nickname label to black.
-        getNicknameLabel().setForeground((Color)UIManager.get("ContactItemNickname.foreground"));
+        setNicknameStyle(null, (Color)UIManager.get("ContactItemNickname.foreground"));
 
 
         if (isAvailable) {
-            getNicknameLabel().setFont(new Font("Dialog", Font.PLAIN, fontSize));
+            setNicknameStyle(new Font("Dialog", Font.PLAIN, fontSize), null);
             if (Res.getString("status.online").equals(status) || Res.getString("available").equalsIgnoreCase(status)) {
                 setStatusText("");
             }
@@ -517,8 +675,7 @@ public class ContactItem extends JPanel {
             }
         }
         else if (presence.isAvailable()) {
-            getNicknameLabel().setFont(new Font("Dialog", Font.ITALIC, fontSize));
-            getNicknameLabel().setForeground(Color.gray);
+            setNicknameStyle(new Font("Dialog", Font.ITALIC, fontSize), Color.gray);
             if (status != null) {
                 setStatusText(status);
             }
@@ -535,11 +692,9 @@ public class ContactItem extends JPanel {
     public void setStatusText(String status) {
         setStatus(status);
 
-        if (ModelUtil.hasLength(status)) {
-            getDescriptionLabel().setText(" - " + status);
-        }
-        else {
-            getDescriptionLabel().setText("");
+        descriptionText = ModelUtil.hasLength(status) ? " - " + status : "";
+        if (descriptionLabel != null) {
+            descriptionLabel.setText(descriptionText);
         }
     }
 
@@ -550,7 +705,10 @@ public class ContactItem extends JPanel {
      * @param icon the icon to use.
      */
     public void setSideIcon(Icon icon) {
-        sideIcon.setIcon(icon);
+        sideIconImage = icon;
+        if (sideIcon != null) {
+            sideIcon.setIcon(icon);
+        }
     }
 
 
@@ -562,7 +720,10 @@ public class ContactItem extends JPanel {
      */
     public void setSpecialIcon(Icon icon)
     {
-        specialImageLabel.setIcon(icon);
+        specialIcon = icon;
+        if (specialImageLabel != null) {
+            specialImageLabel.setIcon(icon);
+        }
     }
 
     /**
@@ -570,8 +731,7 @@ public class ContactItem extends JPanel {
      */
     public void showUserComingOnline() {
         // Change Font
-        getNicknameLabel().setFont(new Font("Dialog", Font.BOLD, fontSize));
-        getNicknameLabel().setForeground(new Color(255, 128, 0));
+        setNicknameStyle(new Font("Dialog", Font.BOLD, fontSize), new Color(255, 128, 0));
     }
 
     /**
@@ -579,8 +739,7 @@ public class ContactItem extends JPanel {
      */
     public void showUserGoingOfflineOnline() {
         // Change Font
-        getNicknameLabel().setFont(new Font("Dialog", Font.BOLD, fontSize));
-        getNicknameLabel().setForeground(Color.red);
+        setNicknameStyle(new Font("Dialog", Font.BOLD, fontSize), Color.red);
     }
 
     /**
@@ -593,9 +752,23 @@ public class ContactItem extends JPanel {
 				if (!avatarsShowing) {
 					setSideIcon(null);
 				} else {
-					ImageIcon icon = new ImageIcon(url);
-					icon = GraphicUtils.scale(icon, iconSize, iconSize);
-					setSideIcon(icon);
+					// Avatar files are named after the hash of the photo.
+					final String avatarHash = new File(url.getPath()).getName();
+					sideIconHash = avatarHash;
+					final ImageIcon icon = AvatarCache.getInstance().getIcon(avatarHash, url, iconSize, iconSize, true, new AvatarCache.Callback() {
+						public void avatarLoaded(ImageIcon icon) {
+							// Ignore avatars that have been replaced while they were decoded.
+							if (icon != null && avatarHash.equals(sideIconHash)) {
+								setSideIcon(icon);
+								for (ContactGroup group : SparkManager.getWorkspace().getContactList().getContactGroups(getJID())) {
+									group.fireContactGroupUpdated();
+								}
+							}
+						}
+					});
+					if (icon != null) {
+						setSideIcon(icon);
+					}
 				}
 			}
 		} catch (MalformedURLException e) {
@@ -604,6 +777,7 @@ public class ContactItem extends JPanel {
 	}
 
     protected JLabel getDisplayNameLabel() {
+        createLabels();
         return displayNameLabel;
     }
 
@@ -620,6 +794,7 @@ public class ContactItem extends JPanel {
     }
 
     public JLabel getSpecialImageLabel() {
+        createLabels();
         return specialImageLabel;
     }
 
@@ -628,6 +803,7 @@ public class ContactItem extends JPanel {
     }
 
 	public JLabel getSideIcon() {
+		createLabels();
 		return sideIcon;
 	}
 }
@@ -36,7 +36,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -45,7 +44,6 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TimerTask;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -91,6 +89,7 @@ import org.jivesoftware.smackx.packet.LastActivity;
 import org.jivesoftware.spark.ChatManager;
 import org.jivesoftware.spark.PresenceManager;
 import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.StartupMilestones;
 import org.jivesoftware.spark.Workspace;
 import org.jivesoftware.spark.component.InputDialog;
 import org.jivesoftware.spark.component.RolloverButton;
@@ -99,7 +98,6 @@ import org.jivesoftware.spark.plugin.ContextMenuListener;
 import org.jivesoftware.spark.plugin.Plugin;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.ResourceUtils;
-import org.jivesoftware.spark.util.SwingTimerTask;
 import org.jivesoftware.spark.util.SwingWorker;
 import org.jivesoftware.spark.util.TaskEngine;
 import org.jivesoftware.spark.util.UIComponentRegistry;
@@ -113,9 +111,14 @@ public class ContactList extends JPanel implements ActionListener,
 	ContactGroupListener, Plugin, RosterListener, ConnectionListener {
 
     private static final long serialVersionUID = -4391111935248627078L;
+    // Kinds of delayed presence tasks, so that a contact can have one of each pending.
+    private static final String OFFLINE_TASK = "offline";
+    private static final String PRESENCE_ICON_TASK = "presenceIcon";
     private JPanel mainPanel = new JPanel();
     private JScrollPane contactListScrollPane;
     private final List<ContactGroup> groupList = new ArrayList<ContactGroup>();
+    // The groups holding each user, online or offline.
+    private final JIDIndex<ContactGroup> groupsByJID = new JIDIndex<ContactGroup>();
     private final RolloverButton addingGroupButton;
 
     private ContactItem activeItem;
@@ -139,7 +142,17 @@ public class ContactList extends JPanel implements ActionListener,
 
     private final List<ContextMenuListener> contextListeners = new ArrayList<ContextMenuListener>();
 
-    private List<Presence> initialPresences = new ArrayList<Presence>();
+    // Applies presence changes in batches on the Swing thread.
+    private final PresenceUpdateQueue presenceQueue = new PresenceUpdateQueue(new PresenceUpdateQueue.Handler() {
+        public void applyPresence(Presence presence) {
+            try {
+                updateUserPresence(presence);
+            }
+            catch (Exception e) {
+                Log.error(e);
+            }
+        }
+    });
     private final List<FileDropListener> dndListeners = new ArrayList<FileDropListener>();
     private final List<ContactListListener> contactListListeners = new ArrayList<ContactListListener>();
     private Properties props;
@@ -148,8 +161,6 @@ public class ContactList extends JPanel implements ActionListener,
     private LocalPreferences localPreferences;
     
     private ContactItem contactItem;
-    
-    private String name, user;
 
 
     public static final String RETRY_PANEL = "RETRY_PANEL";
@@ -391,7 +402,7 @@ public class ContactList extends JPanel implements ActionListener,
      * @param bareJID  the bare jid of the user.
      */
     private void updateContactItemsPresence(Presence presence, RosterEntry entry, String bareJID) {
-        for (ContactGroup group : groupList) {
+        for (ContactGroup group : groupsByJID.get(bareJID)) {
             ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
                 if (group == offlineGroup) {
@@ -411,22 +422,17 @@ public class ContactList extends JPanel implements ActionListener,
      * @param bareJID  the bareJID of the user.
      */
     private void moveToOfflineGroup(final Presence presence, final String bareJID) {
-        for (ContactGroup grpItem : new ArrayList<ContactGroup>(groupList)) {
-            final ContactGroup group = grpItem;
+        for (final ContactGroup group : groupsByJID.get(bareJID)) {
             final ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
-                int numberOfMillisecondsInTheFuture = 3000;
-                Date timeToRun = new Date(System.currentTimeMillis() + numberOfMillisecondsInTheFuture);
-
                 // Only run through if the users presence was online before.
                 if (item.getPresence().isAvailable()) {
                     item.showUserGoingOfflineOnline();
                     item.setIcon(SparkRes.getImageIcon(SparkRes.CLEAR_BALL_ICON));
                     group.fireContactGroupUpdated();
 
-                    TaskEngine.getInstance().schedule(new SwingTimerTask() {
-                    	@Override
-                        public void doRun() {
+                    presenceQueue.scheduleLater(OFFLINE_TASK, item, new Runnable() {
+                        public void run() {
                             // Check to see if the user is offline, if so, move them to the offline group.
                             Presence userPresence = PresenceManager.getPresence(bareJID);
                             if (userPresence.isAvailable()) {
@@ -444,15 +450,15 @@ public class ContactList extends JPanel implements ActionListener,
                                 offlineGroup.fireContactGroupUpdated();
                             }
                         }
-                    }, timeToRun);
-                }
-            } else {
-                final ContactItem offlineItem = offlineGroup.getContactItemByJID(bareJID);
-                if (offlineItem != null) {
-                    offlineItem.setPresence(presence);
+                    }, 3000);
                 }
             }
         }
+
+        final ContactItem offlineItem = offlineGroup.getContactItemByJID(bareJID);
+        if (offlineItem != null) {
+            offlineItem.setPresence(presence);
+        }
     }
 
     /**
@@ -493,30 +499,25 @@ public class ContactList extends JPanel implements ActionListener,
                     // dispatch thread
                     if (EventQueue.isDispatchThread()) {
 
-                        changeContactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
+                        changeContactItem = UIComponentRegistry.createContactListItem(entry.getName(), null, entry.getUser());
                         contactGroup.addContactItem(changeContactItem);
                         changeContactItem.setAvailable(true);
                         changeContactItem.setPresence(presence);                        
                         changeContactItem.updateAvatarInSideIcon();
                         changeContactItem.showUserComingOnline();                       
-                        changeContactItem.setSpecialIcon(offlineItem.getSpecialImageLabel().getIcon());
+                        changeContactItem.setSpecialIcon(offlineItem.getSpecialIcon());
                         //contactItem.updatePresenceIcon(contactItem.getPresence());
                         toggleGroupVisibility(contactGroup.getGroupName(), true);
                         //contactGroup.fireContactGroupUpdated();
                         
-                        int numberOfMillisecondsInTheFuture = 5000;
-                        Date timeToRun = new Date(System.currentTimeMillis()
-                                + numberOfMillisecondsInTheFuture);
-
                         final ContactItem staticItem = changeContactItem;
                         final ContactGroup staticGroup = contactGroup;
-                        TaskEngine.getInstance().schedule(new SwingTimerTask() {
-                            @Override
-                        	public void doRun() {
+                        presenceQueue.scheduleLater(PRESENCE_ICON_TASK, staticItem, new Runnable() {
+                            public void run() {
                                 staticItem.updatePresenceIcon(staticItem.getPresence());
                                 staticGroup.fireContactGroupUpdated();
                             }
-                        }, timeToRun);
+                        }, 5000);
 
                     } else {
 
@@ -529,13 +530,13 @@ public class ContactList extends JPanel implements ActionListener,
                             @Override
                             public void run() {
 
-                                ContactItem changeContact = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
+                                ContactItem changeContact = UIComponentRegistry.createContactListItem(entry.getName(), null, entry.getUser());
                                 staticContactGroup.addContactItem(changeContact);
                                 changeContact.setPresence(staticItemPrecense);
                                 changeContact.setAvailable(true);
                                 changeContact.updateAvatarInSideIcon();
                                 changeContact.showUserComingOnline();
-                                changeContact.setSpecialIcon(offlineItem.getSpecialImageLabel().getIcon());
+                                changeContact.setSpecialIcon(offlineItem.getSpecialIcon());
                                 changeContact.updatePresenceIcon(changeContact.getPresence());
                                 toggleGroupVisibility(staticContactGroup.getGroupName(), true);
                                 staticContactGroup.fireContactGroupUpdated();
@@ -556,7 +557,7 @@ public class ContactList extends JPanel implements ActionListener,
                 // dispatch thread
                 if (EventQueue.isDispatchThread()) {
 
-                    contactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
+                    contactItem = UIComponentRegistry.createContactListItem(entry.getName(), null, entry.getUser());
                     ContactGroup unfiledGrp = getUnfiledGroup();
                     unfiledGrp.addContactItem(contactItem);
                     contactItem.setPresence(presence);
@@ -574,7 +575,7 @@ public class ContactList extends JPanel implements ActionListener,
 
                         @Override
                         public void run() {
-                            contactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
+                            contactItem = UIComponentRegistry.createContactListItem(entry.getName(), null, entry.getUser());
                             ContactGroup unfiledGrp = getUnfiledGroup();
                             
                             contactItem.setPresence(staticItemPrecense);
@@ -594,101 +595,89 @@ public class ContactList extends JPanel implements ActionListener,
     }
 
     /**
-     * Called to build the initial ContactList.
+     * Called to build the initial ContactList. The roster is laid out on the calling
+     * thread and the result handed to the Swing thread in one step.
      */
     private void buildContactList() {
-        XMPPConnection con = SparkManager.getConnection();
-        final Roster roster = con.getRoster();
-
+        final RosterSnapshot snapshot = RosterSnapshot.fromRoster(SparkManager.getConnection().getRoster());
+        if (EventQueue.isDispatchThread()) {
+            buildContactList(snapshot);
+        }
+        else {
+            try {
+                EventQueue.invokeAndWait(new Runnable() {
+                    public void run() {
+                        buildContactList(snapshot);
+                    }
+                });
+            }
+            catch (Exception e) {
+                Log.error("Unable to build the contact list.", e);
+            }
+        }
+    }
 
+    /**
+     * Fills the ContactList from a snapshot of the roster. Each group receives all
+     * of its contacts at once.
+     *
+     * @param snapshot the layout of the roster.
+     */
+    private void buildContactList(RosterSnapshot snapshot) {
+        final Roster roster = SparkManager.getConnection().getRoster();
         roster.addRosterListener(this);
 
         // Add All Groups to List
-        for (RosterGroup group : roster.getGroups()) {
-            addContactGroup(group.getName());
+        for (String groupName : snapshot.getGroupNames()) {
+            addContactGroup(groupName);
         }
 
-        for (RosterGroup group : roster.getGroups()) {
-        	
-        	if(group.getName() == null || group.getName() == ""){
-        		for(RosterEntry entry : group.getEntries()){
-        			
-				ContactItem buildContactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
-                    moveToOffline(buildContactItem);
-        		}
-        	}else{
-        		
-	            ContactGroup contactGroup = getContactGroup(group.getName());
-	            if (contactGroup == null) {
-	                contactGroup = getUnfiledGroup();
-	            }
-
-	            for (RosterEntry entry : group.getEntries()) {
-	            	contactItem = null;
-	            	name = entry.getName();
-	            	user = entry.getUser();
-	            	// in case of connection lost, the creation must be done in eventqueue
-	            	if(EventQueue.isDispatchThread()) {
-				contactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
-	            	}
-	            	else {
-	            		try {
-	            			EventQueue.invokeAndWait(new Runnable(){
-	            				public void run() {
-							contactItem = UIComponentRegistry.createContactItem(name, null, user);
-	            				}
-	            			});
-	            		} catch(Exception ex) {
-	            			ex.printStackTrace();
-	            		}
-	            	}
-	            		
-	            	// if there was something wrong, try an other
-	            	if(contactItem == null)
-	            		continue;
-	            	
-	                contactItem.setPresence(new Presence(Presence.Type.unavailable));
-	                if ((entry.getType() == RosterPacket.ItemType.none || entry.getType() == RosterPacket.ItemType.from)
-	                    && RosterPacket.ItemStatus.SUBSCRIPTION_PENDING == entry.getStatus()) {
-	                    // Add to contact group.
-	                    contactGroup.addContactItem(contactItem);
-	                    contactGroup.setVisible(true);
-	                }
-	                else {
-	                    if (offlineGroup.getContactItemByJID(entry.getUser()) == null) {
-	                        moveToOffline(contactItem);
-	                    }
-	                }
-            	}
+        // Contacts already known from an earlier connection are left alone.
+        final List<ContactItem> offlineItems = new ArrayList<ContactItem>();
+        for (RosterSnapshot.Entry entry : snapshot.getOfflineGroupEntries()) {
+            if (offlineGroup.getContactItemByJID(entry.jid) == null) {
+                ContactItem item = UIComponentRegistry.createContactListItem(entry.name, null, entry.jid);
+                item.setPresence(new Presence(Presence.Type.unavailable));
+                offlineItems.add(item);
             }
         }
 
-        if (EventQueue.isDispatchThread()) {
-            // Add Unfiled Group
-            for (RosterEntry entry : roster.getUnfiledEntries()) {
-                ContactItem moveToOfflineContactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
-                moveToOffline(moveToOfflineContactItem);
+        for (String groupName : snapshot.getGroupNames()) {
+            ContactGroup contactGroup = getContactGroup(groupName);
+            if (contactGroup == null) {
+                contactGroup = getUnfiledGroup();
             }
-        }
-        else
-        {
-        	try {
-        	EventQueue.invokeAndWait(new Runnable() {
 
-				@Override
-				public void run() {
-		            for (RosterEntry entry : roster.getUnfiledEntries()) {
-		                ContactItem moveToOfflineContactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
-		                moveToOffline(moveToOfflineContactItem);
-		            }
-				}
-        		
-        	});
-        	} catch (Exception e) {
-        		Log.error("moveToOffilne",e);
-        	}
+            final List<ContactItem> pendingItems = new ArrayList<ContactItem>();
+            for (RosterSnapshot.Entry entry : snapshot.getPendingEntries(groupName)) {
+                if (contactGroup.getContactItemByJID(entry.jid) == null) {
+                    ContactItem item = UIComponentRegistry.createContactListItem(entry.name, null, entry.jid);
+                    item.setPresence(new Presence(Presence.Type.unavailable));
+                    pendingItems.add(item);
+                }
+            }
+            if (!pendingItems.isEmpty()) {
+                contactGroup.addContactItems(pendingItems);
+                contactGroup.setVisible(true);
+            }
+
+            contactGroup.addOfflineContactItems(createOfflineItems(contactGroup, snapshot.getOfflineEntries(groupName)));
         }
 
+        final ContactGroup unfiled = getUnfiledGroup();
+        unfiled.addOfflineContactItems(createOfflineItems(unfiled, snapshot.getUnfiledEntries()));
+
+        offlineGroup.addContactItems(offlineItems);
+    }
+
+    private List<ContactItem> createOfflineItems(ContactGroup contactGroup, List<RosterSnapshot.Entry> entries) {
+        final List<ContactItem> items = new ArrayList<ContactItem>(entries.size());
+        for (RosterSnapshot.Entry entry : entries) {
+            if (offlineGroup.getContactItemByJID(entry.jid) == null && contactGroup.getOfflineContactItemByJID(entry.jid) == null) {
+                items.add(contactGroup.createOfflineContactItem(entry.name, "", entry.jid, null));
+            }
+        }
+        return items;
     }
 
     /**
@@ -715,7 +704,7 @@ public class ContactList extends JPanel implements ActionListener,
      * @param entry the <code>RosterEntry</code> of the the user.
      */
     private void addUser(RosterEntry entry) {
-        ContactItem newContactItem = UIComponentRegistry.createContactItem(entry.getName(), null, entry.getUser());
+        ContactItem newContactItem = UIComponentRegistry.createContactListItem(entry.getName(), null, entry.getUser());
 
         if (entry.getType() == RosterPacket.ItemType.none || entry.getType() == RosterPacket.ItemType.from) {
             // Ignore, since the new user is pending to be added.
@@ -800,7 +789,7 @@ public class ContactList extends JPanel implements ActionListener,
                                 ContactGroup contactGroup = addContactGroup(group.getName());
                                 contactGroup.setVisible(false);
                                 contactGroup = getContactGroup(group.getName());
-                                ContactItem contactItem = UIComponentRegistry.createContactItem(rosterEntry.getName(), null, rosterEntry.getUser());
+                                ContactItem contactItem = UIComponentRegistry.createContactListItem(rosterEntry.getName(), null, rosterEntry.getUser());
                                 contactGroup.addContactItem(contactItem);
                                 Presence presence = PresenceManager.getPresence(jid);
                                 contactItem.setPresence(presence);
@@ -816,7 +805,7 @@ public class ContactList extends JPanel implements ActionListener,
                                 }
                                 // Check to see if this entry is new to a pre-existing group.
                                 if (item == null) {
-                                    item = UIComponentRegistry.createContactItem(rosterEntry.getName(), null, rosterEntry.getUser());
+                                    item = UIComponentRegistry.createContactListItem(rosterEntry.getName(), null, rosterEntry.getUser());
                                     Presence presence = PresenceManager.getPresence(jid);
                                     item.setPresence(presence);
                                     if (presence.isAvailable()) {
@@ -920,8 +909,9 @@ public class ContactList extends JPanel implements ActionListener,
      * @return the "first" contact item found.
      */
     public ContactItem getContactItemByJID(String jid) {
-        for (ContactGroup group : getContactGroups()) {
-            ContactItem item = group.getContactItemByJID(StringUtils.parseBareAddress(jid));
+        final String bareJID = StringUtils.parseBareAddress(jid);
+        for (ContactGroup group : getContactGroups(bareJID)) {
+            ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
                 return item;
             }
@@ -936,9 +926,11 @@ public class ContactList extends JPanel implements ActionListener,
      * @return a Collection of <code>ContactItem</code> items.
      */
     public Collection<ContactItem> getContactItemsByJID(String jid) {
+        final String bareJID = StringUtils.parseBareAddress(jid);
+        final List<ContactGroup> groups = getContactGroups(bareJID);
         final List<ContactItem> list = new ArrayList<ContactItem>();
-        for (ContactGroup group : getContactGroups()) {
-            ContactItem item = group.getContactItemByJID(StringUtils.parseBareAddress(jid));
+        for (ContactGroup group : groups) {
+            ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
                 list.add(item);
             }
@@ -947,13 +939,10 @@ public class ContactList extends JPanel implements ActionListener,
          * We have to search ContactItems into offline contacts.
          * Standart getContactItemByJID() method search ContactItems only in OfflineGroup or into inline cantacts
          */
-        for( ContactGroup group : getContactGroups() ) {
-            for (ContactItem offlineItem : group.getOfflineContacts() ) {
-                if ( offlineItem != null && offlineItem.getJID().equalsIgnoreCase(StringUtils.parseBareAddress(jid)) ) {
-                    if ( !list.contains(offlineItem) ) {
-                        list.add(offlineItem);
-                    }
-                }
+        for (ContactGroup group : groups) {
+            ContactItem offlineItem = group.getOfflineContactItemByJID(bareJID);
+            if (offlineItem != null && !list.contains(offlineItem)) {
+                list.add(offlineItem);
             }
         }
 
@@ -967,8 +956,9 @@ public class ContactList extends JPanel implements ActionListener,
      * @param icon the icon to use.
      */
     public void setIconFor(String jid, Icon icon) {
-        for (ContactGroup group : getContactGroups()) {
-            ContactItem item = group.getContactItemByJID(StringUtils.parseBareAddress(jid));
+        final String bareJID = StringUtils.parseBareAddress(jid);
+        for (ContactGroup group : groupsByJID.get(bareJID)) {
+            ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
                 item.setIcon(icon);
                 group.fireContactGroupUpdated();
@@ -982,8 +972,9 @@ public class ContactList extends JPanel implements ActionListener,
      * @param jid the users jid.
      */
     public void useDefaults(String jid) {
-        for (ContactGroup group : getContactGroups()) {
-            ContactItem item = group.getContactItemByJID(StringUtils.parseBareAddress(jid));
+        final String bareJID = StringUtils.parseBareAddress(jid);
+        for (ContactGroup group : groupsByJID.get(bareJID)) {
+            ContactItem item = group.getContactItemByJID(bareJID);
             if (item != null) {
                 item.updatePresenceIcon(item.getPresence());
                 group.fireContactGroupUpdated();
@@ -1026,6 +1017,7 @@ public class ContactList extends JPanel implements ActionListener,
         }
 
         group.addContactGroupListener(this);
+        group.setJIDIndex(groupsByJID);
 
         fireContactGroupAdded(group);
 
@@ -1100,6 +1092,7 @@ public class ContactList extends JPanel implements ActionListener,
 
 
             newContactGroup.addContactGroupListener(this);
+            newContactGroup.setJIDIndex(groupsByJID);
 
             if (sharedGroups != null) {
                 boolean isSharedGroup = sharedGroups.contains(newContactGroup.getGroupName());
@@ -1167,6 +1160,7 @@ public class ContactList extends JPanel implements ActionListener,
      */
     private void removeContactGroup(ContactGroup contactGroup) {
         contactGroup.removeContactGroupListener(this);
+        contactGroup.setJIDIndex(null);
         groupList.remove(contactGroup);
         mainPanel.remove(contactGroup);
 
@@ -1383,7 +1377,7 @@ public class ContactList extends JPanel implements ActionListener,
     }
 
     private void removeContactItem(String jid) {
-        for (ContactGroup group : new ArrayList<ContactGroup>(getContactGroups())) {
+        for (ContactGroup group : groupsByJID.get(jid)) {
             ContactItem item = group.getContactItemByJID(jid);
             group.removeOfflineContactItem(jid);
             if (item != null) {
@@ -1792,47 +1786,77 @@ public class ContactList extends JPanel implements ActionListener,
         // Hide top toolbar
         SparkManager.getMainWindow().getTopToolBar().setVisible(false);
 
-        final Runnable sharedGroupLoader = new Runnable() {
-	    public void run() {
-                // Retrieve shared group list.
+        final long start = System.currentTimeMillis();
+        final Runnable rosterLayout = new Runnable() {
+            public void run() {
+                final RosterSnapshot snapshot;
                 try {
-                    sharedGroups = SharedGroupManager.getSharedGroups(SparkManager.getConnection());
+                    snapshot = RosterSnapshot.fromRoster(SparkManager.getConnection().getRoster());
                 }
-                catch (XMPPException e) {
-                    Log.error("Unable to contact shared group info.", e);
+                catch (RuntimeException e) {
+                    Log.error("Unable to lay out the roster.", e);
+                    // Do not leave the plugins waiting for the roster.
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            StartupMilestones.getInstance().reach(StartupMilestones.ROSTER_LOADED);
+                        }
+                    });
+                    return;
                 }
 
                 SwingUtilities.invokeLater(new Runnable() {
                     public void run() {
-                        loadContactList();
+                        loadContactList(snapshot);
+                        Log.debug("Contact list with " + snapshot.size() + " contacts shown after "
+                            + (System.currentTimeMillis() - start) + " ms.");
                     }
                 });
+            }
+        };
 
+        final Runnable sharedGroupLoader = new Runnable() {
+	    public void run() {
+                // Retrieve shared group list.
+                try {
+                    sharedGroups = SharedGroupManager.getSharedGroups(SparkManager.getConnection());
+                }
+                catch (XMPPException e) {
+                    Log.error("Unable to contact shared group info.", e);
+                }
+                finally {
+                    // Lay out the roster in its own pool rather than on the Swing thread.
+                    TaskEngine.getInstance().submit(rosterLayout, TaskEngine.Workload.UI_PREP);
+                }
             }
         };
 
         TaskEngine.getInstance().submit(sharedGroupLoader);
     }
 
-    private void loadContactList() {
-
-	// Build the initial contact list.
-	buildContactList();
-
-	boolean show = localPreferences.isEmptyGroupsShown();
+    private void loadContactList(RosterSnapshot snapshot) {
+        try {
+            // Build the initial contact list.
+            buildContactList(snapshot);
 
-	// Hide all groups initially
-	showEmptyGroups(show);
+            boolean show = localPreferences.isEmptyGroupsShown();
 
-	// Hide all Offline Users
-	showOfflineUsers(localPreferences.isOfflineUsersShown());
+            // Hide all groups initially
+            showEmptyGroups(show);
 
-	// Add a subscription listener.
-	addSubscriptionListener();
+            // Hide all Offline Users
+            showOfflineUsers(localPreferences.isOfflineUsersShown());
 
-	// Load all plugins
-	SparkManager.getWorkspace().loadPlugins();
+            // Add a subscription listener.
+            addSubscriptionListener();
 
+            // Load all plugins
+            SparkManager.getWorkspace().loadPlugins();
+        }
+        finally {
+            // Plugins waiting for the roster start now that it is in the list, or
+            // failed to get there.
+            StartupMilestones.getInstance().reach(StartupMilestones.ROSTER_LOADED);
+        }
     }
 
     public void addSubscriptionListener() {
@@ -1880,7 +1904,7 @@ public class ContactList extends JPanel implements ActionListener,
                         final Roster roster = SparkManager.getConnection().getRoster();
                         RosterEntry entry = roster.getEntry(jid);
                         if (entry != null) {
-                            item = UIComponentRegistry.createContactItem(entry.getName(), null, jid);
+                            item = UIComponentRegistry.createContactListItem(entry.getName(), null, jid);
                             moveToOffline(item);
                             offlineGroup.fireContactGroupUpdated();
                         }
@@ -1906,34 +1930,7 @@ public class ContactList extends JPanel implements ActionListener,
                     });
                 }
                 else {
-
-                    try {
-                        initialPresences.add(presence);
-                    }
-                    catch (Exception e) {
-                        Log.error(e);
-                    }
-
-                    int numberOfMillisecondsInTheFuture = 1000;
-
-                    TaskEngine.getInstance().schedule(new TimerTask() {
-						@Override
-                        public void run() {
-							SwingUtilities.invokeLater(new Runnable() {
-								public void run() {
-		                            for (Presence userToUpdate : new ArrayList<Presence>(initialPresences)) {
-		                                initialPresences.remove(userToUpdate);
-		                                try {
-		                                    updateUserPresence(userToUpdate);
-		                                }
-		                                catch (Exception e) {
-		                                    Log.error(e);
-		                                }
-		                            }									
-								}
-							});
-                        }
-                    }, numberOfMillisecondsInTheFuture);
+                    presenceQueue.offer(presence);
                 }
             }
         };
@@ -2049,31 +2046,18 @@ public class ContactList extends JPanel implements ActionListener,
     }
     
     private void showOfflineUsers(boolean show) {
-       for (ContactGroup group : getContactGroups()) 
-       {
-      	  if(group != offlineGroup)
-      	  {
-      		  group.toggleOfflineVisibility(show);
-      	  }
-      	  
-      	  if (group == offlineGroup) {
-               if (show) 
-               {
-                   group.setVisible(true);
-                   showOfflineGroupMenu.setEnabled(true);
-                   showOfflineGroupMenu.setSelected(localPreferences.isOfflineGroupVisible());
-                   showOfflineGroup(showOfflineGroupMenu.isSelected());
-               } 
-               else 
-               {
-                   group.setVisible(false);
-                   showOfflineGroupMenu.setEnabled(false);
-               }
-           }
-       }
-       localPreferences.setOfflineUsersShown(show);
-       SettingsManager.saveSettings();
-   }
+        localPreferences.setOfflineUsersShown(show);
+        SettingsManager.saveSettings();
+
+        showOfflineGroupMenu.setEnabled(show);
+        if (show) {
+            showOfflineGroupMenu.setSelected(localPreferences.isOfflineGroupVisible());
+        }
+
+        // Offline users are listed either in their own group or in each of their groups.
+        offlineGroup.setVisible(show && localPreferences.isOfflineGroupVisible());
+        updateOfflineVisibility();
+    }
 
     /**
      * Toggles the visiblity of the Offline Group.
@@ -2088,16 +2072,18 @@ public class ContactList extends JPanel implements ActionListener,
         // Toggle Visibility of Offline Group.
         offlineGroup.setVisible(show);
 
-        if (show) {
-            // Remove offline items from all groups.
-            for (ContactGroup group : getContactGroups()) {
-                group.toggleOfflineVisibility(false);
-            }
-        }
-        else {
-            // Remove offline items from all groups.
-            for (ContactGroup group : getContactGroups()) {
-                group.toggleOfflineVisibility(true);
+        updateOfflineVisibility();
+    }
+
+    /**
+     * Shows or hides the offline contacts of every group according to the preferences.
+     * Each group rebuilds its list at most once.
+     */
+    private void updateOfflineVisibility() {
+        final boolean show = localPreferences.isOfflineUsersShown() && !localPreferences.isOfflineGroupVisible();
+        for (ContactGroup group : getContactGroups()) {
+            if (group != offlineGroup) {
+                group.toggleOfflineVisibility(show);
             }
         }
     }
@@ -2121,12 +2107,37 @@ public class ContactList extends JPanel implements ActionListener,
         return mainPanel;
     }
 
+    /**
+     * Returns the queue that applies presence changes to the contact list.
+     * Its counters show how far the contact list is behind.
+     *
+     * @return the presence update queue.
+     */
+    public PresenceUpdateQueue getPresenceUpdateQueue() {
+        return presenceQueue;
+    }
+
     public List<ContactGroup> getContactGroups() {
         final List<ContactGroup> gList = new ArrayList<ContactGroup>(groupList);
         Collections.sort(gList, GROUP_COMPARATOR);
         return gList;
     }
 
+    /**
+     * Returns the groups holding a user, online or offline, in the same order
+     * as {@link #getContactGroups()}.
+     *
+     * @param bareJID the bare jid of the user.
+     * @return the groups of the user.
+     */
+    public List<ContactGroup> getContactGroups(String bareJID) {
+        final List<ContactGroup> gList = groupsByJID.get(bareJID);
+        if (gList.size() > 1) {
+            Collections.sort(gList, GROUP_COMPARATOR);
+        }
+        return gList;
+    }
+
     private void subscriptionRequest(final String jid) {
         final SubscriptionDialog subscriptionDialog = new SubscriptionDialog();
         subscriptionDialog.invoke(jid);
@@ -2170,10 +2181,9 @@ public class ContactList extends JPanel implements ActionListener,
    * @param jid, the Users JID
    */
     public void setSelectedUser(String jid) {
-	for (ContactGroup group : getContactGroups()) {
-	    if (group.getContactItemByJID(jid) != null) {
-
-		ContactItem item = group.getContactItemByJID(jid);
+	for (ContactGroup group : getContactGroups(jid)) {
+	    ContactItem item = group.getContactItemByJID(jid);
+	    if (item != null) {
 		group.getList().setSelectedValue(item, false);
 		return;
 	    }
@@ -2521,17 +2531,6 @@ public class ContactList extends JPanel implements ActionListener,
         if (!isFiled) {
             getUnfiledGroup().addOfflineContactItem(contactItem.getAlias(), contactItem.getNickname(), contactItem.getJID(), contactItem.getStatus());
         }
-        
-        if(localPreferences.isOfflineUsersShown() == false)
-        {
-	        for (ContactGroup group : getContactGroups()) 
-	        {
-	       	  if(group != offlineGroup)
-	       	  {
-	       		  group.toggleOfflineVisibility(false);
-	       	  }
-	        }
-        }
     }
 
     private ContactGroup getUnfiledGroup() {
@@ -0,0 +1,185 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui;
+
+import javax.swing.Icon;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Text split into runs of equal style, ready to be added to a chat document.
+ * Messages are formatted into a <code>FormattedText</code> first, which does not
+ * touch the document and may be done on any thread, and then added to a
+ * {@link ChatDocument} in a single edit.
+ * <p/>
+ * The attributes passed in are copied, so the caller may go on changing them.
+ */
+public class FormattedText {
+
+    /**
+     * A piece of text with a single set of attributes.
+     */
+    static final class Run {
+        final StringBuilder text;
+        final AttributeSet attributes;
+        final boolean icon;
+
+        Run(String text, AttributeSet attributes, boolean icon) {
+            this.text = new StringBuilder(text);
+            this.attributes = attributes;
+            this.icon = icon;
+        }
+    }
+
+    private final List<Run> runs = new ArrayList<Run>();
+    private final List<Integer> messages = new ArrayList<Integer>();
+    private int length;
+
+    /**
+     * Appends text.
+     *
+     * @param text       the text.
+     * @param attributes the attributes of the text.
+     */
+    public void append(String text, AttributeSet attributes) {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        final Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (last != null && !last.icon && last.attributes.isEqual(attributes)) {
+            last.text.append(text);
+        }
+        else {
+            runs.add(new Run(text, attributes.copyAttributes(), false));
+        }
+        length += text.length();
+    }
+
+    /**
+     * Appends an icon, for example an emoticon.
+     *
+     * @param icon the icon.
+     */
+    public void appendIcon(Icon icon) {
+        final SimpleAttributeSet attributes = new SimpleAttributeSet();
+        StyleConstants.setIcon(attributes, icon);
+        // Same as JTextPane.insertIcon(), the icon stands in for a single space.
+        runs.add(new Run(" ", attributes, true));
+        length++;
+    }
+
+    /**
+     * Marks the start of a message at the end of the text. The document keeps
+     * track of where its messages are, so that it can drop whole messages when
+     * its scrollback is full.
+     */
+    public void markMessage() {
+        messages.add(length);
+    }
+
+    /**
+     * Appends all runs and message marks of another formatted text.
+     *
+     * @param text the formatted text.
+     */
+    public void append(FormattedText text) {
+        for (Integer start : text.messages) {
+            messages.add(length + start);
+        }
+        for (Run run : text.runs) {
+            if (run.icon) {
+                runs.add(new Run(run.text.toString(), run.attributes, true));
+                length += run.text.length();
+            }
+            else {
+                append(run.text.toString(), run.attributes);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of characters in the text, counting an icon as one.
+     *
+     * @return the length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns true if nothing has been appended.
+     *
+     * @return true if there is no text.
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Returns the text without its attributes.
+     *
+     * @return the plain text.
+     */
+    public String getText() {
+        final StringBuilder builder = new StringBuilder(length);
+        for (Run run : runs) {
+            builder.append(run.text);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Drops all runs and message marks.
+     */
+    public void clear() {
+        runs.clear();
+        messages.clear();
+        length = 0;
+    }
+
+    List<Run> getRuns() {
+        return Collections.unmodifiableList(runs);
+    }
+
+    List<Integer> getMessageStarts() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * Inserts the runs one at a time. Used for documents that cannot take them in
+     * a single edit.
+     *
+     * @param doc    the document.
+     * @param offset where to insert the text.
+     * @throws BadLocationException if the offset is not within the document.
+     */
+    public void insertInto(StyledDocument doc, int offset) throws BadLocationException {
+        for (Run run : runs) {
+            doc.insertString(offset, run.text.toString(), run.attributes);
+            offset += run.text.length();
+        }
+    }
+}
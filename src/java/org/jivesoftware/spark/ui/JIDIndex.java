@@ -0,0 +1,141 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps bare JIDs to the values registered for them, such as the
+ * <code>ContactItem</code>s of a group or the <code>ContactGroup</code>s of the
+ * <code>ContactList</code>. JIDs are compared ignoring case and values by
+ * identity. A value is only registered once per JID; values keep the order in
+ * which they were added.
+ *
+ * @param <T> the type of the values.
+ */
+final class JIDIndex<T> {
+
+    private final Map<String, List<T>> values = new HashMap<String, List<T>>();
+
+    /**
+     * Registers a value for a JID.
+     *
+     * @param jid   the bare JID.
+     * @param value the value.
+     * @return true if the value was not yet registered for the JID.
+     */
+    synchronized boolean add(String jid, T value) {
+        if (jid == null) {
+            return false;
+        }
+        final String key = jid.toLowerCase();
+        List<T> list = values.get(key);
+        if (list == null) {
+            list = new ArrayList<T>(1);
+            values.put(key, list);
+        }
+        else if (indexOf(list, value) != -1) {
+            return false;
+        }
+        list.add(value);
+        return true;
+    }
+
+    /**
+     * Removes a value registered for a JID.
+     *
+     * @param jid   the bare JID.
+     * @param value the value.
+     * @return true if the value was registered for the JID.
+     */
+    synchronized boolean remove(String jid, T value) {
+        if (jid == null) {
+            return false;
+        }
+        final String key = jid.toLowerCase();
+        final List<T> list = values.get(key);
+        final int index = list != null ? indexOf(list, value) : -1;
+        if (index == -1) {
+            return false;
+        }
+        list.remove(index);
+        if (list.isEmpty()) {
+            values.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the values registered for a JID.
+     *
+     * @param jid the bare JID.
+     * @return a copy of the values, empty if there are none.
+     */
+    synchronized List<T> get(String jid) {
+        final List<T> list = jid != null ? values.get(jid.toLowerCase()) : null;
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<T>(list);
+    }
+
+    /**
+     * Returns the first value registered for a JID.
+     *
+     * @param jid the bare JID.
+     * @return the value, or null if there is none.
+     */
+    synchronized T getFirst(String jid) {
+        final List<T> list = jid != null ? values.get(jid.toLowerCase()) : null;
+        return list != null ? list.get(0) : null;
+    }
+
+    /**
+     * Returns true if any value is registered for a JID.
+     *
+     * @param jid the bare JID.
+     * @return true if the JID is known.
+     */
+    synchronized boolean contains(String jid) {
+        return jid != null && values.containsKey(jid.toLowerCase());
+    }
+
+    /**
+     * Returns the number of distinct JIDs.
+     *
+     * @return the number of JIDs.
+     */
+    synchronized int size() {
+        return values.size();
+    }
+
+    private static <T> int indexOf(List<T> list, T value) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.log.Log;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+/**
+ * Collects presence updates for the <code>ContactList</code> and applies them on the
+ * Swing thread in batches. Only the latest presence of each JID is kept, and a batch
+ * stops after a frame's worth of work so that the UI stays responsive while a large
+ * roster comes online.
+ * <p/>
+ * The queue also runs delayed UI work, such as moving a contact to the offline group
+ * a few seconds after it left, from a single timer instead of one timer per contact.
+ */
+public final class PresenceUpdateQueue {
+
+    /**
+     * Applies a presence to the contact list.
+     */
+    interface Handler {
+        void applyPresence(Presence presence);
+    }
+
+    /**
+     * Time updates are collected before the first batch is applied.
+     */
+    private static final long COLLECT_DELAY = 1000;
+
+    /**
+     * Maximum time a batch may keep the Swing thread busy.
+     */
+    private static final long FRAME_BUDGET_NANOS = 16 * 1000 * 1000L;
+
+    /**
+     * Maximum number of updates applied in one batch.
+     */
+    private static final int MAX_BATCH_SIZE = 250;
+
+    private final Handler handler;
+
+    private final Map<String, QueuedPresence> presences = new LinkedHashMap<String, QueuedPresence>();
+    private final Map<TaskKey, DelayedTask> delayedTasks = new LinkedHashMap<TaskKey, DelayedTask>();
+    private boolean flushScheduled;
+    private long delayedFlushTime;
+
+    private int maxQueueDepth;
+    private long receivedCount;
+    private long coalescedCount;
+    private long appliedCount;
+    private long batchCount;
+    private long lastFlushLatency;
+    private long maxFlushLatency;
+    private long lastBatchDuration;
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flushPresences();
+        }
+    };
+
+    private final Runnable delayedFlush = new Runnable() {
+        public void run() {
+            flushDelayedTasks();
+        }
+    };
+
+    PresenceUpdateQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queues a presence, replacing any presence of the same JID that has not been applied yet.
+     * May be called from any thread.
+     *
+     * @param presence the presence.
+     */
+    void offer(Presence presence) {
+        final String key = presence.getFrom() != null ? presence.getFrom().toLowerCase() : "";
+        synchronized (this) {
+            receivedCount++;
+            // Re-insert so that the JIDs are applied in the order of their latest update.
+            final QueuedPresence previous = presences.remove(key);
+            if (previous != null) {
+                coalescedCount++;
+            }
+            presences.put(key, new QueuedPresence(presence, previous != null ? previous.queued : System.currentTimeMillis()));
+            maxQueueDepth = Math.max(maxQueueDepth, presences.size());
+
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        TaskEngine.getInstance().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                EventQueue.invokeLater(flush);
+            }
+        }, COLLECT_DELAY);
+    }
+
+    /**
+     * Runs a task on the Swing thread after a delay. A task that is still pending for the
+     * same kind and key is replaced; tasks of other kinds for the same key are kept.
+     *
+     * @param kind  the kind of task, such as moving a contact to the offline group.
+     * @param key   identifies the task within its kind.
+     * @param task  the task.
+     * @param delay the delay in milliseconds.
+     */
+    void scheduleLater(String kind, Object key, Runnable task, long delay) {
+        final long due = System.currentTimeMillis() + delay;
+        synchronized (this) {
+            delayedTasks.put(new TaskKey(kind, key), new DelayedTask(task, due));
+            if (delayedFlushTime != 0 && delayedFlushTime <= due) {
+                return;
+            }
+            delayedFlushTime = due;
+        }
+        scheduleDelayedFlush(delay);
+    }
+
+    private void flushPresences() {
+        final long start = System.nanoTime();
+        int count = 0;
+        while (count < MAX_BATCH_SIZE && System.nanoTime() - start < FRAME_BUDGET_NANOS) {
+            final QueuedPresence next;
+            synchronized (this) {
+                final Iterator<QueuedPresence> iter = presences.values().iterator();
+                if (!iter.hasNext()) {
+                    break;
+                }
+                next = iter.next();
+                iter.remove();
+            }
+
+            try {
+                handler.applyPresence(next.presence);
+            }
+            catch (Exception e) {
+                Log.error(e);
+            }
+            count++;
+
+            final long latency = System.currentTimeMillis() - next.queued;
+            synchronized (this) {
+                appliedCount++;
+                lastFlushLatency = latency;
+                maxFlushLatency = Math.max(maxFlushLatency, latency);
+            }
+        }
+
+        synchronized (this) {
+            batchCount++;
+            lastBatchDuration = (System.nanoTime() - start) / 1000000;
+            if (presences.isEmpty()) {
+                flushScheduled = false;
+                return;
+            }
+        }
+        // Let the Swing thread paint before the next batch.
+        EventQueue.invokeLater(flush);
+    }
+
+    private void flushDelayedTasks() {
+        final List<Runnable> due = new ArrayList<Runnable>();
+        long nextDue = 0;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final Iterator<DelayedTask> iter = delayedTasks.values().iterator();
+            while (iter.hasNext()) {
+                final DelayedTask task = iter.next();
+                if (task.due <= now && due.size() < MAX_BATCH_SIZE) {
+                    due.add(task.task);
+                    iter.remove();
+                }
+                else if (nextDue == 0 || task.due < nextDue) {
+                    nextDue = task.due;
+                }
+            }
+            delayedFlushTime = nextDue;
+        }
+
+        for (Runnable task : due) {
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                Log.error(e);
+            }
+        }
+
+        if (nextDue != 0) {
+            scheduleDelayedFlush(nextDue - System.currentTimeMillis());
+        }
+    }
+
+    private void scheduleDelayedFlush(long delay) {
+        TaskEngine.getInstance().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                EventQueue.invokeLater(delayedFlush);
+            }
+        }, Math.max(0, delay));
+    }
+
+    /**
+     * Returns the number of JIDs with a presence waiting to be applied.
+     *
+     * @return the current queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return presences.size();
+    }
+
+    /**
+     * Returns the largest queue depth seen so far.
+     *
+     * @return the maximum queue depth.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Returns the number of delayed tasks waiting to run.
+     *
+     * @return the number of delayed tasks.
+     */
+    public synchronized int getDelayedTaskCount() {
+        return delayedTasks.size();
+    }
+
+    /**
+     * Returns the number of presences received.
+     *
+     * @return the number of presences received.
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * Returns the number of presences that were replaced by a later one before being applied.
+     *
+     * @return the number of coalesced presences.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Returns the number of presences applied to the contact list.
+     *
+     * @return the number of applied presences.
+     */
+    public synchronized long getAppliedCount() {
+        return appliedCount;
+    }
+
+    /**
+     * Returns the number of batches run on the Swing thread.
+     *
+     * @return the number of batches.
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Returns the time between queueing and applying the most recently applied presence.
+     *
+     * @return the latency in milliseconds.
+     */
+    public synchronized long getLastFlushLatency() {
+        return lastFlushLatency;
+    }
+
+    /**
+     * Returns the longest time between queueing and applying a presence.
+     *
+     * @return the latency in milliseconds.
+     */
+    public synchronized long getMaxFlushLatency() {
+        return maxFlushLatency;
+    }
+
+    /**
+     * Returns how long the last batch kept the Swing thread busy.
+     *
+     * @return the duration in milliseconds.
+     */
+    public synchronized long getLastBatchDuration() {
+        return lastBatchDuration;
+    }
+
+    public synchronized String toString() {
+        return "PresenceUpdateQueue[depth=" + presences.size() + ", maxDepth=" + maxQueueDepth
+            + ", received=" + receivedCount + ", coalesced=" + coalescedCount + ", applied=" + appliedCount
+            + ", batches=" + batchCount + ", maxLatency=" + maxFlushLatency + "ms]";
+    }
+
+    private static class QueuedPresence {
+        final Presence presence;
+        final long queued;
+
+        QueuedPresence(Presence presence, long queued) {
+            this.presence = presence;
+            this.queued = queued;
+        }
+    }
+
+    private static class TaskKey {
+        final String kind;
+        final Object key;
+
+        TaskKey(String kind, Object key) {
+            this.kind = kind;
+            this.key = key;
+        }
+
+        public boolean equals(Object object) {
+            if (!(object instanceof TaskKey)) {
+                return false;
+            }
+            TaskKey other = (TaskKey)object;
+            return kind.equals(other.kind) && key.equals(other.key);
+        }
+
+        public int hashCode() {
+            return 31 * kind.hashCode() + key.hashCode();
+        }
+    }
+
+    private static class DelayedTask {
+        final Runnable task;
+        final long due;
+
+        DelayedTask(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+}
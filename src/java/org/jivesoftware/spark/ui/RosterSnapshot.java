@@ -0,0 +1,235 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui;
+
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.RosterGroup;
+import org.jivesoftware.smack.packet.RosterPacket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The initial layout of the <code>ContactList</code>, worked out from the roster
+ * without touching the UI. Every list is sorted the way the groups display it, so
+ * that each group can take its contacts in a single step.
+ * <p/>
+ * Until presence arrives every contact is offline: it is listed in the offline group
+ * and with the offline contacts of each of its groups. Contacts with a pending
+ * subscription stay in their groups instead.
+ */
+final class RosterSnapshot {
+
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        public int compare(Entry entry1, Entry entry2) {
+            return entry1.sortKey.compareTo(entry2.sortKey);
+        }
+    };
+
+    private final Set<String> groupNames = new LinkedHashSet<String>();
+    private final Map<String, List<Entry>> pendingEntries = new HashMap<String, List<Entry>>();
+    private final Map<String, List<Entry>> offlineEntries = new HashMap<String, List<Entry>>();
+    private final List<Entry> unfiledEntries = new ArrayList<Entry>();
+    private final List<Entry> offlineGroupEntries = new ArrayList<Entry>();
+    private final int size;
+
+    /**
+     * Lays out the given entries. An entry is used only once per JID.
+     *
+     * @param groupNames the names of all roster groups, including empty ones.
+     * @param entries    the roster entries.
+     */
+    RosterSnapshot(Collection<String> groupNames, Collection<Entry> entries) {
+        for (String groupName : groupNames) {
+            if (groupName != null && groupName.length() > 0) {
+                this.groupNames.add(groupName);
+            }
+        }
+
+        final Set<String> seen = new HashSet<String>();
+        for (Entry entry : entries) {
+            if (!seen.add(entry.jid.toLowerCase())) {
+                continue;
+            }
+
+            if (entry.pending && !entry.groups.isEmpty()) {
+                for (String groupName : entry.groups) {
+                    add(pendingEntries, groupName, entry);
+                }
+                continue;
+            }
+
+            offlineGroupEntries.add(entry);
+            for (String groupName : entry.groups) {
+                add(offlineEntries, groupName, entry);
+            }
+            if (entry.groups.isEmpty()) {
+                unfiledEntries.add(entry);
+            }
+        }
+        size = seen.size();
+
+        sort(pendingEntries.values());
+        sort(offlineEntries.values());
+        Collections.sort(unfiledEntries, ENTRY_COMPARATOR);
+        Collections.sort(offlineGroupEntries, ENTRY_COMPARATOR);
+    }
+
+    /**
+     * Reads the current state of the roster.
+     *
+     * @param roster the roster.
+     * @return the snapshot.
+     */
+    static RosterSnapshot fromRoster(Roster roster) {
+        final List<String> groupNames = new ArrayList<String>();
+        for (RosterGroup group : roster.getGroups()) {
+            groupNames.add(group.getName());
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (RosterEntry rosterEntry : roster.getEntries()) {
+            final List<String> groups = new ArrayList<String>();
+            for (RosterGroup group : rosterEntry.getGroups()) {
+                groups.add(group.getName());
+            }
+            final boolean pending = (rosterEntry.getType() == RosterPacket.ItemType.none || rosterEntry.getType() == RosterPacket.ItemType.from)
+                && RosterPacket.ItemStatus.SUBSCRIPTION_PENDING == rosterEntry.getStatus();
+            entries.add(new Entry(rosterEntry.getUser(), rosterEntry.getName(), pending, groups));
+        }
+        return new RosterSnapshot(groupNames, entries);
+    }
+
+    /**
+     * Returns the names of the groups to create, in roster order.
+     *
+     * @return the group names.
+     */
+    Set<String> getGroupNames() {
+        return groupNames;
+    }
+
+    /**
+     * Returns the contacts with a pending subscription shown in a group.
+     *
+     * @param groupName the name of the group.
+     * @return the contacts, sorted.
+     */
+    List<Entry> getPendingEntries(String groupName) {
+        return get(pendingEntries, groupName);
+    }
+
+    /**
+     * Returns the offline contacts of a group.
+     *
+     * @param groupName the name of the group.
+     * @return the contacts, sorted.
+     */
+    List<Entry> getOfflineEntries(String groupName) {
+        return get(offlineEntries, groupName);
+    }
+
+    /**
+     * Returns the offline contacts of the unfiled group.
+     *
+     * @return the contacts, sorted.
+     */
+    List<Entry> getUnfiledEntries() {
+        return unfiledEntries;
+    }
+
+    /**
+     * Returns the contacts of the offline group.
+     *
+     * @return the contacts, sorted.
+     */
+    List<Entry> getOfflineGroupEntries() {
+        return offlineGroupEntries;
+    }
+
+    /**
+     * Returns the number of distinct contacts.
+     *
+     * @return the number of contacts.
+     */
+    int size() {
+        return size;
+    }
+
+    private static void add(Map<String, List<Entry>> map, String groupName, Entry entry) {
+        List<Entry> list = map.get(groupName);
+        if (list == null) {
+            list = new ArrayList<Entry>();
+            map.put(groupName, list);
+        }
+        list.add(entry);
+    }
+
+    private static List<Entry> get(Map<String, List<Entry>> map, String groupName) {
+        final List<Entry> list = map.get(groupName);
+        return list != null ? list : Collections.<Entry>emptyList();
+    }
+
+    private static void sort(Collection<List<Entry>> lists) {
+        for (List<Entry> list : lists) {
+            Collections.sort(list, ENTRY_COMPARATOR);
+        }
+    }
+
+    /**
+     * A roster entry.
+     */
+    static final class Entry {
+        final String jid;
+        final String name;
+        final boolean pending;
+        final List<String> groups;
+        private final String sortKey;
+
+        /**
+         * @param jid     the bare jid.
+         * @param name    the name of the entry, may be null.
+         * @param pending true if the subscription is pending.
+         * @param groups  the names of the groups of the entry.
+         */
+        Entry(String jid, String name, boolean pending, Collection<String> groups) {
+            this.jid = jid;
+            this.name = name;
+            this.pending = pending;
+            this.groups = new ArrayList<String>();
+            for (String groupName : groups) {
+                if (groupName != null && groupName.length() > 0) {
+                    this.groups.add(groupName);
+                }
+            }
+            // Contacts created for the entry display its name, see UIComponentRegistry.createContactItem.
+            this.sortKey = name != null ? name.toLowerCase() : "";
+        }
+    }
+}
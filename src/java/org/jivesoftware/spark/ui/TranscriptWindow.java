@@ -43,11 +43,14 @@ import javax.swing.JPopupMenu;
 import javax.swing.KeyStroke;
 import javax.swing.UIManager;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
 import javax.swing.text.Document;
+import javax.swing.text.EditorKit;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
+import javax.swing.text.StyledEditorKit;
 
 import org.jdesktop.swingx.calendar.DateUtils;
 import org.jivesoftware.Spark;
@@ -62,6 +65,7 @@ import org.jivesoftware.spark.plugin.ContextMenuListener;
 import org.jivesoftware.spark.ui.history.HistoryWindow;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
 import org.jivesoftware.sparkimpl.settings.local.LocalPreferences;
 import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
 
@@ -85,6 +89,39 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
 
     private Date lastPost;
 
+    /**
+     * Text collected between beginUpdate() and endUpdate().
+     */
+    private FormattedText pending;
+
+    /**
+     * The number of beginUpdate() calls not ended yet.
+     */
+    private int updates;
+
+    private HistoryPager historyPager;
+
+    /**
+     * The number of older messages added when the user scrolls to the top.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Adds older messages to a transcript window when its user scrolls up to them,
+     * for example messages dropped from the scrollback.
+     */
+    public interface HistoryPager {
+
+        /**
+         * Inserts the messages preceding the ones shown, oldest first, using
+         * {@link TranscriptWindow#insertHistoryMessage(String, String, Date)}.
+         *
+         * @param shown the number of messages shown in the window.
+         * @param count the maximum number of messages to insert.
+         */
+        void insertOlderMessages(int shown, int count);
+    }
+
     /**
      * Creates a default instance of <code>TranscriptWindow</code>.
      */
@@ -96,6 +133,9 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
         int fontSize = pref.getChatRoomFontSize();
         defaultFont = new Font("Dialog", Font.PLAIN, fontSize);
 
+        if (getDocument() instanceof ChatDocument) {
+            ((ChatDocument)getDocument()).setScrollback(pref.getChatScrollback());
+        }
 
         addMouseListener(this);
         addMouseMotionListener(this);
@@ -117,6 +157,131 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
         notificationDateFormatter = new SimpleDateFormat(notificationDateFormat);
     }
 
+    /**
+     * Uses a {@link ChatDocument}, so that every message is added in a single edit.
+     */
+    protected EditorKit createDefaultEditorKit() {
+        return new StyledEditorKit() {
+            private static final long serialVersionUID = -4327145370357823307L;
+
+            public Document createDefaultDocument() {
+                return new ChatDocument();
+            }
+        };
+    }
+
+    /**
+     * Collects the messages inserted from now on, and adds them to the document in a
+     * single edit when {@link #endUpdate()} is called. Used to replay history.
+     * Only the insert*Message() methods and {@link #insertCustomText(String, boolean, boolean, Color)}
+     * may be used until then. Updates may be nested, the messages are added when the
+     * outermost update ends.
+     */
+    public void beginUpdate() {
+        if (updates++ == 0) {
+            pending = new FormattedText();
+        }
+    }
+
+    /**
+     * Adds the messages collected since {@link #beginUpdate()} to the document.
+     */
+    public void endUpdate() {
+        if (updates == 0 || --updates > 0) {
+            return;
+        }
+        final FormattedText text = pending;
+        pending = null;
+        if (text != null) {
+            try {
+                append(text);
+            }
+            catch (BadLocationException e) {
+                Log.error("Error message.", e);
+            }
+        }
+    }
+
+    /**
+     * Sets where older messages come from when the user scrolls to the top.
+     *
+     * @param pager the history pager, or null if older messages are not shown.
+     */
+    public void setHistoryPager(HistoryPager pager) {
+        historyPager = pager;
+    }
+
+    /**
+     * Returns where older messages come from when the user scrolls to the top.
+     *
+     * @return the history pager, or null if there is none.
+     */
+    public HistoryPager getHistoryPager() {
+        return historyPager;
+    }
+
+    /**
+     * Inserts a page of older messages from the history pager above the messages shown,
+     * in a single edit.
+     *
+     * @return true if messages were added.
+     */
+    public boolean loadOlderMessages() {
+        if (historyPager == null || updates > 0 || !(getDocument() instanceof ChatDocument)) {
+            return false;
+        }
+        final ChatDocument document = (ChatDocument)getDocument();
+        final Date last = lastPost;
+        // The page starts with the date of its first message.
+        lastPost = null;
+        updates = 1;
+        pending = new FormattedText();
+        final FormattedText text = pending;
+        try {
+            historyPager.insertOlderMessages(document.getMessageCount(), PAGE_SIZE);
+        }
+        finally {
+            updates = 0;
+            pending = null;
+            lastPost = last;
+        }
+        if (text.isEmpty()) {
+            return false;
+        }
+
+        // Moving the caret along would scroll the window to it.
+        final DefaultCaret caret = getCaret() instanceof DefaultCaret ? (DefaultCaret)getCaret() : null;
+        final int policy = caret != null ? caret.getUpdatePolicy() : 0;
+        if (caret != null) {
+            caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        }
+        try {
+            document.prepend(text);
+            return true;
+        }
+        catch (BadLocationException e) {
+            Log.error("Error message.", e);
+            return false;
+        }
+        finally {
+            if (caret != null) {
+                caret.setUpdatePolicy(policy);
+            }
+        }
+    }
+
+    /**
+     * Adds a formatted message, or keeps it for {@link #endUpdate()}.
+     */
+    private void appendMessage(FormattedText text) throws BadLocationException {
+        if (pending != null) {
+            pending.append(text);
+        }
+        else {
+            append(text);
+        }
+    }
+
     /**
      * Inserts a component into the transcript window.
      *
@@ -190,18 +355,19 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, foreground);
             StyleConstants.setBackground(styles, background);
-            final Document doc = getDocument();
             styles.removeAttribute("link");
 
             StyleConstants.setFontSize(styles, defaultFont.getSize());
-            doc.insertString(doc.getLength(), date + nickname + ": ", styles);
+            final FormattedText text = new FormattedText();
+            text.markMessage();
+            text.append(date + nickname + ": ", styles);
 
             // Reset Styles for message
             StyleConstants.setBold(styles, false);
 
             StyleConstants.setForeground(styles, getMessageColor());
-            setText(body);
-            insertText("\n");
+            appendBody(text, body);
+            appendMessage(text);
         }
         catch (BadLocationException e) {
             Log.error("Error message.", e);
@@ -220,20 +386,21 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
             // Agent color is always blue
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, foreground);
-            final Document doc = getDocument();
             styles.removeAttribute("link");
 
             StyleConstants.setFontSize(styles, defaultFont.getSize());
+            final FormattedText text = new FormattedText();
+            text.markMessage();
             if (prefix != null) {
-                doc.insertString(doc.getLength(), prefix + ": ", styles);
+                text.append(prefix + ": ", styles);
             }
 
             // Reset Styles for message
             StyleConstants.setBold(styles, false);
 
             StyleConstants.setForeground(styles, getMessageColor());
-            setText(message);
-            insertText("\n");
+            appendBody(text, message);
+            appendMessage(text);
         }
         catch (BadLocationException e) {
             Log.error("Error message.", e);
@@ -244,6 +411,19 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
         return Color.BLACK;
     }
 
+    /**
+     * Formats the body of a message followed by a newline, the way setText() and
+     * insertText() would insert them.
+     */
+    private void appendBody(FormattedText text, String body) {
+        if (ModelUtil.hasLength(body)) {
+            text.append(format(body, styles));
+            resetDecorations();
+        }
+        styles.removeAttribute("link");
+        text.append("\n", styles);
+    }
+
 
     /**
      * Create and insert a notification message. A notification message generally is a
@@ -257,18 +437,17 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
             // Agent color is always blue
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, foregroundColor);
-            final Document doc = getDocument();
             styles.removeAttribute("link");
 
             StyleConstants.setFontSize(styles, defaultFont.getSize());
-            doc.insertString(doc.getLength(), "", styles);
 
             // Reset Styles for message
             StyleConstants.setBackground(styles, new Color(0,0,0,0));
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, foregroundColor);
-            setText(message);
-            insertText("\n");
+            final FormattedText text = new FormattedText();
+            appendBody(text, message);
+            appendMessage(text);
 
             // Default back to black
             StyleConstants.setForeground(styles, Color.black);
@@ -289,29 +468,32 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
      */
     public synchronized void insertCustomText(String text, boolean bold, boolean underline, Color foreground) {
         try {
-            // Agent color is always blue
-            StyleConstants.setBold(styles, true);
-            StyleConstants.setForeground(styles, foreground);
-            final Document doc = getDocument();
-            styles.removeAttribute("link");
-
-            StyleConstants.setFontSize(styles, defaultFont.getSize());
-            doc.insertString(doc.getLength(), "", styles);
-
-            // Reset Styles for message
-            StyleConstants.setBold(styles, bold);
-            StyleConstants.setUnderline(styles, underline);
-            StyleConstants.setForeground(styles, foreground);
-            setText(text);
-            insertText("\n");
-            StyleConstants.setUnderline(styles, false);
-            StyleConstants.setForeground(styles, Color.black);
+            final FormattedText formatted = new FormattedText();
+            appendCustomText(formatted, text, bold, underline, foreground);
+            appendMessage(formatted);
         }
         catch (BadLocationException ex) {
             Log.error("Error message.", ex);
         }
     }
 
+    private void appendCustomText(FormattedText formatted, String text, boolean bold, boolean underline, Color foreground) {
+        // Agent color is always blue
+        StyleConstants.setBold(styles, true);
+        StyleConstants.setForeground(styles, foreground);
+        styles.removeAttribute("link");
+
+        StyleConstants.setFontSize(styles, defaultFont.getSize());
+
+        // Reset Styles for message
+        StyleConstants.setBold(styles, bold);
+        StyleConstants.setUnderline(styles, underline);
+        StyleConstants.setForeground(styles, foreground);
+        appendBody(formatted, text);
+        StyleConstants.setUnderline(styles, false);
+        StyleConstants.setForeground(styles, Color.black);
+    }
+
 
     /**
      * Returns the formatted date.
@@ -365,9 +547,11 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
             long lastPostStartOfDay = DateUtils.startOfDayInMillis(lastPostTime);
             long newPostStartOfDay = DateUtils.startOfDayInMillis(date.getTime());
 
+            final FormattedText text = new FormattedText();
+            text.markMessage();
             int diff = DateUtils.getDaysDiff(lastPostStartOfDay, newPostStartOfDay);
             if (diff != 0) {
-                insertCustomText(notificationDateFormatter.format(date), true, true, Color.BLACK);
+                appendCustomText(text, notificationDateFormatter.format(date), true, true, Color.BLACK);
             }
 
             value = getDate(date);
@@ -379,18 +563,22 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
             // Agent color is always blue
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, Color.BLACK);
-            final Document doc = getDocument();
             styles.removeAttribute("link");
 
             StyleConstants.setFontSize(styles, defaultFont.getSize());
-            doc.insertString(doc.getLength(), value, styles);
+            text.append(value, styles);
 
             // Reset Styles for message
             StyleConstants.setBold(styles, false);
             StyleConstants.setForeground(styles, (Color)UIManager.get("History.foreground"));
-            setText(message);
+            if (ModelUtil.hasLength(message)) {
+                text.append(format(message, styles));
+                resetDecorations();
+            }
             StyleConstants.setForeground(styles, Color.BLACK);
-            insertText("\n");
+            styles.removeAttribute("link");
+            text.append("\n", styles);
+            appendMessage(text);
         }
         catch (BadLocationException ex) {
             Log.error("Error message.", ex);
@@ -540,12 +728,7 @@ public class TranscriptWindow extends ChatArea implements ContextMenuListener {
                     JOptionPane.QUESTION_MESSAGE);
                 if (ok == JOptionPane.YES_OPTION) {
                 	if(user != null){
-                        // This actions must be move into Transcript Plugin!
-	                    File transcriptDir = new File(SparkManager.getUserDirectory(), "transcripts");
-	                    File transcriptFile = new File(transcriptDir ,user + ".xml");
-	                    transcriptFile.delete();
-	                    transcriptFile = new File(transcriptDir,user + "_current.xml");
-	                    transcriptFile.delete();
+	                    TranscriptStore.getInstance().delete(user);
 	                    clear();
                     }
                 }
@@ -47,6 +47,7 @@ import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.smackx.packet.VCard;
 import org.jivesoftware.spark.SparkManager;
 import org.jivesoftware.spark.UserManager;
+import org.jivesoftware.spark.util.AvatarCache;
 import org.jivesoftware.spark.util.GraphicUtils;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
@@ -101,17 +102,7 @@ public class VCardPanel extends JPanel {
 
         byte[] bytes = vcard.getAvatar();
         if (bytes != null && bytes.length > 0) {
-            try {
-                icon = new ImageIcon(bytes);
-                Image newImage = icon.getImage();
-                if (icon.getIconHeight() > 48 || icon.getIconWidth() > 48) {
-                newImage = newImage.getScaledInstance(-1, 48, Image.SCALE_SMOOTH);
-                }
-                icon = new ImageIcon(newImage);
-            }
-            catch (Exception e) {
-                Log.error(e);
-            }
+            icon = AvatarCache.getInstance().getIcon(vcard.getAvatarHash(), bytes, 48, 48, false);
         }
         else {
             icon = SparkRes.getImageIcon(SparkRes.DEFAULT_AVATAR_32x32_IMAGE);
@@ -146,20 +137,8 @@ public class VCardPanel extends JPanel {
             JLabel label = new JLabel();
             _avatarHoverWindow.add(label);
             byte[] bytes = vcard.getAvatar();
-            Image newImage = null;
             if (bytes != null && bytes.length > 0) {
-                try {
-                    icon = new ImageIcon(bytes);
-                    newImage = icon.getImage();
-                    if (icon.getIconHeight() > 128 || icon.getIconWidth() > 128) {
-                    newImage = newImage.getScaledInstance(-1, 128, Image.SCALE_SMOOTH);
-                    }
-                    icon = new ImageIcon(newImage);
-
-                } catch (Exception e1) {
-                    Log.error(e1);
-                }
-
+                icon = AvatarCache.getInstance().getIcon(vcard.getAvatarHash(), bytes, 128, 128, false);
             } else {
                 icon = SparkRes.getImageIcon(SparkRes.DEFAULT_AVATAR_32x32_IMAGE);
             }
@@ -130,7 +130,8 @@ public class BannedUsers extends JPanel {
 
         while (bannedUsers != null && bannedUsers.hasNext()) {
             Affiliate bannedUser = bannedUsers.next();
-            ImageIcon icon = SparkRes.getImageIcon(SparkRes.STAR_RED_IMAGE);
+            // Resource icons are shared, so the JID goes on a copy.
+            ImageIcon icon = new ImageIcon(SparkRes.getImageIcon(SparkRes.STAR_RED_IMAGE).getImage());
             icon.setDescription(bannedUser.getJid());
             listModel.addElement(icon);
         }
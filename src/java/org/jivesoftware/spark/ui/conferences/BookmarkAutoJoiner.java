@@ -0,0 +1,149 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.swing.SwingUtilities;
+
+import org.jivesoftware.resource.Res;
+import org.jivesoftware.resource.SparkRes;
+import org.jivesoftware.smackx.bookmark.BookmarkedConference;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.component.PasswordDialog;
+import org.jivesoftware.spark.ui.ChatRoomNotFoundException;
+import org.jivesoftware.spark.ui.rooms.GroupChatRoom;
+import org.jivesoftware.spark.util.ModelUtil;
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.UIComponentRegistry;
+import org.jivesoftware.spark.util.log.Log;
+import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
+
+/**
+ * Joins the bookmarked rooms to join on login. A few rooms are joined at a time
+ * rather than one after the other, and the tab of every room is opened as soon as
+ * the room was joined.
+ * <p/>
+ * Whether a room requires a password is asked through the {@link RoomDirectory},
+ * which shares the answer with the room browser.
+ */
+public class BookmarkAutoJoiner {
+
+    /**
+     * The number of rooms being joined at a time.
+     */
+    public static final int CONCURRENT_JOINS = 4;
+
+    private static final Object PASSWORD_LOCK = new Object();
+
+    private final Queue<BookmarkedConference> bookmarks = new ConcurrentLinkedQueue<BookmarkedConference>();
+    private final int concurrentJoins;
+
+    /**
+     * Creates a joiner of bookmarked rooms.
+     *
+     * @param bookmarks the bookmarks of the rooms to join.
+     */
+    public BookmarkAutoJoiner(Collection<BookmarkedConference> bookmarks) {
+        this(bookmarks, CONCURRENT_JOINS);
+    }
+
+    protected BookmarkAutoJoiner(Collection<BookmarkedConference> bookmarks, int concurrentJoins) {
+        this.bookmarks.addAll(bookmarks);
+        this.concurrentJoins = concurrentJoins;
+    }
+
+    /**
+     * Starts joining the rooms in the background.
+     */
+    public void start() {
+        // Every worker takes the next bookmark once its previous room was joined.
+        final int workers = Math.min(concurrentJoins, bookmarks.size());
+        for (int i = 0; i < workers; i++) {
+            TaskEngine.getInstance().submit(new Runnable() {
+                public void run() {
+                    BookmarkedConference bookmark;
+                    while ((bookmark = bookmarks.poll()) != null) {
+                        try {
+                            join(bookmark);
+                        }
+                        catch (Exception e) {
+                            Log.error("Unable to join room " + bookmark.getJid(), e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Joins the room of a bookmark, and opens its tab once joined. Called on the
+     * threads of the joiner.
+     *
+     * @param bookmark the bookmark of the room.
+     */
+    protected void join(BookmarkedConference bookmark) {
+        final String roomJID = bookmark.getJid();
+
+        // A room already open is joined again the usual way.
+        try {
+            SparkManager.getChatManager().getChatContainer().getChatRoom(roomJID);
+            ConferenceUtils.joinConferenceOnSeperateThread(bookmark.getName(), roomJID, bookmark.getPassword());
+            return;
+        }
+        catch (ChatRoomNotFoundException e) {
+            // Nothing to do
+        }
+
+        final MultiUserChat groupChat = new MultiUserChat(SparkManager.getConnection(), roomJID);
+        final String nickname = SettingsManager.getLocalPreferences().getNickname().trim();
+        final GroupChatRoom room = UIComponentRegistry.createGroupChatRoom(groupChat);
+        room.setTabTitle(bookmark.getName());
+
+        String password = bookmark.getPassword();
+        if (password == null && ConferenceUtils.isPasswordRequired(roomJID)) {
+            // One password dialog at a time.
+            synchronized (PASSWORD_LOCK) {
+                final PasswordDialog passwordDialog = new PasswordDialog();
+                password = passwordDialog.getPassword(Res.getString("title.password.required"), Res.getString("message.groupchat.require.password"), SparkRes.getImageIcon(SparkRes.LOCK_16x16), SparkManager.getFocusedComponent());
+            }
+            if (!ModelUtil.hasLength(password)) {
+                return;
+            }
+        }
+        room.setPassword(password);
+
+        final List<String> errors = new ArrayList<String>();
+        if (!ConferenceUtils.joinWithNicknames(groupChat, nickname, password, errors)) {
+            return;
+        }
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                ConferenceUtils.openJoinedRoom(groupChat, room, errors);
+            }
+        });
+    }
+}
@@ -596,13 +596,14 @@ public class BookmarksUI extends JPanel {
      */
     public void setBookmarks(Collection<BookmarkedConference> bookmarks) {
 
+        final List<BookmarkedConference> autoJoin = new ArrayList<BookmarkedConference>();
         for (BookmarkedConference bookmark : bookmarks) {
             String serviceName = StringUtils.parseServer(bookmark.getJid());
             String roomJID = bookmark.getJid();
             String roomName = bookmark.getName();
 
             if (bookmark.isAutoJoin()) {
-                ConferenceUtils.joinConferenceOnSeperateThread(bookmark.getName(), bookmark.getJid(), bookmark.getPassword());
+                autoJoin.add(bookmark);
                 ConferenceUtils.addUnclosableChatRoom(roomJID);
                 autoJoinRooms.add(bookmark.getJid());
             }
@@ -622,6 +623,8 @@ public class BookmarksUI extends JPanel {
 
             tree.expandPath(path);
         }
+
+        new BookmarkAutoJoiner(autoJoin).start();
     }
 
     /**
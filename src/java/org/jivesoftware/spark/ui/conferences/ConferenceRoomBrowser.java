@@ -31,9 +31,7 @@ import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.TimerTask;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -50,6 +48,7 @@ import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.RowFilter;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -65,7 +64,6 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.Form;
 import org.jivesoftware.smackx.bookmark.BookmarkedConference;
-import org.jivesoftware.smackx.muc.HostedRoom;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 import org.jivesoftware.smackx.muc.RoomInfo;
 import org.jivesoftware.spark.ChatManager;
@@ -80,7 +78,6 @@ import org.jivesoftware.spark.ui.rooms.GroupChatRoom;
 import org.jivesoftware.spark.util.ImageCombiner;
 import org.jivesoftware.spark.util.ResourceUtils;
 import org.jivesoftware.spark.util.SwingWorker;
-import org.jivesoftware.spark.util.TaskEngine;
 import org.jivesoftware.spark.util.UIComponentRegistry;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.settings.local.LocalPreferences;
@@ -125,7 +122,7 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
     private int twoButtonWidth;
     private int oneButtonWidth;
 
-    private boolean partialDiscovery = false;
+    private RoomDirectory.Discovery discovery;
 
     private JPopupMenu popup;
 
@@ -335,88 +332,98 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
        stopLoading.start();
    }
 
-   private void clearTable(){
-       SwingWorker clearTable = new SwingWorker() {
-           
-           @Override
-           public Object construct() {
-               return null;
-           }
-           @Override
-           public void finished() {
-               roomsTable.clearTable();
-           }
-       };
-       clearTable.start();
-   }
-
     private void refreshRoomList(final String serviceName) {
+        discoverRooms(true);
+    }
+
+    /**
+     * Lists the rooms of the service in the table, adding every room as soon as
+     * it was discovered.
+     *
+     * @param refresh true to discover the rooms again rather than list the rooms
+     *                known already.
+     */
+    private void discoverRooms(boolean refresh) {
+        if (discovery != null) {
+            discovery.cancel();
+        }
         startLoadingImg();
-        clearTable();
-
-        TimerTask refreshTask = new TimerTask() {
-            Collection<HostedRoom> rooms;
-
-            @Override
-            public void run() {
-                try {
-                    rooms = getRoomList(serviceName);
-                    try { 
-                        for (HostedRoom aResult : rooms) {
-                            RoomObject room = getRoomsAndInfo(aResult);
-                            addRoomToTable(room.getRoomJID(), room.getRoomName(),
-                            room.getNumberOfOccupants());
-                        }
-                        stopLoadingImg();
-                    } catch (Exception e) {
-                        Log.error("Unable to retrieve room list and info.", e);
-                    }
-                } catch ( Exception e1 ) {
-                    System.err.println(e1);
-                }
-            }
-        };
-        TaskEngine.getInstance().submit(refreshTask);
+        roomsTable.clearTable();
+
+        final RoomTableFiller filler = new RoomTableFiller();
+        discovery = RoomDirectory.getInstance().discover(serviceName, refresh, filler);
+        filler.discovery = discovery;
     }
 
-    private RoomObject getRoomsAndInfo(final HostedRoom room) {
-        boolean stillSearchForOccupants = true;
-        RoomObject result = null;
-        try {
-            try {
-                String roomName = room.getName();
-                String roomJID = room.getJid();
-                int numberOfOccupants = -1;
-                if (stillSearchForOccupants) {
-                RoomInfo roomInfo = null;
-                try {
-                    roomInfo = MultiUserChat.getRoomInfo(
-                        SparkManager.getConnection(), roomJID);
-                } catch (Exception e) {
-                    // Nothing to do
+    /**
+     * Adds the rooms discovered to the table on the event dispatch thread, all rooms
+     * discovered in the meantime at once.
+     */
+    private class RoomTableFiller implements RoomDirectory.DiscoveryListener {
+        private final List<RoomDirectory.Room> discovered = new ArrayList<RoomDirectory.Room>();
+        private RoomDirectory.Discovery discovery;
+        private boolean finished;
+
+        public void roomDiscovered(RoomDirectory.Room room) {
+            synchronized (discovered) {
+                discovered.add(room);
+                if (discovered.size() > 1) {
+                    return;
+                }
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    addDiscoveredRooms();
                 }
+            });
+        }
 
-                if (roomInfo != null) {
-                    numberOfOccupants = roomInfo.getOccupantsCount();
-                    if (numberOfOccupants == -1) {
-                    stillSearchForOccupants = false;
+        public void discoveryFinished() {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    synchronized (discovered) {
+                        finished = true;
                     }
-                } else {
-                    stillSearchForOccupants = false;
+                    addDiscoveredRooms();
                 }
+            });
+        }
+
+        public void discoveryFailed(final Exception e) {
+            Log.error("Unable to retrieve list of rooms.", e);
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (discovery != ConferenceRoomBrowser.this.discovery) {
+                        return;
+                    }
+                    stopLoadingImg();
+                    JOptionPane.showMessageDialog(conferences,
+                        Res.getString("message.conference.info.error"),
+                        Res.getString("title.error"),
+                        JOptionPane.ERROR_MESSAGE);
                 }
+            });
+        }
 
-                result = new RoomObject();
-                result.setRoomJID(roomJID);
-                result.setRoomName(roomName);
-                result.setNumberOfOccupants(numberOfOccupants);
-            } catch (Exception e) {
-                Log.error("Error setting up GroupChatTable", e);
+        private void addDiscoveredRooms() {
+            // Rooms of a discovery replaced by a refresh are dropped.
+            if (discovery != ConferenceRoomBrowser.this.discovery) {
+                return;
+            }
+            final List<RoomDirectory.Room> rooms;
+            final boolean done;
+            synchronized (discovered) {
+                rooms = new ArrayList<RoomDirectory.Room>(discovered);
+                discovered.clear();
+                done = finished;
+            }
+            for (RoomDirectory.Room room : rooms) {
+                addRoomToTable(room.getJid(), room.getName(), room.getOccupants(), room.isLocked());
+            }
+            if (done) {
+                stopLoadingImg();
             }
-        } catch (Exception e) {
-            System.err.println(e);
         }
-        return result;
     }
 
     private void bookmarkRoom(String serviceName) {
@@ -527,66 +534,6 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
      * Displays the ConferenceRoomBrowser.
      */
     public void invoke() {
-        startLoadingImg();
-        TimerTask invokeThread = new TimerTask() {
-            Collection<HostedRoom> rooms;
-
-            @Override
-            public void run() {
-                try {
-                    rooms = getRoomList(serviceName);
-
-                    if (rooms == null) {
-                        JOptionPane.showMessageDialog(conferences,
-                            Res.getString("message.conference.info.error"),
-                            Res.getString("title.error"),
-                            JOptionPane.ERROR_MESSAGE);
-                        if (dlg != null) {
-                        dlg.dispose();
-                        }
-                    }else{
-                        try {
-                            for (HostedRoom room : rooms) {
-
-                            String roomName = room.getName();
-                            String roomJID = room.getJid();
-
-                            int numberOfOccupants = -1;
-
-                            // Need to handle the case where the room info does not
-                            // contain the number of occupants. If that is the case,
-                            // we should not continue to request this info from the
-                            // service.
-                            if (!partialDiscovery) {
-                                RoomInfo roomInfo = null;
-                                try {
-                                roomInfo = MultiUserChat.getRoomInfo(
-                                    SparkManager.getConnection(), roomJID);
-                                } catch (Exception e) {
-                                // Nothing to do
-                                }
-
-                                if (roomInfo != null) {
-                                numberOfOccupants = roomInfo
-                                    .getOccupantsCount();
-                                }
-                                if (roomInfo == null || numberOfOccupants == -1) {
-                                partialDiscovery = true;
-                                }
-                            }
-                            addRoomToTable(roomJID, roomName, numberOfOccupants);
-                            }
-                        } catch (Exception e) {
-                            Log.error("Error setting up GroupChatTable", e);
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.error("Unable to retrieve list of rooms.", e);
-                }
-                stopLoadingImg();
-            }
-        };
-
         final JOptionPane pane;
 
         TitlePanel titlePanel;
@@ -661,8 +608,8 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
 
         dlg.setVisible(true);
         dlg.toFront();
-        dlg.requestFocus();  
-        TaskEngine.getInstance().submit(invokeThread);
+        dlg.requestFocus();
+        discoverRooms(false);
     }
 
     private final class RoomList extends Table {
@@ -799,21 +746,6 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
 	}
     }
 
-    /**
-     * Returns a Collection of all rooms in the specified Conference Service.
-     *
-     * @param serviceName
-     *            the name of the conference service.
-     * @return a Collection of all rooms in the Conference service.
-     * @throws Exception
-     *             if a problem occurs while getting the room list
-     */
-    private static Collection<HostedRoom> getRoomList(String serviceName)
-	    throws Exception {
-	return MultiUserChat.getHostedRooms(SparkManager.getConnection(),
-		serviceName);
-    }
-
     /**
      * Create a new room based on room table selection.
      */
@@ -856,7 +788,9 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
 
 		// new DataFormDialog(groupChat, form);
 		groupChat.sendConfigurationForm(form);
-        addRoomToTable(groupChat.getRoom(), StringUtils.parseName(groupChat.getRoom()), 1);
+        RoomDirectory.getInstance().invalidate(serviceName);
+        addRoomToTable(groupChat.getRoom(), StringUtils.parseName(groupChat.getRoom()), 1,
+            mucRoomDialog.isPasswordProtected());
 	    } catch (XMPPException e1) {
 		Log.error("Error creating new room.", e1);
 		JOptionPane
@@ -879,60 +813,38 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
      *            the number of occupants in the conference room. If -1 is
      *            specified, the the occupant count will show as n/a.
      */
-    private void addRoomToTable(final String jid, final String roomName,
-	    final int numberOfOccupants) {
-        SwingWorker addRoomThread = new SwingWorker() {
-
-            @Override
-            public Object construct() {
-                JLabel iconLabel = new JLabel();
-                iconLabel.setAlignmentX(JLabel.RIGHT_ALIGNMENT);
-                boolean isbookmark = false;
-                boolean ispassword = false;
-
-                ImageIcon bookmarkicon = SparkRes.getImageIcon(SparkRes.BOOKMARK_ICON);
-                ImageIcon passwordicon = SparkRes.getImageIcon(SparkRes.LOCK_16x16);
-
-                if (isBookmarked(jid)) {
-                    isbookmark = true;
-                    iconLabel.setIcon(SparkRes.getImageIcon(SparkRes.BOOKMARK_ICON));
-                }
-                if (isPasswordProtected(jid)) {
-                    ispassword = true;
-                }
-
-                if (isbookmark && ispassword) {
-                    Image img = ImageCombiner.combine(bookmarkicon, passwordicon);
-                    iconLabel.setIcon(new ImageIcon(img));
-                } else if (isbookmark) {
-                    iconLabel.setIcon(bookmarkicon);
-                } else if (ispassword) {
-                    Image img = ImageCombiner.returnTransparentImage(
-                        passwordicon.getIconWidth(), passwordicon.getIconHeight());
-
-                    Image combined = ImageCombiner.combine(new ImageIcon(img),
-                        passwordicon);
-
-                    iconLabel.setIcon(new ImageIcon(combined));
-                }
+    private void addRoomToTable(String jid, String roomName,
+	    int numberOfOccupants, boolean ispassword) {
+        JLabel iconLabel = new JLabel();
+        iconLabel.setAlignmentX(JLabel.RIGHT_ALIGNMENT);
+        boolean isbookmark = isBookmarked(jid);
+
+        ImageIcon bookmarkicon = SparkRes.getImageIcon(SparkRes.BOOKMARK_ICON);
+        ImageIcon passwordicon = SparkRes.getImageIcon(SparkRes.LOCK_16x16);
+
+        if (isbookmark && ispassword) {
+            Image img = ImageCombiner.combine(bookmarkicon, passwordicon);
+            iconLabel.setIcon(new ImageIcon(img));
+        } else if (isbookmark) {
+            iconLabel.setIcon(bookmarkicon);
+        } else if (ispassword) {
+            Image img = ImageCombiner.returnTransparentImage(
+                passwordicon.getIconWidth(), passwordicon.getIconHeight());
+
+            Image combined = ImageCombiner.combine(new ImageIcon(img),
+                passwordicon);
+
+            iconLabel.setIcon(new ImageIcon(combined));
+        }
 
-                String occupants = Integer.toString(numberOfOccupants);
-                if (numberOfOccupants == -1) {
-                    occupants = "n/a";
-                }
+        String occupants = Integer.toString(numberOfOccupants);
+        if (numberOfOccupants == -1) {
+            occupants = "n/a";
+        }
 
-                final Object[] insertRoom = new Object[] { iconLabel, roomName,
-                    StringUtils.parseName(jid), occupants };
-                return insertRoom;
-            }
-            
-            @Override
-            public void finished() {
-                Object[] insertRoom = (Object[])get();
-                roomsTable.getTableModel().addRow(insertRoom);
-            }
-        };
-        addRoomThread.start();
+        final Object[] insertRoom = new Object[] { iconLabel, roomName,
+            StringUtils.parseName(jid), occupants };
+        roomsTable.getTableModel().addRow(insertRoom);
     }
 
     /**
@@ -955,29 +867,6 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
 
     }
 
-    /**
-     * Returns true if the room is password protected or Members only
-     *
-     * @param roomjid
-     * @return
-     */
-    private boolean isPasswordProtected(String roomjid) {
-	boolean result = false;
-	try {
-
-	    RoomInfo rif = MultiUserChat.getRoomInfo(
-		    SparkManager.getConnection(), roomjid);
-
-	    result = rif.isMembersOnly() || rif.isPasswordProtected();
-
-	} catch (XMPPException e) {
-
-	} catch (NumberFormatException nfe) {
-
-	}
-
-	return result;
-    }
 
     /**
      * Toggles the bookmark room button depending on it's state.
@@ -1017,37 +906,6 @@ public class ConferenceRoomBrowser extends JPanel implements ActionListener,
 	}
     }
 
-    private class RoomObject {
-	private String roomName;
-	private String roomJID;
-
-	int numberOfOccupants;
-
-	public String getRoomName() {
-	    return roomName;
-	}
-
-	public void setRoomName(String roomName) {
-	    this.roomName = roomName;
-	}
-
-	public String getRoomJID() {
-	    return roomJID;
-	}
-
-	public void setRoomJID(String roomJID) {
-	    this.roomJID = roomJID;
-	}
-
-	public int getNumberOfOccupants() {
-	    return numberOfOccupants;
-	}
-
-	public void setNumberOfOccupants(int numberOfOccupants) {
-	    this.numberOfOccupants = numberOfOccupants;
-	}
-    }
-
     public void componentHidden(ComponentEvent e) {
 
     }
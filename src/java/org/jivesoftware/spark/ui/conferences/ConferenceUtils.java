@@ -182,80 +182,111 @@ public class ConferenceUtils {
 
         final SwingWorker startChat = new SwingWorker() {
             public Object construct() {
-                if (!groupChat.isJoined()) {
-                    int groupChatCounter = 0;
-                    while (true) {
-                        groupChatCounter++;
-                        String joinName = nickname;
-                        if (groupChatCounter > 1) {
-                            joinName = joinName + groupChatCounter;
-                        }
-                        if (groupChatCounter < 10) {
-                            try {
-                            	if (!confirmToRevealVisibility())
-                            		return null;
-                            	
-                                if (ModelUtil.hasLength(userPassword)) {
-                                    groupChat.join(joinName, userPassword);
-                                }
-                                else {
-                                    groupChat.join(joinName);
-                                }
-                                break;
-                            }
-                            catch (XMPPException ex) {
-                                int code = 0;
-                                if (ex.getXMPPError() != null) {
-                                    code = ex.getXMPPError().getCode();
-                                }
-
-                                if (code == 0) {
-                                    errors.add("No response from server.");
-                                }
-                                else if (code == 401) {
-                                    errors.add("The password did not match the rooms password.");
-                                }
-                                else if (code == 403) {
-                                    errors.add("You have been banned from this room.");
-                                }
-                                else if (code == 404) {
-                                    errors.add("The room you are trying to enter does not exist.");
-                                }
-                                else if (code == 407) {
-                                    errors.add("You are not a member of this room.\nThis room requires you to be a member to join.");
-                                }
-                                else if (code != 409) {
-                                    break;
-                                }
-                            }
-                        }
-                        else {
-                            break;
-                        }
-                    }
+                if (!joinWithNicknames(groupChat, nickname, userPassword, errors)) {
+                    return null;
                 }
                 invite(groupChat, room, jids, message);
                 return "ok";
             }
 
             public void finished() {
-                if (errors.size() > 0) {
-                    String error = errors.get(0);
-                    JOptionPane.showMessageDialog(SparkManager.getMainWindow(), error, "Unable to join the room at this time.", JOptionPane.ERROR_MESSAGE);
+                openJoinedRoom(groupChat, room, errors);
+            }
+        };
+
+        startChat.start();
+    }
+
+    /**
+     * Joins a room, trying the nickname followed by a number while the nickname is
+     * in use. Asks the user first if the user is invisible.
+     *
+     * @param groupChat the room to join.
+     * @param nickname  the nickname of the user.
+     * @param password  the password of the room, or null.
+     * @param errors    the list to add the reason to if the room could not be joined.
+     * @return false if the user chose to stay invisible.
+     */
+    static boolean joinWithNicknames(MultiUserChat groupChat, String nickname, String password, List<String> errors) {
+        if (!groupChat.isJoined()) {
+            int groupChatCounter = 0;
+            while (true) {
+                groupChatCounter++;
+                String joinName = nickname;
+                if (groupChatCounter > 1) {
+                    joinName = joinName + groupChatCounter;
                 }
-                else if (groupChat.isJoined()) {
-                	changePresenceToAvailableIfInvisible();
-                    ChatManager chatManager = SparkManager.getChatManager();
-                    chatManager.getChatContainer().addChatRoom(room);
-                    chatManager.getChatContainer().activateChatRoom(room);
+                if (groupChatCounter < 10) {
+                    try {
+                    	if (!confirmToRevealVisibility())
+                    		return false;
+
+                        if (ModelUtil.hasLength(password)) {
+                            groupChat.join(joinName, password);
+                        }
+                        else {
+                            groupChat.join(joinName);
+                        }
+                        break;
+                    }
+                    catch (XMPPException ex) {
+                        int code = 0;
+                        if (ex.getXMPPError() != null) {
+                            code = ex.getXMPPError().getCode();
+                        }
+
+                        if (code == 0) {
+                            errors.add("No response from server.");
+                        }
+                        else if (code == 401) {
+                            errors.add("The password did not match the rooms password.");
+                        }
+                        else if (code == 403) {
+                            errors.add("You have been banned from this room.");
+                        }
+                        else if (code == 404) {
+                            errors.add("The room you are trying to enter does not exist.");
+                        }
+                        else if (code == 407) {
+                            errors.add("You are not a member of this room.\nThis room requires you to be a member to join.");
+                        }
+
+                        // Only a nickname in use is worth another nickname.
+                        if (code != 409) {
+                            break;
+                        }
+                    }
                 }
                 else {
-                    JOptionPane.showMessageDialog(SparkManager.getMainWindow(), "Unable to join the room.", "Error", JOptionPane.ERROR_MESSAGE);
+                    break;
                 }
             }
-        };
+        }
+        return true;
+    }
 
-        startChat.start();
+    /**
+     * Opens the tab of a room that was joined, or tells the user why it could not
+     * be joined. Must be called on the event dispatch thread.
+     *
+     * @param groupChat the room.
+     * @param room      the tab of the room.
+     * @param errors    the reasons the room could not be joined.
+     */
+    static void openJoinedRoom(MultiUserChat groupChat, GroupChatRoom room, List<String> errors) {
+        if (errors.size() > 0) {
+            String error = errors.get(0);
+            JOptionPane.showMessageDialog(SparkManager.getMainWindow(), error, "Unable to join the room at this time.", JOptionPane.ERROR_MESSAGE);
+        }
+        else if (groupChat.isJoined()) {
+        	changePresenceToAvailableIfInvisible();
+            ChatManager chatManager = SparkManager.getChatManager();
+            chatManager.getChatContainer().addChatRoom(room);
+            chatManager.getChatContainer().activateChatRoom(room);
+        }
+        else {
+            JOptionPane.showMessageDialog(SparkManager.getMainWindow(), "Unable to join the room.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     private static void invite(MultiUserChat groupChat, GroupChatRoom room, Collection<String> jids, String message) {
@@ -331,7 +362,9 @@ public class ConferenceUtils {
                         else if (code == 407) {
                             errors.add("You are not a member of this room.\nThis room requires you to be a member to join.");
                         }
-                        else if (code != 409) {
+
+                        // Only a nickname in use is worth another nickname.
+                        if (code != 409) {
                             break;
                         }
                     }
@@ -380,18 +413,9 @@ public class ConferenceUtils {
      * @return true if the room requires a password.
      */
     public static boolean isPasswordRequired(String roomJID) {
-        // Check to see if the room is password protected
-    	ServiceDiscoveryManager discover = ServiceDiscoveryManager.getInstanceFor(SparkManager.getConnection());
-
-
-        try {
-            DiscoverInfo info = discover.discoverInfo(roomJID);
-            return info.containsFeature("muc_passwordprotected");
-        }
-        catch (XMPPException e) {
-            Log.error(e);
-        }
-        return false;
+        // Check to see if the room is password protected, sharing the room
+        // information discovered by the room browser and other joins.
+        return RoomDirectory.getInstance().getRoom(roomJID).isPasswordProtected();
     }
 
     /**
@@ -578,7 +602,9 @@ public class ConferenceUtils {
                         else if (code == 407) {
                             errors.add("You are not a member of this room.\nThis room requires you to be a member to join.");
                         }
-                        else if (code != 409) {
+
+                        // Only a nickname in use is worth another nickname.
+                        if (code != 409) {
                             break;
                         }
                     }
@@ -656,7 +682,9 @@ public class ConferenceUtils {
                         else if (code == 407) {
                             errors.add("You are not a member of this room.\nThis room requires you to be a member to join.");
                         }
-                        else if (code != 409) {
+
+                        // Only a nickname in use is worth another nickname.
+                        if (code != 409) {
                             break;
                         }
                     }
@@ -30,7 +30,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -39,7 +38,6 @@ import java.util.Map;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
-import javax.swing.DefaultListModel;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
@@ -103,7 +101,7 @@ public class GroupChatParticipantList extends JPanel {
 
 	private UserManager userManager = SparkManager.getUserManager();
 
-	private DefaultListModel model = new DefaultListModel();
+	private ParticipantListModel model = new ParticipantListModel();
 
 	private JXList participantsList;
 
@@ -115,10 +113,14 @@ public class GroupChatParticipantList extends JPanel {
 
 	private DiscoverInfo roomInformation;
 
-	private List<JLabel> users = new ArrayList<JLabel>();
-
 	private HashMap<String,String> usersandRoles = new HashMap<String,String>();
 
+	/**
+	 * Presences received and not applied yet, applied together on the event
+	 * dispatch thread.
+	 */
+	private final List<Presence> presences = new ArrayList<Presence>();
+
 	/**
 	 * Creates a new RoomInfo instance using the specified ChatRoom. The
 	 * RoomInfo component is responsible for monitoring all activity in the
@@ -191,34 +193,17 @@ public class GroupChatParticipantList extends JPanel {
 
 	listener = new PacketListener() {
 	    public void processPacket(final Packet packet) {
+		// The presences of all occupants arrive at once when joining, they
+		// are applied together rather than sorted into the list one by one.
+		synchronized (presences) {
+		    presences.add((Presence) packet);
+		    if (presences.size() > 1) {
+			return;
+		    }
+		}
 		SwingUtilities.invokeLater(new Runnable() {
 		    public void run() {
-			Presence p = (Presence) packet;
-			if (p.getError() != null) {
-			    if (p.getError()
-				    .getCondition()
-				    .equals(XMPPError.Condition.conflict
-					    .toString())) {
-				return;
-			    }
-			}
-			final String userid = p.getFrom();
-
-			String displayName = StringUtils.parseResource(userid);
-			userMap.put(displayName, userid);			
-
-			if (p.getType() == Presence.Type.available) {
-				String jid = PresenceManager.getJidFromMUCPresence(p);
-				//if current user is participant and not owner, then do not display the settings button
-				//we have to do it here otherwise ownership information retrieval won't be available
-				if (jid != null && jid.equals(SparkManager.getSessionManager().getBareAddress())) {
-					groupChatRoom.notifySettingsAccessRight();
-				}
-			    addParticipant(userid, p, jid);
-			    agentInfoPanel.setVisible(true);
-			} else {
-			    removeUser(displayName);
-			}
+			applyPresences();
 		    }
 		});
 
@@ -237,6 +222,51 @@ public class GroupChatParticipantList extends JPanel {
 	}
     }
 
+    private void applyPresences() {
+	final List<Presence> received;
+	synchronized (presences) {
+	    received = new ArrayList<Presence>(presences);
+	    presences.clear();
+	}
+
+	model.beginUpdate();
+	try {
+	    for (Presence p : received) {
+		applyPresence(p);
+	    }
+	} finally {
+	    model.endUpdate();
+	}
+    }
+
+    private void applyPresence(Presence p) {
+	if (p.getError() != null) {
+	    if (p.getError()
+		    .getCondition()
+		    .equals(XMPPError.Condition.conflict
+			    .toString())) {
+		return;
+	    }
+	}
+	final String userid = p.getFrom();
+
+	String displayName = StringUtils.parseResource(userid);
+	userMap.put(displayName, userid);
+
+	if (p.getType() == Presence.Type.available) {
+		String jid = PresenceManager.getJidFromMUCPresence(p);
+		//if current user is participant and not owner, then do not display the settings button
+		//we have to do it here otherwise ownership information retrieval won't be available
+		if (jid != null && jid.equals(SparkManager.getSessionManager().getBareAddress())) {
+			groupChatRoom.notifySettingsAccessRight();
+		}
+	    addParticipant(userid, p, jid);
+	    agentInfoPanel.setVisible(true);
+	} else {
+	    removeUser(displayName);
+	}
+    }
+
 	public void chatRoomOpened(ChatRoom room) {
 		if (room != groupChatRoom) {
 			return;
@@ -318,7 +348,8 @@ public class GroupChatParticipantList extends JPanel {
 
 	protected ImageIcon getImageIcon(String participantJID) {
 		String displayName = StringUtils.parseResource(participantJID);
-		ImageIcon icon = SparkRes.getImageIcon(SparkRes.GREEN_BALL);
+		// Resource icons are shared, so the name goes on a copy.
+		ImageIcon icon = new ImageIcon(SparkRes.getImageIcon(SparkRes.GREEN_BALL).getImage());
 		icon.setDescription(displayName);
 		return icon;
 	}	
@@ -341,8 +372,9 @@ public class GroupChatParticipantList extends JPanel {
 
 	String nickname = StringUtils.parseResource(participantJID);
 
-	String affiliation  = parseRoleFromPacket(presence)[0];
-	String userRole = parseRoleFromPacket(presence)[1];
+	String[] roles = parseRoleFromPacket(presence);
+	String affiliation  = roles[0];
+	String userRole = roles[1];
 
 	usersandRoles.put(participantJID, affiliation+","+userRole);
 
@@ -357,16 +389,8 @@ public class GroupChatParticipantList extends JPanel {
 	    }
 	}
 
-	if (!exists(nickname)) {
-	    addUser(icon, nickname);
-	} else {
-	    int index = getIndex(nickname);
-	    if (index != -1) {
-		final JLabel userLabel = new JLabel(nickname, icon,
-			JLabel.HORIZONTAL);
-		model.setElementAt(userLabel, index);
-	    }
-	}
+	// Adds the user, or updates the icon and position of a user in the list.
+	addUser(icon, nickname);
     }
 
     /**
@@ -461,13 +485,7 @@ public class GroupChatParticipantList extends JPanel {
 	}
 
 	protected boolean exists(String nickname) {
-		for (int i = 0; i < model.getSize(); i++) {
-			final JLabel userLabel = (JLabel) model.getElementAt(i);
-			if (userLabel.getText().equals(nickname)) {
-				return true;
-			}
-		}
-		return false;
+		return model.contains(nickname);
 	}
 
 	protected String getSelectedUser() {
@@ -681,7 +699,7 @@ public class GroupChatParticipantList extends JPanel {
 
 	if (index != -1) {
 	    participantsList.setSelectedIndex(index);
-	    final JLabel userLabel = (JLabel) model.getElementAt(index);
+	    final JLabel userLabel = model.getElementAt(index);
 	    final String selectedUser = userLabel.getText();
 	    final String groupJID = userMap.get(selectedUser);
 	    String groupJIDNickname = StringUtils.parseResource(groupJID);
@@ -726,11 +744,7 @@ public class GroupChatParticipantList extends JPanel {
 		    private static final long serialVersionUID = -3647279452501661970L;
 
 		    public void actionPerformed(ActionEvent actionEvent) {
-			int index = getIndex(selectedUser);
-
-			if (index != -1) {
-			    model.removeElementAt(index);
-			}
+			model.remove(selectedUser);
 		    }
 		};
 
@@ -832,8 +846,7 @@ public class GroupChatParticipantList extends JPanel {
 			icon = SparkRes.getImageIcon(SparkRes.BRICKWALL_IMAGE);
 		    }
 
-		    JLabel label = new JLabel(user, icon, JLabel.HORIZONTAL);
-		    model.setElementAt(label, index);
+		    model.setIcon(user, icon);
 		}
 	    };
 
@@ -875,7 +888,6 @@ public class GroupChatParticipantList extends JPanel {
 		    } else {
 			grantVoice(selectedUser);
 		    }
-		    Collections.sort(users, labelComp);
 
 		}
 	    };
@@ -922,7 +934,6 @@ public class GroupChatParticipantList extends JPanel {
 		    } else {
 			revokeMember(selectedUser);
 		    }
-		    Collections.sort(users, labelComp);
 	        }
 	    };
 	    memberAction.putValue(Action.SMALL_ICON,
@@ -948,7 +959,6 @@ public class GroupChatParticipantList extends JPanel {
 		    } else {
 			revokeModerator(selectedUser);
 		    }
-		    Collections.sort(users, labelComp);
 
 		}
 	    };
@@ -976,7 +986,6 @@ public class GroupChatParticipantList extends JPanel {
 		    } else {
 			revokeAdmin(selectedUser);
 		    }
-		    Collections.sort(users, labelComp);
 
 	        }
 	    };
@@ -1006,7 +1015,6 @@ public class GroupChatParticipantList extends JPanel {
 		    } else {
 			revokeOwner(selectedUser);
 		    }
-		    Collections.sort(users, labelComp);
 
 	        }
 	    };
@@ -1093,13 +1101,7 @@ public class GroupChatParticipantList extends JPanel {
 	}
 
 	public int getIndex(String name) {
-		for (int i = 0; i < model.getSize(); i++) {
-			JLabel label = (JLabel) model.getElementAt(i);
-			if (label.getText().equals(name)) {
-				return i;
-			}
-		}
-		return -1;
+		return model.indexOf(name);
 	}
 
 	/**
@@ -1110,28 +1112,16 @@ public class GroupChatParticipantList extends JPanel {
 	 */
 	public synchronized void removeUser(String displayName) {
 		try {
-			for (int i = 0; i < users.size(); i++) {
-				JLabel label = users.get(i);
-				if (label.getText().equals(displayName)) {
-					users.remove(label);
-					model.removeElement(label);
-				}
-			}
-
-			for (int i = 0; i < model.size(); i++) {
-				JLabel label = (JLabel) model.getElementAt(i);
-				if (label.getText().equals(displayName)) {
-					users.remove(label);
-					model.removeElement(label);
-				}
-			}
+			model.remove(displayName);
 		} catch (Exception e) {
 			Log.error(e);
 		}
 	}
 
 	/**
-	 * Adds a new user to the participant list.
+	 * Adds a new user to the participant list, or updates the icon of a user in
+	 * the list. Users are sorted by their affiliation and role when role icons
+	 * are shown, then by their nickname.
 	 *
 	 * @param userIcon
 	 *            the icon to use initially.
@@ -1140,131 +1130,37 @@ public class GroupChatParticipantList extends JPanel {
 	 */
 	public synchronized void addUser(Icon userIcon, String nickname) {
 		try {
-			final JLabel user = new JLabel(nickname, userIcon,
-					JLabel.HORIZONTAL);
-			users.add(user);
-
-			// Sort users alpha.
-			Collections.sort(users, labelComp);
-
-			// Add to the correct position in the model.
-			final int index = users.indexOf(user);
-			model.insertElementAt(user, index);
+			model.put(nickname, userIcon, getRank(nickname));
 		} catch (Exception e) {
 			Log.error(e);
 		}
 	}
 
     /**
-     * Sorts ContactItems.
+     * Sorts the labels of participants in the order of the participant list.
      */
     final Comparator<JLabel> labelComp = new Comparator<JLabel>() {
 
 	public int compare(JLabel item1, JLabel item2) {
-	    if (_localPreferences.isShowingRoleIcons()) {
-		return compareWithRole(item1, item2);
-	    } else {
-		return compareWithoutRole(item1.getText(), item2.getText());
-	    }
-
-	}
-
-	private int compareWithoutRole(String s1, String s2) {
-	    return (s1.toLowerCase().compareTo(s2.toLowerCase()));
-	}
-
-	/**
-	 * Comparaes 2 items by their Role and Affiliation<br>
-	 * affiliation > role<br>
-	 * owner > admin > moderator > member > participant > visitor
-	 * @param item1
-	 * @param item2
-	 * @return -1, 0 or 1
-	 */
-	private int compareWithRole(JLabel item1, JLabel item2) {
-
-	   int user1 = 100;
-	    int user2 = 100;
-	    try {
-		// append Room-JID to UserLabel
-		String jid1 = chat.getRoom() + "/" + item1.getText();
-		String jid2 = chat.getRoom() + "/" + item2.getText();
-
-		user1 = getCompareValue(jid1);
-		user2 = getCompareValue(jid2);
-
-	    } catch (Exception e) {
-		// Sometimes theres no Occupant with that jid, dunno why
-	    }
-
-	    int result = 0;
-	    if (user1 == user2) {
-		result = compareWithoutRole(item1.getText(), item2.getText());
-
-	    } else {
-		// a=owner,b=admin, m=moderator, n=member , p=participant, v=visitor
-		// a < b < m < n < p < v
-		if (user1 < user2)
-		    result = -1;
-		if (user1 > user2)
-		    result = 1;
-	    }
-	    return result;
+	    return model.indexOf(item1.getText()) - model.indexOf(item2.getText());
 	}
     };
 
     /**
-     * check if we have an affiliation to this room<br>
-     * and map it to an integer<br>
-     * 0=owner,1=admin.....5=visitor<br>
+     * Returns the rank a user is sorted by, from the affiliation and role of the
+     * user in the room when role icons are shown.
      */
-    private int getCompareValue(String jid) {
-	int result = 100;
-
-	String affi = usersandRoles.get(jid).split(",")[0];
-	String role = usersandRoles.get(jid).split(",")[1];
-
-	if (affi == null)
-	    affi = "z";
-	if (role == null)
-	    role = "z";
-
-	switch (affi.charAt(0)) {
-	case 'o':
-	    result = 0;
-	    break; // owner
-	case 'a':
-	    result = 1;
-	    break; // admin
-	// Moderator is in between with 2
-	case 'm':
-	    result = 3;
-	    break; // member
-	default:
-	    result = 100;
-	}
-
-	if (affi.equalsIgnoreCase("none")) {
-
-	    switch (role.charAt(0)) {
-	    case 'm':
-		result = 2;
-		break; // moderator
-	    // Member is in between with 3
-	    case 'p':
-		result = 4;
-		break; // participant
-	    case 'v':
-		result = 5;
-		break; // visitor
-	    default:
-		result = 100;
-	    }
+    private int getRank(String nickname) {
+	if (!_localPreferences.isShowingRoleIcons()) {
+	    return 0;
 	}
-	if (affi.equalsIgnoreCase("member") && role.charAt(0) == 'm') {
-	    result = 2;
+	// Invitees have no affiliation and role yet.
+	String roles = chat != null ? usersandRoles.get(chat.getRoom() + "/" + nickname) : null;
+	if (roles == null) {
+	    return ParticipantListModel.UNKNOWN_RANK;
 	}
-	return result;
+	int comma = roles.indexOf(',');
+	return ParticipantListModel.getRank(roles.substring(0, comma), roles.substring(comma + 1));
     }
 
 	/**
@@ -1316,7 +1212,7 @@ public class GroupChatParticipantList extends JPanel {
         return userMap;
     }
 
-    protected DefaultListModel getModel() {
+    protected ParticipantListModel getModel() {
         return model;
     }
 
@@ -1343,7 +1239,7 @@ public class GroupChatParticipantList extends JPanel {
     }
 
     protected List<JLabel> getUsers() {
-        return users;
+        return model.getLabels();
     }
 
     protected HashMap<String, String> getUsersandRoles() {
@@ -0,0 +1,325 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+import javax.swing.Icon;
+import javax.swing.JLabel;
+
+/**
+ * The sorted list of the participants of a group chat, holding a <code>JLabel</code>
+ * per nickname. Participants are sorted by their rank, then by their nickname
+ * ignoring case. The sort key of a participant is computed once when it is put, a
+ * participant is found by its nickname with a hash lookup, and is inserted and
+ * removed at the position found with a binary search.
+ * <p/>
+ * Between {@link #beginUpdate()} and {@link #endUpdate()}, participants that are new
+ * are not inserted one by one but merged into the list at once, so that applying the
+ * presences of all occupants of a room that was just joined takes a single sort.
+ */
+public class ParticipantListModel extends AbstractListModel<JLabel> {
+
+    private static final long serialVersionUID = -2207718616453591727L;
+
+    /**
+     * The rank of participants whose affiliation and role are unknown, such as
+     * invitees.
+     */
+    public static final int UNKNOWN_RANK = 100;
+
+    private static final class Participant {
+        final String nickname;
+        final String key;
+        final int rank;
+        JLabel label;
+
+        Participant(String nickname, int rank, JLabel label) {
+            this.nickname = nickname;
+            this.key = nickname.toLowerCase();
+            this.rank = rank;
+            this.label = label;
+        }
+    }
+
+    private static final Comparator<Participant> order = new Comparator<Participant>() {
+        public int compare(Participant p1, Participant p2) {
+            if (p1.rank != p2.rank) {
+                return p1.rank < p2.rank ? -1 : 1;
+            }
+            final int result = p1.key.compareTo(p2.key);
+            if (result != 0) {
+                return result;
+            }
+            // Nicknames are unique, this keeps the order total for the binary search.
+            return p1.nickname.compareTo(p2.nickname);
+        }
+    };
+
+    private List<Participant> participants = new ArrayList<Participant>();
+    private final Map<String, Participant> nicknames = new HashMap<String, Participant>();
+
+    /**
+     * Participants put during an update that are not in the list yet.
+     */
+    private final Set<Participant> pending = new LinkedHashSet<Participant>();
+    private int updates;
+
+    /**
+     * Returns the rank of an affiliation and role in a room, lower ranks being listed
+     * first: owner, admin, moderator, member, participant, visitor.
+     *
+     * @param affiliation the affiliation, such as "owner" or "none".
+     * @param role        the role, such as "moderator" or "participant".
+     * @return the rank, or {@link #UNKNOWN_RANK}.
+     */
+    public static int getRank(String affiliation, String role) {
+        if (affiliation == null || affiliation.length() == 0 || role == null || role.length() == 0) {
+            return UNKNOWN_RANK;
+        }
+
+        if (affiliation.equalsIgnoreCase("none")) {
+            switch (role.charAt(0)) {
+                case 'm':
+                    return 2; // moderator
+                case 'p':
+                    return 4; // participant
+                case 'v':
+                    return 5; // visitor
+                default:
+                    return UNKNOWN_RANK;
+            }
+        }
+
+        switch (affiliation.charAt(0)) {
+            case 'o':
+                return 0; // owner
+            case 'a':
+                return 1; // admin
+            case 'm':
+                // A member that is a moderator ranks with the moderators.
+                return role.charAt(0) == 'm' ? 2 : 3;
+            default:
+                return UNKNOWN_RANK;
+        }
+    }
+
+    public int getSize() {
+        return participants.size();
+    }
+
+    public JLabel getElementAt(int index) {
+        return participants.get(index).label;
+    }
+
+    /**
+     * Returns true if a participant is in the list.
+     *
+     * @param nickname the nickname of the participant.
+     * @return true if the participant is in the list.
+     */
+    public boolean contains(String nickname) {
+        return nicknames.containsKey(nickname);
+    }
+
+    /**
+     * Returns the label of a participant.
+     *
+     * @param nickname the nickname of the participant.
+     * @return the label, or null if the participant is not in the list.
+     */
+    public JLabel getLabel(String nickname) {
+        final Participant participant = nicknames.get(nickname);
+        return participant != null ? participant.label : null;
+    }
+
+    /**
+     * Returns the labels of all participants, in the order of the list.
+     *
+     * @return the labels.
+     */
+    public List<JLabel> getLabels() {
+        flush();
+        final List<JLabel> labels = new ArrayList<JLabel>(participants.size());
+        for (Participant participant : participants) {
+            labels.add(participant.label);
+        }
+        return labels;
+    }
+
+    /**
+     * Returns the position of a participant in the list.
+     *
+     * @param nickname the nickname of the participant.
+     * @return the index, or -1 if the participant is not in the list.
+     */
+    public int indexOf(String nickname) {
+        final Participant participant = nicknames.get(nickname);
+        if (participant == null) {
+            return -1;
+        }
+        flush();
+        return Collections.binarySearch(participants, participant, order);
+    }
+
+    /**
+     * Adds a participant, or updates its icon and rank if it is in the list already.
+     *
+     * @param nickname the nickname of the participant.
+     * @param icon     the icon to show.
+     * @param rank     the rank of the participant, see {@link #getRank(String, String)}.
+     */
+    public void put(String nickname, Icon icon, int rank) {
+        final JLabel label = new JLabel(nickname, icon, JLabel.HORIZONTAL);
+        final Participant existing = nicknames.get(nickname);
+        if (existing != null && existing.rank == rank) {
+            existing.label = label;
+            if (!pending.contains(existing)) {
+                final int index = Collections.binarySearch(participants, existing, order);
+                fireContentsChanged(this, index, index);
+            }
+            return;
+        }
+
+        if (existing != null) {
+            remove(nickname);
+        }
+        final Participant participant = new Participant(nickname, rank, label);
+        nicknames.put(nickname, participant);
+        if (updates > 0) {
+            pending.add(participant);
+            return;
+        }
+
+        final int index = -Collections.binarySearch(participants, participant, order) - 1;
+        participants.add(index, participant);
+        fireIntervalAdded(this, index, index);
+    }
+
+    /**
+     * Changes the icon of a participant, keeping its position.
+     *
+     * @param nickname the nickname of the participant.
+     * @param icon     the icon to show.
+     */
+    public void setIcon(String nickname, Icon icon) {
+        final Participant participant = nicknames.get(nickname);
+        if (participant != null) {
+            put(nickname, icon, participant.rank);
+        }
+    }
+
+    /**
+     * Removes a participant.
+     *
+     * @param nickname the nickname of the participant.
+     * @return true if the participant was in the list.
+     */
+    public boolean remove(String nickname) {
+        final Participant participant = nicknames.remove(nickname);
+        if (participant == null) {
+            return false;
+        }
+        if (pending.remove(participant)) {
+            return true;
+        }
+
+        final int index = Collections.binarySearch(participants, participant, order);
+        participants.remove(index);
+        fireIntervalRemoved(this, index, index);
+        return true;
+    }
+
+    /**
+     * Removes all participants.
+     */
+    public void clear() {
+        final int size = participants.size();
+        participants.clear();
+        pending.clear();
+        nicknames.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Starts collecting the participants put, until the matching {@link #endUpdate()}.
+     * Updates may be nested.
+     */
+    public void beginUpdate() {
+        updates++;
+    }
+
+    /**
+     * Merges the participants collected since {@link #beginUpdate()} into the list,
+     * once the outermost update ends.
+     */
+    public void endUpdate() {
+        if (updates > 0 && --updates == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Merges the pending participants into the list with a single sort of the pending
+     * participants and a single pass over the list.
+     */
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<Participant> added = new ArrayList<Participant>(pending);
+        Collections.sort(added, order);
+        pending.clear();
+
+        final int size = participants.size();
+        final List<Participant> merged = new ArrayList<Participant>(size + added.size());
+        final Iterator<Participant> listed = participants.iterator();
+        final Iterator<Participant> sorted = added.iterator();
+        Participant p1 = listed.hasNext() ? listed.next() : null;
+        Participant p2 = sorted.hasNext() ? sorted.next() : null;
+        while (p1 != null || p2 != null) {
+            if (p2 == null || (p1 != null && order.compare(p1, p2) < 0)) {
+                merged.add(p1);
+                p1 = listed.hasNext() ? listed.next() : null;
+            }
+            else {
+                merged.add(p2);
+                p2 = sorted.hasNext() ? sorted.next() : null;
+            }
+        }
+        participants = merged;
+
+        fireIntervalAdded(this, size, merged.size() - 1);
+        if (size > 0) {
+            fireContentsChanged(this, 0, size - 1);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.muc.HostedRoom;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.smackx.muc.RoomInfo;
+import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.log.Log;
+
+/**
+ * Discovers the rooms hosted by conference services, and the information of each
+ * room, such as its number of occupants. The information of the rooms of a service
+ * is requested by a few requests in flight at a time rather than one after the
+ * other, and every room is handed to the listener as soon as its information
+ * arrives.
+ * <p/>
+ * The rooms of a service and the information of every room are cached for a few
+ * minutes, so that browsing a service again lists the rooms known without a
+ * request, and joining a room knows whether it requires a password.
+ */
+public class RoomDirectory {
+
+    /**
+     * How long the rooms and their information are cached, in milliseconds.
+     */
+    public static final long CACHE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * The number of room information requests in flight at a time.
+     */
+    public static final int CONCURRENT_REQUESTS = 8;
+
+    /**
+     * Receives the rooms of a service as they are discovered. Called on the
+     * threads of the discovery, never after the discovery was cancelled.
+     */
+    public interface DiscoveryListener {
+
+        /**
+         * Called once for every room of the service, in no particular order.
+         *
+         * @param room the room.
+         */
+        void roomDiscovered(Room room);
+
+        /**
+         * Called once all rooms of the service were discovered.
+         */
+        void discoveryFinished();
+
+        /**
+         * Called instead of any other method if the rooms of the service could not
+         * be listed.
+         *
+         * @param e the error.
+         */
+        void discoveryFailed(Exception e);
+    }
+
+    /**
+     * A room of a conference service.
+     */
+    public static class Room {
+        private final String jid;
+        private final String name;
+        private final int occupants;
+        private final boolean locked;
+        private final boolean passwordProtected;
+
+        /**
+         * Creates a room.
+         *
+         * @param jid       the address of the room.
+         * @param name      the name of the room.
+         * @param occupants the number of occupants, or -1 if unknown.
+         * @param locked    true if the room is members only or password protected.
+         */
+        public Room(String jid, String name, int occupants, boolean locked) {
+            this(jid, name, occupants, locked, false);
+        }
+
+        /**
+         * Creates a room.
+         *
+         * @param jid               the address of the room.
+         * @param name              the name of the room.
+         * @param occupants         the number of occupants, or -1 if unknown.
+         * @param locked            true if the room is members only or password protected.
+         * @param passwordProtected true if the room is password protected.
+         */
+        public Room(String jid, String name, int occupants, boolean locked, boolean passwordProtected) {
+            this.jid = jid;
+            this.name = name;
+            this.occupants = occupants;
+            this.locked = locked || passwordProtected;
+            this.passwordProtected = passwordProtected;
+        }
+
+        public String getJid() {
+            return jid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of occupants of the room.
+         *
+         * @return the number of occupants, or -1 if the service did not tell it.
+         */
+        public int getOccupants() {
+            return occupants;
+        }
+
+        /**
+         * Returns true if only members may join the room, or it is password
+         * protected.
+         *
+         * @return true if the room is locked.
+         */
+        public boolean isLocked() {
+            return locked;
+        }
+
+        /**
+         * Returns true if the room requires a password to join.
+         *
+         * @return true if the room is password protected.
+         */
+        public boolean isPasswordProtected() {
+            return passwordProtected;
+        }
+
+        Room withName(String name) {
+            return name == null || name.equals(this.name) ? this : new Room(jid, name, occupants, locked, passwordProtected);
+        }
+    }
+
+    /**
+     * A discovery of the rooms of a service, which may be cancelled.
+     */
+    public static class Discovery {
+        private volatile boolean cancelled;
+
+        /**
+         * Stops handing rooms to the listener, and requesting room information.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class Cached<T> {
+        final T value;
+        final long time;
+
+        Cached(T value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private static RoomDirectory singleton;
+    private static final Object LOCK = new Object();
+
+    private final long cacheTimeout;
+    private final int concurrentRequests;
+    private final Map<String, Cached<List<Room>>> services = new ConcurrentHashMap<String, Cached<List<Room>>>();
+    private final Map<String, Cached<Room>> rooms = new ConcurrentHashMap<String, Cached<Room>>();
+
+    /**
+     * Returns the singleton instance of <CODE>RoomDirectory</CODE>,
+     * creating it if necessary.
+     * <p/>
+     *
+     * @return the singleton instance of <Code>RoomDirectory</CODE>
+     */
+    public static RoomDirectory getInstance() {
+        // Synchronize on LOCK to ensure that we don't end up creating
+        // two singletons.
+        synchronized (LOCK) {
+            if (null == singleton) {
+                singleton = new RoomDirectory(CACHE_TIMEOUT, CONCURRENT_REQUESTS);
+            }
+        }
+        return singleton;
+    }
+
+    protected RoomDirectory(long cacheTimeout, int concurrentRequests) {
+        this.cacheTimeout = cacheTimeout;
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    /**
+     * Discovers the rooms of a service in the background.
+     *
+     * @param serviceName the conference service.
+     * @param refresh     true to request the rooms and their information again,
+     *                    even if they are cached.
+     * @param listener    the listener of the rooms.
+     * @return the discovery, to cancel it.
+     */
+    public Discovery discover(final String serviceName, final boolean refresh, final DiscoveryListener listener) {
+        final Discovery discovery = new Discovery();
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                final List<Room> hosted;
+                try {
+                    hosted = getRooms(serviceName, refresh);
+                }
+                catch (Exception e) {
+                    if (!discovery.isCancelled()) {
+                        listener.discoveryFailed(e);
+                    }
+                    return;
+                }
+
+                final Queue<Room> requests = new ConcurrentLinkedQueue<Room>();
+                for (Room room : hosted) {
+                    final Room cached = refresh ? null : getCached(rooms, room.getJid());
+                    if (cached == null) {
+                        requests.add(room);
+                    }
+                    else if (!discovery.isCancelled()) {
+                        // The information may have been requested for a join,
+                        // the listing of the service names the room.
+                        listener.roomDiscovered(cached.withName(room.getName()));
+                    }
+                }
+                if (requests.isEmpty()) {
+                    if (!discovery.isCancelled()) {
+                        listener.discoveryFinished();
+                    }
+                    return;
+                }
+
+                // Every worker takes the next room once the information of its
+                // previous room arrived, the last one to finish tells the listener.
+                final AtomicInteger remaining = new AtomicInteger(requests.size());
+                final int workers = Math.min(concurrentRequests, requests.size());
+                for (int i = 0; i < workers; i++) {
+                    TaskEngine.getInstance().submit(new Runnable() {
+                        public void run() {
+                            Room room;
+                            while (!discovery.isCancelled() && (room = requests.poll()) != null) {
+                                final Room discovered = getRoomInfo(room);
+                                if (!discovery.isCancelled()) {
+                                    listener.roomDiscovered(discovered);
+                                    if (remaining.decrementAndGet() == 0) {
+                                        listener.discoveryFinished();
+                                    }
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        return discovery;
+    }
+
+    /**
+     * Returns the information of a room, requesting it on the calling thread unless
+     * it is cached. A room whose information could not be requested is returned
+     * without it, as neither locked nor password protected.
+     *
+     * @param jid the address of the room.
+     * @return the room.
+     */
+    public Room getRoom(String jid) {
+        final Room cached = getCached(rooms, jid);
+        if (cached != null) {
+            return cached;
+        }
+        return getRoomInfo(new Room(jid, StringUtils.parseName(jid), -1, false));
+    }
+
+    /**
+     * Forgets the rooms of a service, after a room was created or destroyed.
+     *
+     * @param serviceName the conference service.
+     */
+    public void invalidate(String serviceName) {
+        services.remove(serviceName);
+    }
+
+    /**
+     * Lists the rooms of a service, without their information.
+     */
+    protected List<Room> requestRooms(String serviceName) throws Exception {
+        final List<Room> result = new ArrayList<Room>();
+        for (HostedRoom room : MultiUserChat.getHostedRooms(SparkManager.getConnection(), serviceName)) {
+            result.add(new Room(room.getJid(), room.getName(), -1, false));
+        }
+        return result;
+    }
+
+    /**
+     * Requests the information of a room.
+     */
+    protected Room requestRoomInfo(Room room) throws Exception {
+        final RoomInfo info = MultiUserChat.getRoomInfo(SparkManager.getConnection(), room.getJid());
+        return new Room(room.getJid(), room.getName(), info.getOccupantsCount(),
+                info.isMembersOnly(), info.isPasswordProtected());
+    }
+
+    private List<Room> getRooms(String serviceName, boolean refresh) throws Exception {
+        List<Room> result = refresh ? null : getCached(services, serviceName);
+        if (result == null) {
+            result = requestRooms(serviceName);
+            services.put(serviceName, new Cached<List<Room>>(result, System.currentTimeMillis()));
+        }
+        return result;
+    }
+
+    private Room getRoomInfo(Room room) {
+        Room result;
+        try {
+            result = requestRoomInfo(room);
+        }
+        catch (Exception e) {
+            // The room is listed without its information, which is not asked
+            // again until the cache times out.
+            Log.debug("Unable to retrieve information of room " + room.getJid() + ": " + e.getMessage());
+            result = room;
+        }
+        rooms.put(room.getJid(), new Cached<Room>(result, System.currentTimeMillis()));
+        return result;
+    }
+
+    private <T> T getCached(Map<String, Cached<T>> cache, String key) {
+        final Cached<T> cached = cache.get(key);
+        if (cached == null || System.currentTimeMillis() - cached.time > cacheTimeout) {
+            return null;
+        }
+        return cached.value;
+    }
+}
@@ -11,9 +11,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Pattern;
 
 /**
  * @author Vyacheslav Durin (nixspirit@gmail.com)
@@ -65,7 +67,7 @@ public abstract class AbstractHistoryFile {
 
 				if (hasOccurrence(historyEntry, occurrence)) {
 					HistoryEntry copy = new HistoryEntry(historyEntry);
-					highlihght(copy, occurrence);
+					highlight(copy, occurrence);
 					result.add(copy);
 				}
 
@@ -89,7 +91,7 @@ public abstract class AbstractHistoryFile {
 		return false;
 	}
 
-	private void highlihght(HistoryEntry historyEntry, String occurrence) {
+	protected void highlight(HistoryEntry historyEntry, String occurrence) {
 		// TODO: now replaced always with the occurrence in lowercase.
 		String replacement = replacementFormat
 				.format(new String[] { occurrence });
@@ -98,10 +100,91 @@ public abstract class AbstractHistoryFile {
 		for (HistoryMessage msg : historyEntry.getMessages()) {
 			String body = msg.getBody();
 			msg.setBody(body
-					.replaceAll(insentiveCase + occurrence, replacement));
+					.replaceAll(insentiveCase + Pattern.quote(occurrence), replacement));
 		}
 	}
 
+	/**
+	 * Highlights every occurrence of any of the words, ignoring case, in a single
+	 * pass so that the markup of one word is never matched by another.
+	 * 
+	 * @param historyEntry
+	 *            the entry whose messages are highlighted
+	 * @param words
+	 *            the words to highlight
+	 */
+	protected void highlight(HistoryEntry historyEntry, Collection<String> words) {
+		List<String> sorted = new ArrayList<String>(words);
+		// The longest word first, so that it wins over the words it starts with.
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String o1, String o2) {
+				return o2.length() - o1.length();
+			}
+		});
+
+		StringBuilder regex = new StringBuilder();
+		for (String word : sorted) {
+			if (word.length() == 0)
+				continue;
+			if (regex.length() > 0)
+				regex.append('|');
+			regex.append(Pattern.quote(word));
+		}
+		if (regex.length() == 0)
+			return;
+
+		Pattern pattern = Pattern.compile(regex.toString(),
+				Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		// Keeps the case of the text found.
+		String replacement = replacementFormat.format(new String[] { "$0" });
+		for (HistoryMessage msg : historyEntry.getMessages()) {
+			String body = msg.getBody();
+			if (body != null)
+				msg.setBody(pattern.matcher(body).replaceAll(replacement));
+		}
+	}
+
+	/**
+	 * Groups messages into month entries holding one entry per day.
+	 * 
+	 * @param messages
+	 *            the messages to group
+	 * @return the month entries, most recent first
+	 */
+	protected List<HistoryEntry> groupByDate(Iterable<HistoryMessage> messages) {
+		Map<Date, HistoryEntry> months = new HashMap<Date, HistoryEntry>();
+		Map<Date, HistoryEntry> days = new HashMap<Date, HistoryEntry>();
+
+		for (HistoryMessage message : messages) {
+			Date normalizedMonth = message.getNormalizedMonth();
+			Date normalizedDate = message.getNormalizedDate();
+
+			// create month
+			if (!months.containsKey(normalizedMonth)) {
+				HistoryEntry monthEntry = new HistoryEntry();
+				monthEntry.setDate(normalizedMonth);
+				monthEntry.setName(MONTH_NAME_FORMAT.format(normalizedMonth));
+				months.put(normalizedMonth, monthEntry);
+			}
+
+			// create a day and put it in a month
+			if (!days.containsKey(normalizedDate)) {
+				HistoryEntry dayEntry = new HistoryEntry();
+				dayEntry.setDate(normalizedDate);
+				dayEntry.setName(DAY_NAME_FORMAT.format(normalizedDate));
+				days.put(normalizedDate, dayEntry);
+				months.get(normalizedMonth).getEntries().add(dayEntry);
+			}
+
+			// add messages to a day
+			HistoryEntry entry = days.get(normalizedDate);
+			entry.getMessages().add(message);
+		}
+
+		// sort by months
+		return toList(months);
+	}
+
 	protected List<HistoryEntry> toList(Map<Date, HistoryEntry> months) {
 		List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
 		for (Entry<Date, HistoryEntry> historyEntry : months.entrySet()) {
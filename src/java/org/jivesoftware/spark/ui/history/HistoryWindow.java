@@ -12,7 +12,6 @@ import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.text.MessageFormat;
@@ -34,6 +33,8 @@ import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
+
 /**
  * @author Vyacheslav Durin (nixspirit@gmail.com)
  * 
@@ -53,8 +54,6 @@ public class HistoryWindow extends JFrame {
 	private static final Point LOCATION = new Point(400, 150);
 	private static final MessageFormat TITLE_FORMAT = new MessageFormat("{0}");
 	private static final MessageFormat LABEL_FORMAT = new MessageFormat("{0}");
-	private static final MessageFormat HISTORY_FILE_FORMAT = new MessageFormat(
-			"transcripts/{0}.xml");
 	private static final Font LABEL_FONT = new Font("Droid Sans", Font.BOLD, 16);
 	private static final Font SIZE_TEXT_FONT = new Font("Droid Sans",
 			Font.PLAIN, 14);
@@ -62,7 +61,6 @@ public class HistoryWindow extends JFrame {
 	private static final Dimension SIZE_FIND_FIELD = new Dimension(100, 25);
 
 	private String roomName;
-	private InputStream historyStream;
 	private JButton btnClose;
 	private JTextPane historyContentText;
 	private JScrollPane historyContentTextScrollPane;
@@ -71,25 +69,27 @@ public class HistoryWindow extends JFrame {
 	private JTree historyTree;
 	private JScrollPane historyTreeView;
 	private String sizeText;
-	private XMLHistoryFile historyFile;
+	private AbstractHistoryFile historyFile;
 	private HistoryTreeNode historyTreeTopNode;
 	private TreeModel historyOriginalModel;
 
 	public HistoryWindow(InputStream is, String roomName) {
+		this(new XMLHistoryFile(is), roomName);
+	}
+
+	public HistoryWindow(AbstractHistoryFile historyFile, String roomName) {
 		setPreferredSize(SIZE);
 		setLocation(LOCATION);
 		setResizable(true);
 		setTitle(TITLE_FORMAT.format(new String[] { roomName }));
 		this.roomName = roomName;
-		this.historyStream = is;
+		this.historyFile = historyFile;
 		initComponents();
 	}
 
 	public HistoryWindow(File file, String roomName)
 			throws FileNotFoundException {
-		this(new FileInputStream(new File(file,
-				HISTORY_FILE_FORMAT.format(new String[] { roomName }))),
-				roomName);
+		this(openTranscript(file, roomName), roomName);
 	}
 
 	public void showWindow() {
@@ -103,7 +103,6 @@ public class HistoryWindow extends JFrame {
 	}
 
 	private void initComponents() {
-		historyFile = new XMLHistoryFile(historyStream);
 		sizeText = historyFile.getFormatSize();
 
 		btnClose = createJButton(BTN_CLOSE);
@@ -245,7 +244,15 @@ public class HistoryWindow extends JFrame {
 		return label;
 	}
 
-	private static HistoryTreeNode buildHistoryTree(XMLHistoryFile file,
+	private static AbstractHistoryFile openTranscript(File userDirectory,
+			String roomName) throws FileNotFoundException {
+		TranscriptStore store = TranscriptStore.getInstance(userDirectory);
+		if (!store.hasTranscript(roomName))
+			throw new FileNotFoundException("No history for " + roomName);
+		return new TranscriptHistoryFile(store, roomName);
+	}
+
+	private static HistoryTreeNode buildHistoryTree(AbstractHistoryFile file,
 			String roomName) {
 		HistoryTreeNode top = new HistoryTreeNode(roomName);
 
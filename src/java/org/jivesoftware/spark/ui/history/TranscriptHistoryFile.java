@@ -0,0 +1,160 @@
+package org.jivesoftware.spark.ui.history;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptPeriod;
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
+
+/**
+ * History of a conversation read from the {@link TranscriptStore}.
+ */
+public class TranscriptHistoryFile extends AbstractHistoryFile {
+
+	private final TranscriptStore store;
+	private final String jid;
+
+	/**
+	 * @param jid
+	 *            the jid of the conversation
+	 */
+	public TranscriptHistoryFile(String jid) {
+		this(TranscriptStore.getInstance(), jid);
+	}
+
+	/**
+	 * @param store
+	 *            the store holding the conversation
+	 * @param jid
+	 *            the jid of the conversation
+	 */
+	public TranscriptHistoryFile(TranscriptStore store, String jid) {
+		if (jid == null)
+			throw new IllegalArgumentException("JID cannot be null");
+
+		this.store = store;
+		this.jid = jid;
+	}
+
+	@Override
+	protected long getSize() {
+		return store.getSize(jid) / SIZE_MULTIPLICATOR;
+	}
+
+	/**
+	 * Builds the months and days from the day index of the transcript.
+	 * The messages of a day are only read once they are asked for.
+	 */
+	@Override
+	protected List<HistoryEntry> createEntries() {
+		Map<Date, HistoryEntry> months = new HashMap<Date, HistoryEntry>();
+		Map<Integer, TranscriptDayEntry> days = new HashMap<Integer, TranscriptDayEntry>();
+
+		for (TranscriptPeriod period : store.getPeriods(jid)) {
+			Date date = period.getDate();
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(date);
+			cal.set(Calendar.DATE, 1);
+			Date normalizedMonth = cal.getTime();
+
+			// create month
+			if (!months.containsKey(normalizedMonth)) {
+				HistoryEntry monthEntry = new HistoryEntry();
+				monthEntry.setDate(normalizedMonth);
+				monthEntry.setName(MONTH_NAME_FORMAT.format(normalizedMonth));
+				months.put(normalizedMonth, monthEntry);
+			}
+
+			// create a day and put it in a month
+			TranscriptDayEntry dayEntry = days.get(period.getDay());
+			if (dayEntry == null) {
+				dayEntry = new TranscriptDayEntry(store, jid);
+				dayEntry.setDate(date);
+				dayEntry.setName(DAY_NAME_FORMAT.format(date));
+				days.put(period.getDay(), dayEntry);
+				months.get(normalizedMonth).getEntries().add(dayEntry);
+			}
+			dayEntry.periods.add(period);
+		}
+
+		// sort by months
+		return toList(months);
+	}
+
+	/**
+	 * Looks the occurrence up in the full-text index of the conversation
+	 * and only reads the matching messages.
+	 */
+	@Override
+	public List<HistoryEntry> search(String occurrence) {
+		List<Integer> hits = store.search(jid, occurrence);
+
+		int[] positions = new int[hits.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = hits.get(positions.length - 1 - i);
+		}
+
+		List<String> words = TranscriptStore.getSearchWords(occurrence);
+		List<HistoryEntry> result = new ArrayList<HistoryEntry>();
+		for (HistoryEntry month : groupByDate(convert(store.getMessages(jid,
+				positions)))) {
+			for (HistoryEntry day : month.getEntries()) {
+				highlight(day, words);
+				result.add(day);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A day of the transcript that reads its messages on first use.
+	 */
+	private static class TranscriptDayEntry extends HistoryEntry {
+
+		private final TranscriptStore store;
+		private final String jid;
+		private final List<TranscriptPeriod> periods = new ArrayList<TranscriptPeriod>();
+		private List<HistoryMessage> messages;
+
+		TranscriptDayEntry(TranscriptStore store, String jid) {
+			this.store = store;
+			this.jid = jid;
+		}
+
+		@Override
+		public List<HistoryMessage> getMessages() {
+			if (messages == null) {
+				messages = new ArrayList<HistoryMessage>();
+				for (TranscriptPeriod period : periods) {
+					messages.addAll(convert(store
+							.getMessages(jid, period.getStart(), period.getEnd())));
+				}
+			}
+			return messages;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return periods.isEmpty();
+		}
+	}
+
+	private static List<HistoryMessage> convert(
+			List<org.jivesoftware.sparkimpl.plugin.transcripts.HistoryMessage> stored) {
+		List<HistoryMessage> messages = new ArrayList<HistoryMessage>(
+				stored.size());
+		for (org.jivesoftware.sparkimpl.plugin.transcripts.HistoryMessage original : stored) {
+			HistoryMessage message = new HistoryMessage();
+			message.setTo(original.getTo());
+			message.setFrom(original.getFrom());
+			message.setBody(original.getBody());
+			message.setDate(original.getDate());
+			messages.add(message);
+		}
+		return messages;
+	}
+}
@@ -1,21 +1,16 @@
 package org.jivesoftware.spark.ui.history;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * @author Vyacheslav Durin (nixspirit@gmail.com)
@@ -27,7 +22,6 @@ public class XMLHistoryFile extends AbstractHistoryFile {
 
 	private static final String MESSAGE_TAG = "message";
 	private InputStream roomFileStream;
-	private Document historyXML;
 
 	/**
 	 * @param roomFileStream
@@ -50,69 +44,54 @@ public class XMLHistoryFile extends AbstractHistoryFile {
 		return 0;
 	}
 
+	/**
+	 * Reads the messages with a pull parser, so only the messages
+	 * themselves are kept in memory and not a DOM of the whole file.
+	 */
 	@Override
 	protected List<HistoryEntry> createEntries() {
-		historyXML = read();
-		if (historyXML == null)
+		List<HistoryMessage> messages = read();
+		if (messages == null)
 			return Collections.emptyList();
 
-		Element document = historyXML.getDocumentElement();
-		Map<Date, HistoryEntry> months = new HashMap<Date, HistoryEntry>();
-		Map<Date, HistoryEntry> days = new HashMap<Date, HistoryEntry>();
-
-		NodeList nl = document.getElementsByTagName(MESSAGE_TAG);
-		for (int i = 0; i < nl.getLength(); i++) {
-			Element messageElement = (Element) nl.item(i);
-			HistoryMessage message = new HistoryMessage(messageElement);
-
-			Date normalizedMonth = message.getNormalizedMonth();
-			Date normalizedDate = message.getNormalizedDate();
-
-			// create month
-			if (!months.containsKey(normalizedMonth)) {
-				HistoryEntry monthEntry = new HistoryEntry();
-				monthEntry.setDate(normalizedMonth);
-				monthEntry.setName(MONTH_NAME_FORMAT.format(normalizedMonth));
-				months.put(normalizedMonth, monthEntry);
-			}
-
-			// create a day and put it in a month
-			if (!days.containsKey(normalizedDate)) {
-				HistoryEntry dayEntry = new HistoryEntry();
-				dayEntry.setDate(normalizedDate);
-				dayEntry.setName(DAY_NAME_FORMAT.format(normalizedDate));
-				days.put(normalizedDate, dayEntry);
-				months.get(normalizedMonth).getEntries().add(dayEntry);
-			}
-
-			// add messages to a day
-			HistoryEntry entry = days.get(normalizedDate);
-			entry.getMessages().add(message);
-		}
-
-		// printTree(months, days);
-
-		// sort by months
-		return toList(months);
+		return groupByDate(messages);
 
 	}
 
-	private Document read() {
+	private List<HistoryMessage> read() {
 		try {
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory
-					.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			Document doc = dBuilder.parse(roomFileStream);
+			MXParser parser = new MXParser();
+			parser.setInput(new BufferedReader(new InputStreamReader(
+					roomFileStream, "UTF-8")));
+
+			List<HistoryMessage> messages = new ArrayList<HistoryMessage>();
+			HistoryMessage message = null;
+			for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser
+					.next()) {
+				if (eventType != XmlPullParser.START_TAG)
+					continue;
+
+				String name = parser.getName();
+				if (MESSAGE_TAG.equals(name)) {
+					message = new HistoryMessage();
+					messages.add(message);
+				} else if (message != null && "to".equals(name)) {
+					message.setTo(parser.nextText());
+				} else if (message != null && "from".equals(name)) {
+					message.setFrom(parser.nextText());
+				} else if (message != null && "body".equals(name)) {
+					message.setBody(parser.nextText());
+				} else if (message != null && "date".equals(name)) {
+					message.setDate(parser.nextText());
+				}
+			}
 			roomFileStream.close();
-			doc.getDocumentElement().normalize();
-			return doc;
-		} catch (ParserConfigurationException e) {
-			e.printStackTrace();
-		} catch (SAXException e) {
+			return messages;
+		} catch (XmlPullParserException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
-}
\ No newline at end of file
+}
@@ -31,7 +31,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.TimerTask;
 
 import javax.swing.Icon;
 import javax.swing.JComponent;
@@ -46,11 +45,6 @@ import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.AndFilter;
-import org.jivesoftware.smack.filter.FromMatchesFilter;
-import org.jivesoftware.smack.filter.OrFilter;
-import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
@@ -70,13 +64,15 @@ import org.jivesoftware.spark.ui.ContactItem;
 import org.jivesoftware.spark.ui.ContactList;
 import org.jivesoftware.spark.ui.MessageEventListener;
 import org.jivesoftware.spark.ui.RosterDialog;
+import org.jivesoftware.spark.ui.TranscriptWindow;
 import org.jivesoftware.spark.ui.VCardPanel;
 import org.jivesoftware.spark.util.ModelUtil;
-import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.TimingWheel;
 import org.jivesoftware.spark.util.log.Log;
 import org.jivesoftware.sparkimpl.plugin.transcripts.ChatTranscript;
 import org.jivesoftware.sparkimpl.plugin.transcripts.ChatTranscripts;
 import org.jivesoftware.sparkimpl.plugin.transcripts.HistoryMessage;
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
 import org.jivesoftware.sparkimpl.profile.VCardManager;
 import org.jivesoftware.sparkimpl.settings.local.LocalPreferences;
 import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
@@ -110,7 +106,6 @@ public class ChatRoomImpl extends ChatRoom {
     private boolean sendGoneNotification = false;
     private ChatState lastNotificationSent = null;
 
-    private TimerTask typingTimerTask;
     private boolean sendChatStateNotification = false;
     private String threadID;
 
@@ -124,6 +119,19 @@ public class ChatRoomImpl extends ChatRoom {
     private ChatRoomButton addToRosterButton;
     private VCardPanel vcardPanel;
     
+    /**
+     * The rooms waiting for a chat state to be sent. Rooms nobody types in are not on
+     * it, and the states of the rooms due in the same tick are sent together.
+     */
+    private static final TimingWheel<ChatRoomImpl> chatStateWheel = new TimingWheel<ChatRoomImpl>("Chat States", 500, 512,
+        new TimingWheel.Handler<ChatRoomImpl>() {
+            public void expired(List<ChatRoomImpl> rooms) {
+                for (ChatRoomImpl room : rooms) {
+                    room.updateChatState();
+                }
+            }
+        });
+
     private long pauseTimePeriod = 2000;
     private long inactiveTimePeriod = 120000;
     private long goneTimePeriod = 600000;
@@ -151,11 +159,7 @@ public class ChatRoomImpl extends ChatRoom {
         loadHistory();
 
         // Register PacketListeners
-        PacketFilter fromFilter = new FromMatchesFilter(participantJID);
-        PacketFilter orFilter = new OrFilter(new PacketTypeFilter(Presence.class), new PacketTypeFilter(Message.class));
-        PacketFilter andFilter = new AndFilter(orFilter, fromFilter);
-
-        SparkManager.getConnection().addPacketListener(this, andFilter);
+        SparkManager.getChatManager().getPacketDispatcher().addPacketListener(participantJID, this);
 
         // The roomname will be the participantJID
         this.roomname = participantJID;
@@ -204,42 +208,71 @@ public class ChatRoomImpl extends ChatRoom {
             getToolBar().setVisible(false);
         }
 
-        createChatStateTimerTask();
-        
         lastActivity = System.currentTimeMillis();
         getChatInputEditor().addFocusListener(new ChatStateFocusListener());
     }
     
-    protected void createChatStateTimerTask() {
-    	typingTimerTask = new TimerTask() {
-            public void run() {                
-                if (!sendChatStateNotification) {
-                    return;
-                }
-                long now = System.currentTimeMillis();
-                long time = now - startNotificationSendingTime;
-                if (inBetween(time, pauseTimePeriod, inactiveTimePeriod)) {
-                	if (sendPausingNotification) {
-                		// send cancel
-                		//SparkManager.getMessageEventManager().sendCancelledNotification(getParticipantJID(), threadID);
-                		sendChatState(ChatState.paused);
-                		sendPausingNotification = false;
-                		sendComposingNotification = true;
-                	}
-                } else if (inBetween(time, inactiveTimePeriod, goneTimePeriod)) {
-                	if(sendInactiveNotification) {
-                		sendChatState(ChatState.inactive);
-                		sendInactiveNotification = false;
-                	}
-                } else if (time > goneTimePeriod) {
-                	if (sendGoneNotification) {
-                		sendChatState(ChatState.gone);
-                		sendGoneNotification = false;
-                	}
-                }                
-            }
-        };
-        TaskEngine.getInstance().scheduleAtFixedRate(typingTimerTask, pauseTimePeriod, pauseTimePeriod);      
+    /**
+     * Sends the chat state that is due since the user last typed or switched focus,
+     * then puts the room back on the wheel for the next one.
+     */
+    private void updateChatState() {
+        if (!active || !sendChatStateNotification) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long time = now - startNotificationSendingTime;
+        if (inBetween(time, pauseTimePeriod, inactiveTimePeriod)) {
+        	if (sendPausingNotification) {
+        		// send cancel
+        		//SparkManager.getMessageEventManager().sendCancelledNotification(getParticipantJID(), threadID);
+        		sendChatState(ChatState.paused);
+        		sendPausingNotification = false;
+        		sendComposingNotification = true;
+        	}
+        } else if (inBetween(time, inactiveTimePeriod, goneTimePeriod)) {
+        	if(sendInactiveNotification) {
+        		sendChatState(ChatState.inactive);
+        		sendInactiveNotification = false;
+        	}
+        } else if (time > goneTimePeriod) {
+        	if (sendGoneNotification) {
+        		sendChatState(ChatState.gone);
+        		sendGoneNotification = false;
+        	}
+        }
+        scheduleChatState();
+    }
+
+    /**
+     * Puts the room on the chat state wheel for the next chat state that may be sent,
+     * or takes it off if none is pending. Typing only moves the start time, the room
+     * finds out when it comes off the wheel.
+     */
+    private void scheduleChatState() {
+        if (!active || !sendChatStateNotification) {
+            chatStateWheel.cancel(this);
+            return;
+        }
+        final long time = System.currentTimeMillis() - startNotificationSendingTime;
+        long next = -1;
+        if (sendPausingNotification && time < inactiveTimePeriod) {
+            next = pauseTimePeriod;
+        }
+        else if (sendInactiveNotification && time < goneTimePeriod) {
+            next = inactiveTimePeriod;
+        }
+        else if (sendGoneNotification) {
+            next = goneTimePeriod;
+        }
+
+        if (next < 0) {
+            chatStateWheel.cancel(this);
+        }
+        else {
+            // A state is sent once its period has passed.
+            chatStateWheel.schedule(this, startNotificationSendingTime + Math.max(next, time) + 1);
+        }
     }
     
     private boolean inBetween(long time, long lowLimit, long highLimit) {
@@ -255,6 +288,7 @@ public class ChatRoomImpl extends ChatRoom {
     	if (lastNotificationSent == null || !lastNotificationSent.equals(ChatState.active)) {
     		sendChatState(ChatState.active);
     	}
+    	scheduleChatState();
     }
       
     public void inactivateChatStateNotificationSystem() {
@@ -266,6 +300,7 @@ public class ChatRoomImpl extends ChatRoom {
     	if (lastNotificationSent != null && !lastNotificationSent.equals(ChatState.inactive) && !lastNotificationSent.equals(ChatState.gone)) {
     		sendChatState(ChatState.inactive);
     	}
+    	scheduleChatState();
     }    
     
     private void sendChatState(ChatState state) {
@@ -297,11 +332,8 @@ public class ChatRoomImpl extends ChatRoom {
 
         SparkManager.getChatManager().removeChat(this);
 
-        SparkManager.getConnection().removePacketListener(this);
-        if (typingTimerTask != null) {
-            TaskEngine.getInstance().cancelScheduledTask(typingTimerTask);
-            typingTimerTask = null;
-        }
+        SparkManager.getChatManager().getPacketDispatcher().removePacketListener(this);
+        chatStateWheel.cancel(this);
         active = false;
         vcardPanel = null;
 
@@ -581,6 +613,7 @@ public class ChatRoomImpl extends ChatRoom {
                 sendInactiveNotification = true;
                 sendGoneNotification = true;
                 sendComposingNotification = false;
+                scheduleChatState();
             }            
             catch (Exception exception) {
                 Log.error("Error updating", exception);
@@ -685,6 +718,7 @@ public class ChatRoomImpl extends ChatRoom {
 
     public void setSendChatStateNotification(boolean isSendChatStateNotification) {
         this.sendChatStateNotification = isSendChatStateNotification;
+        scheduleChatState();
     }
 
 
@@ -741,47 +775,88 @@ public class ChatRoomImpl extends ChatRoom {
         if (!localPreferences.isChatHistoryEnabled()) {
             return;
         }
+        setHistoryPager();
 
         if (!localPreferences.isPrevChatHistoryEnabled()) {
         	return;
         }
 
         final ChatTranscript chatTranscript = ChatTranscripts.getCurrentChatTranscript(getParticipantJID());
-        final String personalNickname = SparkManager.getUserManager().getNickname();
-
-        for (HistoryMessage message : chatTranscript.getMessages()) {
-            String nickname = SparkManager.getUserManager().getUserNicknameFromJID(message.getFrom());
-            String messageBody = message.getBody();
-            if (nickname.equals(message.getFrom())) {
-                String otherJID = StringUtils.parseBareAddress(message.getFrom());
-                String myJID = SparkManager.getSessionManager().getBareAddress();
+        insertHistory(chatTranscript.getMessages());
+        if ( 0 < chatTranscript.getMessages().size() ) { // Check if we have history mesages
+            getTranscriptWindow().insertHorizontalLine();
+        }
+        chatTranscript.release();
+    }
 
-                if (otherJID.equals(myJID)) {
-                    nickname = personalNickname;
+    /**
+     * Pages in the messages preceding the ones shown from the transcript store, which
+     * holds every message of the conversation shown in the transcript window.
+     */
+    private void setHistoryPager() {
+        final String jid = getParticipantJID();
+        final TranscriptStore store = TranscriptStore.getInstance();
+        // Without the previous history only the messages of this chat are paged in.
+        final int first = SettingsManager.getLocalPreferences().isPrevChatHistoryEnabled() ? 0 : store.getMessageCount(jid);
+
+        getTranscriptWindow().setHistoryPager(new TranscriptWindow.HistoryPager() {
+            public void insertOlderMessages(int shown, int count) {
+                // Messages sent since the last one received are not stored yet.
+                SparkManager.getWorkspace().getTranscriptPlugin().persistChatRoom(ChatRoomImpl.this);
+
+                final int to = store.getMessageCount(jid) - shown;
+                final int from = Math.max(first, to - count);
+                if (from < to) {
+                    insertHistory(store.getMessages(jid, from, to));
                 }
-                else {
-                    try
-                    {
-                        nickname = message.getFrom().substring(message.getFrom().indexOf("/")+1);
+            }
+        });
+    }
+
+    /**
+     * Inserts messages from the history of the conversation in a single edit.
+     *
+     * @param messages the messages, oldest first.
+     */
+    private void insertHistory(Collection<HistoryMessage> messages) {
+        final String personalNickname = SparkManager.getUserManager().getNickname();
+
+        // Add the whole history in one edit.
+        getTranscriptWindow().beginUpdate();
+        try {
+            for (HistoryMessage message : messages) {
+                String nickname = SparkManager.getUserManager().getUserNicknameFromJID(message.getFrom());
+                String messageBody = message.getBody();
+                if (nickname.equals(message.getFrom())) {
+                    String otherJID = StringUtils.parseBareAddress(message.getFrom());
+                    String myJID = SparkManager.getSessionManager().getBareAddress();
+
+                    if (otherJID.equals(myJID)) {
+                        nickname = personalNickname;
                     }
-                    catch(Exception e)
-                    {
-                        nickname = StringUtils.parseName(nickname);
+                    else {
+                        try
+                        {
+                            nickname = message.getFrom().substring(message.getFrom().indexOf("/")+1);
+                        }
+                        catch(Exception e)
+                        {
+                            nickname = StringUtils.parseName(nickname);
+                        }
                     }
                 }
-            }
 
-            if (ModelUtil.hasLength(messageBody) && messageBody.startsWith("/me ")) {
-                messageBody = messageBody.replaceFirst("/me", nickname);
-            }
+                if (ModelUtil.hasLength(messageBody) && messageBody.startsWith("/me ")) {
+                    messageBody = messageBody.replaceFirst("/me", nickname);
+                }
 
-            final Date messageDate = message.getDate();
-            getTranscriptWindow().insertHistoryMessage(nickname, messageBody, messageDate);
+                final Date messageDate = message.getDate();
+                getTranscriptWindow().insertHistoryMessage(nickname, messageBody, messageDate);
+            }
         }
-        if ( 0 < chatTranscript.getMessages().size() ) { // Check if we have history mesages
-            getTranscriptWindow().insertHorizontalLine();
+        finally {
+            getTranscriptWindow().endUpdate();
         }
-        chatTranscript.release();
     }
 
     private boolean isOnline() {
@@ -808,10 +883,6 @@ public class ChatRoomImpl extends ChatRoom {
         }
     }
 
-	protected TimerTask getTypingTimerTask() {
-		return typingTimerTask;
-	}
-	
     public void notifyChatStateChange(ChatState state) {
     	if (chatStatePanel != null) {
     		getEditorWrapperBar().remove(chatStatePanel);
@@ -32,7 +32,6 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -48,11 +47,6 @@ import javax.swing.event.DocumentEvent;
 import org.jivesoftware.resource.Res;
 import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.AndFilter;
-import org.jivesoftware.smack.filter.FromContainsFilter;
-import org.jivesoftware.smack.filter.OrFilter;
-import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
@@ -80,6 +74,7 @@ import org.jivesoftware.spark.ui.conferences.AnswerFormDialog;
 import org.jivesoftware.spark.ui.conferences.ConferenceUtils;
 import org.jivesoftware.spark.ui.conferences.DataFormDialog;
 import org.jivesoftware.spark.ui.conferences.GroupChatParticipantList;
+import org.jivesoftware.spark.util.KeywordMatcher;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.UIComponentRegistry;
 import org.jivesoftware.spark.util.log.Log;
@@ -121,6 +116,15 @@ public class GroupChatRoom extends ChatRoom {
 	    .isShowJoinLeaveMessagesEnabled();
     private boolean isMucHighlightingNameEnabled = pref.isMucHighNameEnabled();
     private boolean isMucHighlightingTextEnabled = pref.isMucHighTextEnabled();
+
+    /**
+     * Finds the user's names and highlight keywords in messages, compiled for the
+     * nickname and keywords it was built with.
+     */
+    private KeywordMatcher highlightMatcher;
+    private String highlightNickname;
+    private String highlightKeywords;
+
     private RolloverButton settings;
 
     /**
@@ -132,15 +136,9 @@ public class GroupChatRoom extends ChatRoom {
     public GroupChatRoom(final MultiUserChat chat) {
 	this.chat = chat;
 
-	// Create the filter and register with the current connection
-	// making sure to filter by room
-	PacketFilter fromFilter = new FromContainsFilter(chat.getRoom());
-	PacketFilter orFilter = new OrFilter(new PacketTypeFilter(
-		Presence.class), new PacketTypeFilter(Message.class));
-	PacketFilter andFilter = new AndFilter(orFilter, fromFilter);
-
-	// Add packet Listener.
-	SparkManager.getConnection().addPacketListener(this, andFilter);
+	// Receive the presences and messages of the occupants of the room
+	SparkManager.getChatManager().getPacketDispatcher()
+		.addPacketListener(chat.getRoom(), this);
 
 	// The Room Name is the same as the ChatRoom name
 	roomname = chat.getRoom();
@@ -335,7 +333,8 @@ public class GroupChatRoom extends ChatRoom {
 	super.closeChatRoom();
 
 	// Remove Listener
-	SparkManager.getConnection().removePacketListener(this);
+	SparkManager.getChatManager().getPacketDispatcher()
+		.removePacketListener(this);
 
 	ChatContainer container = SparkManager.getChatManager()
 		.getChatContainer();
@@ -353,27 +352,46 @@ public class GroupChatRoom extends ChatRoom {
      * @return Color of message background.
      */
     private Color getMessageBackground(String nickname, String body) {
-	// define some vcard information
 	String myNickName = chat.getNickname();
-	String myUserName = SparkManager.getSessionManager().getUsername();
-	Pattern usernameMatch = Pattern.compile(myUserName,
-		Pattern.CASE_INSENSITIVE);
-	Pattern nicknameMatch = Pattern.compile(myNickName == null ? "" : myNickName,
-		Pattern.CASE_INSENSITIVE);
 
 	// Should we even highlight this packet?
 	if (isMucHighlightingNameEnabled
-		&& myNickName.equalsIgnoreCase(nickname)) {
+		&& myNickName != null && myNickName.equalsIgnoreCase(nickname)) {
 	    return new Color(244, 248, 255);
-	} else if (isMucHighlightingTextEnabled
-		&& (usernameMatch.matcher(body).find() || nicknameMatch
-			.matcher(body).find())) {
+	} else if (isMucHighlightingTextEnabled && isHighlighted(body)) {
 	    return new Color(255, 255, 153);
 	} else {
 	    return new Color(0,0,0,0);
 	}
     }
 
+    /**
+     * Returns true if a message body contains the user's username or nickname in
+     * this room, or one of the keywords to highlight set in the preferences,
+     * ignoring case. The names and keywords are compiled once, and again only
+     * after the nickname or the keywords changed.
+     *
+     * @param body
+     *            the body of the message, may be null.
+     * @return true if the message should be highlighted.
+     */
+    public boolean isHighlighted(String body) {
+	final String myNickName = chat.getNickname();
+	final String keywords = pref.getMucHighlightKeywords();
+	if (highlightMatcher == null
+		|| !ModelUtil.areEqual(myNickName, highlightNickname)
+		|| !ModelUtil.areEqual(keywords, highlightKeywords)) {
+	    final List<String> names = new ArrayList<String>();
+	    names.add(SparkManager.getSessionManager().getUsername());
+	    names.add(myNickName);
+	    names.addAll(KeywordMatcher.parse(keywords).getKeywords());
+	    highlightMatcher = new KeywordMatcher(names);
+	    highlightNickname = myNickName;
+	    highlightKeywords = keywords;
+	}
+	return highlightMatcher.find(body);
+    }
+
     /**
      * Sends a message.
      *
@@ -541,7 +559,8 @@ public class GroupChatRoom extends ChatRoom {
 	}
 
 	// Remove Packet Listener
-	SparkManager.getConnection().removePacketListener(this);
+	SparkManager.getChatManager().getPacketDispatcher()
+		.removePacketListener(this);
 
 	// Disable Send Field
 	getChatInputEditor().showAsDisabled();
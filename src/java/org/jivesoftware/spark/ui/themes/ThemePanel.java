@@ -89,6 +89,7 @@ public class ThemePanel extends JPanel {
 
     private JCheckBox showAvatarsBox;
     private JCheckBox showVCards;
+    private JCheckBox lightweightContactListBox;
     private JLabel avatarSizeLabel;
     private JComboBox avatarSizeField;
 
@@ -359,6 +360,7 @@ public class ThemePanel extends JPanel {
 
 
         showVCards = new JCheckBox();
+        lightweightContactListBox = new JCheckBox();
 
         // Set ResourceUtils
         ResourceUtils.resLabel(messageStyleLabel, messageStyleBox, Res.getString("label.message.style") + ":");
@@ -373,6 +375,7 @@ public class ThemePanel extends JPanel {
         ResourceUtils.resButton(showAvatarsBox, Res.getString("checkbox.show.avatars.in.contactlist"));
         ResourceUtils.resLabel(avatarSizeLabel, avatarSizeField, Res.getString("label.contactlist.avatarsize"));
         ResourceUtils.resButton(showVCards, Res.getString("title.appearance.showVCards"));
+        ResourceUtils.resButton(lightweightContactListBox, Res.getString("checkbox.lightweight.contactlist"));
         _useTabsForTransports.setText(Res.getString("checkbox.transport.tab.setting"));
         _useTabsForConference.setText(Res.getString("checkbox.conference.tab.setting"));
 
@@ -412,6 +415,7 @@ public class ThemePanel extends JPanel {
         JLabel reconnectionlabel = new JLabel(Res.getString("checkbox.reconnet.info"));
         add(reconnectionlabel, new GridBagConstraints(0, 12, 1, 1,0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL, new Insets(5, 5, 5, 5), 50, 0));
 	add(_showReconnectBox, new GridBagConstraints(1, 12, 3, 1, 1.0, 0.0, GridBagConstraints.WEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 50, 0));
+        add(lightweightContactListBox, new GridBagConstraints(0, 13, 3, 1, 1.0, 0.0, GridBagConstraints.WEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 50, 0));
 
 
         // Activate live one.
@@ -483,6 +487,8 @@ public class ThemePanel extends JPanel {
 
         showAvatarsBox.setSelected(pref.areAvatarsVisible());
 
+        lightweightContactListBox.setSelected(pref.isLightweightContactListEnabled());
+
 
         if (pref.getContactListIconSize() == 16) {
             avatarSizeField.setSelectedIndex(0);
@@ -662,6 +668,10 @@ public class ThemePanel extends JPanel {
        return showVCards.isSelected();
    }
 
+    public boolean isLightweightContactListEnabled(){
+        return lightweightContactListBox.isSelected();
+    }
+
     /**
      * Returns the LookAndFeel with package origin <br>
      * for example:
@@ -0,0 +1,349 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.util;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import javax.swing.ImageIcon;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps decoded and scaled avatars, so that showing the same avatar again costs a
+ * lookup instead of decoding and scaling the image. Images are keyed by the hash
+ * of the photo and the size they are shown at, and the least recently used images
+ * are dropped once the cache holds more pixels than its budget allows.
+ * <p/>
+ * Images are scaled to fit the requested size while keeping their aspect ratio.
+ */
+public final class AvatarCache {
+
+    /**
+     * Notified on the Swing thread once an avatar requested with
+     * {@link AvatarCache#getIcon(String, URL, int, int, boolean, AvatarCache.Callback)} is ready.
+     */
+    public interface Callback {
+        /**
+         * @param icon the scaled avatar, or null if it could not be decoded.
+         */
+        void avatarLoaded(ImageIcon icon);
+    }
+
+    /**
+     * Memory the cached images may take up, in bytes.
+     */
+    private static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+    private static AvatarCache instance = new AvatarCache(DEFAULT_BUDGET);
+
+    /**
+     * Returns the avatar cache shared by the whole UI.
+     *
+     * @return the avatar cache.
+     */
+    public static AvatarCache getInstance() {
+        return instance;
+    }
+
+    private final long budget;
+    private final LinkedHashMap<Key, ImageIcon> icons = new LinkedHashMap<Key, ImageIcon>(64, 0.75f, true);
+    private final Map<Key, List<Callback>> loading = new HashMap<Key, List<Callback>>();
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    AvatarCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns an avatar, decoding and scaling it on the calling thread if it is not cached.
+     *
+     * @param hash    the hash of the photo.
+     * @param bytes   the photo.
+     * @param width   the maximum width.
+     * @param height  the maximum height.
+     * @param enlarge true to scale up photos smaller than the size.
+     * @return the avatar, or null if the photo could not be decoded.
+     */
+    public ImageIcon getIcon(String hash, byte[] bytes, int width, int height, boolean enlarge) {
+        final Key key = new Key(hash, width, height, enlarge);
+        ImageIcon icon = get(key);
+        if (icon == null) {
+            icon = decode(bytes, null, key);
+            put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns an avatar, decoding and scaling it on the calling thread if it is not cached.
+     *
+     * @param hash    the hash of the photo.
+     * @param url     the location of the photo.
+     * @param width   the maximum width.
+     * @param height  the maximum height.
+     * @param enlarge true to scale up photos smaller than the size.
+     * @return the avatar, or null if the photo could not be decoded.
+     */
+    public ImageIcon getIcon(String hash, URL url, int width, int height, boolean enlarge) {
+        final Key key = new Key(hash, width, height, enlarge);
+        ImageIcon icon = get(key);
+        if (icon == null) {
+            icon = decode(null, url, key);
+            put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns an avatar if it is cached. Otherwise the avatar is decoded and scaled
+     * in the background and handed to the callback on the Swing thread.
+     *
+     * @param hash     the hash of the photo.
+     * @param url      the location of the photo.
+     * @param width    the maximum width.
+     * @param height   the maximum height.
+     * @param enlarge  true to scale up photos smaller than the size.
+     * @param callback notified once the avatar is ready, unless it is returned right away.
+     * @return the avatar, or null if it is not cached yet.
+     */
+    public ImageIcon getIcon(String hash, final URL url, int width, int height, boolean enlarge, Callback callback) {
+        final Key key = new Key(hash, width, height, enlarge);
+        synchronized (this) {
+            final ImageIcon icon = get(key);
+            if (icon != null) {
+                return icon;
+            }
+            List<Callback> callbacks = loading.get(key);
+            if (callbacks != null) {
+                // Already being decoded.
+                callbacks.add(callback);
+                return null;
+            }
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            loading.put(key, callbacks);
+        }
+
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                final ImageIcon icon = decode(null, url, key);
+                final List<Callback> callbacks;
+                synchronized (AvatarCache.this) {
+                    put(key, icon);
+                    callbacks = loading.remove(key);
+                }
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        for (Callback callback : callbacks) {
+                            callback.avatarLoaded(icon);
+                        }
+                    }
+                });
+            }
+        }, TaskEngine.Workload.CPU);
+        return null;
+    }
+
+    private synchronized ImageIcon get(Key key) {
+        final ImageIcon icon = icons.get(key);
+        if (icon != null) {
+            hits++;
+        }
+        else {
+            misses++;
+        }
+        return icon;
+    }
+
+    private synchronized void put(Key key, ImageIcon icon) {
+        if (icon == null) {
+            return;
+        }
+        final ImageIcon replaced = icons.put(key, icon);
+        if (replaced != null) {
+            size -= getSize(replaced);
+        }
+        size += getSize(icon);
+
+        final Iterator<ImageIcon> iter = icons.values().iterator();
+        while (size > budget && iter.hasNext()) {
+            final ImageIcon eldest = iter.next();
+            if (eldest == icon) {
+                break;
+            }
+            size -= getSize(eldest);
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops all cached avatars.
+     */
+    public synchronized void clear() {
+        icons.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of cached avatars.
+     *
+     * @return the number of avatars.
+     */
+    public synchronized int getCount() {
+        return icons.size();
+    }
+
+    /**
+     * Returns the memory taken up by the cached avatars.
+     *
+     * @return the size in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of avatars found in the cache.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of avatars that had to be decoded.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of avatars dropped to stay within the budget.
+     *
+     * @return the number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return "AvatarCache[count=" + icons.size() + ", size=" + size + ", hits=" + hits
+            + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private static long getSize(ImageIcon icon) {
+        return 4L * icon.getIconWidth() * icon.getIconHeight();
+    }
+
+    /**
+     * Decodes a photo and renders it at its final size, so that painting the
+     * returned icon does not scale it again.
+     */
+    private static ImageIcon decode(byte[] bytes, URL url, Key key) {
+        try {
+            // Create rather than get the image, which would keep every photo in the toolkit's own cache.
+            final Image image;
+            if (bytes != null) {
+                image = Toolkit.getDefaultToolkit().createImage(bytes);
+            }
+            else if (url != null) {
+                image = Toolkit.getDefaultToolkit().createImage(url);
+            }
+            else {
+                return null;
+            }
+            ImageIcon source = new ImageIcon(image);
+            int width = source.getIconWidth();
+            int height = source.getIconHeight();
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+
+            if (key.enlarge || width > key.width || height > key.height) {
+                if (height * key.width > width * key.height) {
+                    width = Math.max(1, width * key.height / height);
+                    height = key.height;
+                }
+                else {
+                    height = Math.max(1, height * key.width / width);
+                    width = key.width;
+                }
+                if (width != source.getIconWidth() || height != source.getIconHeight()) {
+                    source = new ImageIcon(source.getImage().getScaledInstance(width, height, Image.SCALE_SMOOTH));
+                }
+            }
+
+            final BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D g = scaled.createGraphics();
+            g.drawImage(source.getImage(), 0, 0, width, height, null);
+            g.dispose();
+            source.getImage().flush();
+            image.flush();
+            return new ImageIcon(scaled);
+        }
+        catch (Exception e) {
+            Log.error("Unable to decode avatar " + key.hash, e);
+            return null;
+        }
+    }
+
+    private static class Key {
+        final String hash;
+        final int width;
+        final int height;
+        final boolean enlarge;
+
+        Key(String hash, int width, int height, boolean enlarge) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+            this.enlarge = enlarge;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key)o;
+            return hash.equals(key.hash) && width == key.width && height == key.height && enlarge == key.enlarge;
+        }
+
+        public int hashCode() {
+            return ((hash.hashCode() * 31 + width) * 31 + height) * 2 + (enlarge ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.util;
+
+import javax.swing.ImageIcon;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the icons named in a resource bundle once and hands out the same
+ * <code>ImageIcon</code> on every later request. Icons are loaded the first time
+ * they are asked for, or ahead of time with {@link #preload(String...)}. Icons
+ * loaded from the same location are shared between registries, so a plugin
+ * using one of Spark's images does not load a copy of it.
+ * <p/>
+ * The returned icons are shared and must not be changed. Copy an icon before
+ * setting its image or description.
+ */
+public final class IconRegistry {
+
+    /**
+     * Finds the image behind an icon name, usually through the resource bundle
+     * of the owner of the registry.
+     */
+    public interface Locator {
+        /**
+         * @param name the name of the icon.
+         * @return the location of the image, or null if there is none.
+         */
+        URL getURL(String name);
+    }
+
+    /**
+     * Icons by the location they were loaded from, shared by all registries.
+     */
+    private static final ConcurrentMap<String, ImageIcon> interned = new ConcurrentHashMap<String, ImageIcon>();
+
+    private final Locator locator;
+    private final ConcurrentMap<String, ImageIcon> icons = new ConcurrentHashMap<String, ImageIcon>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a registry that looks up the images of its icons with the given locator.
+     *
+     * @param locator finds the image behind an icon name.
+     */
+    public IconRegistry(Locator locator) {
+        this.locator = locator;
+    }
+
+    /**
+     * Returns the icon with the given name, loading it if this is the first request for it.
+     *
+     * @param name the name of the icon.
+     * @return the icon, or null if the locator does not know the image.
+     */
+    public ImageIcon getIcon(String name) {
+        final ImageIcon icon = icons.get(name);
+        if (icon != null) {
+            hits.incrementAndGet();
+            return icon;
+        }
+        misses.incrementAndGet();
+        return load(name);
+    }
+
+    private ImageIcon load(String name) {
+        final URL url = locator.getURL(name);
+        if (url == null) {
+            return null;
+        }
+
+        // Compare locations as strings, URL.equals() may resolve the host name.
+        final String location = url.toExternalForm();
+        ImageIcon icon = interned.get(location);
+        if (icon == null) {
+            icon = new ImageIcon(url);
+            final ImageIcon existing = interned.putIfAbsent(location, icon);
+            if (existing != null) {
+                icon = existing;
+            }
+        }
+
+        final ImageIcon existing = icons.putIfAbsent(name, icon);
+        return existing != null ? existing : icon;
+    }
+
+    /**
+     * Loads the given icons in the background, so that the first request for them
+     * does not wait for the images to be read.
+     *
+     * @param names the names of the icons.
+     */
+    public void preload(final String... names) {
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                for (String name : names) {
+                    if (!icons.containsKey(name)) {
+                        try {
+                            load(name);
+                        }
+                        catch (Exception e) {
+                            // The icon is reported when it is requested.
+                        }
+                    }
+                }
+            }
+        }, TaskEngine.Workload.UI_PREP);
+    }
+
+    /**
+     * Forgets the icon with the given name, so that the next request looks up its image again.
+     * Used when the image behind a name changes, for example when a plugin replaces it.
+     *
+     * @param name the name of the icon.
+     */
+    public void invalidate(String name) {
+        icons.remove(name);
+    }
+
+    /**
+     * Returns true if the icon with the given name has been loaded.
+     *
+     * @param name the name of the icon.
+     * @return true if the icon is loaded.
+     */
+    public boolean isLoaded(String name) {
+        return icons.containsKey(name);
+    }
+
+    /**
+     * Returns the number of icons loaded by this registry.
+     *
+     * @return the number of icons.
+     */
+    public int getCount() {
+        return icons.size();
+    }
+
+    /**
+     * Returns the number of requests answered with a loaded icon.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests that had to look up the image.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String toString() {
+        return "IconRegistry[count=" + icons.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Finds whether a text contains any of a set of keywords, ignoring case. The
+ * keywords are compiled once into an automaton (Aho-Corasick) that reads the text
+ * a single time, so that the cost of a search depends on the length of the text
+ * and not on the number of keywords.
+ * <p/>
+ * Keywords are matched literally, anywhere in the text. Empty keywords are ignored.
+ * A matcher is immutable and may be shared between threads.
+ */
+public class KeywordMatcher {
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Node fail;
+        boolean match;
+
+        Node child(char c) {
+            final int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node addChild(char c) {
+            final int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            final int insert = -index - 1;
+            final Node node = new Node();
+
+            final char[] newKeys = new char[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            newKeys[insert] = c;
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            keys = newKeys;
+
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            newChildren[insert] = node;
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            children = newChildren;
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private final List<String> keywords = new ArrayList<String>();
+
+    /**
+     * Compiles a matcher.
+     *
+     * @param keywords the keywords to find.
+     */
+    public KeywordMatcher(Collection<String> keywords) {
+        for (String keyword : keywords) {
+            if (keyword == null || keyword.length() == 0) {
+                continue;
+            }
+            this.keywords.add(keyword);
+
+            Node node = root;
+            for (int i = 0; i < keyword.length(); i++) {
+                node = node.addChild(fold(keyword.charAt(i)));
+            }
+            node.match = true;
+        }
+
+        // Links every node to the node of its longest proper suffix, breadth first.
+        final LinkedList<Node> queue = new LinkedList<Node>();
+        for (Node child : root.children) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final Node node = queue.removeFirst();
+            for (int i = 0; i < node.keys.length; i++) {
+                final Node child = node.children[i];
+                Node fail = node.fail;
+                while (fail != root && fail.child(node.keys[i]) == null) {
+                    fail = fail.fail;
+                }
+                final Node next = fail.child(node.keys[i]);
+                child.fail = next != null ? next : root;
+                // A keyword ending inside another one is found at the same point.
+                child.match |= child.fail.match;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Compiles a matcher from a list of keywords separated by commas, as entered in
+     * the preferences. Keywords are trimmed.
+     *
+     * @param keywords the keywords separated by commas, may be null.
+     * @return the matcher.
+     */
+    public static KeywordMatcher parse(String keywords) {
+        final List<String> list = new ArrayList<String>();
+        if (keywords != null) {
+            for (String keyword : keywords.split(",")) {
+                list.add(keyword.trim());
+            }
+        }
+        return new KeywordMatcher(list);
+    }
+
+    /**
+     * Returns true if the text contains any of the keywords.
+     *
+     * @param text the text to search, may be null.
+     * @return true if a keyword was found.
+     */
+    public boolean find(CharSequence text) {
+        if (text == null || root.keys.length == 0) {
+            return false;
+        }
+        Node node = root;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = fold(text.charAt(i));
+            Node next = node.child(c);
+            while (next == null && node != root) {
+                node = node.fail;
+                next = node.child(c);
+            }
+            node = next != null ? next : root;
+            if (node.match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the keywords of the matcher, without the empty ones.
+     *
+     * @return the keywords.
+     */
+    public List<String> getKeywords() {
+        return Collections.unmodifiableList(keywords);
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
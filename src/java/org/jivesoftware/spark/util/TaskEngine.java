@@ -21,30 +21,264 @@ package org.jivesoftware.spark.util;
 
 import org.jivesoftware.spark.util.log.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
+import java.awt.EventQueue;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Performs tasks using worker threads. It also allows tasks to be scheduled to be
  * run at future dates. This class mimics relevant methods in both
- * {@link ExecutorService} and {@link Timer}. Any {@link TimerTask} that's
+ * {@link ExecutorService} and {@link java.util.Timer}. Any {@link TimerTask} that's
  * scheduled to be run in the future will automatically be run using the thread
  * executor's thread pool. This means that the standard restriction that TimerTasks
  * should run quickly does not apply.
+ * <p/>
+ * Tasks run in one of a few pools, one per {@link Workload}, each with a fixed
+ * number of threads and a bounded queue. A task submitted while the queue of its
+ * pool is full runs on the thread that submitted it, which slows down whoever
+ * floods the pool instead of starting more threads. The event dispatch thread and
+ * the timer thread are never slowed down that way: their tasks are handed to the
+ * pool again a little later instead. The time every kind of task waited and ran
+ * is kept, see {@link #getTaskStatistics()}.
  *
  * @author Matt Tucker
  */
 public class TaskEngine {
 
-    private static TaskEngine instance = new TaskEngine();
+    /**
+     * The kinds of work the pools of the task engine are sized for.
+     */
+    public enum Workload {
+        /**
+         * Tasks that mostly wait for the network or the disk.
+         */
+        IO(32),
+        /**
+         * Tasks that mostly compute.
+         */
+        CPU(Math.max(2, Runtime.getRuntime().availableProcessors())),
+        /**
+         * Tasks that prepare what the user interface is about to show.
+         */
+        UI_PREP(2);
+
+        private final int threads;
+
+        Workload(int threads) {
+            this.threads = threads;
+        }
+
+        /**
+         * Returns the number of threads of the pool of the workload.
+         *
+         * @return the number of threads.
+         */
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    /**
+     * The number of tasks that may wait in the queue of a pool.
+     */
+    public static final int QUEUE_CAPACITY = 4096;
+
+    /**
+     * How long idle pool threads are kept, in milliseconds.
+     */
+    private static final long KEEP_ALIVE = 60 * 1000;
+
+    /**
+     * How long a task that found its queue full waits before it is handed to the
+     * pool again, when it was submitted by the event dispatch or timer thread, in
+     * milliseconds.
+     */
+    private static final long SPILL_DELAY = 10;
+
+    /**
+     * The time of a run and of the wait before it, of one kind of task.
+     */
+    public static class TaskStatistics {
+        private final String name;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        TaskStatistics(String name, long count, long totalNanos, long maxNanos, long totalWaitNanos, long maxWaitNanos) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * Returns the class name of the tasks.
+         *
+         * @return the name of the tasks.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns the time the tasks spent in the queue before they ran.
+         *
+         * @return the time waited, in nanoseconds.
+         */
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        public String toString() {
+            return name + ": " + count + " runs, average " + (count > 0 ? totalNanos / count / 1000 : 0) + " us, max "
+                    + maxNanos / 1000 + " us, average wait " + (count > 0 ? totalWaitNanos / count / 1000 : 0) + " us, max wait "
+                    + maxWaitNanos / 1000 + " us";
+        }
+    }
+
+    /**
+     * The state of the pool of a workload.
+     */
+    public static class WorkloadStatistics {
+        private final Workload workload;
+        private final int poolSize;
+        private final int largestPoolSize;
+        private final int activeCount;
+        private final int queueSize;
+        private final long completedCount;
+        private final long rejectedCount;
+        private final long spilledCount;
+
+        WorkloadStatistics(Workload workload, ThreadPoolExecutor pool, long rejectedCount, long spilledCount) {
+            this.workload = workload;
+            this.poolSize = pool.getPoolSize();
+            this.largestPoolSize = pool.getLargestPoolSize();
+            this.activeCount = pool.getActiveCount();
+            this.queueSize = pool.getQueue().size();
+            this.completedCount = pool.getCompletedTaskCount();
+            this.rejectedCount = rejectedCount;
+            this.spilledCount = spilledCount;
+        }
+
+        public Workload getWorkload() {
+            return workload;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * Returns the most threads the pool ever had at a time.
+         *
+         * @return the largest number of threads.
+         */
+        public int getLargestPoolSize() {
+            return largestPoolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        /**
+         * Returns the number of tasks that found the queue full, and ran on the
+         * thread that submitted them.
+         *
+         * @return the number of tasks run by their submitter.
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * Returns the number of times a task found the queue full while submitted by
+         * the event dispatch or timer thread, and was handed to the pool again later.
+         *
+         * @return the number of tasks put off.
+         */
+        public long getSpilledCount() {
+            return spilledCount;
+        }
+
+        public String toString() {
+            return workload + ": " + poolSize + " threads (largest " + largestPoolSize + "), " + activeCount + " active, "
+                    + queueSize + " queued, " + completedCount + " completed, " + rejectedCount + " run by their submitter, "
+                    + spilledCount + " put off";
+        }
+    }
+
+    private static final class Timing {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void add(long waitNanos, long runNanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(runNanos);
+            totalWaitNanos.addAndGet(waitNanos);
+            setMax(maxNanos, runNanos);
+            setMax(maxWaitNanos, waitNanos);
+        }
+
+        private static void setMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Try again
+            }
+        }
+    }
+
+    private static TaskEngine instance = new TaskEngine(QUEUE_CAPACITY);
 
     /**
      * Returns a task engine instance (singleton).
@@ -55,23 +289,93 @@ public class TaskEngine {
         return instance;
     }
 
-    private Timer timer;
-    private ExecutorService executor;
-    private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
+    private final ScheduledThreadPoolExecutor timer;
+    private volatile Thread timerThread;
+    private final Map<Workload, ThreadPoolExecutor> pools = new EnumMap<Workload, ThreadPoolExecutor>(Workload.class);
+    private final Map<Workload, AtomicLong> rejected = new EnumMap<Workload, AtomicLong>(Workload.class);
+    private final Map<Workload, AtomicLong> spilled = new EnumMap<Workload, AtomicLong>(Workload.class);
+    private final ConcurrentHashMap<String, Timing> timings = new ConcurrentHashMap<String, Timing>();
+    private Map<TimerTask, ScheduledFuture<?>> wrappedTasks = new ConcurrentHashMap<TimerTask, ScheduledFuture<?>>();
 
     /**
      * Constructs a new task engine.
+     *
+     * @param queueCapacity the number of tasks that may wait in the queue of a pool.
+     */
+    TaskEngine(int queueCapacity) {
+        // The timer only hands tasks over to a pool, so a slow task never delays
+        // the others.
+        final ThreadFactory timerThreadFactory = createThreadFactory("timer-spark");
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = timerThreadFactory.newThread(runnable);
+                timerThread = thread;
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        for (final Workload workload : Workload.values()) {
+            final AtomicLong rejectedCount = new AtomicLong();
+            final AtomicLong spilledCount = new AtomicLong();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(workload.getThreads(), workload.getThreads(),
+                    KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity),
+                    createThreadFactory("pool-spark-" + workload.name().toLowerCase() + "-"),
+                    new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            if (executor.isShutdown()) {
+                                throw new RejectedExecutionException("The task engine was shut down.");
+                            }
+                            if (EventQueue.isDispatchThread() || Thread.currentThread() == timerThread) {
+                                // Neither may run a task of the pool, try again later.
+                                spilledCount.incrementAndGet();
+                                spill(task, executor);
+                                return;
+                            }
+                            // Run the task on the thread that floods the pool.
+                            rejectedCount.incrementAndGet();
+                            task.run();
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            pools.put(workload, pool);
+            rejected.put(workload, rejectedCount);
+            spilled.put(workload, spilledCount);
+        }
+    }
+
+    /**
+     * Hands a task that found the queue of its pool full to the pool again after a
+     * while. The timer thread only tries again, so it never blocks on the task.
+     *
+     * @param task the rejected task.
+     * @param pool the pool of the task.
      */
-    private TaskEngine() {
-        timer = new Timer("timer-spark", true);
-        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    private void spill(final Runnable task, final ThreadPoolExecutor pool) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                try {
+                    pool.execute(task);
+                }
+                catch (RejectedExecutionException e) {
+                    // Shut down meanwhile, do not leave the submitter waiting.
+                    if (task instanceof Future) {
+                        ((Future<?>)task).cancel(false);
+                    }
+                }
+            }
+        }, SPILL_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
 
             final AtomicInteger threadNumber = new AtomicInteger(1);
 
             public Thread newThread(Runnable runnable) {
                 // Use our own naming scheme for the threads.
                 Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable,
-                        "pool-spark" + threadNumber.getAndIncrement(), 0);
+                        name + threadNumber.getAndIncrement(), 0);
                 // Make workers daemon threads.
                 thread.setDaemon(true);
                 if (thread.getPriority() != Thread.NORM_PRIORITY) {
@@ -79,7 +383,7 @@ public class TaskEngine {
                 }
                 return thread;
             }
-        });
+        };
     }
 
     /**
@@ -96,7 +400,24 @@ public class TaskEngine {
      * @throws NullPointerException if task null.
      */
     public Future<?> submit(Runnable task) {
-        return executor.submit(task);
+        return submit(task, Workload.IO);
+    }
+
+    /**
+     * Submits a Runnable task for execution in the pool of a workload and returns
+     * a Future representing that task.
+     *
+     * @param task     the task to submit.
+     * @param workload the kind of work the task does.
+     * @return a Future representing pending completion of the task,
+     *         and whose <tt>get()</tt> method will return <tt>null</tt>
+     *         upon completion.
+     * @throws java.util.concurrent.RejectedExecutionException
+     *                              if the task engine was shut down.
+     * @throws NullPointerException if task null.
+     */
+    public Future<?> submit(Runnable task, Workload workload) {
+        return pools.get(workload).submit(new TimedTask(task));
     }
 
 
@@ -109,9 +430,10 @@ public class TaskEngine {
      *                                  <tt>delay + System.currentTimeMillis()</tt> is negative.
      * @throws IllegalStateException    if task was already scheduled or
      *                                  cancelled, or timer was cancelled.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(new TimerTaskWrapper(task), delay);
+        timer.schedule(new TimerTaskWrapper(task), delay, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -125,7 +447,7 @@ public class TaskEngine {
      *                                  cancelled, timer was cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date time) {
-        timer.schedule(new TimerTaskWrapper(task), time);
+        schedule(task, getDelay(time));
     }
 
     /**
@@ -157,11 +479,10 @@ public class TaskEngine {
      *                                  <tt>delay + System.currentTimeMillis()</tt> is negative.
      * @throws IllegalStateException    if task was already scheduled or
      *                                  cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, delay, period);
+        wrappedTasks.put(task, timer.scheduleWithFixedDelay(new TimerTaskWrapper(task), delay, period, TimeUnit.MILLISECONDS));
     }
 
     /**
@@ -194,9 +515,7 @@ public class TaskEngine {
      *                                  cancelled, timer was cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, firstTime, period);
+        schedule(task, getDelay(firstTime), period);
     }
 
     /**
@@ -231,10 +550,8 @@ public class TaskEngine {
      *                                  cancelled, timer was cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
         try {
-            timer.scheduleAtFixedRate(taskWrapper, delay, period);
+            wrappedTasks.put(task, timer.scheduleAtFixedRate(new TimerTaskWrapper(task), delay, period, TimeUnit.MILLISECONDS));
         }
         catch (Exception e) {
             Log.error(e);
@@ -272,14 +589,7 @@ public class TaskEngine {
      *                                  cancelled, timer was cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        try {
-            timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
-        }
-        catch (Exception e) {
-            Log.error(e);
-        }
+        scheduleAtFixedRate(task, getDelay(firstTime), period);
     }
 
     /**
@@ -288,24 +598,85 @@ public class TaskEngine {
      * @param task the scheduled task to cancel.
      */
     public void cancelScheduledTask(TimerTask task) {
-        TaskEngine.TimerTaskWrapper taskWrapper = wrappedTasks.remove(task);
-        if (taskWrapper != null) {
-            taskWrapper.cancel();
+        ScheduledFuture<?> future = wrappedTasks.remove(task);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the time every kind of task waited and ran, by class name of the tasks.
+     *
+     * @return the statistics of the tasks run so far.
+     */
+    public Map<String, TaskStatistics> getTaskStatistics() {
+        final Map<String, TaskStatistics> statistics = new HashMap<String, TaskStatistics>();
+        for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+            final Timing timing = entry.getValue();
+            statistics.put(entry.getKey(), new TaskStatistics(entry.getKey(), timing.count.get(), timing.totalNanos.get(),
+                    timing.maxNanos.get(), timing.totalWaitNanos.get(), timing.maxWaitNanos.get()));
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the state of the pool of every workload.
+     *
+     * @return the statistics of the pools.
+     */
+    public List<WorkloadStatistics> getWorkloadStatistics() {
+        final List<WorkloadStatistics> statistics = new ArrayList<WorkloadStatistics>();
+        for (Workload workload : Workload.values()) {
+            statistics.add(new WorkloadStatistics(workload, pools.get(workload), rejected.get(workload).get(),
+                    spilled.get(workload).get()));
         }
+        return Collections.unmodifiableList(statistics);
     }
 
     /**
-     * Shuts down the task engine service.
+     * Shuts down the task engine service. Tasks submitted or scheduled afterwards
+     * are rejected with a {@link RejectedExecutionException}.
      */
     public void shutdown() {
-        if (executor != null) {
-            executor.shutdownNow();
-            executor = null;
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdownNow();
+        }
+        timer.shutdownNow();
+    }
+
+    private static long getDelay(Date time) {
+        return Math.max(0, time.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * Runs a task, keeping the time it waited in the queue and the time it ran.
+     */
+    private class TimedTask implements Runnable {
+
+        private final Runnable task;
+        private final long submitted = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
         }
 
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+        public void run() {
+            final long started = System.nanoTime();
+            try {
+                task.run();
+            }
+            finally {
+                final String name = task.getClass().getName();
+                Timing timing = timings.get(name);
+                if (timing == null) {
+                    timing = new Timing();
+                    final Timing previous = timings.putIfAbsent(name, timing);
+                    if (previous != null) {
+                        timing = previous;
+                    }
+                }
+                timing.add(started - submitted, System.nanoTime() - started);
+            }
         }
     }
 
@@ -313,7 +684,7 @@ public class TaskEngine {
      * Wrapper class for a standard TimerTask. It simply executes the TimerTask
      * using the executor's thread pool.
      */
-    private class TimerTaskWrapper extends TimerTask {
+    private class TimerTaskWrapper implements Runnable {
 
         private TimerTask task;
 
@@ -322,7 +693,7 @@ public class TaskEngine {
         }
 
         public void run() {
-            executor.submit(task);
+            submit(task);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,252 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.spark.util;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timing wheel: schedules many items, each due at a single time, with a
+ * single thread. Time is split into ticks, and an item is kept in the bucket of the
+ * tick it is due in, so that scheduling, moving and cancelling an item take
+ * constant time whatever the number of items. Once per tick, the items due are
+ * handed to the handler together.
+ * <p/>
+ * The thread is started when the first item is scheduled, and waits without
+ * ticking while no item is scheduled. If it is interrupted or its handler throws
+ * an error, it is replaced. Items are never handed out before they are due, but
+ * may be up to a tick late.
+ *
+ * @param <T> the type of the items, which are compared with equals().
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Receives the items that are due.
+     */
+    public interface Handler<T> {
+
+        /**
+         * Called on the thread of the wheel with the items that became due in a tick.
+         * The items are no longer scheduled, and may be scheduled again.
+         *
+         * @param items the items due.
+         */
+        void expired(List<T> items);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        long tick;
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    private final String name;
+    private final long tickMillis;
+    private final List<Set<Entry<T>>> buckets;
+    private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+    private final Handler<T> handler;
+
+    /**
+     * The next tick to expire, counted in ticks since the epoch.
+     */
+    private long currentTick;
+    private Thread thread;
+
+    /**
+     * Creates a timing wheel.
+     *
+     * @param name          the name of its thread.
+     * @param tickMillis    the length of a tick in milliseconds.
+     * @param ticksPerWheel the number of buckets. Items due further ahead than a
+     *                      turn of the wheel share the buckets of earlier ticks.
+     * @param handler       the handler of the items due.
+     */
+    public TimingWheel(String name, long tickMillis, int ticksPerWheel, Handler<T> handler) {
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        buckets = new ArrayList<Set<Entry<T>>>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++) {
+            buckets.add(new HashSet<Entry<T>>());
+        }
+    }
+
+    /**
+     * Schedules an item, or moves it if it is scheduled already.
+     *
+     * @param item the item.
+     * @param time when the item is due, in milliseconds since the epoch.
+     */
+    public synchronized void schedule(T item, long time) {
+        if (entries.isEmpty()) {
+            // The wheel did not turn while it was empty.
+            currentTick = Math.max(currentTick, System.currentTimeMillis() / tickMillis);
+        }
+        final long tick = Math.max((time + tickMillis - 1) / tickMillis, currentTick);
+
+        Entry<T> entry = entries.get(item);
+        if (entry == null) {
+            entry = new Entry<T>(item);
+            entries.put(item, entry);
+        }
+        else if (entry.tick == tick) {
+            return;
+        }
+        else {
+            getBucket(entry.tick).remove(entry);
+        }
+        entry.tick = tick;
+        getBucket(tick).add(entry);
+
+        if (thread == null) {
+            startThread();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cancels an item.
+     *
+     * @param item the item.
+     * @return true if the item was scheduled.
+     */
+    public synchronized boolean cancel(T item) {
+        final Entry<T> entry = entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+        getBucket(entry.tick).remove(entry);
+        return true;
+    }
+
+    /**
+     * Returns true if an item is scheduled.
+     *
+     * @param item the item.
+     * @return true if the item is scheduled.
+     */
+    public synchronized boolean isScheduled(T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * Returns the number of items scheduled.
+     *
+     * @return the number of items.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Set<Entry<T>> getBucket(long tick) {
+        return buckets.get((int)(tick % buckets.size()));
+    }
+
+    private void startThread() {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    turn();
+                }
+                finally {
+                    stopped();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replaces the thread once it has stopped, right away if items are scheduled and
+     * otherwise when the next item is.
+     */
+    private synchronized void stopped() {
+        if (thread != Thread.currentThread()) {
+            return;
+        }
+        thread = null;
+        if (!entries.isEmpty()) {
+            startThread();
+        }
+    }
+
+    private void turn() {
+        while (true) {
+            final List<T> expired = new ArrayList<T>();
+            synchronized (this) {
+                try {
+                    while (entries.isEmpty()) {
+                        wait();
+                    }
+                    final long delay = currentTick * tickMillis - System.currentTimeMillis();
+                    if (delay > 0) {
+                        wait(delay);
+                        continue;
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                expire(System.currentTimeMillis() / tickMillis, expired);
+            }
+
+            if (!expired.isEmpty()) {
+                try {
+                    handler.expired(expired);
+                }
+                catch (Exception e) {
+                    Log.error("Error handling " + expired.size() + " items of " + name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the items due up to a tick from the buckets of the ticks passed since the
+     * last turn, visiting every bucket at most once after a long pause.
+     */
+    private void expire(long now, List<T> expired) {
+        final long last = Math.min(now, currentTick + buckets.size() - 1);
+        for (long tick = currentTick; tick <= last; tick++) {
+            final Iterator<Entry<T>> iterator = getBucket(tick).iterator();
+            while (iterator.hasNext()) {
+                final Entry<T> entry = iterator.next();
+                if (entry.tick <= now) {
+                    iterator.remove();
+                    entries.remove(entry.item);
+                    expired.add(entry.item);
+                }
+            }
+        }
+        currentTick = now + 1;
+    }
+}
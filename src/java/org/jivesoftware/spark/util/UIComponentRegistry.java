@@ -41,6 +41,7 @@ import org.jivesoftware.spark.ui.rooms.GroupChatRoom;
 import org.jivesoftware.spark.ui.status.StatusBar;
 import org.jivesoftware.spark.ui.themes.ThemePanel;
 import org.jivesoftware.spark.util.log.Log;
+import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
 
 /**
  * This is a registry for components that may be replaced by plugins. Also
@@ -314,6 +315,31 @@ public final class UIComponentRegistry {
         return instantiate(contactItemClass, aliass, nick, jid);
     }
 
+    /**
+     * Creates a new contact item object to be shown in the contact list. When the
+     * lightweight contact list is enabled and no custom contact item class has been
+     * registered, the contact is created without a UI of its own.
+     *
+     * @param alias
+     * @param nickname
+     * @param fullyQualifiedJID
+     *
+     * @return A new contact item.
+     */
+    public static ContactItem createContactListItem(String alias, String nickname,
+            String fullyQualifiedJID) {
+        if (contactItemClass != ContactItem.class
+                || !SettingsManager.getLocalPreferences().isLightweightContactListEnabled()) {
+            return createContactItem(alias, nickname, fullyQualifiedJID);
+        }
+
+        final String nick = nickname != null ? nickname : "";
+        final String jid = fullyQualifiedJID != null ? fullyQualifiedJID : "";
+        final String aliass = alias != null ? alias : "";
+
+        return new ContactItem(aliass, nick, jid, false);
+    }
+
     /**
      * Retrieves the contact info window instance (this is implemented as a
      * singleton).
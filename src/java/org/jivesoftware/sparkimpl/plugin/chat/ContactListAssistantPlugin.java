@@ -256,10 +256,10 @@ public class ContactListAssistantPlugin implements Plugin {
      * @param move         true if the ContactItem should be moved, otherwise false.
      */
     private void addContactItem(final ContactGroup contactGroup, final ContactItem item, final boolean move) {
-        ContactItem newContact = UIComponentRegistry.createContactItem(item.getAlias(), item.getNickname(), item.getJID());
+        ContactItem newContact = UIComponentRegistry.createContactListItem(item.getAlias(), item.getNickname(), item.getJID());
         newContact.setPresence(item.getPresence());
         newContact.setIcon(item.getIcon());
-        newContact.getNicknameLabel().setFont(item.getNicknameLabel().getFont());
+        newContact.getNicknameLabel().setFont(item.getNicknameFont());
         boolean groupHadAvailableContacts = false;
         
         // Do not copy/move a contact item only if it is not already in the Group.
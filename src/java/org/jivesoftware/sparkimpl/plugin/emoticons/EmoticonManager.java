@@ -47,6 +47,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipFile;
@@ -62,9 +63,11 @@ public class EmoticonManager {
 
 	private static EmoticonManager singleton;
 	private static final Object LOCK = new Object();
+	private static final EmoticonMatcher NO_EMOTICONS = new EmoticonMatcher(Collections.<Emoticon>emptyList());
 
 	private Map<String, Collection<Emoticon>> emoticonMap = new HashMap<String, Collection<Emoticon>>();
-	private Map<String, ImageIcon> imageMap = new HashMap<String, ImageIcon>();
+	private Map<String, ImageIcon> imageMap = new ConcurrentHashMap<String, ImageIcon>();
+	private Map<String, EmoticonMatcher> matcherMap = new HashMap<String, EmoticonMatcher>();
 
 	/**
 	 * The root emoticon directory.
@@ -371,6 +374,7 @@ public class EmoticonManager {
 		}
 
 		emoticonMap.put(packName, emoticons);
+		matcherMap.put(packName, new EmoticonMatcher(emoticons));
 	}
 
 	/**
@@ -426,18 +430,20 @@ public class EmoticonManager {
 	 * @return the Emoticon found. If no emoticon is found, null is returned.
 	 */
 	public Emoticon getEmoticon(String key) {
-		final Collection<Emoticon> emoticons = emoticonMap
-				.get(getActiveEmoticonSetName());
-
-		for (Emoticon emoticon : emoticons) {
-			for (String string : emoticon.getEquivalants()) {
-				if (key.toLowerCase().equals(string.toLowerCase())) {
-					return emoticon;
-				}
-			}
-		}
+		return getMatcher().getEmoticon(key);
+	}
 
-		return null;
+	/**
+	 * Returns the matcher finding the emoticons of the active emoticon pack
+	 * in a message.
+	 * 
+	 * @return the matcher of the active pack, matching nothing if there is
+	 *         no active pack.
+	 */
+	public EmoticonMatcher getMatcher() {
+		final String packName = getActiveEmoticonSetName();
+		final EmoticonMatcher matcher = packName != null ? matcherMap.get(packName) : null;
+		return matcher != null ? matcher : NO_EMOTICONS;
 	}
 
 	/**
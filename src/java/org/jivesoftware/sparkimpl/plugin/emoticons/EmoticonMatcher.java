@@ -0,0 +1,299 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.emoticons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the emoticons of an emoticon pack in a message. All text equivalents of
+ * the pack are compiled into an Aho-Corasick automaton once, so a message is
+ * searched in a single pass no matter how many emoticons the pack has, backing up
+ * no further than the length of an equivalent. Matching ignores case.
+ * <p/>
+ * Emoticons do not need to be surrounded by whitespace, <code>hi:)</code> holds
+ * an emoticon. An equivalent starting or ending with a letter or digit only
+ * matches at a word boundary on that side, so that <code>xd</code> is not found
+ * in <code>xdebug</code>. Overlapping matches are resolved by taking the
+ * leftmost and then the longest one.
+ */
+public class EmoticonMatcher {
+
+    /**
+     * An emoticon found in a message.
+     */
+    public static class Match {
+        private final int start;
+        private final int end;
+        private final Emoticon emoticon;
+
+        Match(int start, int end, Emoticon emoticon) {
+            this.start = start;
+            this.end = end;
+            this.emoticon = emoticon;
+        }
+
+        /**
+         * Returns the index of the first character of the emoticon.
+         *
+         * @return the start index.
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the index after the last character of the emoticon.
+         *
+         * @return the end index.
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * Returns the emoticon found.
+         *
+         * @return the emoticon.
+         */
+        public Emoticon getEmoticon() {
+            return emoticon;
+        }
+
+        public String toString() {
+            return "Match[" + start + "-" + end + ", " + emoticon.getEmoticonName() + "]";
+        }
+    }
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    /**
+     * A state of the automaton: the prefix of one or more equivalents.
+     */
+    private static class Node {
+        final int depth;
+        char[] chars = NO_CHARS;
+        Node[] next = NO_NODES;
+        Node fail;
+        /**
+         * The longest equivalent ending in this state, this node or one reached by failing.
+         */
+        Node output;
+        Emoticon emoticon;
+        boolean wordStart;
+        boolean wordEnd;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+
+        Node get(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        Node add(char c) {
+            Node node = get(c);
+            if (node == null) {
+                node = new Node(depth + 1);
+                final int length = chars.length;
+                final char[] chars = new char[length + 1];
+                final Node[] next = new Node[length + 1];
+                System.arraycopy(this.chars, 0, chars, 0, length);
+                System.arraycopy(this.next, 0, next, 0, length);
+                chars[length] = c;
+                next[length] = node;
+                this.chars = chars;
+                this.next = next;
+            }
+            return node;
+        }
+    }
+
+    private final Node root = new Node(0);
+    private final Map<String, Emoticon> emoticons = new HashMap<String, Emoticon>();
+
+    /**
+     * Compiles the text equivalents of the given emoticons.
+     *
+     * @param emoticons the emoticons of a pack.
+     */
+    public EmoticonMatcher(Collection<Emoticon> emoticons) {
+        for (Emoticon emoticon : emoticons) {
+            for (String equivalent : emoticon.getEquivalants()) {
+                final String key = fold(equivalent);
+                if (key.length() == 0 || this.emoticons.containsKey(key)) {
+                    // The first emoticon with an equivalent wins.
+                    continue;
+                }
+                this.emoticons.put(key, emoticon);
+
+                Node node = root;
+                for (int i = 0; i < key.length(); i++) {
+                    node = node.add(key.charAt(i));
+                }
+                node.emoticon = emoticon;
+                node.wordStart = Character.isLetterOrDigit(key.charAt(0));
+                node.wordEnd = Character.isLetterOrDigit(key.charAt(key.length() - 1));
+            }
+        }
+        link();
+    }
+
+    /**
+     * Sets the failure and output links breadth first, so the links of shorter
+     * prefixes are known when they are needed.
+     */
+    private void link() {
+        final LinkedList<Node> queue = new LinkedList<Node>();
+        root.fail = root;
+        for (Node child : root.next) {
+            child.fail = root;
+            child.output = child.emoticon != null ? child : null;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final Node node = queue.removeFirst();
+            for (int i = 0; i < node.chars.length; i++) {
+                final char c = node.chars[i];
+                final Node child = node.next[i];
+
+                Node fail = node.fail;
+                while (fail != root && fail.get(c) == null) {
+                    fail = fail.fail;
+                }
+                final Node target = fail.get(c);
+                child.fail = target != null ? target : root;
+                child.output = child.emoticon != null ? child : child.fail.output;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Returns the emoticon with the given text equivalent.
+     *
+     * @param key the text equivalent, in any case.
+     * @return the emoticon, or null if no emoticon has this equivalent.
+     */
+    public Emoticon getEmoticon(String key) {
+        return emoticons.get(fold(key));
+    }
+
+    /**
+     * Returns true if the pack has no emoticons.
+     *
+     * @return true if nothing can be matched.
+     */
+    public boolean isEmpty() {
+        return emoticons.isEmpty();
+    }
+
+    /**
+     * Finds the emoticons in a message.
+     *
+     * @param text the message.
+     * @return the emoticons found, in order and without overlaps.
+     */
+    public List<Match> find(CharSequence text) {
+        List<Match> matches = null;
+        Node state = root;
+        int lastEnd = 0;
+        int pendingStart = -1;
+        int pendingEnd = -1;
+        Emoticon pendingEmoticon = null;
+
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = Character.toLowerCase(text.charAt(i));
+            Node next = state.get(c);
+            while (next == null && state != root) {
+                state = state.fail;
+                next = state.get(c);
+            }
+            state = next != null ? next : root;
+
+            final int end = i + 1;
+            for (Node out = state.output; out != null; out = out.fail.output) {
+                final int start = end - out.depth;
+                if (start < lastEnd || (pendingEmoticon != null && start > pendingStart)) {
+                    // Overlaps an accepted emoticon, or starts after the pending one.
+                    continue;
+                }
+                if (!isBoundary(text, start, end, out)) {
+                    continue;
+                }
+                if (pendingEmoticon == null || start < pendingStart || end > pendingEnd) {
+                    pendingStart = start;
+                    pendingEnd = end;
+                    pendingEmoticon = out.emoticon;
+                }
+            }
+
+            // Accept the pending emoticon once no later match can start at or before it.
+            if (pendingEmoticon != null && (end - state.depth > pendingStart || end == length)) {
+                if (matches == null) {
+                    matches = new ArrayList<Match>();
+                }
+                matches.add(new Match(pendingStart, pendingEnd, pendingEmoticon));
+                lastEnd = pendingEnd;
+                pendingEmoticon = null;
+
+                // Matches starting after it were skipped while it was pending, so scan
+                // again from its end.
+                state = root;
+                i = lastEnd - 1;
+            }
+        }
+
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return matches;
+    }
+
+    private static boolean isBoundary(CharSequence text, int start, int end, Node node) {
+        if (node.wordStart && start > 0 && Character.isLetterOrDigit(text.charAt(start - 1))) {
+            return false;
+        }
+        if (node.wordEnd && end < text.length() && Character.isLetterOrDigit(text.charAt(end))) {
+            return false;
+        }
+        return true;
+    }
+
+    private static String fold(String text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            builder.append(Character.toLowerCase(text.charAt(i)));
+        }
+        return builder.toString();
+    }
+}
@@ -26,6 +26,7 @@ import org.jivesoftware.spark.plugin.Plugin;
 import org.jivesoftware.spark.ui.ContactItem;
 import org.jivesoftware.spark.ui.ContactList;
 import org.jivesoftware.spark.util.GraphicUtils;
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -36,9 +37,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -219,32 +218,22 @@ public class FrequentContactsPlugin implements Plugin {
             return Collections.emptyList();
         }
 
-        final File[] transcriptFiles = transcriptDir.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return !name.contains("_current") && !name.equals("conversations.xml");
+        // Conversations are ranked by the number of messages exchanged.
+        final TranscriptStore store = TranscriptStore.getInstance();
+        final Map<String, Integer> messageCounts = new HashMap<String, Integer>();
+        for (String jid : store.getConversations()) {
+            messageCounts.put(jid, store.getMessageCount(jid));
+        }
+        final List<String> jidList = new ArrayList<String>(messageCounts.keySet());
+        Collections.sort(jidList, new Comparator<String>() {
+            public int compare(String item1, String item2) {
+                return messageCounts.get(item2).compareTo(messageCounts.get(item1));
             }
         });
-        final List<File> files = Arrays.asList(transcriptFiles);
-
-        Collections.sort(files, sizeComparator);
 
-        int size = files.size();
-        if (size > 10) {
-            size = 10;
+        if (jidList.size() > 10) {
+            return new ArrayList<String>(jidList.subList(0, 10));
         }
-
-        final List<String> jidList = new ArrayList<String>();
-        for (int i = 0; i < size; i++) {
-            File file = files.get(i);
-            String jid;
-
-            final String fileName = file.getName();
-            final int dot = fileName.lastIndexOf('.');
-            jid = dot > 0 ? fileName.substring(0, dot) : fileName;
-
-            jidList.add(jid);
-        }
-
         return jidList;
     }
 
@@ -294,28 +283,4 @@ public class FrequentContactsPlugin implements Plugin {
         }
     }
 
-    /**
-     * Sorts files by largest to smallest.
-     */
-    final Comparator<File> sizeComparator = new Comparator<File>() {
-        public int compare(File item1, File item2) {
-            long int1 = item1.length();
-            long int2 = item2.length();
-
-            if (int1 == int2) {
-                return 0;
-            }
-
-            if (int1 > int2) {
-                return -1;
-            }
-
-            if (int1 < int2) {
-                return 1;
-            }
-
-            return 0;
-        }
-    };
-
 }
@@ -23,12 +23,12 @@ import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
-import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -68,7 +68,8 @@ public class ChatTranscriptPlugin implements ChatRoomListener {
     private final String dateFormat = ((SimpleDateFormat)SimpleDateFormat.getDateInstance(SimpleDateFormat.FULL)).toPattern();
     private final SimpleDateFormat notificationDateFormatter;
     private final SimpleDateFormat messageDateFormatter;
-    private HashMap<String,Message> lastMessage = new HashMap<String,Message>();
+    // The number of transcript messages of each room persisted so far.
+    private final Map<ChatRoom, Integer> persistedCounts = new HashMap<ChatRoom, Integer>();
     private JDialog Frame;
     private HistoryTranscript transcript = null;
     /**
@@ -182,8 +183,7 @@ public class ChatTranscriptPlugin implements ChatRoomListener {
 
         final String jid = room.getRoomname();
 
-        File transcriptFile = ChatTranscripts.getTranscriptFile(jid);
-        if (!transcriptFile.exists()) {
+        if (!ChatTranscripts.hasTranscript(jid)) {
             return;
         }
 
@@ -201,6 +201,7 @@ public class ChatTranscriptPlugin implements ChatRoomListener {
         if (room.getChatType() == Message.Type.chat) {
             persistChatRoom(room);
         }
+        persistedCounts.remove(room);
     }
 
     public void persistChatRoom(final ChatRoom room) {
@@ -212,20 +213,15 @@ public class ChatTranscriptPlugin implements ChatRoomListener {
         final String jid = room.getRoomname();
 
         final List<Message> transcripts = room.getTranscripts();
+        final int count = room.getTranscriptCount();
+        final Integer persisted = persistedCounts.get(room);
+        // Messages are counted rather than looked up, since the last one persisted
+        // may have been trimmed from the transcript already.
+        final int first = Math.max(0, (persisted != null ? persisted : 0) - (count - transcripts.size()));
+        persistedCounts.put(room, count);
+
         ChatTranscript transcript = new ChatTranscript();
-        int count = 0;
-        int i = 0;
-    	if (lastMessage.get(jid) != null)
-    	{
-    		count = transcripts.indexOf(lastMessage.get(jid)) + 1;
-    	}
-        for (Message message : transcripts) {
-        	if (i < count)
-        	{
-            	i++;
-        		continue;
-        	}
-      	  	lastMessage.put(jid,message);
+        for (Message message : transcripts.subList(first, transcripts.size())) {
             HistoryMessage history = new HistoryMessage();
             history.setTo(message.getTo());
             history.setFrom(message.getFrom());
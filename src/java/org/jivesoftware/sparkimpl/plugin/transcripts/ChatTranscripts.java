@@ -22,23 +22,16 @@ package org.jivesoftware.sparkimpl.plugin.transcripts;
 import org.jivesoftware.spark.SparkManager;
 import org.jivesoftware.spark.UserManager;
 import org.jivesoftware.spark.util.StringUtils;
-import org.jivesoftware.spark.util.log.Log;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
 import java.util.Date;
 
 
@@ -63,97 +56,23 @@ public final class ChatTranscripts {
     }
 
     /**
-     * Appends the given ChatTranscript to the transcript file associated with a JID.
+     * Appends the given ChatTranscript to the transcript store associated with a JID.
      *
      * @param jid        the jid of the user.
      * @param transcript the ChatTranscript.
      */
     public static void appendToTranscript(String jid, ChatTranscript transcript) {
-        final File transcriptFile = getTranscriptFile(jid);
-
-        // Write Full Transcript, appending the messages.
-        writeToFile(transcriptFile, transcript.getMessages(), true);
-
-        // Write to current history File
-        final File currentHistoryFile = getCurrentHistoryFile(jid);
-        ChatTranscript tempTranscript = getCurrentChatTranscript(jid);
-        for (HistoryMessage message : transcript.getMessages()) {
-            tempTranscript.addHistoryMessage(message);
-        }
-        writeToFile(currentHistoryFile, tempTranscript.getNumberOfEntries(20), false);
+        TranscriptStore.getInstance().append(jid, transcript.getMessages());
     }
 
-    private static void writeToFile(File transcriptFile, Collection<HistoryMessage> messages, boolean append) {
-        final StringBuilder builder = new StringBuilder();
-        
-        final String one = " ";
-        final String two = "  ";
-        final String three = "   ";
-
-        // Handle new transcript file.
-        if (!transcriptFile.exists() || !append) {
-            builder.append("<transcript>\n");
-            builder.append(one+"<messages>\n");
-        }
-
-        for (HistoryMessage m : messages) {
-            builder.append(two+"<message>\n");
-            builder.append(three+"<to>").append(m.getTo()).append("</to>\n");
-            builder.append(three+"<from>").append(m.getFrom()).append("</from>\n");
-            builder.append(three+"<body>").append(StringUtils.escapeForXML(m.getBody())).append("</body>\n");
-
-            String dateString = FORMATTER.format(m.getDate());
-            builder.append(three+"<date>").append(dateString).append("</date>\n");
-            builder.append(two+"</message>\n");
-        }
-
-        if (!transcriptFile.exists() || !append) {
-            builder.append(one+"</messages>\n");
-            builder.append("</transcript>");
-        }
-
-
-        if (!transcriptFile.exists() || !append) {
-            // Write out new File
-            try {
-                transcriptFile.getParentFile().mkdirs();
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(transcriptFile), "UTF-8"));
-                out.write(builder.toString());
-                out.close();
-            }
-            catch (IOException e) {
-                Log.error(e);
-            }
-            return;
-        }
-
-        // Append to File
-        try {
-            final RandomAccessFile raf = new RandomAccessFile(transcriptFile, "rw");
-
-            // We want to append near the end of the document as the last
-            // child in the transcript.
-            final String endTag = " </messages>\n</transcript>";
-            
-          String line =  raf.readLine();
-          if(line.contains("</messages></transcript>"))
-          {
-              // replace the old one with the new one
-              line = line.replace("</messages></transcript>",endTag);
-              raf.write(line.getBytes("UTF-8"));
-          }
-
-            builder.append(endTag);
-
-            raf.seek(transcriptFile.length() - endTag.length());
-
-            // Append to the end
-            raf.write(builder.toString().getBytes("UTF-8"));
-            raf.close();
-        }
-        catch (IOException e) {
-            Log.error(e);
-        }
+    /**
+     * Returns true if any chat history has been recorded for a JID.
+     *
+     * @param jid the jid of the user.
+     * @return true if there is history for the user.
+     */
+    public static boolean hasTranscript(String jid) {
+        return TranscriptStore.getInstance().hasTranscript(jid);
     }
 
     /**
@@ -163,7 +82,7 @@ public final class ChatTranscripts {
      * @return the ChatTranscript (last 20 messages max).
      */
     public static ChatTranscript getCurrentChatTranscript(String jid) {
-        return getTranscript(getCurrentHistoryFile(jid));
+        return TranscriptStore.getInstance().getLastMessages(jid, 20);
     }
 
     /**
@@ -173,11 +92,11 @@ public final class ChatTranscripts {
      * @return the ChatTranscript.
      */
     public static ChatTranscript getChatTranscript(String jid) {
-        return getTranscript(getTranscriptFile(jid));
+        return TranscriptStore.getInstance().getTranscript(jid);
     }
 
     /**
-     * Reads in the transcript file using the Xml Pull Parser.
+     * Reads in a transcript file written by earlier versions of Spark using the Xml Pull Parser.
      *
      * @param transcriptFile the transcript file to read.
      * @return the ChatTranscript.
@@ -213,10 +132,10 @@ public final class ChatTranscripts {
     }
 
     /**
-     * Returns the settings file.
+     * Returns the transcript file written by earlier versions of Spark.
      *
-     * @param jid the
-     * @return the settings file.
+     * @param jid the jid of the user.
+     * @return the legacy transcript file.
      */
     public static File getTranscriptFile(String jid) {
         // Unescape Node
@@ -226,7 +145,7 @@ public final class ChatTranscripts {
     }
 
     /**
-     * Returns the current transcript (20 messages) for a particular jid.
+     * Returns the current transcript (20 messages) written by earlier versions of Spark for a particular jid.
      *
      * @param jid the jid of the user.
      * @return the current transcript file.
@@ -15,9 +15,12 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -86,11 +89,28 @@ public class HistoryTranscript extends SwingWorker {
 	private final JScrollPane pane = new JScrollPane(window);
 	private final JFrame frame = new JFrame(Res.getString("title.history.for", jid));
 	private final StringBuilder builder = new StringBuilder();
-	private List<ChatTranscript> searchFilteredList = new ArrayList<ChatTranscript>();
-	private List<ChatTranscript> dateFilteredUnfilteredList = new ArrayList<ChatTranscript>();
+	private List<Page> searchFilteredList = new ArrayList<Page>();
+	private List<Page> dateFilteredUnfilteredList = new ArrayList<Page>();
+	private final Map<Page, List<HistoryMessage>> pageCache = new LinkedHashMap<Page, List<HistoryMessage>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 4181256290432571862L;
+
+		protected boolean removeEldestEntry(Map.Entry<Page, List<HistoryMessage>> eldest) {
+			return size() > PAGE_CACHE_SIZE;
+		}
+	};
     private AtomicBoolean isHistoryLoaded = new AtomicBoolean(false);
     private boolean sortDateAsc = false; 
 
+	/**
+	 * The number of messages on a page when the history is not split by period
+	 */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * The current page and the pages on either side of it are kept
+	 */
+	private static final int PAGE_CACHE_SIZE = 3;
+
 
 	/**
 	 * Open the Transcript with the given formatter.
@@ -279,7 +299,7 @@ public class HistoryTranscript extends SwingWorker {
 			token.acquire();
 
 			if ((searchFilteredList.size() > 0) && (pageIndex <= searchFilteredList.size())) {
-				builder.append(buildString(searchFilteredList.get(pageIndex-1).getMessages()));
+				builder.append(buildString(getPage(searchFilteredList.get(pageIndex-1))));
 
 			}else{
 				// Handle no history
@@ -292,6 +312,7 @@ public class HistoryTranscript extends SwingWorker {
 			builder.replace(0, builder.length(), "");
 			if (window.getText().length() > 0) window.setCaretPosition(0);
 			pageCounter.setText(pageIndex + " / " + maxPages);
+			prefetch(pageIndex - 2, pageIndex);
 			token.release();
 		} catch (InterruptedException e) {
 			Log.error(e);
@@ -299,6 +320,52 @@ public class HistoryTranscript extends SwingWorker {
 		}
 	}
 
+	/**
+	 * Returns the messages of a page, reading them from the transcript
+	 * store unless they have been read before.
+	 * @param page the page to read
+	 * @return the messages of the page in display order
+	 */
+	private List<HistoryMessage> getPage(Page page) {
+		synchronized (pageCache) {
+			List<HistoryMessage> messages = pageCache.get(page);
+			if (messages != null) return messages;
+		}
+
+		String bareJID = StringUtils.parseBareAddress(jid);
+		List<HistoryMessage> messages;
+		if (page.positions != null) {
+			messages = TranscriptStore.getInstance().getMessages(bareJID, page.positions);
+		} else {
+			messages = TranscriptStore.getInstance().getMessages(bareJID, page.start, page.end);
+		}
+		if (!sortDateAsc) Collections.reverse(messages);
+
+		synchronized (pageCache) {
+			pageCache.put(page, messages);
+		}
+		return messages;
+	}
+
+	/**
+	 * Reads the given pages in the background so that paging to
+	 * them does not have to wait for the transcript store.
+	 * @param indexes the indexes of the pages in the current list
+	 */
+	private void prefetch(int... indexes) {
+		final List<Page> pages = new ArrayList<Page>();
+		for (int index : indexes) {
+			if (index >= 0 && index < searchFilteredList.size()) pages.add(searchFilteredList.get(index));
+		}
+		if (pages.isEmpty()) return;
+
+		TaskEngine.getInstance().submit(new Runnable() {
+			public void run() {
+				for (Page page : pages) getPage(page);
+			}
+		});
+	}
+
 	/**
 	 * This class will run every time a search has startet on the messages, saved in the transcript
 	 * or the time period has been changed
@@ -308,120 +375,97 @@ public class HistoryTranscript extends SwingWorker {
 	private class timerTranscript extends TimerTask {
 
 		/**
-		 * This function check if the date of the new message is in the same period as the date
-		 * of the old message.
-		 * 
-		 * At the moment, there are three different time periods:
-		 * - one week
-		 * - three weeks
-		 * - one month
-		 * @param newDate the date gained from new message
-		 * @param oldDate the date gained from new message
-		 * @return true if both dates in the same period, false if not
+		 * Returns the key of the chosen period for a run of messages.
+		 * Consecutive runs with the same key are shown on the same page.
+		 * @param period the run of messages
+		 * @return the key of the period
 		 */
-		private boolean dateInPeriod(Date newDate, Date oldDate){
-			boolean result = false;
-			Calendar cal = Calendar.getInstance();
-			cal.setTime(newDate);
-			long yearNew = Math.round((double)cal.get(Calendar.YEAR));
-			long monthNew = Math.round((double)cal.get(Calendar.MONTH));	
-
-			cal.setTime(oldDate);
-			long yearOld = Math.round((double)cal.get(Calendar.YEAR));
-			long monthOld = Math.round((double)cal.get(Calendar.MONTH));
-
+		private int getPeriodKey(TranscriptPeriod period){
 			if (searchPeriod.equals(period_oneMonth)) { 
-				// for one month, we only check if the month and the year is equal
-				if ((monthOld == monthNew) && (yearOld == yearNew)) result = true;
+				return period.getMonth();
 			}else if (searchPeriod.equals(period_oneYear)) {
-				// for one year, we only check if the year is the same
-				if ((yearOld == yearNew)) result = true;
-			}else if (searchPeriod.equals(period_noPeriod)) {
-				// for unfiltered list, we return true all the time
-				result = true;
+				return period.getYear();
 			}
-			return result;
+			return 0;
 		}
 
 		/**
-		 * Sort the messages by the choosen period of time
-		 * @param transcript the transcript to sort
-		 * @return List of transcript sorted by period. each transcript contains the messages of the giving period 
+		 * Split the transcript into pages by the choosen period of time, without reading any message
+		 * @param periods the runs of messages sent on the same day
+		 * @return List of pages sorted by period. each page covers the messages of the giving period 
 		 */
-		private List<ChatTranscript> getDateSortedTranscript(ChatTranscript transcript){
-			List<ChatTranscript> tmpList = new ArrayList<ChatTranscript>();
-
-			if (transcript.size() > 0){
-				ChatTranscript sortedTranscript = new ChatTranscript();
-				HistoryMessage msg = null;
-
-				// retrieve the first message
-
-				Date oldDate = null;
-                Integer iteratorValue = 0;
-                Integer startValue = 0;
-                Integer endValue = 0;
-
-                sortDateAsc = pref.getChatHistoryAscending();
-
-				if (sortDateAsc){
-				    oldDate = transcript.getMessage(0).getDate();
-				    iteratorValue = 1;
-				    startValue = 0;
-				    endValue = transcript.size();
-				}else{
-				    oldDate = transcript.getMessage(transcript.size()-1).getDate();
-                    iteratorValue = -1;
-                    startValue = transcript.size()-1;
-                    endValue = -1;
+		private List<Page> getDateSortedPages(List<TranscriptPeriod> periods){
+			List<Page> tmpList = new ArrayList<Page>();
+			boolean noPeriod = searchPeriod.equals(period_noPeriod);
+
+			Page page = null;
+			int key = 0;
+			for (TranscriptPeriod period : periods) {
+				if (noPeriod) {
+					// without a period, split the history into pages of equal size
+					for (int start = period.getStart(); start < period.getEnd(); ) {
+						if (page == null || page.end - page.start >= PAGE_SIZE) {
+							page = new Page(start, start);
+							tmpList.add(page);
+						}
+						int end = Math.min(period.getEnd(), page.start + PAGE_SIZE);
+						page.end = end;
+						start = end;
+					}
+				} else if (page == null || getPeriodKey(period) != key) {
+					key = getPeriodKey(period);
+					page = new Page(period.getStart(), period.getEnd());
+					tmpList.add(page);
+				} else {
+					page.end = period.getEnd();
 				}
+			}
 
-				Calendar cal = Calendar.getInstance();
-				cal.setTime(oldDate);
-				Date newDate;
-
-				ChatTranscript history = new ChatTranscript();
-				boolean handled = true;
-
-				for(int i = startValue; i != endValue; i += iteratorValue){
-				    msg = transcript.getMessage(i);
-                    // get the date of the current message
-                    newDate = msg.getDate();
- 
-                    if (! dateInPeriod(newDate, oldDate)){
-                        history = new ChatTranscript();
-                        history.setList(sortedTranscript.getMessages());			    
-
-                        // add the messages to the list
-                        if (history.getMessages().size() > 0) tmpList.add(history);
-
-                        // we have handled this entry
-                        handled = true;
-
-                        oldDate = msg.getDate();
-                        sortedTranscript = new ChatTranscript();
-                    }
-                    sortedTranscript.addHistoryMessage(msg);
-                    // the latest entries not yet saved to the list
-                    handled = false;     
-				}
+			sortDateAsc = pref.getChatHistoryAscending();
+			if (!sortDateAsc) Collections.reverse(tmpList);
+			return tmpList;
+		}
 
-				// if the latest entries where not yet handled, do it now
-				if (!handled) {
-					history = new ChatTranscript();
-					history.setList(sortedTranscript.getMessages());
-					if (history.getMessages().size() > 0) tmpList.add(history);
-				}
+		/**
+		 * Narrow the pages down to the messages matching the search
+		 * @param pages the pages of the chosen period
+		 * @param searchString the search
+		 * @return the pages containing matches, only holding the matching messages
+		 */
+		private List<Page> getSearchFilteredPages(List<Page> pages, String searchString){
+			List<Page> tmpList = new ArrayList<Page>();
+			List<Integer> hits = TranscriptStore.getInstance().search(StringUtils.parseBareAddress(jid), searchString);
+
+			// the hits are sorted with the most recent first
+			int[] positions = new int[hits.size()];
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = hits.get(positions.length - 1 - i);
 			}
 
+			for (Page page : pages) {
+				int from = lowerBound(positions, page.start);
+				int to = lowerBound(positions, page.end);
+				if (to > from) {
+					Page filtered = new Page(page.start, page.end);
+					filtered.positions = Arrays.copyOfRange(positions, from, to);
+					tmpList.add(filtered);
+				}
+			}
 			return tmpList;
 		}
 
+		private int lowerBound(int[] positions, int value) {
+			int index = Arrays.binarySearch(positions, value);
+			return index < 0 ? -index - 1 : index;
+		}
+
 		@Override
 		public void run() {
 			if (! isHistoryLoaded.get()){
 				// if we have to load the history
-				dateFilteredUnfilteredList = getDateSortedTranscript((ChatTranscript) get());
+				@SuppressWarnings("unchecked")
+				List<TranscriptPeriod> periods = (List<TranscriptPeriod>) get();
+				dateFilteredUnfilteredList = getDateSortedPages(periods);
 
 				try {
 					token.acquire();
@@ -442,17 +486,18 @@ public class HistoryTranscript extends SwingWorker {
 					|| searchField.getText().equals(""))
 				searchString = null;
 
-			List<ChatTranscript> tmpList = new ArrayList<ChatTranscript>();
-			ChatTranscript tmpTranscript = null;
-
-			for (int i = 0; i < dateFilteredUnfilteredList.size(); i++){
-				tmpTranscript = new ChatTranscript();
-				tmpTranscript.setList(dateFilteredUnfilteredList.get(i).getMessage(searchString));
-				if (tmpTranscript.size() > 0) tmpList.add(tmpTranscript);
+			List<Page> tmpList;
+			if (searchString == null) {
+				tmpList = dateFilteredUnfilteredList;
+			} else {
+				tmpList = getSearchFilteredPages(dateFilteredUnfilteredList, searchString);
 			}
 
 			try {
 				token.acquire();
+				synchronized (pageCache) {
+					pageCache.clear();
+				}
 				searchFilteredList = tmpList;
 				pageIndex = (searchFilteredList.size() > 0) ? 1 : 0;
 				maxPages = searchFilteredList.size();
@@ -465,6 +510,21 @@ public class HistoryTranscript extends SwingWorker {
 		}	
 	}
 
+	/**
+	 * A page of the history, covering the messages with positions in
+	 * [start, end) or only the given positions within that range
+	 */
+	private static class Page {
+		private final int start;
+		private int end;
+		private int[] positions;
+
+		private Page(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
 	/**
 	 * Check if the given String represents a valid period
 	 * @param p the period, that have to be checked
@@ -642,7 +702,7 @@ public class HistoryTranscript extends SwingWorker {
 	@Override
 	public Object construct() {
 		String bareJID = StringUtils.parseBareAddress(jid);
-		return ChatTranscripts.getChatTranscript(bareJID);
+		return TranscriptStore.getInstance().getPeriods(bareJID);
 	}
 
 }
@@ -0,0 +1,189 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Keeps track of which days the messages of a {@link TranscriptLog} were sent on,
+ * so that a history viewer can page through a transcript by day, month or year
+ * without reading it.
+ * <p/>
+ * The runs are stored as fixed size records. Appending messages rewrites at most
+ * the last record before adding new ones, so the cost does not depend on the
+ * length of the history.
+ */
+final class TranscriptDays {
+
+    private static final String DAYS_FILE = "days";
+    private static final int RECORD_SIZE = 12;
+
+    private final File file;
+    private final Calendar calendar = Calendar.getInstance();
+    private List<TranscriptPeriod> periods;
+
+    TranscriptDays(File directory) {
+        this.file = new File(directory, DAYS_FILE);
+    }
+
+    /**
+     * Returns the day runs, loading and repairing them against the log if needed.
+     * Must be called with the log locked.
+     *
+     * @param log the log the runs describe.
+     * @return the runs in transcript order.
+     */
+    List<TranscriptPeriod> getPeriods(TranscriptLog log) {
+        if (periods == null) {
+            load(log);
+        }
+        return periods;
+    }
+
+    /**
+     * Records the days of messages appended at the given position.
+     * Must be called with the log locked, once the messages were written to the log.
+     *
+     * @param log      the log the messages are appended to.
+     * @param position the position of the first message.
+     * @param messages the messages.
+     * @throws IOException if the runs could not be written.
+     */
+    void append(TranscriptLog log, int position, Iterable<HistoryMessage> messages) throws IOException {
+        if (periods == null) {
+            load(log);
+        }
+        final int covered = periods.isEmpty() ? 0 : periods.get(periods.size() - 1).getEnd();
+        if (covered != position) {
+            // Out of step with the log, rebuild from the log on next use.
+            periods = null;
+            return;
+        }
+
+        final int firstChanged = Math.max(0, periods.size() - 1);
+        for (HistoryMessage message : messages) {
+            long time = message.getDate() != null ? message.getDate().getTime() : System.currentTimeMillis();
+            add(TranscriptPeriod.toDay(calendar, time), position++);
+        }
+        write(firstChanged);
+    }
+
+    /**
+     * Forgets the runs, after the log was deleted.
+     */
+    void reset() {
+        periods = null;
+    }
+
+    private void add(int day, int position) {
+        final TranscriptPeriod last = periods.isEmpty() ? null : periods.get(periods.size() - 1);
+        if (last != null && last.getDay() == day) {
+            last.extend(1);
+        }
+        else {
+            periods.add(new TranscriptPeriod(day, position, 1));
+        }
+    }
+
+    private void write(int from) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long)from * RECORD_SIZE);
+            raf.seek((long)from * RECORD_SIZE);
+            for (int i = from; i < periods.size(); i++) {
+                TranscriptPeriod period = periods.get(i);
+                raf.writeInt(period.getDay());
+                raf.writeInt(period.getStart());
+                raf.writeInt(period.getCount());
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private void load(TranscriptLog log) {
+        periods = new ArrayList<TranscriptPeriod>();
+        int covered = 0;
+        if (file.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    while (true) {
+                        int day = in.readInt();
+                        int start = in.readInt();
+                        int count = in.readInt();
+                        if (start != covered || count <= 0) {
+                            break;
+                        }
+                        periods.add(new TranscriptPeriod(day, start, count));
+                        covered += count;
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (EOFException e) {
+                // End of the runs, possibly a torn record.
+            }
+            catch (IOException e) {
+                Log.error("Unable to read " + file, e);
+            }
+        }
+
+        final int total = log.getMessageCount();
+        try {
+            if (covered > total) {
+                // The runs are ahead of the log after a failed append.
+                while (!periods.isEmpty() && periods.get(periods.size() - 1).getStart() >= total) {
+                    periods.remove(periods.size() - 1);
+                }
+                if (!periods.isEmpty()) {
+                    TranscriptPeriod last = periods.remove(periods.size() - 1);
+                    periods.add(new TranscriptPeriod(last.getDay(), last.getStart(), total - last.getStart()));
+                }
+                write(0);
+            }
+            else if (covered < total || file.length() != (long)periods.size() * RECORD_SIZE) {
+                final int firstChanged = Math.max(0, periods.size() - 1);
+                int position = covered;
+                for (HistoryMessage message : log.read(covered, total)) {
+                    add(TranscriptPeriod.toDay(calendar, message.getDate().getTime()), position++);
+                }
+                write(firstChanged);
+            }
+        }
+        catch (IOException e) {
+            Log.error("Unable to repair " + file, e);
+        }
+    }
+}
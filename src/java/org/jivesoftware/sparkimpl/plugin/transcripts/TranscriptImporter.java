@@ -0,0 +1,72 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Moves transcripts written by older versions of Spark into the
+ * {@link TranscriptStore}. The XML files are left untouched so that
+ * history is not lost should the user go back to an older client.
+ */
+final class TranscriptImporter {
+
+    /**
+     * Messages are copied in batches of this size to keep segments evenly filled.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private TranscriptImporter() {
+    }
+
+    /**
+     * Imports <code>transcripts/&lt;jid&gt;.xml</code> into an empty log.
+     * Does nothing if there is no such file. If the import fails, whatever was
+     * imported is removed again, so that the import can be retried.
+     *
+     * @param legacyFile the transcript file of the conversation.
+     * @param log        the empty log to import into.
+     * @return false if the import failed.
+     */
+    static boolean importLegacyTranscript(File legacyFile, TranscriptLog log) {
+        if (!legacyFile.exists()) {
+            return true;
+        }
+
+        final List<HistoryMessage> messages = ChatTranscripts.getTranscript(legacyFile).getMessages();
+        try {
+            for (int i = 0; i < messages.size(); i += BATCH_SIZE) {
+                log.append(messages.subList(i, Math.min(messages.size(), i + BATCH_SIZE)));
+            }
+            log.compact();
+            Log.debug("Imported " + messages.size() + " messages from " + legacyFile);
+            return true;
+        }
+        catch (IOException e) {
+            Log.error("Unable to import transcript " + legacyFile, e);
+            log.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the messages of a single {@link TranscriptLog}. Every
+ * term maps to the ascending positions of the messages containing it, so a
+ * query only touches the postings of its own terms instead of every message.
+ * <p/>
+ * The index is kept on disk as an append-only journal of the distinct terms
+ * of each message and is only loaded into memory the first time a search is
+ * run. Anything the journal is missing, such as history imported from older
+ * versions of Spark, is indexed from the log at that point.
+ */
+final class TranscriptIndex {
+
+    private static final String JOURNAL_FILE = "terms";
+
+    /**
+     * Upper bound for a single journal record, used to detect torn writes.
+     */
+    private static final int MAX_RECORD_TERMS = 64 * 1024;
+
+    private final File directory;
+    private final TranscriptLog log;
+
+    private TreeMap<String, Postings> terms;
+    private int indexedCount;
+
+    TranscriptIndex(File directory, TranscriptLog log) {
+        this.directory = directory;
+        this.log = log;
+    }
+
+    /**
+     * Adds freshly appended messages to the index.
+     *
+     * @param position the position of the first message in the log.
+     * @param messages the messages, in log order.
+     */
+    synchronized void add(int position, Collection<HistoryMessage> messages) {
+        if (terms != null && position != indexedCount) {
+            // Messages reached the log without passing through here; catch up on the next search.
+            terms = null;
+        }
+
+        final List<Set<String>> termSets = new ArrayList<Set<String>>(messages.size());
+        for (HistoryMessage message : messages) {
+            termSets.add(tokenize(message.getBody()));
+        }
+        try {
+            appendToJournal(position, termSets);
+        }
+        catch (IOException e) {
+            Log.error("Unable to update transcript index in " + directory, e);
+            terms = null;
+            return;
+        }
+
+        if (terms != null) {
+            for (Set<String> messageTerms : termSets) {
+                addToMemory(terms, indexedCount++, messageTerms);
+            }
+        }
+    }
+
+    /**
+     * Finds the messages matching a query. Words must all occur in a message, where
+     * each word also matches longer words it is a prefix of; text in double quotes
+     * must occur as a phrase.
+     *
+     * @param query the query.
+     * @return the positions of matching messages, most recent first.
+     */
+    synchronized List<Integer> search(String query) {
+        final List<Integer> result = new ArrayList<Integer>();
+        final List<String> words = new ArrayList<String>();
+        final List<List<String>> phrases = new ArrayList<List<String>>();
+        parseQuery(query, words, phrases);
+        if (words.isEmpty() && phrases.isEmpty()) {
+            return result;
+        }
+
+        ensureLoaded();
+
+        int[] candidates = null;
+        for (String word : words) {
+            candidates = intersect(candidates, prefixPostings(word));
+        }
+        for (List<String> phrase : phrases) {
+            for (String term : phrase) {
+                Postings postings = terms.get(term);
+                candidates = intersect(candidates, postings != null ? postings.toArray() : new int[0]);
+            }
+        }
+        if (candidates == null) {
+            return result;
+        }
+
+        for (int i = candidates.length - 1; i >= 0; i--) {
+            result.add(candidates[i]);
+        }
+        if (!phrases.isEmpty()) {
+            verifyPhrases(result, phrases);
+        }
+        return result;
+    }
+
+    /**
+     * Splits text into lower case terms made of letters and digits.
+     *
+     * @param text the text to split.
+     * @return the distinct terms in order of first appearance.
+     */
+    static Set<String> tokenize(String text) {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (String term : tokenizeSequence(text)) {
+            result.add(term);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the words of a query, including those of its phrases.
+     *
+     * @param query the query.
+     * @return the words, in the order of the query.
+     */
+    static List<String> getQueryWords(String query) {
+        final List<String> words = new ArrayList<String>();
+        final List<List<String>> phrases = new ArrayList<List<String>>();
+        parseQuery(query, words, phrases);
+        for (List<String> phrase : phrases) {
+            words.addAll(phrase);
+        }
+        return words;
+    }
+
+    private static List<String> tokenizeSequence(String text) {
+        final List<String> result = new ArrayList<String>();
+        if (text == null) {
+            return result;
+        }
+        final String lower = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean part = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (part && start < 0) {
+                start = i;
+            }
+            else if (!part && start >= 0) {
+                result.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    private static void parseQuery(String query, List<String> words, List<List<String>> phrases) {
+        if (query == null) {
+            return;
+        }
+        final String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            final List<String> tokens = tokenizeSequence(parts[i]);
+            // Odd parts are between quotes; a single quoted word is just a word.
+            if (i % 2 == 1 && tokens.size() > 1) {
+                phrases.add(tokens);
+            }
+            else {
+                words.addAll(tokens);
+            }
+        }
+    }
+
+    private int[] prefixPostings(String prefix) {
+        final SortedMap<String, Postings> matches = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (matches.size() == 1) {
+            return matches.values().iterator().next().toArray();
+        }
+
+        final Postings union = new Postings();
+        for (Postings postings : matches.values()) {
+            union.addAll(postings);
+        }
+        final int[] result = union.toArray();
+        Arrays.sort(result);
+        return dedup(result);
+    }
+
+    private void verifyPhrases(List<Integer> positions, List<List<String>> phrases) {
+        final int[] ascending = new int[positions.size()];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = positions.get(ascending.length - 1 - i);
+        }
+
+        final List<HistoryMessage> messages = log.read(ascending);
+        if (messages.size() != ascending.length) {
+            // The log could not be read completely; rather show too much than too little.
+            return;
+        }
+        positions.clear();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            final List<String> sequence = tokenizeSequence(messages.get(i).getBody());
+            boolean all = true;
+            for (List<String> phrase : phrases) {
+                if (Collections.indexOfSubList(sequence, phrase) < 0) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                positions.add(ascending[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the index is in memory, and searching does not read the history.
+     *
+     * @return true if the index is loaded.
+     */
+    synchronized boolean isLoaded() {
+        return terms != null;
+    }
+
+    /**
+     * Reads the journal and indexes the messages it is missing from the log. This is
+     * the slow part of loading the index and needs neither the log nor the index to
+     * be locked.
+     *
+     * @return what was read, to hand to {@link #load(Snapshot)}.
+     */
+    Snapshot read() {
+        final Snapshot snapshot = new Snapshot();
+        final File journal = getJournalFile();
+        if (journal.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+                try {
+                    while (true) {
+                        int position = in.readInt();
+                        int count = in.readInt();
+                        if (position != snapshot.count || count < 0 || count > MAX_RECORD_TERMS) {
+                            break;
+                        }
+                        long length = 8;
+                        final List<String> messageTerms = new ArrayList<String>(count);
+                        for (int i = 0; i < count; i++) {
+                            byte[] term = new byte[in.readUnsignedShort()];
+                            in.readFully(term);
+                            messageTerms.add(new String(term, "UTF-8"));
+                            length += 2 + term.length;
+                        }
+                        addToMemory(snapshot.terms, position, messageTerms);
+                        snapshot.count = position + 1;
+                        snapshot.journalLength += length;
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (EOFException e) {
+                // End of the journal, possibly a torn record.
+            }
+            catch (IOException e) {
+                Log.error("Unable to read transcript index in " + directory, e);
+            }
+        }
+
+        snapshot.journalCount = snapshot.count;
+        final int total = log.getMessageCount();
+        if (snapshot.count < total) {
+            for (HistoryMessage message : log.read(snapshot.count, total)) {
+                final Set<String> messageTerms = tokenize(message.getBody());
+                snapshot.missing.add(messageTerms);
+                addToMemory(snapshot.terms, snapshot.count++, messageTerms);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes what was read the index, writing the messages missing from the journal
+     * and indexing those appended since it was read. Must be called with the log
+     * locked.
+     *
+     * @param snapshot what was read by {@link #read()}.
+     */
+    synchronized void load(Snapshot snapshot) {
+        if (terms != null) {
+            return;
+        }
+        terms = snapshot.terms;
+        indexedCount = snapshot.count;
+
+        try {
+            // Records appended to the journal in the meantime follow the gap of the
+            // missing messages, drop them and index those messages from the log.
+            final File journal = getJournalFile();
+            if (journal.exists() && journal.length() != snapshot.journalLength) {
+                final RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+                try {
+                    raf.setLength(snapshot.journalLength);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            appendToJournal(snapshot.journalCount, snapshot.missing);
+
+            final int total = log.getMessageCount();
+            if (indexedCount < total) {
+                final List<Set<String>> termSets = new ArrayList<Set<String>>(total - indexedCount);
+                for (HistoryMessage message : log.read(indexedCount, total)) {
+                    termSets.add(tokenize(message.getBody()));
+                }
+                appendToJournal(indexedCount, termSets);
+                for (Set<String> messageTerms : termSets) {
+                    addToMemory(terms, indexedCount++, messageTerms);
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.error("Unable to repair transcript index in " + directory, e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (terms == null) {
+            load(read());
+        }
+    }
+
+    private static void addToMemory(TreeMap<String, Postings> terms, int position, Collection<String> messageTerms) {
+        for (String term : messageTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            postings.add(position);
+        }
+    }
+
+    private void appendToJournal(int position, List<Set<String>> termSets) throws IOException {
+        if (termSets.isEmpty()) {
+            return;
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getJournalFile(), true)));
+        try {
+            int current = position;
+            for (Set<String> messageTerms : termSets) {
+                out.writeInt(current++);
+                out.writeInt(messageTerms.size());
+                for (String term : messageTerms) {
+                    byte[] bytes = term.getBytes("UTF-8");
+                    // Terms this long are never searched for; keep the record readable.
+                    out.writeShort(Math.min(bytes.length, 0xFFFF));
+                    out.write(bytes, 0, Math.min(bytes.length, 0xFFFF));
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static int[] intersect(int[] left, int[] right) {
+        if (left == null) {
+            return right;
+        }
+        final int[] result = new int[Math.min(left.length, right.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            }
+            else if (left[i] > right[j]) {
+                j++;
+            }
+            else {
+                result[k++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    private static int[] dedup(int[] sorted) {
+        int k = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (k == 0 || sorted[k - 1] != sorted[i]) {
+                sorted[k++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, k);
+    }
+
+    private File getJournalFile() {
+        return new File(directory, JOURNAL_FILE);
+    }
+
+    /**
+     * The terms read from the journal and the log, before they become the index.
+     */
+    static final class Snapshot {
+        private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+        private final List<Set<String>> missing = new ArrayList<Set<String>>();
+        private int count;
+        private int journalCount;
+        private long journalLength;
+    }
+
+    /**
+     * Growable list of ascending message positions.
+     */
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        void addAll(Postings other) {
+            if (size + other.size > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(size * 2, size + other.size));
+            }
+            System.arraycopy(other.positions, 0, positions, size, other.size);
+            size += other.size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The on-disk history of a single conversation. Messages are appended to
+ * segment files that are never rewritten; a small index records how many
+ * messages and committed bytes each segment holds, so appending a message
+ * costs the same no matter how long the history already is.
+ * <p/>
+ * Sealed segments are merged into larger ones by {@link #compact()}, which
+ * swaps the index atomically before removing the old files. An index that cannot
+ * be read is rebuilt from the segment files; if they cannot be read either, the
+ * log refuses to be written to rather than overwrite them.
+ *
+ * @see TranscriptStore
+ */
+final class TranscriptLog {
+
+    /**
+     * Segments are sealed once they grow past this size.
+     */
+    static final long SEGMENT_SIZE = 256 * 1024;
+
+    /**
+     * Compaction never produces segments larger than this.
+     */
+    static final long COMPACTED_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index";
+    private static final int INDEX_VERSION = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final TranscriptDays days;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int nextSegmentId = 1;
+    private boolean readOnly;
+
+    /**
+     * Opens the log stored in the given directory, creating nothing on disk
+     * until the first message is appended.
+     *
+     * @param directory the directory holding the segments and the index.
+     */
+    TranscriptLog(File directory) {
+        this.directory = directory;
+        this.days = new TranscriptDays(directory);
+        loadIndex();
+    }
+
+    /**
+     * Returns true if this log has never been written to.
+     *
+     * @return true if the log has no index on disk.
+     */
+    synchronized boolean isNew() {
+        return !getIndexFile().exists();
+    }
+
+    /**
+     * Appends messages to the end of the log.
+     *
+     * @param messages the messages to append.
+     * @return true if the active segment was sealed, which makes the log a candidate for compaction.
+     * @throws IOException if the segment or index could not be written.
+     */
+    synchronized boolean append(Collection<HistoryMessage> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return false;
+        }
+        if (readOnly) {
+            throw new IOException("The segments of transcript log " + directory + " could not be read, not writing to it.");
+        }
+        directory.mkdirs();
+        final int position = getMessageCount();
+        days.getPeriods(this);
+
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.length >= SEGMENT_SIZE) {
+            // Never start a segment over a file that is already there.
+            while (getSegmentFile(nextSegmentId).exists()) {
+                nextSegmentId++;
+            }
+            active = new Segment(nextSegmentId++);
+            segments.add(active);
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        long first = active.firstDate;
+        long last = active.lastDate;
+        for (HistoryMessage message : messages) {
+            long time = message.getDate() != null ? message.getDate().getTime() : System.currentTimeMillis();
+            writeRecord(out, message, time);
+            if (first == 0) {
+                first = time;
+            }
+            last = Math.max(last, time);
+        }
+        out.flush();
+
+        final RandomAccessFile raf = new RandomAccessFile(getSegmentFile(active.id), "rw");
+        try {
+            // Anything beyond the committed length is a torn write from an earlier crash.
+            raf.setLength(active.length);
+            raf.seek(active.length);
+            raf.write(buffer.toByteArray());
+        }
+        finally {
+            raf.close();
+        }
+
+        active.length += buffer.size();
+        active.count += messages.size();
+        active.firstDate = first;
+        active.lastDate = last;
+        writeIndex();
+
+        try {
+            days.append(this, position, messages);
+        }
+        catch (IOException e) {
+            Log.error("Unable to record the days of messages in " + directory, e);
+        }
+
+        return active.length >= SEGMENT_SIZE && segments.size() > 1;
+    }
+
+    /**
+     * Returns the total number of messages in the log.
+     *
+     * @return the number of messages.
+     */
+    synchronized int getMessageCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the runs of messages sent on the same day, in transcript order.
+     *
+     * @return a snapshot of the day runs.
+     */
+    synchronized List<TranscriptPeriod> getPeriods() {
+        final List<TranscriptPeriod> result = new ArrayList<TranscriptPeriod>();
+        for (TranscriptPeriod period : days.getPeriods(this)) {
+            result.add(new TranscriptPeriod(period.getDay(), period.getStart(), period.getCount()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of committed bytes in all segments.
+     *
+     * @return the size of the log in bytes.
+     */
+    synchronized long getLength() {
+        long length = 0;
+        for (Segment segment : segments) {
+            length += segment.length;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the messages with positions in <code>[from, to)</code>, oldest first.
+     * Only the segments overlapping the range are touched.
+     *
+     * @param from the position of the first message to return.
+     * @param to   the position after the last message to return.
+     * @return the messages in the range.
+     */
+    synchronized List<HistoryMessage> read(int from, int to) {
+        final List<HistoryMessage> result = new ArrayList<HistoryMessage>(Math.max(0, to - from));
+        int offset = 0;
+        for (Segment segment : segments) {
+            int segmentEnd = offset + segment.count;
+            if (segmentEnd > from && offset < to) {
+                readSegment(segment, Math.max(0, from - offset), Math.min(segment.count, to - offset), null, result);
+            }
+            offset = segmentEnd;
+            if (offset >= to) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the messages at the given positions, reading each segment at most once.
+     *
+     * @param positions the positions of the messages, in ascending order.
+     * @return the messages, in the same order as the positions.
+     */
+    synchronized List<HistoryMessage> read(int[] positions) {
+        final List<HistoryMessage> result = new ArrayList<HistoryMessage>(positions.length);
+        int offset = 0;
+        int next = 0;
+        for (Segment segment : segments) {
+            final int segmentEnd = offset + segment.count;
+            final BitSet wanted = new BitSet(segment.count);
+            int last = -1;
+            while (next < positions.length && positions[next] < segmentEnd) {
+                if (positions[next] >= offset) {
+                    last = positions[next] - offset;
+                    wanted.set(last);
+                }
+                next++;
+            }
+            if (last >= 0) {
+                readSegment(segment, 0, last + 1, wanted, result);
+            }
+            offset = segmentEnd;
+            if (next == positions.length) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the last <code>count</code> messages of the log, oldest first.
+     *
+     * @param count the maximum number of messages to return.
+     * @return the most recent messages.
+     */
+    synchronized List<HistoryMessage> readLast(int count) {
+        int total = getMessageCount();
+        return read(Math.max(0, total - count), total);
+    }
+
+    /**
+     * Merges runs of adjacent sealed segments into segments of up to
+     * {@link #COMPACTED_SEGMENT_SIZE}. The active segment is left alone.
+     *
+     * @throws IOException if the merged segment or the index could not be written.
+     */
+    synchronized void compact() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        final List<Segment> compacted = new ArrayList<Segment>();
+        final List<File> obsolete = new ArrayList<File>();
+
+        int i = 0;
+        final int sealed = segments.size() - 1;
+        while (i < sealed) {
+            int j = i;
+            long size = 0;
+            while (j < sealed && size + segments.get(j).length <= COMPACTED_SEGMENT_SIZE) {
+                size += segments.get(j).length;
+                j++;
+            }
+            if (j - i < 2) {
+                compacted.add(segments.get(i));
+                i = Math.max(j, i + 1);
+                continue;
+            }
+
+            final Segment merged = new Segment(nextSegmentId++);
+            final DataOutputStream out = openOutput(getSegmentFile(merged.id));
+            try {
+                for (int k = i; k < j; k++) {
+                    Segment source = segments.get(k);
+                    copySegment(source, out);
+                    merged.length += source.length;
+                    merged.count += source.count;
+                    if (merged.firstDate == 0) {
+                        merged.firstDate = source.firstDate;
+                    }
+                    merged.lastDate = Math.max(merged.lastDate, source.lastDate);
+                    obsolete.add(getSegmentFile(source.id));
+                }
+            }
+            finally {
+                out.close();
+            }
+            compacted.add(merged);
+            i = j;
+        }
+
+        if (obsolete.isEmpty()) {
+            return;
+        }
+
+        compacted.add(segments.get(segments.size() - 1));
+        segments.clear();
+        segments.addAll(compacted);
+        writeIndex();
+
+        for (File file : obsolete) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments, the index and everything else kept in the directory of
+     * the log, leaving an empty log.
+     */
+    synchronized void delete() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        directory.delete();
+        segments.clear();
+        nextSegmentId = 1;
+        readOnly = false;
+        days.reset();
+    }
+
+    private void readSegment(Segment segment, int skip, int limit, BitSet wanted, List<HistoryMessage> result) {
+        final File file = getSegmentFile(segment.id);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                long position = 0;
+                for (int i = 0; i < limit && position < segment.length; i++) {
+                    int length = in.readInt();
+                    position += 4 + length;
+                    if (position > segment.length) {
+                        break;
+                    }
+                    if (i < skip || (wanted != null && !wanted.get(i))) {
+                        skipFully(in, length);
+                    }
+                    else {
+                        result.add(readRecord(in));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (EOFException e) {
+            Log.warning("Transcript segment " + file + " is shorter than its index entry.");
+        }
+        catch (IOException e) {
+            Log.error("Unable to read transcript segment " + file, e);
+        }
+    }
+
+    private void copySegment(Segment segment, DataOutputStream out) throws IOException {
+        final FileInputStream in = new FileInputStream(getSegmentFile(segment.id));
+        try {
+            final byte[] buffer = new byte[8192];
+            long remaining = segment.length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Transcript segment " + segment.id + " is truncated.");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, HistoryMessage message, long time) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(record);
+        data.writeLong(time);
+        writeString(data, message.getTo());
+        writeString(data, message.getFrom());
+        writeString(data, message.getBody());
+        data.flush();
+
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    private static HistoryMessage readRecord(DataInputStream in) throws IOException {
+        final HistoryMessage message = new HistoryMessage();
+        message.setDate(new Date(in.readLong()));
+        message.setTo(readString(in));
+        message.setFrom(readString(in));
+        message.setBody(readString(in));
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private void loadIndex() {
+        final File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unknown transcript index version");
+                }
+                nextSegmentId = in.readInt();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    Segment segment = new Segment(in.readInt());
+                    segment.count = in.readInt();
+                    segment.length = in.readLong();
+                    segment.firstDate = in.readLong();
+                    segment.lastDate = in.readLong();
+                    segments.add(segment);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            Log.debug("Unable to read transcript index " + indexFile + ", rebuilding it: " + e);
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the segment files in the directory, in the order of
+     * their ids. Each segment is read record by record as far as its records are
+     * complete, so a torn write at its end is left out just as it is when the index
+     * is intact. If a segment cannot be read, the log is made read-only.
+     */
+    private void rebuildIndex() {
+        segments.clear();
+        nextSegmentId = 1;
+        final List<Integer> ids = new ArrayList<Integer>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    }
+                    catch (NumberFormatException e) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            final Segment segment = new Segment(id);
+            try {
+                scanSegment(segment);
+            }
+            catch (IOException e) {
+                Log.error("Unable to read transcript segment " + getSegmentFile(id) + ", not writing to " + directory, e);
+                readOnly = true;
+            }
+            segments.add(segment);
+            nextSegmentId = id + 1;
+        }
+    }
+
+    /**
+     * Counts the complete records of a segment file, and the dates of the first and
+     * the last of them.
+     *
+     * @param segment the segment to fill in.
+     * @throws IOException if the segment file could not be read.
+     */
+    private void scanSegment(Segment segment) throws IOException {
+        final File file = getSegmentFile(segment.id);
+        final long fileLength = file.length();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (segment.length + 4 <= fileLength) {
+                final int length = in.readInt();
+                if (length < 8 || segment.length + 4 + length > fileLength) {
+                    // A torn write, everything before it is committed.
+                    break;
+                }
+                final long time = in.readLong();
+                skipFully(in, length - 8);
+                segment.length += 4 + length;
+                segment.count++;
+                if (segment.firstDate == 0) {
+                    segment.firstDate = time;
+                }
+                segment.lastDate = Math.max(segment.lastDate, time);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final File indexFile = getIndexFile();
+        final File tempFile = new File(directory, INDEX_FILE + ".tmp");
+        final DataOutputStream out = openOutput(tempFile);
+        try {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(nextSegmentId);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                out.writeInt(segment.id);
+                out.writeInt(segment.count);
+                out.writeLong(segment.length);
+                out.writeLong(segment.firstDate);
+                out.writeLong(segment.lastDate);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    private File getIndexFile() {
+        return new File(directory, INDEX_FILE);
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(directory, String.format(SEGMENT_PREFIX + "%08d" + SEGMENT_SUFFIX, id));
+    }
+
+    /**
+     * An entry of the segment index.
+     */
+    private static class Segment {
+        final int id;
+        int count;
+        long length;
+        long firstDate;
+        long lastDate;
+
+        Segment(int id) {
+            this.id = id;
+        }
+    }
+}
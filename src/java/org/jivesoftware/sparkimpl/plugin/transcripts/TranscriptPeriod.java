@@ -0,0 +1,122 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * A run of consecutive messages in a transcript that were all sent on the
+ * same day. Messages are addressed by their position in the transcript.
+ */
+public final class TranscriptPeriod {
+
+    private final int day;
+    private final int start;
+    private int count;
+
+    TranscriptPeriod(int day, int start, int count) {
+        this.day = day;
+        this.start = start;
+        this.count = count;
+    }
+
+    /**
+     * Returns the day of the messages encoded as <code>yyyyMMdd</code>.
+     *
+     * @return the day of the messages.
+     */
+    public int getDay() {
+        return day;
+    }
+
+    /**
+     * Returns the month of the messages encoded as <code>yyyyMM</code>.
+     *
+     * @return the month of the messages.
+     */
+    public int getMonth() {
+        return day / 100;
+    }
+
+    /**
+     * Returns the year of the messages.
+     *
+     * @return the year of the messages.
+     */
+    public int getYear() {
+        return day / 10000;
+    }
+
+    /**
+     * Returns midnight of the day of the messages.
+     *
+     * @return the date of the messages.
+     */
+    public Date getDate() {
+        final Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(getYear(), getMonth() % 100 - 1, day % 100);
+        return cal.getTime();
+    }
+
+    /**
+     * Returns the position of the first message.
+     *
+     * @return the position of the first message.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the position after the last message.
+     *
+     * @return the position after the last message.
+     */
+    public int getEnd() {
+        return start + count;
+    }
+
+    /**
+     * Returns the number of messages.
+     *
+     * @return the number of messages.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    void extend(int messages) {
+        count += messages;
+    }
+
+    /**
+     * Encodes the day of a date as <code>yyyyMMdd</code>.
+     *
+     * @param cal  a calendar to use for the conversion.
+     * @param time the date in milliseconds.
+     * @return the encoded day.
+     */
+    static int toDay(Calendar cal, long time) {
+        cal.setTimeInMillis(time);
+        return cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100 + cal.get(Calendar.DAY_OF_MONTH);
+    }
+}
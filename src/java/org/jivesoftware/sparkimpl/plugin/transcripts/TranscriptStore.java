@@ -0,0 +1,384 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.UserManager;
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only storage for chat transcripts. Each conversation is kept in
+ * its own {@link TranscriptLog} under <code>transcripts/&lt;jid&gt;/</code>.
+ * Conversations recorded by older versions of Spark in
+ * <code>transcripts/&lt;jid&gt;.xml</code> are imported the first time they are opened.
+ */
+public final class TranscriptStore {
+
+    private static final String TRANSCRIPTS_DIRECTORY = "transcripts";
+
+    private static TranscriptStore singleton;
+    private static final Object LOCK = new Object();
+
+    private final File directory;
+    private final Map<String, TranscriptLog> logs = new ConcurrentHashMap<String, TranscriptLog>();
+    private final Map<String, Boolean> imported = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, TranscriptIndex> indexes = new ConcurrentHashMap<String, TranscriptIndex>();
+    private final Map<String, Boolean> pendingCompactions = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Returns the singleton instance of <CODE>TranscriptStore</CODE>,
+     * creating it if necessary.
+     * <p/>
+     *
+     * @return the singleton instance of <Code>TranscriptStore</CODE>
+     */
+    public static TranscriptStore getInstance() {
+        // Synchronize on LOCK to ensure that we don't end up creating
+        // two singletons.
+        synchronized (LOCK) {
+            if (null == singleton) {
+                singleton = new TranscriptStore(new File(SparkManager.getUserDirectory(), TRANSCRIPTS_DIRECTORY));
+            }
+        }
+        return singleton;
+    }
+
+    /**
+     * Returns the store of the transcripts kept in a user directory, which is the
+     * singleton instance for the directory of the current user.
+     *
+     * @param userDirectory the user directory.
+     * @return the store of the directory.
+     */
+    public static TranscriptStore getInstance(File userDirectory) {
+        final TranscriptStore store = getInstance();
+        final File directory = new File(userDirectory, TRANSCRIPTS_DIRECTORY);
+        return directory.equals(store.directory) ? store : new TranscriptStore(directory);
+    }
+
+    /**
+     * Creates a store of the transcripts in a directory.
+     *
+     * @param directory the directory holding one directory per conversation.
+     */
+    TranscriptStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Appends messages to the history of a conversation.
+     *
+     * @param jid      the jid of the conversation.
+     * @param messages the messages to append.
+     */
+    public void append(String jid, Collection<HistoryMessage> messages) {
+        final TranscriptLog log = getLog(jid);
+        try {
+            final boolean sealed;
+            synchronized (log) {
+                final int position = log.getMessageCount();
+                sealed = log.append(messages);
+                getIndex(jid).add(position, messages);
+            }
+            if (sealed) {
+                scheduleCompaction(jid, log);
+            }
+        }
+        catch (IOException e) {
+            Log.error("Unable to append to transcript of " + jid, e);
+        }
+    }
+
+    /**
+     * Returns true if any history has been recorded for a conversation.
+     *
+     * @param jid the jid of the conversation.
+     * @return true if history exists.
+     */
+    public boolean hasTranscript(String jid) {
+        return getLog(jid).getMessageCount() > 0;
+    }
+
+    /**
+     * Returns the number of messages recorded for a conversation.
+     *
+     * @param jid the jid of the conversation.
+     * @return the number of messages.
+     */
+    public int getMessageCount(String jid) {
+        return getLog(jid).getMessageCount();
+    }
+
+    /**
+     * Returns the number of bytes used on disk by the history of a conversation.
+     *
+     * @param jid the jid of the conversation.
+     * @return the size in bytes.
+     */
+    public long getSize(String jid) {
+        return getLog(jid).getLength();
+    }
+
+    /**
+     * Returns the messages with positions in <code>[from, to)</code>, oldest first.
+     *
+     * @param jid  the jid of the conversation.
+     * @param from the position of the first message.
+     * @param to   the position after the last message.
+     * @return the messages in the range.
+     */
+    public List<HistoryMessage> getMessages(String jid, int from, int to) {
+        return getLog(jid).read(from, to);
+    }
+
+    /**
+     * Returns the runs of messages of a conversation that were sent on the same day.
+     * Paging through them only requires reading the messages of the current page.
+     *
+     * @param jid the jid of the conversation.
+     * @return the day runs, in transcript order.
+     */
+    public List<TranscriptPeriod> getPeriods(String jid) {
+        return getLog(jid).getPeriods();
+    }
+
+    /**
+     * Returns the messages at the given positions.
+     *
+     * @param jid       the jid of the conversation.
+     * @param positions the positions of the messages, in ascending order.
+     * @return the messages, in the same order as the positions.
+     */
+    public List<HistoryMessage> getMessages(String jid, int[] positions) {
+        return getLog(jid).read(positions);
+    }
+
+    /**
+     * Searches the history of a conversation using its full-text index. All words of
+     * the query must occur in a message, each also matching the words it is a prefix of,
+     * and text in double quotes must occur as a phrase. Letter case is ignored.
+     *
+     * @param jid   the jid of the conversation.
+     * @param query the query.
+     * @return the positions of the matching messages, most recent first.
+     */
+    public List<Integer> search(String jid, String query) {
+        final TranscriptLog log = getLog(jid);
+        final TranscriptIndex index = getIndex(jid);
+        if (!index.isLoaded()) {
+            // Read the history without holding the log, so that messages keep
+            // being appended while the index is built for the first time.
+            final TranscriptIndex.Snapshot snapshot = index.read();
+            synchronized (log) {
+                index.load(snapshot);
+            }
+        }
+        // Always lock the log before its index, like append does.
+        synchronized (log) {
+            return index.search(query);
+        }
+    }
+
+    /**
+     * Returns the words of a search query, which are what a match is highlighted by.
+     *
+     * @param query the query.
+     * @return the words of the query and of its phrases.
+     */
+    public static List<String> getSearchWords(String query) {
+        return TranscriptIndex.getQueryWords(query);
+    }
+
+    /**
+     * Returns the jids of the conversations with history, whether in the store or
+     * still in a transcript written by an older version of Spark.
+     *
+     * @return the jids of the conversations.
+     */
+    public Collection<String> getConversations() {
+        final Set<String> result = new LinkedHashSet<String>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (file.isDirectory()) {
+                result.add(name);
+            }
+            else if (name.endsWith(".xml") && !name.endsWith("_current.xml") && !name.equals("conversations.xml")) {
+                result.add(name.substring(0, name.length() - ".xml".length()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the history of a conversation, including any transcript written by an
+     * older version of Spark, so that it is not imported again.
+     *
+     * @param jid the jid of the conversation.
+     */
+    public void delete(String jid) {
+        final String key = UserManager.unescapeJID(jid);
+        final TranscriptLog log = getLog(key);
+        synchronized (log) {
+            log.delete();
+            deleteLegacyFiles(key);
+            indexes.remove(key);
+            logs.remove(key);
+            imported.remove(key);
+        }
+    }
+
+    /**
+     * Deletes the history of every conversation.
+     */
+    public void deleteAll() {
+        for (String jid : getConversations()) {
+            delete(jid);
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent messages of a conversation.
+     *
+     * @param jid   the jid of the conversation.
+     * @param count the maximum number of messages.
+     * @return the ChatTranscript.
+     */
+    public ChatTranscript getLastMessages(String jid, int count) {
+        final ChatTranscript transcript = new ChatTranscript();
+        transcript.setList(getLog(jid).readLast(count));
+        return transcript;
+    }
+
+    /**
+     * Returns the complete history of a conversation.
+     *
+     * @param jid the jid of the conversation.
+     * @return the ChatTranscript.
+     */
+    public ChatTranscript getTranscript(String jid) {
+        final TranscriptLog log = getLog(jid);
+        final ChatTranscript transcript = new ChatTranscript();
+        transcript.setList(log.read(0, log.getMessageCount()));
+        return transcript;
+    }
+
+    /**
+     * Returns the directory holding the segments of a conversation.
+     *
+     * @param jid the jid of the conversation.
+     * @return the store directory.
+     */
+    public File getStoreDirectory(String jid) {
+        return new File(directory, UserManager.unescapeJID(jid));
+    }
+
+    TranscriptLog getLog(String jid) {
+        final String key = UserManager.unescapeJID(jid);
+        TranscriptLog log = logs.get(key);
+        if (log == null) {
+            synchronized (logs) {
+                log = logs.get(key);
+                if (log == null) {
+                    log = new TranscriptLog(getStoreDirectory(key));
+                    logs.put(key, log);
+                }
+            }
+        }
+
+        if (!imported.containsKey(key)) {
+            // Only the conversation being imported waits for the import. A failed
+            // import leaves the log empty and is tried again on next use.
+            synchronized (log) {
+                if (!imported.containsKey(key)
+                        && (!log.isNew() || TranscriptImporter.importLegacyTranscript(getLegacyFile(key), log))) {
+                    imported.put(key, Boolean.TRUE);
+                }
+            }
+        }
+        return log;
+    }
+
+    private File getLegacyFile(String key) {
+        return new File(directory, key + ".xml");
+    }
+
+    private void deleteLegacyFiles(String key) {
+        getLegacyFile(key).delete();
+        new File(directory, key + "_current.xml").delete();
+    }
+
+    private TranscriptIndex getIndex(String jid) {
+        final String key = UserManager.unescapeJID(jid);
+        TranscriptIndex index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final TranscriptLog log = getLog(key);
+        synchronized (indexes) {
+            index = indexes.get(key);
+            if (index == null) {
+                index = new TranscriptIndex(getStoreDirectory(key), log);
+                indexes.put(key, index);
+            }
+        }
+        return index;
+    }
+
+    private void scheduleCompaction(final String jid, final TranscriptLog log) {
+        if (pendingCompactions.put(jid, Boolean.TRUE) != null) {
+            return;
+        }
+
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                pendingCompactions.remove(jid);
+                try {
+                    log.compact();
+                }
+                catch (IOException e) {
+                    Log.error("Unable to compact transcript of " + jid, e);
+                }
+            }
+        });
+    }
+}
@@ -24,7 +24,6 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.File;
 
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
@@ -38,9 +37,9 @@ import javax.swing.JTextField;
 
 import org.jivesoftware.resource.Default;
 import org.jivesoftware.resource.Res;
-import org.jivesoftware.spark.SparkManager;
 import org.jivesoftware.spark.component.VerticalFlowLayout;
 import org.jivesoftware.spark.util.ResourceUtils;
+import org.jivesoftware.sparkimpl.plugin.transcripts.TranscriptStore;
 import org.jivesoftware.sparkimpl.settings.local.LocalPreferences;
 import org.jivesoftware.sparkimpl.settings.local.SettingsManager;
 
@@ -268,15 +267,10 @@ public class ChatPreferencePanel extends JPanel implements ActionListener {
         if (hideChatHistory.isSelected()) {
             int ok = JOptionPane.showConfirmDialog(this, Res.getString("message.delete.all.history"), Res.getString("title.confirmation"), JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
             if (ok == JOptionPane.YES_OPTION) {
-                File transcriptDir = new File(SparkManager.getUserDirectory(), "transcripts");
-                File[] files = transcriptDir.listFiles();
-
                 hidePrevChatHistory.setEnabled(false);
                 hidePrevChatHistory.setSelected(false);
 
-                for (File transcriptFile : files) {
-                    transcriptFile.delete();
-                }
+                TranscriptStore.getInstance().deleteAll();
             }
     } else {
             hidePrevChatHistory.setEnabled(true);            
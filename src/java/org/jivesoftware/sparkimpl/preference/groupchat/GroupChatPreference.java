@@ -77,6 +77,7 @@ public class GroupChatPreference implements Preference {
                 boolean autoAcceptMucInvite	= localPreferences.isAutoAcceptMucInvite();
                 boolean randomColors 		= localPreferences.isMucRandomColors();
                 boolean inviteToBookmark    = !localPreferences.isUseAdHocRoom();
+                String highlightKeywords    = localPreferences.getMucHighlightKeywords();
 
                 panel.setMucHighNameEnabled(highlightMyName);
                 panel.setMucHighTextEnabled(highlightMyText);
@@ -86,6 +87,7 @@ public class GroupChatPreference implements Preference {
                 panel.setAutoAcceptMuc(autoAcceptMucInvite);
                 panel.setRandomColors(randomColors);
                 panel.setInviteToBookmark(inviteToBookmark);
+                panel.setMucHighlightKeywords(highlightKeywords);
             }
         };
 
@@ -104,6 +106,7 @@ public class GroupChatPreference implements Preference {
         pref.setAutoAcceptMucInvite(panel.isAutoAcceptMuc());
         pref.setMucRandomColors(panel.isRandomColors());
         pref.setUseAdHocRoom(!panel.isInviteToBookmark());
+        pref.setMucHighlightKeywords(panel.getMucHighlightKeywords());
         SettingsManager.saveSettings();
     }
 
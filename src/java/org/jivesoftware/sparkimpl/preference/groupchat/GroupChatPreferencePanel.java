@@ -26,7 +26,9 @@ import java.awt.Insets;
 
 import javax.swing.BorderFactory;
 import javax.swing.JCheckBox;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
 
 import org.jivesoftware.resource.Res;
 import org.jivesoftware.spark.component.VerticalFlowLayout;
@@ -46,6 +48,8 @@ public class GroupChatPreferencePanel extends JPanel {
     private JCheckBox _autoAcceptInvites = new JCheckBox();
     private JCheckBox _randomcolors = new JCheckBox();
     private JCheckBox inviteToBookmark = new JCheckBox();
+    private JLabel highlightKeywordsLabel = new JLabel();
+    private JTextField highlightKeywords = new JTextField();
 
     private JPanel gCPanel = new JPanel();
     /**
@@ -67,6 +71,7 @@ public class GroupChatPreferencePanel extends JPanel {
         ResourceUtils.resButton(_autoAcceptInvites 	, Res.getString("menuitem.add.groupchat.auto.accept.invite"));
         ResourceUtils.resButton(_randomcolors	 	, Res.getString("menuitem.add.groupchat.random.colors"));
         ResourceUtils.resButton(inviteToBookmark       , Res.getString("menuitem.add.groupchat.invitetobookmark"));
+        ResourceUtils.resLabel(highlightKeywordsLabel, highlightKeywords, Res.getString("menuitem.add.groupchat.keywords"));
 
         gCPanel.setBorder(BorderFactory.createTitledBorder(Res.getString("title.group.chat.settings")));
 
@@ -82,6 +87,8 @@ public class GroupChatPreferencePanel extends JPanel {
         gCPanel.add(showroleicons	, new GridBagConstraints(0, 5, 2, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 0, 0));
         gCPanel.add(_autoAcceptInvites	, new GridBagConstraints(0, 6, 2, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 0, 0));
         gCPanel.add(inviteToBookmark  , new GridBagConstraints(0, 7, 2, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 0, 0));
+        gCPanel.add(highlightKeywordsLabel, new GridBagConstraints(0, 8, 2, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, new Insets(5, 5, 0, 5), 0, 0));
+        gCPanel.add(highlightKeywords	, new GridBagConstraints(0, 9, 2, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL, new Insets(0, 5, 5, 5), 0, 0));
 
     }
 
@@ -149,5 +156,13 @@ public class GroupChatPreferencePanel extends JPanel {
         return inviteToBookmark.isSelected();
     }
 
+    public void setMucHighlightKeywords(String keywords) {
+        highlightKeywords.setText(keywords);
+    }
+
+    public String getMucHighlightKeywords() {
+        return highlightKeywords.getText().trim();
+    }
+
 
 }
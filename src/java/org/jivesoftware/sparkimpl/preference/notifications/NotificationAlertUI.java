@@ -25,6 +25,7 @@ import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.packet.VCard;
 import org.jivesoftware.spark.PresenceManager;
 import org.jivesoftware.spark.SparkManager;
+import org.jivesoftware.spark.util.AvatarCache;
 import org.jivesoftware.spark.util.GraphicUtils;
 import org.jivesoftware.spark.util.ModelUtil;
 import org.jivesoftware.spark.util.log.Log;
@@ -202,8 +203,7 @@ public class NotificationAlertUI extends JPanel {
 
         if (avatarBytes != null) {
             try {
-                ImageIcon avatarIcon = new ImageIcon(avatarBytes);
-                avatarLabel.setIcon(GraphicUtils.scale(avatarIcon, AVATAR_HEIGHT, AVATAR_WIDTH));
+                avatarLabel.setIcon(AvatarCache.getInstance().getIcon(vcard.getAvatarHash(), avatarBytes, AVATAR_WIDTH, AVATAR_HEIGHT, true));
             }
             catch (Exception e) {
                 // no issue
@@ -0,0 +1,316 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.profile;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.spark.util.TaskEngine;
+import org.jivesoftware.spark.util.log.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+
+/**
+ * Fetches vCards for the <code>VCardManager</code> with a bounded number of workers.
+ * A JID is only queued or fetched once at a time, urgent requests (a contact someone
+ * is looking at) are served before background ones (a changed avatar hash), and the
+ * requests sent to each server are spaced out so that a large roster does not flood it.
+ * <p/>
+ * Workers are started on demand from the <code>TaskEngine</code> and return as soon as
+ * the queue is empty. A worker that has to wait for its server is scheduled to resume
+ * later instead of sleeping on a pool thread.
+ */
+final class VCardFetcher {
+
+    /**
+     * The maximum number of cancelled requests remembered for {@link #prioritize(java.util.Collection)}.
+     */
+    static final int MAX_CANCELLED = 1000;
+
+    /**
+     * Loads the vCard of a JID and stores it.
+     */
+    interface Loader {
+        void load(String jid) throws Exception;
+    }
+
+    private final Loader loader;
+    private final int maxWorkers;
+    private final long serverInterval;
+
+    private final Set<String> urgent = new LinkedHashSet<String>();
+    private final Set<String> background = new LinkedHashSet<String>();
+    private final Set<String> inFlight = new HashSet<String>();
+    private final Set<String> cancelled = new LinkedHashSet<String>();
+    private final Map<String, Long> nextServerSlot = new HashMap<String, Long>();
+
+    private int workers;
+    private long requestedCount;
+    private long duplicateCount;
+    private long fetchedCount;
+    private long failedCount;
+
+    private final Runnable worker = new Runnable() {
+        public void run() {
+            work(null);
+        }
+    };
+
+    /**
+     * @param loader         loads a vCard.
+     * @param maxWorkers     the maximum number of vCards loaded at the same time.
+     * @param serverInterval the minimum time in milliseconds between two requests to the same server.
+     */
+    VCardFetcher(Loader loader, int maxWorkers, long serverInterval) {
+        this.loader = loader;
+        this.maxWorkers = maxWorkers;
+        this.serverInterval = serverInterval;
+    }
+
+    /**
+     * Queues a JID to have its vCard fetched, unless it is queued or being fetched already.
+     * An urgent request moves a queued JID to the front.
+     *
+     * @param jid    the bare JID.
+     * @param urgent true if the vCard is needed for something on screen.
+     * @return true if the JID was queued or moved up.
+     */
+    boolean fetch(String jid, boolean urgent) {
+        if (jid == null || jid.length() == 0) {
+            return false;
+        }
+        synchronized (this) {
+            requestedCount++;
+            cancelled.remove(jid);
+            if (inFlight.contains(jid) || this.urgent.contains(jid) || (!urgent && background.contains(jid))) {
+                duplicateCount++;
+                return false;
+            }
+            if (urgent) {
+                background.remove(jid);
+                this.urgent.add(jid);
+            }
+            else {
+                background.add(jid);
+            }
+            if (workers >= maxWorkers || workers >= this.urgent.size() + background.size()) {
+                return true;
+            }
+            workers++;
+        }
+        TaskEngine.getInstance().submit(worker);
+        return true;
+    }
+
+    /**
+     * Drops the queued requests of the given JIDs, for example because their contacts
+     * are no longer visible. Requests already sent are not affected. The requests are
+     * queued again by {@link #prioritize(java.util.Collection)}.
+     *
+     * @param jids the bare JIDs.
+     */
+    synchronized void cancel(Collection<String> jids) {
+        for (String jid : jids) {
+            final boolean queued = urgent.remove(jid) || background.remove(jid);
+            if (queued) {
+                cancelled.add(jid);
+            }
+        }
+        // Forget the oldest cancellations of contacts that were never shown again.
+        final Iterator<String> iter = cancelled.iterator();
+        while (cancelled.size() > MAX_CANCELLED) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Moves the queued or cancelled requests of the given JIDs to the front of the queue.
+     *
+     * @param jids the bare JIDs.
+     */
+    void prioritize(Collection<String> jids) {
+        for (String jid : jids) {
+            final boolean queued;
+            synchronized (this) {
+                queued = cancelled.contains(jid) || background.contains(jid);
+            }
+            if (queued) {
+                fetch(jid, true);
+            }
+        }
+    }
+
+    /**
+     * Fetches queued vCards until the queue is empty.
+     *
+     * @param jid the JID whose server slot the worker waited for, or null.
+     */
+    private void work(String jid) {
+        boolean resumesLater = false;
+        try {
+            while (true) {
+                if (jid == null) {
+                    final long delay;
+                    synchronized (this) {
+                        jid = next();
+                        if (jid == null) {
+                            return;
+                        }
+                        inFlight.add(jid);
+                        delay = reserveServerSlot(jid);
+                    }
+                    if (delay > 0) {
+                        resumeLater(jid, delay);
+                        resumesLater = true;
+                        return;
+                    }
+                }
+                load(jid);
+                jid = null;
+            }
+        }
+        finally {
+            if (!resumesLater) {
+                synchronized (this) {
+                    if (jid != null) {
+                        inFlight.remove(jid);
+                    }
+                    workers--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves the next free slot of the server of a JID.
+     *
+     * @param jid the bare JID.
+     * @return the time in milliseconds until the slot.
+     */
+    private long reserveServerSlot(String jid) {
+        final String server = StringUtils.parseServer(jid).toLowerCase();
+        final long now = System.currentTimeMillis();
+        final Long slot = nextServerSlot.get(server);
+        final long start = slot != null ? Math.max(now, slot) : now;
+        nextServerSlot.put(server, start + serverInterval);
+        return start - now;
+    }
+
+    private void resumeLater(final String jid, long delay) {
+        TaskEngine.getInstance().schedule(new TimerTask() {
+            public void run() {
+                work(jid);
+            }
+        }, delay);
+    }
+
+    private void load(String jid) {
+        boolean loaded = false;
+        try {
+            loader.load(jid);
+            loaded = true;
+        }
+        catch (Exception e) {
+            Log.error("Unable to load vCard for " + jid, e);
+        }
+        finally {
+            synchronized (this) {
+                inFlight.remove(jid);
+                if (loaded) {
+                    fetchedCount++;
+                }
+                else {
+                    failedCount++;
+                }
+                if (nextServerSlot.size() > 64) {
+                    pruneServerSlots();
+                }
+            }
+        }
+    }
+
+    private String next() {
+        final Iterator<String> iter = (!urgent.isEmpty() ? urgent : background).iterator();
+        if (!iter.hasNext()) {
+            return null;
+        }
+        final String jid = iter.next();
+        iter.remove();
+        return jid;
+    }
+
+    private void pruneServerSlots() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Long> iter = nextServerSlot.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next() < now) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of JIDs waiting to be fetched.
+     *
+     * @return the number of queued JIDs.
+     */
+    synchronized int getQueueSize() {
+        return urgent.size() + background.size();
+    }
+
+    /**
+     * Returns the number of vCards being fetched.
+     *
+     * @return the number of requests in flight.
+     */
+    synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the number of running workers.
+     *
+     * @return the number of workers.
+     */
+    synchronized int getWorkerCount() {
+        return workers;
+    }
+
+    /**
+     * Returns the number of cancelled requests that can still be resumed.
+     *
+     * @return the number of cancelled JIDs.
+     */
+    synchronized int getCancelledCount() {
+        return cancelled.size();
+    }
+
+    public synchronized String toString() {
+        return "VCardFetcher[queued=" + (urgent.size() + background.size()) + ", inFlight=" + inFlight.size()
+            + ", cancelled=" + cancelled.size() + ", requested=" + requestedCount + ", duplicates=" + duplicateCount
+            + ", fetched=" + fetchedCount + ", failed=" + failedCount + "]";
+    }
+}
@@ -24,23 +24,24 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -49,6 +50,7 @@ import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 
+import org.jivesoftware.MainWindowListener;
 import org.jivesoftware.resource.Res;
 import org.jivesoftware.resource.SparkRes;
 import org.jivesoftware.smack.PacketInterceptor;
@@ -103,8 +105,39 @@ public class VCardManager {
 
     final MXParser parser;
 
-    private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+    /**
+     * Maximum number of vCards requested at the same time.
+     */
+    private static final int FETCH_WORKERS = 8;
+
+    /**
+     * Minimum time in milliseconds between two vCard requests to the same server.
+     */
+    private static final long SERVER_REQUEST_INTERVAL = 20;
+
+    private final VCardFetcher fetcher = new VCardFetcher(new VCardFetcher.Loader() {
+        public void load(String jid) {
+            reloadVCard(jid);
+        }
+    }, FETCH_WORKERS, SERVER_REQUEST_INTERVAL);
     
+    /**
+     * Time in milliseconds stored vCards are collected before they are written out.
+     */
+    private static final long STORE_FLUSH_DELAY = 2000;
+
+    /**
+     * Number of stored vCards that are written out right away.
+     */
+    private static final int STORE_BATCH_SIZE = 100;
+
+    private final VCardStore store;
+
+    private final AtomicBoolean storeFlushScheduled = new AtomicBoolean();
+
+    // Files of older versions whose vCards are waiting to be written to the store.
+    private final List<File> importedFiles = new ArrayList<File>();
+
     private File contactsDir;
 
     private List<VCardListener> listeners = new ArrayList<VCardListener>();
@@ -133,6 +166,20 @@ public class VCardManager {
         // Set VCard Storage
         vcardStorageDirectory = new File(SparkManager.getUserDirectory(), "vcards");
         vcardStorageDirectory.mkdirs();
+        store = new VCardStore(vcardStorageDirectory);
+
+        // Write the vCards that are still pending before Spark exits.
+        SparkManager.getMainWindow().addMainWindowListener(new MainWindowListener() {
+            public void shutdown() {
+                flushStore();
+            }
+
+            public void mainWindowActivated() {
+            }
+
+            public void mainWindowDeactivated() {
+            }
+        });
 
         // Set the current user directory.
         contactsDir = new File(SparkManager.getUserDirectory(), "contacts");
@@ -179,26 +226,9 @@ public class VCardManager {
     }
 
     /**
-     * Listens for new VCards to lookup in a queue.
+     * Listens for vCards that arrive after their request timed out.
      */
     private void startQueueListener() {
-    	final Runnable queueListener = new Runnable() {
-            public void run() {
-                while (true) {
-                    try {
-                       String jid = queue.take();
-                       reloadVCard(jid);
-                    }
-                    catch (InterruptedException e) {
-                        e.printStackTrace();
-                        break;
-                    }
-                }
-            }
-        };
-
-        TaskEngine.getInstance().submit(queueListener);
-        
         PacketFilter filter = new PacketTypeFilter(VCard.class);
         PacketListener myListener = new PacketListener() {
 			@Override
@@ -223,15 +253,42 @@ public class VCardManager {
     }
 
     /**
-     * Adds a jid to lookup vCard.
+     * Adds a jid to lookup vCard. The vCard is loaded in the background.
      *
      * @param jid the jid to lookup.
      */
     public void addToQueue(String jid) {
-        if (!queue.contains(jid)) {
-            queue.add(jid);
-        }
+        addToQueue(jid, false);
+    }
+
+    /**
+     * Adds a jid to lookup vCard, unless it is already being looked up.
+     *
+     * @param jid    the jid to lookup.
+     * @param urgent true if the vCard is needed on screen and should be loaded before queued background lookups.
+     */
+    public void addToQueue(String jid, boolean urgent) {
+        fetcher.fetch(jid, urgent);
+    }
+
+    /**
+     * Drops the queued lookups of the given jids, for example because their contacts are
+     * no longer visible. The lookups are resumed by {@link #prioritizeQueued(java.util.Collection)}.
+     *
+     * @param jids the bare jids.
+     */
+    public void cancelQueued(Collection<String> jids) {
+        fetcher.cancel(jids);
+    }
 
+    /**
+     * Moves the queued or cancelled lookups of the given jids ahead of other lookups,
+     * for example because their contacts became visible.
+     *
+     * @param jids the bare jids.
+     */
+    public void prioritizeQueued(Collection<String> jids) {
+        fetcher.prioritize(jids);
     }
 
     /**
@@ -428,6 +485,10 @@ public class VCardManager {
 	 * @return the users VCard or an empty VCard.
 	 */
     public VCard getVCardFromMemory(String jid) {
+        return getVCardFromMemory(jid, true);
+    }
+
+    private VCard getVCardFromMemory(String jid, boolean urgent) {
         // Check in memory first.
         if (vcards.containsKey(jid)) {
             return vcards.get(jid);
@@ -436,7 +497,7 @@ public class VCardManager {
         // if not in memory
         VCard vcard = loadFromFileSystem(jid);
         if (vcard == null) {
-            addToQueue(jid);
+            addToQueue(jid, urgent);
 
             // Create temp vcard.
             vcard = new VCard();
@@ -504,7 +565,9 @@ public class VCardManager {
             {
             	// update nickname.
             	ContactItem item = SparkManager.getWorkspace().getContactList().getContactItemByJID(jid);
-            	item.setNickname(vcard.getNickName());
+            	if (item != null) {
+            	    item.setNickname(vcard.getNickName());
+            	}
             	// TODO: this doesn't work if someone removes his nickname. If we remove it in that case, it will cause problems with people using another way to manage their nicknames.
             }
             addVCard(jid, vcard);
@@ -654,23 +717,55 @@ public class VCardManager {
     }
 
     public URL getAvatarURL(String jid) {
-        VCard vcard = getVCard(jid);
+        jid = StringUtils.parseBareAddress(jid);
+        final String hash;
+        final VCard vcard = vcards.get(jid);
         if (vcard != null) {
-            String hash = vcard.getAvatarHash();
-            if (!ModelUtil.hasLength(hash)) {
-                return null;
-            }
+            hash = vcard.getAvatarHash();
+        }
+        else if (store.contains(jid)) {
+            // The store knows the hash without parsing the vCard.
+            hash = store.getPhotoHash(jid);
+            refreshIfOutdated(jid);
+        }
+        else {
+            // Avatars are requested for every contact that comes online, so don't let them jump the queue.
+            hash = getVCardFromMemory(jid, false).getAvatarHash();
+        }
+        if (!ModelUtil.hasLength(hash)) {
+            return null;
+        }
 
-            final File avatarFile = new File(contactsDir, hash);
-            try {
-                return avatarFile.toURI().toURL();
-            }
-            catch (MalformedURLException e) {
-                Log.error(e);
-            }
+        final File avatarFile = new File(contactsDir, hash);
+        try {
+            return avatarFile.toURI().toURL();
+        }
+        catch (MalformedURLException e) {
+            Log.error(e);
         }
         return null;
     }
+
+    /**
+     * Returns true if the avatar advertised by a contact differs from the avatar of its
+     * stored vCard, in which case the vCard should be reloaded.
+     *
+     * @param jid  the jid of the user.
+     * @param hash the photo hash advertised in the users presence, empty or null if there is no avatar.
+     * @return true if a stored vCard has a different avatar.
+     */
+    public boolean isAvatarOutdated(String jid, String hash) {
+        jid = StringUtils.parseBareAddress(jid);
+        if (!store.contains(jid)) {
+            return false;
+        }
+        // An empty photo element advertises that there is no avatar, which is stored as null.
+        if (hash != null && hash.length() == 0) {
+            hash = null;
+        }
+        final String storedHash = store.getPhotoHash(jid);
+        return hash != null ? !hash.equals(storedHash) : storedHash != null;
+    }
     
 	/**
 	 * Get URL for avatar from vcard. If there is no vcard available we will try
@@ -702,69 +797,104 @@ public class VCardManager {
         if (jid == null || jid.trim().isEmpty() || vcard == null) {
         	return;
         }
-        
-        
-        String fileName = Base64.encodeBytes(jid.getBytes());
-        // remove tab
-        fileName   = fileName.replaceAll("\t", "");
-        // remove new line (Unix)
-        fileName          = fileName.replaceAll("\n", "");
-        // remove new line (Windows)
-        fileName          = fileName.replaceAll("\r", "");
 
+        String hash = null;
         byte[] bytes = vcard.getAvatar();
         if (bytes != null && bytes.length > 0) {
-            vcard.setAvatar(bytes);
-            try {
-                String hash = vcard.getAvatarHash();
-                final File avatarFile = new File(contactsDir, hash);
-                ImageIcon icon = new ImageIcon(bytes);
-                icon = VCardManager.scale(icon);
-                if (icon != null && icon.getIconWidth() != -1) {
-                    BufferedImage image = GraphicUtils.convert(icon.getImage());
-                    if (image == null) {
-                        Log.warning("Unable to write out avatar for " + jid);
-                    }
-                    else {
-                    	
-						if (writingQueue.contains(jid)) {
-							writeAvatarSync(image, avatarFile);
-						} else {
-							writingQueue.add(jid);
-							ImageIO.write(image, "PNG", avatarFile);
-							writingQueue.remove(jid);
-						}
-                    	
-                    	
+            hash = vcard.getAvatarHash();
+            final File avatarFile = new File(contactsDir, hash);
+            // Avatars are named by their hash, so an existing file is already up to date.
+            if (!avatarFile.exists()) {
+                writeAvatar(jid, bytes, avatarFile);
+            }
+        }
+
+        store.put(jid, vcard.toString(), hash, System.currentTimeMillis());
+        scheduleStoreFlush();
+    }
+
+    private void writeAvatar(String jid, byte[] bytes, File avatarFile) {
+        try {
+            ImageIcon icon = new ImageIcon(bytes);
+            icon = VCardManager.scale(icon);
+            if (icon != null && icon.getIconWidth() != -1) {
+                BufferedImage image = GraphicUtils.convert(icon.getImage());
+                if (image == null) {
+                    Log.warning("Unable to write out avatar for " + jid);
+                }
+                else {
+                    if (writingQueue.contains(jid)) {
+                        writeAvatarSync(image, avatarFile);
+                    } else {
+                        writingQueue.add(jid);
+                        ImageIO.write(image, "PNG", avatarFile);
+                        writingQueue.remove(jid);
                     }
                 }
             }
-            catch (Exception e) {
-                Log.error("Unable to update avatar in Contact Item.", e);
-            }
         }
+        catch (Exception e) {
+            Log.error("Unable to update avatar in Contact Item.", e);
+        }
+    }
 
-        // Set timestamp
-        vcard.setField("timestamp", Long.toString(System.currentTimeMillis()));
-
-        final String xml = vcard.toString();
+    private synchronized void writeAvatarSync(BufferedImage image, File avatarFile) throws IOException {
+    	ImageIO.write(image, "PNG", avatarFile);
+	}
 
-        File vcardFile = new File(vcardStorageDirectory, fileName);
+    /**
+     * Writes the stored vCards out in batches rather than one file per vCard.
+     */
+    private void scheduleStoreFlush() {
+        if (store.getPendingCount() >= STORE_BATCH_SIZE) {
+            flushStore();
+        }
+        else if (storeFlushScheduled.compareAndSet(false, true)) {
+            TaskEngine.getInstance().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    storeFlushScheduled.set(false);
+                    flushStore();
+                }
+            }, STORE_FLUSH_DELAY);
+        }
+    }
 
-        // write xml to file
+    private void flushStore() {
+        final List<File> imported;
+        synchronized (importedFiles) {
+            imported = new ArrayList<File>(importedFiles);
+            importedFiles.clear();
+        }
         try {
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(vcardFile), "UTF-8"));
-            out.write(xml);
-            out.close();
+            store.flush();
         }
         catch (IOException e) {
-            Log.error(e);
+            Log.error("Unable to write the vCard cache.", e);
+            // Keep the old files until their vCards are written.
+            synchronized (importedFiles) {
+                importedFiles.addAll(imported);
+            }
+            return;
+        }
+        for (File file : imported) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
         }
     }
 
-    private synchronized void writeAvatarSync(BufferedImage image, File avatarFile) throws IOException {
-    	ImageIO.write(image, "PNG", avatarFile);
-	}
+    /**
+     * Queues a background reload of a stored vCard that was fetched over an hour ago.
+     *
+     * @param jid the jid of the user.
+     */
+    private void refreshIfOutdated(String jid) {
+        final long hour = (1000 * 60) * 60;
+        if (System.currentTimeMillis() - store.getFetchedTime(jid) > hour) {
+            addToQueue(jid);
+        }
+    }
 
 	/**
      * Attempts to load
@@ -776,7 +906,33 @@ public class VCardManager {
     	if (jid == null || jid.trim().isEmpty()) {
     		return null;
     	}
-    	
+
+        final String xml = store.getXML(jid);
+        if (xml == null) {
+            return importVCardFile(jid);
+        }
+
+        try {
+            VCard vcard = parseVCard(new StringReader(xml));
+            refreshIfOutdated(jid);
+
+            addVCard(jid, vcard);
+            return vcard;
+        }
+        catch (Exception e) {
+            Log.warning("Unable to load vCard for " + jid, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Moves a vCard cached by older versions of Spark, in a file of its own, into the store.
+     *
+     * @param jid the jid of the user.
+     * @return the VCard if found, otherwise null.
+     */
+    private VCard importVCardFile(String jid) {
         // Unescape JID
         String fileName = Base64.encodeBytes(jid.getBytes());
 
@@ -786,7 +942,7 @@ public class VCardManager {
         fileName          = fileName.replaceAll("\n", "");
         // remove new line (Windows)
         fileName          = fileName.replaceAll("\r", "");
-        
+
         final File vcardFile = new File(vcardStorageDirectory, fileName);
         if (!vcardFile.exists()) {
             return null;
@@ -795,22 +951,26 @@ public class VCardManager {
         try {
             // Otherwise load from file system.
             BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(vcardFile), "UTF-8"));
-            VCardProvider provider = new VCardProvider();
-            parser.setInput(in);
-            VCard vcard = (VCard)provider.parseIQ(parser);
+            VCard vcard;
+            try {
+                vcard = parseVCard(in);
+            }
+            finally {
+                in.close();
+            }
 
-            // Check to see if the file is older 10 minutes. If so, reload.
+            long time = 0;
             String timestamp = vcard.getField("timestamp");
             if (timestamp != null) {
-                long time = Long.parseLong(timestamp);
-                long now = System.currentTimeMillis();
-
-
-                long hour = (1000 * 60) * 60;
-                if (now - time > hour) {
-                    addToQueue(jid);
-                }
+                time = Long.parseLong(timestamp);
             }
+            store.put(jid, vcard.toString(), vcard.getAvatarHash(), time);
+            // The file is removed once the store has written its vCard.
+            synchronized (importedFiles) {
+                importedFiles.add(vcardFile);
+            }
+            scheduleStoreFlush();
+            refreshIfOutdated(jid);
 
             addVCard(jid, vcard);
             return vcard;
@@ -822,6 +982,14 @@ public class VCardManager {
         return null;
     }
 
+    private VCard parseVCard(Reader in) throws Exception {
+        synchronized (parser) {
+            VCardProvider provider = new VCardProvider();
+            parser.setInput(in);
+            return (VCard)provider.parseIQ(parser);
+        }
+    }
+
 
     /**
      * Add <code>VCardListener</code>. Listens to the personalVCard.
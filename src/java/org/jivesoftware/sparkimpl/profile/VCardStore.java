@@ -0,0 +1,473 @@
+/**
+ * $RCSfile: ,v $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2011 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.sparkimpl.profile;
+
+import org.jivesoftware.spark.util.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The on-disk vCard cache. All vCards are kept in a single data file of
+ * length-prefixed records, and a later record for a JID replaces an earlier one.
+ * Opening the store reads the file once to index every JID with the offset of its
+ * record, the hash of its photo and the time it was fetched, so that the contact list
+ * can look up avatar hashes without parsing any vCard.
+ * <p/>
+ * Records are read through a memory mapping of the file. Writes are collected and
+ * appended in batches by {@link #flush()}. Once most of the file is made up of
+ * replaced records it is rewritten into a new generation.
+ */
+final class VCardStore {
+
+    /**
+     * Files are only compacted once they grow past this size.
+     */
+    static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private static final String FILE_PREFIX = "vcards-";
+    private static final String FILE_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private int generation;
+    private long length;
+    private long liveLength;
+    private MappedByteBuffer mapped;
+
+    /**
+     * Opens the store kept in the given directory and indexes its contents.
+     *
+     * @param directory the directory of the data file.
+     */
+    VCardStore(File directory) {
+        this.directory = directory;
+        open();
+    }
+
+    /**
+     * Stores a vCard, replacing any stored vCard of the JID. The vCard is written to
+     * disk by the next {@link #flush()}.
+     *
+     * @param jid       the bare JID.
+     * @param xml       the vCard.
+     * @param photoHash the hash of the photo of the vCard, or null.
+     * @param fetched   the time the vCard was received from the server.
+     */
+    synchronized void put(String jid, String xml, String photoHash, long fetched) {
+        final Entry entry = new Entry(photoHash, fetched);
+        entry.xml = xml;
+        pending.put(jid.toLowerCase(), entry);
+    }
+
+    /**
+     * Returns true if a vCard is stored for the JID.
+     *
+     * @param jid the bare JID.
+     * @return true if the vCard is stored.
+     */
+    synchronized boolean contains(String jid) {
+        return getEntry(jid) != null;
+    }
+
+    /**
+     * Returns the stored vCard of a JID.
+     *
+     * @param jid the bare JID.
+     * @return the vCard, or null if none is stored or it could not be read.
+     */
+    synchronized String getXML(String jid) {
+        final Entry entry = getEntry(jid);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.xml != null) {
+            return entry.xml;
+        }
+        try {
+            return readRecord(entry).xml;
+        }
+        catch (IOException e) {
+            Log.error("Unable to read the vCard of " + jid + " from " + getDataFile(generation), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the hash of the photo of the stored vCard of a JID, without reading the vCard.
+     *
+     * @param jid the bare JID.
+     * @return the hash, or null if there is no photo or no stored vCard.
+     */
+    synchronized String getPhotoHash(String jid) {
+        final Entry entry = getEntry(jid);
+        return entry != null ? entry.photoHash : null;
+    }
+
+    /**
+     * Returns the time the stored vCard of a JID was received.
+     *
+     * @param jid the bare JID.
+     * @return the time in milliseconds, or 0 if no vCard is stored.
+     */
+    synchronized long getFetchedTime(String jid) {
+        final Entry entry = getEntry(jid);
+        return entry != null ? entry.fetched : 0;
+    }
+
+    /**
+     * Returns the JIDs of all stored vCards.
+     *
+     * @return the bare JIDs, in lower case.
+     */
+    synchronized Set<String> getJIDs() {
+        final Set<String> jids = new HashSet<String>(entries.keySet());
+        jids.addAll(pending.keySet());
+        return Collections.unmodifiableSet(jids);
+    }
+
+    /**
+     * Returns the number of stored vCards.
+     *
+     * @return the number of vCards.
+     */
+    synchronized int size() {
+        return getJIDs().size();
+    }
+
+    /**
+     * Returns the number of vCards waiting to be written.
+     *
+     * @return the number of pending writes.
+     */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Appends the pending vCards to the data file, compacting it if most of it is
+     * taken up by replaced records.
+     *
+     * @throws IOException if the data file could not be written.
+     */
+    synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        directory.mkdirs();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        final List<String> jids = new ArrayList<String>(pending.keySet());
+        final long[] offsets = new long[jids.size()];
+        for (int i = 0; i < jids.size(); i++) {
+            offsets[i] = length + buffer.size();
+            writeRecord(out, jids.get(i), pending.get(jids.get(i)));
+        }
+        out.flush();
+
+        final RandomAccessFile raf = new RandomAccessFile(getDataFile(generation), "rw");
+        try {
+            // Anything beyond the committed length is a torn write from an earlier crash.
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            raf.seek(length);
+            raf.write(buffer.toByteArray());
+        }
+        finally {
+            raf.close();
+        }
+
+        for (int i = 0; i < jids.size(); i++) {
+            final String jid = jids.get(i);
+            final Entry entry = pending.get(jid);
+            entry.offset = offsets[i];
+            entry.length = (int)((i + 1 < jids.size() ? offsets[i + 1] : length + buffer.size()) - offsets[i]);
+            entry.xml = null;
+            final Entry replaced = entries.put(jid, entry);
+            if (replaced != null) {
+                liveLength -= replaced.length;
+            }
+            liveLength += entry.length;
+        }
+        length += buffer.size();
+        pending.clear();
+
+        if (length > COMPACTION_THRESHOLD && liveLength < length / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the size of the data file.
+     *
+     * @return the committed length in bytes.
+     */
+    synchronized long getLength() {
+        return length;
+    }
+
+    private Entry getEntry(String jid) {
+        if (jid == null) {
+            return null;
+        }
+        final String key = jid.toLowerCase();
+        final Entry entry = pending.get(key);
+        return entry != null ? entry : entries.get(key);
+    }
+
+    /**
+     * Indexes the newest generation of the data file and removes older generations.
+     */
+    private void open() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final int fileGeneration = parseGeneration(file.getName());
+                if (fileGeneration > generation) {
+                    generation = fileGeneration;
+                }
+            }
+            for (File file : files) {
+                final int fileGeneration = parseGeneration(file.getName());
+                // A compaction that did not complete leaves its temporary file behind.
+                final boolean stale = fileGeneration > 0 && fileGeneration != generation
+                    || file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(TEMP_SUFFIX);
+                if (stale && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (generation == 0) {
+            generation = 1;
+            return;
+        }
+
+        try {
+            final ByteBuffer buffer = map();
+            while (buffer.remaining() >= 4) {
+                final int offset = buffer.position();
+                final int recordLength = buffer.getInt();
+                if (recordLength < 0 || recordLength > buffer.remaining()) {
+                    break;
+                }
+                final String jid = readString(buffer);
+                final Entry entry = new Entry(readString(buffer), buffer.getLong());
+                entry.offset = offset;
+                entry.length = 4 + recordLength;
+                buffer.position(offset + entry.length);
+
+                final Entry replaced = entries.put(jid, entry);
+                if (replaced != null) {
+                    liveLength -= replaced.length;
+                }
+                liveLength += entry.length;
+                length = buffer.position();
+            }
+            // Anything after the last complete record is dropped by the next flush.
+        }
+        catch (IOException e) {
+            Log.error("Unable to read " + getDataFile(generation), e);
+        }
+        catch (BufferUnderflowException e) {
+            Log.warning("Ignoring the incomplete record at " + length + " in " + getDataFile(generation));
+        }
+    }
+
+    /**
+     * Writes the current records into the next generation of the data file. The records
+     * are written to a temporary file that is synced and then renamed, so that a crash
+     * never leaves a partial newest generation behind. The old file is left to be removed
+     * once it is no longer mapped.
+     */
+    private void compact() throws IOException {
+        final File oldFile = getDataFile(generation);
+        final File newFile = getDataFile(generation + 1);
+        final List<Map.Entry<String, Entry>> live = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        Collections.sort(live, new Comparator<Map.Entry<String, Entry>>() {
+            public int compare(Map.Entry<String, Entry> entry1, Map.Entry<String, Entry> entry2) {
+                return entry1.getValue().offset < entry2.getValue().offset ? -1 : entry1.getValue().offset == entry2.getValue().offset ? 0 : 1;
+            }
+        });
+
+        final ByteBuffer source = map();
+        final File tempFile = new File(directory, newFile.getName() + TEMP_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        long newLength = 0;
+        final long[] offsets = new long[live.size()];
+        try {
+            raf.setLength(0);
+            final byte[] bytes = new byte[8192];
+            for (int i = 0; i < live.size(); i++) {
+                final Entry entry = live.get(i).getValue();
+                offsets[i] = newLength;
+                final ByteBuffer record = source.duplicate();
+                record.position((int)entry.offset);
+                record.limit((int)entry.offset + entry.length);
+                while (record.hasRemaining()) {
+                    final int count = Math.min(bytes.length, record.remaining());
+                    record.get(bytes, 0, count);
+                    raf.write(bytes, 0, count);
+                }
+                newLength += entry.length;
+            }
+            raf.getFD().sync();
+            raf.close();
+            try {
+                Files.move(tempFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            raf.close();
+            if (!tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < live.size(); i++) {
+            live.get(i).getValue().offset = offsets[i];
+        }
+        generation++;
+        length = newLength;
+        liveLength = newLength;
+        mapped = null;
+        // A mapped file cannot be removed on every platform, so try again on exit.
+        if (!oldFile.delete()) {
+            oldFile.deleteOnExit();
+        }
+    }
+
+    private Entry readRecord(Entry entry) throws IOException {
+        if (mapped == null || entry.offset + entry.length > mapped.limit()) {
+            map();
+        }
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int)entry.offset + 4);
+        readString(buffer);
+        final Entry record = new Entry(readString(buffer), buffer.getLong());
+        record.xml = readString(buffer);
+        return record;
+    }
+
+    private ByteBuffer map() throws IOException {
+        final FileInputStream in = new FileInputStream(getDataFile(generation));
+        try {
+            final FileChannel channel = in.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            // The mapping stays valid after the channel is closed.
+            in.close();
+        }
+        return mapped.duplicate();
+    }
+
+    private static void writeRecord(DataOutputStream out, String jid, Entry entry) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(record);
+        writeString(data, jid);
+        writeString(data, entry.photoHash);
+        data.writeLong(entry.fetched);
+        writeString(data, entry.xml);
+        data.flush();
+
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int parseGeneration(String fileName) {
+        if (!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(FILE_PREFIX.length(), fileName.length() - FILE_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private File getDataFile(int generation) {
+        return new File(directory, FILE_PREFIX + generation + FILE_SUFFIX);
+    }
+
+    /**
+     * An entry of the index. Pending entries carry their vCard until they are written.
+     */
+    private static class Entry {
+        final String photoHash;
+        final long fetched;
+        long offset;
+        int length;
+        String xml;
+
+        Entry(String photoHash, long fetched) {
+            this.photoHash = photoHash;
+            this.fetched = fetched;
+        }
+    }
+}
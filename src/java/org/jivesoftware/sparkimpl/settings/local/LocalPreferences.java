@@ -577,6 +577,20 @@ public class LocalPreferences {
 		setBoolean("showPrevHistory", hidePrevChatHistory);
 	}
 
+	/**
+	 * Returns the number of lines a chat window keeps, and the number of messages a
+	 * chat room keeps in memory. Older ones are dropped, 0 keeps everything.
+	 *
+	 * @return the size of the scrollback.
+	 */
+	public int getChatScrollback() {
+		return getInt("chatScrollback", 2000);
+	}
+
+	public void setChatScrollback(int lines) {
+		setInt("chatScrollback", lines);
+	}
+
 	public boolean isEmptyGroupsShown() {
 		return getBoolean("showEmptyGroups", false);
 	}
@@ -811,6 +825,20 @@ public class LocalPreferences {
 		return getBoolean("isMucHighTextOn", false);
 	}
 
+	/**
+	 * Returns the words that highlight a group chat message containing them, like
+	 * the user's name, separated by commas.
+	 *
+	 * @return the keywords, or an empty string.
+	 */
+	public String getMucHighlightKeywords() {
+		return getString("mucHighlightKeywords", "");
+	}
+
+	public void setMucHighlightKeywords(String keywords) {
+		setString("mucHighlightKeywords", keywords);
+	}
+
 	public boolean isMucRandomColors(){
 	    return getBoolean("isMucRandomColors", true);
 	}
@@ -995,6 +1023,21 @@ public class LocalPreferences {
 		return getBoolean("showAvatar", false);
 	}
 
+	public void setLightweightContactListEnabled(boolean enabled) {
+		setBoolean("lightweightContactList", enabled);
+	}
+
+	/**
+	 * Returns true if contacts in the contact list are only painted by the list
+	 * renderer instead of each having a panel of their own. Intended for rosters
+	 * with large shared groups.
+	 *
+	 * @return true if the lightweight contact list is enabled.
+	 */
+	public boolean isLightweightContactListEnabled() {
+		return getBoolean("lightweightContactList", false);
+	}
+
 	public void setVCardsVisible(boolean visible) {
 		setBoolean("showVCards", visible);
 	}
@@ -20,6 +20,7 @@
 package org.jivesoftware.fastpath.resources;
 
 import org.jivesoftware.fastpath.FastpathPlugin;
+import org.jivesoftware.spark.util.IconRegistry;
 
 import javax.swing.ImageIcon;
 import javax.swing.JEditorPane;
@@ -258,6 +259,12 @@ public class FastpathRes {
 
     static ClassLoader cl = FastpathPlugin.class.getClassLoader();
 
+    private static final IconRegistry icons = new IconRegistry(new IconRegistry.Locator() {
+        public URL getURL(String name) {
+            return FastpathRes.getURL(name);
+        }
+    });
+
     static {
         prb = (PropertyResourceBundle)ResourceBundle.getBundle("fastpath");
     }
@@ -268,13 +275,15 @@ public class FastpathRes {
 
     public static final ImageIcon getImageIcon(String imageName) {
         try {
-            final String iconURI = getString(imageName);
-            final URL imageURL = cl.getResource(iconURI);
-            return new ImageIcon(imageURL);
+            final ImageIcon icon = icons.getIcon(imageName);
+            if (icon != null) {
+                return icon;
+            }
         }
         catch (Exception ex) {
-            System.out.println(imageName + " not found.");
+            // Reported below.
         }
+        System.out.println(imageName + " not found.");
         return null;
     }
 
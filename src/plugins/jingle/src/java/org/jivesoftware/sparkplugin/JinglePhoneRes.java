@@ -24,6 +24,8 @@ import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
 import java.net.URL;
 
+import org.jivesoftware.spark.util.IconRegistry;
+
 /**
  * Use for Phone Res Internationalization.
  *
@@ -38,6 +40,12 @@ public class JinglePhoneRes {
 
     static ClassLoader cl = JinglePhoneRes.class.getClassLoader();
 
+    private static final IconRegistry icons = new IconRegistry(new IconRegistry.Locator() {
+        public URL getURL(String name) {
+            return JinglePhoneRes.getURL(name);
+        }
+    });
+
     static {
         JinglePhoneRes.prb = (PropertyResourceBundle) ResourceBundle.getBundle("org/jivesoftware/sparkplugin/jingle");
     }
@@ -48,13 +56,15 @@ public class JinglePhoneRes {
 
     public static final ImageIcon getImageIcon(String imageName) {
         try {
-            final String iconURI = JinglePhoneRes.getString(imageName);
-            final URL imageURL = JinglePhoneRes.cl.getResource(iconURI);
-            return new ImageIcon(imageURL);
+            final ImageIcon icon = icons.getIcon(imageName);
+            if (icon != null) {
+                return icon;
+            }
         }
         catch (Exception ex) {
-            System.out.println(imageName + " not found.");
+            // Reported below.
         }
+        System.out.println(imageName + " not found.");
         return null;
     }
 
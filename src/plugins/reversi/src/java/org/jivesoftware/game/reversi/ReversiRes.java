@@ -6,6 +6,9 @@ import java.util.ResourceBundle;
 
 import javax.swing.ImageIcon;
 
+import org.jivesoftware.spark.util.IconRegistry;
+import org.jivesoftware.spark.util.log.Log;
+
 public class ReversiRes {
 	   	private static PropertyResourceBundle prb;
 	   	public static final String REVERSI_ICON = "REVERSI_ICON"; 	
@@ -26,6 +29,12 @@ public class ReversiRes {
 
 	    static ClassLoader cl = ReversiRes.class.getClassLoader();
 
+	    private static final IconRegistry icons = new IconRegistry(new IconRegistry.Locator() {
+	        public URL getURL(String name) {
+	            return ReversiRes.getURL(name);
+	        }
+	    });
+
 	    static {
 	    	ReversiRes.prb = (PropertyResourceBundle) ResourceBundle.getBundle("reversi");
 	    }
@@ -36,13 +45,15 @@ public class ReversiRes {
 
 	    public static final ImageIcon getImageIcon(String imageName) {
 	        try {
-	            final String iconURI = ReversiRes.getString(imageName);
-	            final URL imageURL = ReversiRes.cl.getResource(iconURI);
-	            return new ImageIcon(imageURL);
+	            final ImageIcon icon = icons.getIcon(imageName);
+	            if (icon != null) {
+	                return icon;
+	            }
 	        }
 	        catch (Exception ex) {
-	            System.out.println(imageName + " not found.");
+	            // Reported below.
 	        }
+	        Log.error(imageName + " not found.");
 	        return null;
 	    }
 
@@ -21,6 +21,7 @@ package org.jivesoftware.spark.plugin.phone.resource;
 
 import javax.swing.ImageIcon;
 
+import org.jivesoftware.spark.util.IconRegistry;
 import org.jivesoftware.spark.util.log.Log;
 
 import java.awt.Image;
@@ -43,6 +44,12 @@ public class PhoneRes {
 
     static ClassLoader cl = PhoneRes.class.getClassLoader();
 
+    private static final IconRegistry icons = new IconRegistry(new IconRegistry.Locator() {
+        public URL getURL(String name) {
+            return PhoneRes.getURL(name);
+        }
+    });
+
     static {
         prb = (PropertyResourceBundle)ResourceBundle.getBundle("org/jivesoftware/spark/plugin/phone/resource/phone");
         irb = (PropertyResourceBundle)ResourceBundle.getBundle("org/jivesoftware/spark/plugin/phone/resource/sip_spark_i18n");
@@ -58,13 +65,15 @@ public class PhoneRes {
 
     public static final ImageIcon getImageIcon(String imageName) {
         try {
-            final String iconURI = getString(imageName);
-            final URL imageURL = cl.getResource(iconURI);
-            return new ImageIcon(imageURL);
+            final ImageIcon icon = icons.getIcon(imageName);
+            if (icon != null) {
+                return icon;
+            }
         }
         catch (Exception ex) {
-            System.out.println(imageName + " not found.");
+            // Reported below.
         }
+        System.out.println(imageName + " not found.");
         return null;
     }
 
@@ -74,9 +83,7 @@ public class PhoneRes {
 
     public static final Image getImage(String imageName) {
        try {
-           final String iconURI = getString(imageName);
-           final URL imageURL = cl.getResource(iconURI);
-           return new ImageIcon(imageURL).getImage();
+           return icons.getIcon(imageName).getImage();
        }
        catch (Exception ex) {
            Log.error(imageName + " not found.");
@@ -0,0 +1,84 @@
+package org.jivesoftware.spark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.OrFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+/**
+ * Measures the cost of routing an incoming packet to its chat room as the number
+ * of open rooms grows, through the dispatcher against every room registering its
+ * own filtered listener as before, the way the connection evaluated them.
+ * <p/>
+ * Not part of the test run, start it with <code>main</code>.
+ */
+public class PacketDispatchBenchmark
+{
+	private static final int PACKETS = 200000;
+
+	public static void main(String[] args)
+	{
+		for (int rooms : new int[] { 1, 10, 100 }) {
+			PacketDispatcher dispatcher = new PacketDispatcher();
+			List<PacketFilter> filters = new ArrayList<PacketFilter>();
+			List<PacketListener> listeners = new ArrayList<PacketListener>();
+			for (int i = 0; i < rooms; i++) {
+				String jid = "room" + i + "@conference.example.com";
+				filters.add(new AndFilter(new OrFilter(new PacketTypeFilter(Presence.class), new PacketTypeFilter(Message.class)),
+						new FromMatchesFilter(jid)));
+				CountingListener listener = new CountingListener();
+				listeners.add(listener);
+				dispatcher.addPacketListener(jid, listener);
+			}
+			List<Packet> packets = new ArrayList<Packet>();
+			for (int i = 0; i < 1000; i++) {
+				Message message = new Message();
+				message.setFrom("room" + (i * 7 % rooms) + "@conference.example.com/nick" + i);
+				packets.add(message);
+			}
+
+			// Warm up both before measuring.
+			for (int run = 0; run < 2; run++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < PACKETS; i++) {
+					Packet packet = packets.get(i % packets.size());
+					for (int j = 0; j < rooms; j++) {
+						if (filters.get(j).accept(packet)) {
+							listeners.get(j).processPacket(packet);
+						}
+					}
+				}
+				long filterNanos = (System.nanoTime() - start) / PACKETS;
+
+				start = System.nanoTime();
+				for (int i = 0; i < PACKETS; i++) {
+					dispatcher.processPacket(packets.get(i % packets.size()));
+				}
+				long dispatcherNanos = (System.nanoTime() - start) / PACKETS;
+
+				if (run == 1) {
+					System.out.println("Routing a packet with " + rooms + " rooms: filters " + filterNanos + " ns, dispatcher "
+							+ dispatcherNanos + " ns");
+				}
+			}
+		}
+	}
+
+	private static class CountingListener implements PacketListener
+	{
+		int count;
+
+		public void processPacket(Packet packet)
+		{
+			count++;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.jivesoftware.spark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.OrFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class PacketDispatcherTest
+{
+	private static final int ROOMS = 100;
+
+	@Test
+	public void testRouting()
+	{
+		PacketDispatcher dispatcher = new PacketDispatcher();
+		CountingListener bare = new CountingListener();
+		CountingListener full = new CountingListener();
+		CountingListener room = new CountingListener();
+		dispatcher.addPacketListener("Bob@example.com", bare);
+		dispatcher.addPacketListener("bob@example.com/Work", full);
+		dispatcher.addPacketListener("lounge@conference.example.com", room);
+
+		dispatcher.processPacket(message("bob@example.com/Home"));
+		dispatcher.processPacket(message("BOB@example.com/work"));
+		dispatcher.processPacket(message("bob@example.com"));
+		dispatcher.processPacket(message("bobby@example.com"));
+		dispatcher.processPacket(presence("lounge@conference.example.com/alice"));
+		dispatcher.processPacket(message(null));
+		assertEquals(3, bare.count);
+		assertEquals(1, full.count);
+		assertEquals(1, room.count);
+
+		dispatcher.removePacketListener(bare);
+		dispatcher.processPacket(message("bob@example.com/Work"));
+		assertEquals(3, bare.count);
+		assertEquals(2, full.count);
+		assertEquals(2, dispatcher.getAddressCount());
+	}
+
+	/**
+	 * Delivers packets to the same rooms as every room registering its own filtered
+	 * listener did.
+	 */
+	@Test
+	public void testSameAsFilters()
+	{
+		PacketDispatcher dispatcher = new PacketDispatcher();
+		List<PacketFilter> filters = new ArrayList<PacketFilter>();
+		List<CountingListener> filtered = new ArrayList<CountingListener>();
+		List<CountingListener> dispatched = new ArrayList<CountingListener>();
+		for (int i = 0; i < ROOMS; i++) {
+			String jid = "user" + i + "@example.com";
+			filters.add(new AndFilter(new OrFilter(new PacketTypeFilter(Presence.class), new PacketTypeFilter(Message.class)), new FromMatchesFilter(jid)));
+			filtered.add(new CountingListener());
+			CountingListener listener = new CountingListener();
+			dispatched.add(listener);
+			dispatcher.addPacketListener(jid, listener);
+		}
+
+		for (int i = 0; i < ROOMS * 3; i++) {
+			// Every third packet comes from someone without a room.
+			Packet packet = i % 3 == 0 ? presence("other" + i + "@example.com/resource")
+				: message("user" + (i * 7 % ROOMS) + "@example.com/resource");
+			for (int j = 0; j < ROOMS; j++) {
+				if (filters.get(j).accept(packet)) {
+					filtered.get(j).processPacket(packet);
+				}
+			}
+			dispatcher.processPacket(packet);
+		}
+
+		int received = 0;
+		for (int i = 0; i < ROOMS; i++) {
+			assertEquals(filtered.get(i).count, dispatched.get(i).count);
+			received += dispatched.get(i).count;
+		}
+		assertEquals(ROOMS * 2, received);
+	}
+
+	private static Message message(String from)
+	{
+		Message message = new Message();
+		message.setFrom(from);
+		return message;
+	}
+
+	private static Presence presence(String from)
+	{
+		Presence presence = new Presence(Presence.Type.available);
+		presence.setFrom(from);
+		return presence;
+	}
+
+	private static class CountingListener implements PacketListener
+	{
+		int count;
+
+		public void processPacket(Packet packet)
+		{
+			count++;
+		}
+	}
+}
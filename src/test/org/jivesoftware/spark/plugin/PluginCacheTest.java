@@ -0,0 +1,164 @@
+package org.jivesoftware.spark.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.DocumentException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PluginCacheTest
+{
+	private static final int PLUGINS = 12;
+	private static final int JAR_SIZE = 2 * 1024 * 1024;
+
+	@Test
+	public void testDescriptor() throws Exception
+	{
+		File dir = createDirectory();
+		File pluginXML = writePluginXML(dir, "Roar", "<depends><plugin><name>Fastpath</name><version>1.0</version></plugin>"
+				+ "<milestone>connected</milestone></depends><background>true</background>");
+		File cacheFile = new File(dir, PluginCache.FILE_NAME);
+		CountingCache cache = new CountingCache(cacheFile);
+		PluginDescriptor parsed = cache.getDescriptor(pluginXML);
+		cache.save();
+
+		CountingCache reloaded = new CountingCache(cacheFile);
+		PluginDescriptor cached = reloaded.getDescriptor(pluginXML);
+		assertEquals(0, reloaded.parsed.get());
+		for (PluginDescriptor descriptor : new PluginDescriptor[] { parsed, cached }) {
+			assertEquals("Roar", descriptor.getName());
+			assertEquals("org.example.Roar", descriptor.getPluginClass());
+			assertEquals("2.7.0", descriptor.getMinSparkVersion());
+			assertEquals("Windows,Linux", descriptor.getOs());
+			assertEquals(null, descriptor.getJava());
+			assertTrue(descriptor.isBackground());
+			assertEquals(1, descriptor.getDependencies().size());
+			assertEquals("Fastpath", descriptor.getDependencies().get(0).getName());
+			assertEquals("1.0", descriptor.getDependencies().get(0).getVersion());
+			assertEquals("connected", descriptor.getMilestones().get(0));
+		}
+
+		// A changed plugin.xml is parsed again.
+		writePluginXML(dir, "Roar 2", "");
+		assertEquals("Roar 2", reloaded.getDescriptor(pluginXML).getName());
+		assertEquals(1, reloaded.parsed.get());
+		assertTrue(reloaded.getDescriptor(pluginXML).getDependencies().isEmpty());
+
+		// An unreadable cache is rebuilt.
+		FileWriter writer = new FileWriter(cacheFile);
+		writer.write("\\u00zz");
+		writer.close();
+		CountingCache corrupt = new CountingCache(cacheFile);
+		assertEquals("Roar 2", corrupt.getDescriptor(pluginXML).getName());
+		assertEquals(1, corrupt.parsed.get());
+		delete(dir);
+	}
+
+	/**
+	 * Checks a dozen plugin jars, computing their checksums at the first start and
+	 * reading them from the cache kept since the previous start afterwards.
+	 */
+	@Test
+	public void testChecksums() throws Exception
+	{
+		File dir = createDirectory();
+		Random random = new Random(7);
+		File[] jars = new File[PLUGINS];
+		byte[] content = new byte[JAR_SIZE];
+		for (int i = 0; i < PLUGINS; i++) {
+			random.nextBytes(content);
+			jars[i] = new File(dir, "plugin" + i + ".jar");
+			FileOutputStream out = new FileOutputStream(jars[i]);
+			out.write(content);
+			out.close();
+		}
+		File cacheFile = new File(dir, PluginCache.FILE_NAME);
+
+		CountingCache first = new CountingCache(cacheFile);
+		String[] checksums = new String[PLUGINS];
+		for (int i = 0; i < PLUGINS; i++) {
+			checksums[i] = first.getChecksum(jars[i]);
+		}
+		first.save();
+		assertEquals(PLUGINS, first.computed.get());
+		assertFalse(new File(dir, PluginCache.FILE_NAME + ".tmp").exists());
+
+		CountingCache second = new CountingCache(cacheFile);
+		for (int i = 0; i < PLUGINS; i++) {
+			assertEquals(checksums[i], second.getChecksum(jars[i]));
+		}
+		second.save();
+		assertEquals(0, second.computed.get());
+
+		// A replaced jar is hashed again, a removed one leaves the cache.
+		FileOutputStream out = new FileOutputStream(jars[0], true);
+		out.write(1);
+		out.close();
+		assertFalse(checksums[0].equals(second.getChecksum(jars[0])));
+		assertEquals(1, second.computed.get());
+		assertTrue(jars[1].delete());
+		second.save();
+		CountingCache third = new CountingCache(cacheFile);
+		third.getChecksum(jars[0]);
+		assertEquals(0, third.computed.get());
+		assertTrue(third.getChecksum(jars[2]).equals(checksums[2]));
+		delete(dir);
+	}
+
+	private static File createDirectory() throws IOException
+	{
+		File dir = File.createTempFile("plugincache", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		return dir;
+	}
+
+	private static File writePluginXML(File dir, String name, String extra) throws IOException
+	{
+		File pluginXML = new File(dir, "plugin.xml");
+		FileWriter writer = new FileWriter(pluginXML);
+		writer.write("<plugin><name>" + name + "</name><class>org.example.Roar</class><version>0.3</version>"
+				+ "<minSparkVersion>2.7.0</minSparkVersion><os>Windows,Linux</os>" + extra + "</plugin>");
+		writer.close();
+		return pluginXML;
+	}
+
+	private static void delete(File dir)
+	{
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private static class CountingCache extends PluginCache
+	{
+		final AtomicInteger computed = new AtomicInteger();
+		final AtomicInteger parsed = new AtomicInteger();
+
+		CountingCache(File file)
+		{
+			super(file);
+		}
+
+		protected String computeChecksum(File jar) throws NoSuchAlgorithmException, IOException
+		{
+			computed.incrementAndGet();
+			return super.computeChecksum(jar);
+		}
+
+		protected PluginDescriptor parseDescriptor(File pluginXML) throws DocumentException
+		{
+			parsed.incrementAndGet();
+			return super.parseDescriptor(pluginXML);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.jivesoftware.spark.plugin;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.spark.StartupMilestones;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PluginStartupTest
+{
+	private static final int PLUGINS = 16;
+	private static final long INITIALIZE_MILLIS = 40;
+
+	@Test
+	public void testOrder() throws InterruptedException
+	{
+		PluginStartup startup = new PluginStartup();
+		Map<String, TestPlugin> plugins = new HashMap<String, TestPlugin>();
+		add(startup, plugins, "a", "1.0", false);
+		add(startup, plugins, "b", "1.0", false, dependency("a", "1.0"));
+		add(startup, plugins, "c", "1.0", true);
+		add(startup, plugins, "d", "1.0", true, dependency("c", "1.0"), dependency("a", "1.0"));
+		add(startup, plugins, "e", "1.0", false, dependency("missing", "1.0"));
+		add(startup, plugins, "f", "1.0", true, dependency("e", "1.0"));
+		add(startup, plugins, "g", "1.0", false, dependency("h", "1.0"));
+		add(startup, plugins, "h", "1.0", false, dependency("g", "1.0"));
+		add(startup, plugins, "i", "1.0", false, dependency("a", "2.0"));
+
+		Map<Plugin, String> skipped = startup.start();
+		assertTrue(startup.await(5, TimeUnit.SECONDS));
+		assertEquals(new HashSet<Plugin>(Arrays.asList(plugins.get("e"), plugins.get("f"), plugins.get("g"), plugins.get("h"), plugins.get("i"))),
+				skipped.keySet());
+		assertTrue(skipped.get(plugins.get("e")).contains("missing"));
+
+		List<String> initialized = new ArrayList<String>();
+		for (PluginStartup.Timing timing : startup.getTimeline()) {
+			initialized.add(timing.getName());
+			assertEquals(timing.isBackground(), !plugins.get(timing.getName()).onEventThread);
+		}
+		assertEquals(4, initialized.size());
+		assertTrue(initialized.indexOf("a") < initialized.indexOf("b"));
+		assertTrue(initialized.indexOf("a") < initialized.indexOf("d"));
+		assertTrue(initialized.indexOf("c") < initialized.indexOf("d"));
+		for (String name : Arrays.asList("e", "f", "g", "h", "i")) {
+			assertFalse(plugins.get(name).initialized);
+		}
+
+		PluginStartup empty = new PluginStartup();
+		assertTrue(empty.start().isEmpty());
+		assertTrue(empty.await(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Starts plugins waiting for the roster once it was loaded, and plugins only
+	 * waiting for the connection before.
+	 */
+	@Test
+	public void testMilestones() throws InterruptedException
+	{
+		final StartupMilestones milestones = new StartupMilestones() {};
+		PluginStartup startup = new PluginStartup();
+		TestPlugin early = new TestPlugin();
+		TestPlugin late = new TestPlugin();
+		TestPlugin dependent = new TestPlugin();
+		startup.add("early", "1.0", early, true, Collections.<PluginDependency>emptyList(), Arrays.asList(StartupMilestones.CONNECTED));
+		startup.add("late", "1.0", late, false, Collections.<PluginDependency>emptyList(), StartupMilestones.getMilestones());
+		startup.add("dependent", "1.0", dependent, true, Arrays.asList(dependency("early", "1.0")), Arrays.asList(StartupMilestones.ROSTER_LOADED));
+
+		final PluginStartup started = startup;
+		milestones.reach(StartupMilestones.CONNECTED);
+		milestones.addMilestoneListener(new StartupMilestones.MilestoneListener() {
+			public void milestoneReached(String milestone)
+			{
+				started.reach(milestone);
+			}
+		});
+		assertTrue(milestones.isReached(StartupMilestones.CONNECTED));
+		assertTrue(startup.start().isEmpty());
+
+		Thread.sleep(3 * INITIALIZE_MILLIS);
+		assertTrue(early.initialized);
+		assertFalse(late.initialized);
+		assertFalse(dependent.initialized);
+
+		milestones.reach(StartupMilestones.WORKSPACE_SHOWN);
+		Thread.sleep(3 * INITIALIZE_MILLIS);
+		assertFalse(late.initialized);
+		assertFalse(dependent.initialized);
+
+		milestones.reach(StartupMilestones.ROSTER_LOADED);
+		milestones.reach(StartupMilestones.ROSTER_LOADED);
+		assertTrue(startup.await(5, TimeUnit.SECONDS));
+		assertTrue(late.initialized);
+		assertTrue(dependent.initialized);
+	}
+
+	/**
+	 * Initializes sixteen plugins, half of which may be initialized in the
+	 * background, each once its dependencies are initialized.
+	 */
+	@Test
+	public void testStartup() throws Exception
+	{
+		PluginStartup startup = new PluginStartup();
+		Map<String, TestPlugin> plugins = new HashMap<String, TestPlugin>();
+		for (int i = 0; i < PLUGINS; i++) {
+			if (i > 0 && i % 4 == 0) {
+				add(startup, plugins, "plugin" + i, "1.0", i % 2 == 1, dependency("plugin" + (i - 4), "1.0"));
+			}
+			else {
+				add(startup, plugins, "plugin" + i, "1.0", i % 2 == 1);
+			}
+		}
+		assertTrue(startup.start().isEmpty());
+		assertTrue(startup.await(10, TimeUnit.SECONDS));
+
+		Map<String, PluginStartup.Timing> timings = new HashMap<String, PluginStartup.Timing>();
+		for (PluginStartup.Timing timing : startup.getTimeline()) {
+			timings.put(timing.getName(), timing);
+		}
+		assertEquals(PLUGINS, timings.size());
+		for (int i = 0; i < PLUGINS; i++) {
+			TestPlugin plugin = plugins.get("plugin" + i);
+			assertTrue(plugin.initialized);
+			assertEquals(i % 2 == 1, !plugin.onEventThread);
+			if (i > 0 && i % 4 == 0) {
+				assertTrue(timings.get("plugin" + i).getStarted() >= timings.get("plugin" + (i - 4)).getFinished());
+			}
+		}
+	}
+
+	private static void add(PluginStartup startup, Map<String, TestPlugin> plugins, String name, String version, boolean background,
+			PluginDependency... dependencies)
+	{
+		TestPlugin plugin = new TestPlugin();
+		plugins.put(name, plugin);
+		startup.add(name, version, plugin, background, Arrays.asList(dependencies));
+	}
+
+	private static PluginDependency dependency(String name, String version)
+	{
+		PluginDependency dependency = new PluginDependency();
+		dependency.setName(name);
+		dependency.setVersion(version);
+		return dependency;
+	}
+
+	private static class TestPlugin implements Plugin
+	{
+		volatile boolean initialized;
+		volatile boolean onEventThread;
+
+		public void initialize()
+		{
+			onEventThread = EventQueue.isDispatchThread();
+			try {
+				Thread.sleep(INITIALIZE_MILLIS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			initialized = true;
+		}
+
+		public void shutdown()
+		{
+		}
+
+		public boolean canShutDown()
+		{
+			return true;
+		}
+
+		public void uninstall()
+		{
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package org.jivesoftware.spark.ui;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Enumeration;
+
+import javax.swing.ImageIcon;
+import javax.swing.JTextPane;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatDocumentTest
+{
+	private static final int MESSAGES = 100;
+
+	private final ImageIcon smiley = new ImageIcon(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+
+	@Test
+	public void testSameStructureAsSingleInserts() throws BadLocationException
+	{
+		FormattedText[] messages = {
+			message("(10:00) alice: ", "hello there\n"),
+			message("(10:01) bob: ", "two\nlines\n"),
+			message("", "no newline "),
+			message("(10:02) alice: ", "after text\n"),
+			message("", "\n\n"),
+			message("(10:03) bob: ", "ends without newline"),
+			message("", " continued"),
+			new FormattedText(),
+			new FormattedText(),
+			message("", "last\n"),
+		};
+		messages[2].appendIcon(smiley);
+		messages[2].append(" trailing\n", plain(Color.BLACK));
+		// Runs without attributes match the implied newline at the end of the document.
+		messages[7].append("unstyled", new SimpleAttributeSet());
+		messages[8].append("a\nb", new SimpleAttributeSet());
+		messages[8].append("c", plain(Color.RED));
+		messages[8].append("\nd", new SimpleAttributeSet());
+
+		// Every prefix of the sequence, so each message is appended to every kind of document end.
+		for (int count = 1; count <= messages.length; count++) {
+			DefaultStyledDocument expected = new DefaultStyledDocument();
+			ChatDocument actual = new ChatDocument();
+			for (int i = 0; i < count; i++) {
+				messages[i].insertInto(expected, expected.getLength());
+				actual.append(messages[i]);
+			}
+			assertEquals(dump(expected), dump(actual));
+		}
+	}
+
+	@Test
+	public void testSingleEvent() throws BadLocationException
+	{
+		ChatDocument document = new ChatDocument();
+		final int[] events = new int[1];
+		document.addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e)
+			{
+				events[0]++;
+			}
+
+			public void removeUpdate(DocumentEvent e)
+			{
+			}
+
+			public void changedUpdate(DocumentEvent e)
+			{
+			}
+		});
+		FormattedText text = message("(10:00) alice: ", "look at this ");
+		text.appendIcon(smiley);
+		text.append(" and this\n", plain(Color.BLUE));
+		document.append(text);
+
+		assertEquals(1, events[0]);
+		assertEquals("(10:00) alice: look at this   and this\n", document.getText(0, document.getLength()));
+	}
+
+	@Test
+	public void testScrollback() throws BadLocationException
+	{
+		ChatDocument document = new ChatDocument();
+		document.setScrollback(100);
+		for (int i = 0; i < 999; i++) {
+			document.append(message("(10:00) alice: ", "message " + i + "\nsecond line\n"));
+			int lines = document.getDefaultRootElement().getElementCount() - 1;
+			assertTrue(lines <= 125);
+			assertEquals(lines / 2, document.getMessageCount());
+		}
+		// Whole messages are dropped, down to the scrollback.
+		assertEquals(50, document.getMessageCount());
+		assertTrue(document.getText(0, document.getLength()).startsWith("(10:00) alice: message 949\n"));
+
+		document.remove(0, document.getLength());
+		assertEquals(0, document.getMessageCount());
+
+		// Lines that are not messages go with the message before them.
+		document.setScrollback(4);
+		document.append(message("a: ", "two\nlines\n"));
+		document.append(message("", "*** bob went offline\n"));
+		document.append(message("b: ", "one\n"));
+		document.append(message("c: ", "one\n"));
+		assertEquals(3, document.getMessageCount());
+		document.append(message("d: ", "one\n"));
+		assertEquals("b: one\nc: one\nd: one\n", document.getText(0, document.getLength()));
+		assertEquals(3, document.getMessageCount());
+
+		document.remove(0, document.getLength());
+		assertEquals(0, document.getMessageCount());
+	}
+
+	@Test
+	public void testPrepend() throws BadLocationException
+	{
+		FormattedText page = message("(09:00) bob: ", "older\n");
+		page.appendIcon(smiley);
+		page.append(message("(09:01) bob: ", "two\nlines\n"));
+		FormattedText unmarked = new FormattedText();
+		unmarked.append("Monday\n", plain(Color.RED));
+		unmarked.append(page);
+
+		DefaultStyledDocument expected = new DefaultStyledDocument();
+		ChatDocument actual = new ChatDocument();
+		FormattedText current = message("(10:00) alice: ", "newer\n");
+		current.insertInto(expected, 0);
+		actual.append(current);
+		unmarked.insertInto(expected, 0);
+		actual.prepend(unmarked);
+		assertEquals(dump(expected), dump(actual));
+		assertEquals(3, actual.getMessageCount());
+
+		// The pages prepended are dropped first, a message at a time.
+		actual.setScrollback(4);
+		actual.append(message("(10:01) alice: ", "latest\n"));
+		assertEquals("(09:01) bob: two\nlines\n(10:00) alice: newer\n(10:01) alice: latest\n", actual.getText(0, actual.getLength()));
+		assertEquals(3, actual.getMessageCount());
+	}
+
+	/**
+	 * Replaying a history adds each message in one edit, with the same text as
+	 * inserting it one token at a time.
+	 */
+	@Test
+	public void testHistoryReplay() throws BadLocationException
+	{
+		FormattedText message = message("(10:00) alice: ", "");
+		String[] words = "are we still meeting at three, I moved the review to room four".split(" ");
+		for (String word : words) {
+			message.append(word, plain(Color.BLACK));
+			message.append(" ", plain(Color.BLACK));
+		}
+		message.append("\n", plain(Color.BLACK));
+
+		StyledDocument doc = new JTextPane().getStyledDocument();
+		for (int i = 0; i < MESSAGES; i++) {
+			doc.insertString(doc.getLength(), "(10:00) alice: ", plain(Color.BLUE));
+			for (String word : words) {
+				doc.insertString(doc.getLength(), word, plain(Color.BLACK));
+				doc.insertString(doc.getLength(), " ", plain(Color.BLACK));
+			}
+			doc.insertString(doc.getLength(), "\n", plain(Color.BLACK));
+		}
+
+		JTextPane batched = new JTextPane(new ChatDocument());
+		ChatDocument chatDocument = (ChatDocument)batched.getStyledDocument();
+		final int[] inserts = new int[1];
+		chatDocument.addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e)
+			{
+				inserts[0]++;
+			}
+
+			public void removeUpdate(DocumentEvent e)
+			{
+			}
+
+			public void changedUpdate(DocumentEvent e)
+			{
+			}
+		});
+		for (int i = 0; i < MESSAGES; i++) {
+			chatDocument.append(message);
+		}
+
+		assertEquals(MESSAGES, inserts[0]);
+		assertEquals(doc.getText(0, doc.getLength()), chatDocument.getText(0, chatDocument.getLength()));
+		assertEquals(MESSAGES + 1, chatDocument.getDefaultRootElement().getElementCount());
+	}
+
+	private FormattedText message(String prefix, String body)
+	{
+		FormattedText text = new FormattedText();
+		if (prefix.length() > 0) {
+			text.markMessage();
+		}
+		SimpleAttributeSet header = plain(Color.BLUE);
+		StyleConstants.setBold(header, true);
+		text.append(prefix, header);
+		text.append(body, plain(Color.BLACK));
+		return text;
+	}
+
+	private static SimpleAttributeSet plain(Color color)
+	{
+		SimpleAttributeSet attributes = new SimpleAttributeSet();
+		StyleConstants.setForeground(attributes, color);
+		return attributes;
+	}
+
+	/**
+	 * Lists the paragraphs and runs of a document, merging neighbouring runs with equal
+	 * attributes since they look the same.
+	 */
+	private static String dump(StyledDocument document) throws BadLocationException
+	{
+		StringBuilder builder = new StringBuilder();
+		Element root = document.getDefaultRootElement();
+		for (int p = 0; p < root.getElementCount(); p++) {
+			Element paragraph = root.getElement(p);
+			builder.append("[");
+			AttributeSet previous = null;
+			for (int r = 0; r < paragraph.getElementCount(); r++) {
+				Element run = paragraph.getElement(r);
+				AttributeSet attributes = run.getAttributes();
+				String text = document.getText(run.getStartOffset(), run.getEndOffset() - run.getStartOffset());
+				if (previous == null || !previous.isEqual(attributes) || StyleConstants.getIcon(attributes) != null) {
+					builder.append(previous == null ? "" : "|").append(describe(attributes)).append(":");
+				}
+				builder.append(text.replace("\n", "\\n"));
+				previous = attributes;
+			}
+			builder.append("]\n");
+		}
+		return builder.toString();
+	}
+
+	private static String describe(AttributeSet attributes)
+	{
+		StringBuilder builder = new StringBuilder("{");
+		Enumeration<?> names = attributes.getAttributeNames();
+		while (names.hasMoreElements()) {
+			Object name = names.nextElement();
+			builder.append(name).append("=").append(name == StyleConstants.IconAttribute ? "icon" : attributes.getAttribute(name)).append(",");
+		}
+		return builder.append("}").toString();
+	}
+}
@@ -0,0 +1,92 @@
+package org.jivesoftware.spark.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JIDIndexTest
+{
+	private static final int CONTACTS = 5000;
+	private static final int GROUPS = 100;
+
+	@Test
+	public void testAddRemove()
+	{
+		JIDIndex<String> index = new JIDIndex<String>();
+		assertTrue(index.add("user@example.com", "Friends"));
+		assertFalse(index.add("User@Example.com", "Friends"));
+		assertTrue(index.add("user@example.com", "Work"));
+
+		assertEquals(2, index.get("USER@example.com").size());
+		assertEquals("Friends", index.getFirst("user@example.com"));
+
+		// Moving between groups keeps the other entries.
+		assertTrue(index.remove("user@example.com", "Friends"));
+		assertTrue(index.add("user@example.com", "Offline"));
+		assertEquals("Work", index.getFirst("user@example.com"));
+		assertEquals(2, index.get("user@example.com").size());
+
+		assertTrue(index.remove("user@example.com", "Work"));
+		assertTrue(index.remove("user@example.com", "Offline"));
+		assertFalse(index.remove("user@example.com", "Offline"));
+		assertFalse(index.contains("user@example.com"));
+		assertNull(index.getFirst("user@example.com"));
+		assertTrue(index.get("user@example.com").isEmpty());
+		assertEquals(0, index.size());
+	}
+
+	/**
+	 * Every contact of a roster of 5,000 is found in exactly the groups a scan over
+	 * every group finds it in.
+	 */
+	@Test
+	public void testRosterLookup()
+	{
+		List<List<String>> groups = new ArrayList<List<String>>();
+		for (int i = 0; i < GROUPS; i++) {
+			groups.add(new ArrayList<String>());
+		}
+
+		JIDIndex<List<String>> index = new JIDIndex<List<String>>();
+		for (int i = 0; i < CONTACTS; i++) {
+			String jid = "user" + i + "@example.com";
+			// Every fifth contact is in two groups.
+			int memberships = i % 5 == 0 ? 2 : 1;
+			for (int m = 0; m < memberships; m++) {
+				List<String> group = groups.get((i + m * 37) % GROUPS);
+				group.add(jid);
+				index.add(jid, group);
+			}
+		}
+		assertEquals(CONTACTS, index.size());
+
+		for (int i = 0; i < CONTACTS; i++) {
+			String jid = "user" + i + "@example.com";
+			List<List<String>> scanned = new ArrayList<List<String>>();
+			for (List<String> group : groups) {
+				if (group.contains(jid)) {
+					scanned.add(group);
+				}
+			}
+			List<List<String>> indexed = index.get(jid.toUpperCase());
+			assertEquals(i % 5 == 0 ? 2 : 1, indexed.size());
+			assertEquals(scanned.size(), indexed.size());
+			for (List<String> group : indexed) {
+				assertTrue(scanned.contains(group));
+			}
+		}
+
+		// Removing every contact leaves nothing behind.
+		for (List<String> group : groups) {
+			for (String jid : group) {
+				assertTrue(index.remove(jid, group));
+			}
+		}
+		assertEquals(0, index.size());
+	}
+}
@@ -0,0 +1,109 @@
+package org.jivesoftware.spark.ui;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceUpdateQueueTest
+{
+	private static final int CONTACTS = 600;
+	private static final int BATCH_SIZE = 250;
+
+	/**
+	 * A roster coming online sends every contact twice, the second time with the
+	 * JID in another case. Only the last presence of every JID is applied, in
+	 * batches of at most 250 with the Swing thread let go in between.
+	 */
+	@Test
+	public void testCoalesce() throws Exception
+	{
+		final CountingHandler handler = new CountingHandler(CONTACTS + 1);
+		PresenceUpdateQueue queue = new PresenceUpdateQueue(handler);
+		for (int i = 0; i < CONTACTS; i++) {
+			queue.offer(presence("user" + i + "@example.com/spark", Presence.Type.unavailable, "first " + i));
+		}
+		for (int i = 0; i < CONTACTS; i++) {
+			queue.offer(presence("USER" + i + "@Example.com/spark", Presence.Type.available, "last " + i));
+		}
+		// Another resource of the same contact is a presence of its own.
+		queue.offer(presence("user0@example.com/phone", Presence.Type.available, "phone"));
+		assertEquals(CONTACTS + 1, queue.getQueueDepth());
+
+		assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+		EventQueue.invokeAndWait(new Runnable() {
+			public void run()
+			{
+				// Let the last batch and its marker finish.
+			}
+		});
+
+		assertEquals(CONTACTS + 1, handler.applied.size());
+		for (int i = 0; i < CONTACTS; i++) {
+			Presence presence = handler.applied.get(i);
+			assertEquals("USER" + i + "@Example.com/spark", presence.getFrom());
+			assertEquals(Presence.Type.available, presence.getType());
+			assertEquals("last " + i, presence.getStatus());
+		}
+		assertEquals("phone", handler.applied.get(CONTACTS).getStatus());
+
+		assertEquals(0, queue.getQueueDepth());
+		assertEquals(CONTACTS + 1, queue.getMaxQueueDepth());
+		assertEquals(2 * CONTACTS + 1, queue.getReceivedCount());
+		assertEquals(CONTACTS, queue.getCoalescedCount());
+		assertEquals(CONTACTS + 1, queue.getAppliedCount());
+		assertEquals(handler.batches, queue.getBatchCount());
+		assertTrue(queue.getBatchCount() >= (CONTACTS + 1 + BATCH_SIZE - 1) / BATCH_SIZE);
+		assertTrue(handler.largestBatch <= BATCH_SIZE);
+	}
+
+	private static Presence presence(String from, Presence.Type type, String status)
+	{
+		Presence presence = new Presence(type);
+		presence.setFrom(from);
+		presence.setStatus(status);
+		return presence;
+	}
+
+	/**
+	 * Counts the presences applied between two turns of the Swing thread, which
+	 * are the batches of the queue.
+	 */
+	private static class CountingHandler implements PresenceUpdateQueue.Handler
+	{
+		final List<Presence> applied = new ArrayList<Presence>();
+		final CountDownLatch done;
+		int batches;
+		int largestBatch;
+		private int batch;
+
+		CountingHandler(int expected)
+		{
+			done = new CountDownLatch(expected);
+		}
+
+		public void applyPresence(Presence presence)
+		{
+			assertTrue(EventQueue.isDispatchThread());
+			if (batch == 0) {
+				EventQueue.invokeLater(new Runnable() {
+					public void run()
+					{
+						batches++;
+						largestBatch = Math.max(largestBatch, batch);
+						batch = 0;
+					}
+				});
+			}
+			batch++;
+			applied.add(presence);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package org.jivesoftware.spark.ui;
+
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.DefaultListModel;
+
+/**
+ * Measures the time from a roster arriving off the Swing thread to every contact
+ * being in the list model of its groups, for rosters of growing size. The contact
+ * list used to hand every entry to the Swing thread on its own and sort its group
+ * after every insertion; it now lays out a snapshot off the Swing thread and fills
+ * the models in one step.
+ * <p/>
+ * Not part of the test run, start it with <code>main</code>.
+ */
+public class RosterBuildBenchmark
+{
+	private static final int GROUPS = 40;
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws Exception
+	{
+		for (int entries : new int[] { 300, 1000, 3000 }) {
+			List<String> groupNames = new ArrayList<String>();
+			for (int i = 0; i < GROUPS; i++) {
+				groupNames.add("Group " + i);
+			}
+			List<RosterSnapshot.Entry> roster = createRoster(entries, groupNames);
+
+			long perEntry = Long.MAX_VALUE;
+			long snapshot = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				perEntry = Math.min(perEntry, buildPerEntry(groupNames, roster));
+				snapshot = Math.min(snapshot, buildSnapshot(groupNames, roster));
+			}
+			System.out.println("Roster of " + entries + " entries visible after: one entry at a time " + perEntry + " ms, snapshot "
+					+ snapshot + " ms");
+		}
+		System.exit(0);
+	}
+
+	private static List<RosterSnapshot.Entry> createRoster(int size, List<String> groupNames)
+	{
+		List<RosterSnapshot.Entry> entries = new ArrayList<RosterSnapshot.Entry>();
+		for (int i = 0; i < size; i++) {
+			List<String> groups = new ArrayList<String>();
+			groups.add(groupNames.get(i % GROUPS));
+			if (i % 4 == 0) {
+				groups.add(groupNames.get((i / 4) % GROUPS));
+			}
+			entries.add(new RosterSnapshot.Entry("user" + i + "@example.com", "Contact " + (i * 7919 % size), i % 50 == 0, groups));
+		}
+		return entries;
+	}
+
+	/**
+	 * Hands every entry to the Swing thread on its own, and sorts the group before
+	 * inserting it, as the contact list did before.
+	 */
+	private static long buildPerEntry(List<String> groupNames, List<RosterSnapshot.Entry> roster) throws InterruptedException,
+			InvocationTargetException
+	{
+		final Map<String, List<String>> names = new HashMap<String, List<String>>();
+		final Map<String, DefaultListModel<String>> models = createModels(groupNames);
+		for (String groupName : groupNames) {
+			names.put(groupName, new ArrayList<String>());
+		}
+		names.put("", new ArrayList<String>());
+
+		long start = System.nanoTime();
+		for (final RosterSnapshot.Entry entry : roster) {
+			EventQueue.invokeAndWait(new Runnable() {
+				public void run()
+				{
+					List<String> groups = new ArrayList<String>(entry.groups);
+					groups.add("");
+					for (String group : groups) {
+						List<String> items = names.get(group);
+						items.add(entry.name);
+						Collections.sort(items, String.CASE_INSENSITIVE_ORDER);
+						models.get(group).insertElementAt(entry.name, items.indexOf(entry.name));
+					}
+				}
+			});
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Lays out the roster on the calling thread and fills the models on the Swing
+	 * thread in one step, as the contact list does now.
+	 */
+	private static long buildSnapshot(List<String> groupNames, List<RosterSnapshot.Entry> roster) throws InterruptedException,
+			InvocationTargetException
+	{
+		final Map<String, DefaultListModel<String>> models = createModels(groupNames);
+
+		long start = System.nanoTime();
+		final RosterSnapshot snapshot = new RosterSnapshot(groupNames, roster);
+		EventQueue.invokeAndWait(new Runnable() {
+			public void run()
+			{
+				for (Map.Entry<String, DefaultListModel<String>> group : models.entrySet()) {
+					List<RosterSnapshot.Entry> entries = group.getKey().length() == 0 ? snapshot.getOfflineGroupEntries()
+							: snapshot.getOfflineEntries(group.getKey());
+					for (RosterSnapshot.Entry entry : entries) {
+						group.getValue().addElement(entry.name);
+					}
+				}
+			}
+		});
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static Map<String, DefaultListModel<String>> createModels(List<String> groupNames)
+	{
+		Map<String, DefaultListModel<String>> models = new HashMap<String, DefaultListModel<String>>();
+		for (String groupName : groupNames) {
+			models.put(groupName, new DefaultListModel<String>());
+		}
+		// The offline group.
+		models.put("", new DefaultListModel<String>());
+		return models;
+	}
+}
@@ -0,0 +1,92 @@
+package org.jivesoftware.spark.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RosterSnapshotTest
+{
+	private static final int ENTRIES = 3000;
+	private static final int GROUPS = 40;
+
+	@Test
+	public void testLayout()
+	{
+		List<RosterSnapshot.Entry> entries = new ArrayList<RosterSnapshot.Entry>();
+		entries.add(new RosterSnapshot.Entry("carol@example.com", "Carol", false, Arrays.asList("Friends", "Work")));
+		entries.add(new RosterSnapshot.Entry("alice@example.com", "alice", false, Arrays.asList("Friends")));
+		entries.add(new RosterSnapshot.Entry("bob@example.com", "Bob", true, Arrays.asList("Work")));
+		entries.add(new RosterSnapshot.Entry("dave@example.com", null, true, Collections.<String>emptyList()));
+		entries.add(new RosterSnapshot.Entry("Alice@example.com", "Alice", false, Arrays.asList("Work")));
+
+		RosterSnapshot snapshot = new RosterSnapshot(Arrays.asList("Work", "Friends", "Empty", ""), entries);
+
+		assertEquals(Arrays.asList("Work", "Friends", "Empty"), new ArrayList<String>(snapshot.getGroupNames()));
+		assertEquals(4, snapshot.size());
+		assertEquals(Arrays.asList("alice@example.com", "carol@example.com"), jids(snapshot.getOfflineEntries("Friends")));
+		assertEquals(Arrays.asList("carol@example.com"), jids(snapshot.getOfflineEntries("Work")));
+		assertEquals(Arrays.asList("bob@example.com"), jids(snapshot.getPendingEntries("Work")));
+		assertTrue(snapshot.getPendingEntries("Friends").isEmpty());
+		// Pending contacts without a group are offline and unfiled like any other.
+		assertEquals(Arrays.asList("dave@example.com"), jids(snapshot.getUnfiledEntries()));
+		assertEquals(Arrays.asList("dave@example.com", "alice@example.com", "carol@example.com"), jids(snapshot.getOfflineGroupEntries()));
+	}
+
+	/**
+	 * Lays out a large roster with contacts in several groups and checks that every
+	 * group comes out sorted.
+	 */
+	@Test
+	public void testRosterBuild()
+	{
+		List<RosterSnapshot.Entry> entries = new ArrayList<RosterSnapshot.Entry>();
+		List<String> groupNames = new ArrayList<String>();
+		for (int i = 0; i < GROUPS; i++) {
+			groupNames.add("Group " + i);
+		}
+		for (int i = 0; i < ENTRIES; i++) {
+			// Names in no particular order.
+			String name = "Contact " + (i * 7919 % ENTRIES);
+			List<String> groups = new ArrayList<String>();
+			groups.add(groupNames.get(i % GROUPS));
+			if (i % 4 == 0) {
+				groups.add(groupNames.get((i / 4) % GROUPS));
+			}
+			entries.add(new RosterSnapshot.Entry("user" + i + "@example.com", name, i % 50 == 0, groups));
+		}
+
+		RosterSnapshot snapshot = new RosterSnapshot(groupNames, entries);
+
+		assertEquals(ENTRIES, snapshot.size());
+		int offlineCount = 0;
+		for (String groupName : groupNames) {
+			assertSorted(snapshot.getOfflineEntries(groupName));
+			assertSorted(snapshot.getPendingEntries(groupName));
+			offlineCount += snapshot.getOfflineEntries(groupName).size();
+		}
+		assertSorted(snapshot.getOfflineGroupEntries());
+		assertEquals(ENTRIES - ENTRIES / 50, snapshot.getOfflineGroupEntries().size());
+		assertTrue(offlineCount > snapshot.getOfflineGroupEntries().size());
+	}
+
+	private static void assertSorted(List<RosterSnapshot.Entry> entries)
+	{
+		for (int i = 1; i < entries.size(); i++) {
+			assertTrue(entries.get(i - 1).name.toLowerCase().compareTo(entries.get(i).name.toLowerCase()) <= 0);
+		}
+	}
+
+	private static List<String> jids(List<RosterSnapshot.Entry> entries)
+	{
+		List<String> jids = new ArrayList<String>();
+		for (RosterSnapshot.Entry entry : entries) {
+			jids.add(entry.jid);
+		}
+		return jids;
+	}
+}
@@ -0,0 +1,89 @@
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smackx.bookmark.BookmarkedConference;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BookmarkAutoJoinerTest
+{
+	private static final int ROOMS = 12;
+	private static final long JOIN_MILLIS = 100;
+
+	/**
+	 * Joins twelve bookmarked rooms whose join takes a password check and a join
+	 * round trip, one after the other and a few at a time.
+	 */
+	@Test
+	public void testJoin() throws InterruptedException
+	{
+		List<BookmarkedConference> bookmarks = new ArrayList<BookmarkedConference>();
+		for (int i = 0; i < ROOMS; i++) {
+			bookmarks.add(new BookmarkedConference("Room " + i, "room" + i + "@conference.example.com", true, null, null) {});
+		}
+
+		TestJoiner serial = new TestJoiner(bookmarks, 1);
+		serial.start();
+		assertTrue(serial.joined.await(10, TimeUnit.SECONDS));
+		assertEquals(ROOMS, new HashSet<String>(serial.rooms).size());
+		assertEquals(1, serial.maxInFlight.get());
+
+		TestJoiner joiner = new TestJoiner(bookmarks, BookmarkAutoJoiner.CONCURRENT_JOINS);
+		joiner.start();
+		assertTrue(joiner.joined.await(10, TimeUnit.SECONDS));
+		assertEquals(ROOMS, joiner.rooms.size());
+		assertEquals(ROOMS, new HashSet<String>(joiner.rooms).size());
+		assertEquals(BookmarkAutoJoiner.CONCURRENT_JOINS, joiner.maxInFlight.get());
+		// Tabs open as their rooms are joined, not once all rooms are joined.
+		assertTrue(joiner.pendingAtFirstJoin > 0);
+
+		// Nothing to join starts no worker.
+		new BookmarkAutoJoiner(new ArrayList<BookmarkedConference>()).start();
+	}
+
+	private static class TestJoiner extends BookmarkAutoJoiner
+	{
+		final List<String> rooms = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final CountDownLatch joined = new CountDownLatch(ROOMS);
+		volatile int pendingAtFirstJoin = -1;
+
+		TestJoiner(List<BookmarkedConference> bookmarks, int concurrentJoins)
+		{
+			super(bookmarks, concurrentJoins);
+		}
+
+		protected void join(BookmarkedConference bookmark)
+		{
+			int current = inFlight.incrementAndGet();
+			while (maxInFlight.get() < current) {
+				maxInFlight.compareAndSet(maxInFlight.get(), current);
+			}
+			try {
+				Thread.sleep(JOIN_MILLIS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			finally {
+				inFlight.decrementAndGet();
+			}
+			synchronized (rooms) {
+				if (rooms.isEmpty()) {
+					pendingAtFirstJoin = (int)joined.getCount() - 1;
+				}
+				rooms.add(bookmark.getJid());
+			}
+			joined.countDown();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JLabel;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParticipantListModelTest
+{
+	private static final int OCCUPANTS = 2000;
+
+	@Test
+	public void testRank()
+	{
+		assertEquals(0, ParticipantListModel.getRank("owner", "moderator"));
+		assertEquals(1, ParticipantListModel.getRank("admin", "moderator"));
+		assertEquals(2, ParticipantListModel.getRank("none", "moderator"));
+		assertEquals(2, ParticipantListModel.getRank("member", "moderator"));
+		assertEquals(3, ParticipantListModel.getRank("member", "participant"));
+		assertEquals(4, ParticipantListModel.getRank("none", "participant"));
+		assertEquals(5, ParticipantListModel.getRank("none", "visitor"));
+		assertEquals(ParticipantListModel.UNKNOWN_RANK, ParticipantListModel.getRank("outcast", ""));
+	}
+
+	@Test
+	public void testOrder()
+	{
+		ParticipantListModel model = new ParticipantListModel();
+		model.put("carol", null, 4);
+		model.put("Bob", null, 4);
+		model.put("alice", null, 4);
+		model.put("bob", null, 4);
+		model.put("zed", null, 0);
+		model.put("invitee", null, ParticipantListModel.UNKNOWN_RANK);
+		assertEquals(Arrays.asList("zed", "alice", "Bob", "bob", "carol", "invitee"), names(model));
+		assertEquals(2, model.indexOf("Bob"));
+		assertEquals(-1, model.indexOf("dave"));
+
+		// Updating the icon keeps the position, a new rank moves the participant.
+		JLabel label = model.getLabel("carol");
+		model.put("carol", null, 4);
+		assertTrue(label != model.getLabel("carol"));
+		assertEquals(4, model.indexOf("carol"));
+		model.put("carol", null, 1);
+		assertEquals(Arrays.asList("zed", "carol", "alice", "Bob", "bob", "invitee"), names(model));
+
+		assertTrue(model.remove("Bob"));
+		assertFalse(model.remove("Bob"));
+		assertFalse(model.contains("Bob"));
+		assertNull(model.getLabel("Bob"));
+		assertEquals(Arrays.asList("zed", "carol", "alice", "bob", "invitee"), names(model));
+	}
+
+	@Test
+	public void testUpdate()
+	{
+		ParticipantListModel model = new ParticipantListModel();
+		model.put("mallory", null, 4);
+		model.put("alice", null, 4);
+		final int[] events = new int[1];
+		model.addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent e)
+			{
+				events[0]++;
+			}
+
+			public void intervalRemoved(ListDataEvent e)
+			{
+				events[0]++;
+			}
+
+			public void contentsChanged(ListDataEvent e)
+			{
+				events[0]++;
+			}
+		});
+
+		model.beginUpdate();
+		model.put("dave", null, 4);
+		model.put("bob", null, 4);
+		model.put("zoe", null, 4);
+		model.put("carol", null, 0);
+		model.remove("zoe");
+		model.put("bob", null, 5);
+		assertTrue(model.contains("dave"));
+		assertEquals(2, model.getSize());
+		assertEquals(0, events[0]);
+		model.endUpdate();
+
+		assertEquals(Arrays.asList("carol", "alice", "dave", "mallory", "bob"), names(model));
+		assertEquals(2, events[0]);
+	}
+
+	/**
+	 * Joining a room applies the presences of all occupants in a single update, in the
+	 * order the labels were sorted in with a comparator that splits the roles of both
+	 * labels.
+	 */
+	@Test
+	public void testJoin()
+	{
+		final String room = "lounge@conference.example.com";
+		final Map<String, String> usersandRoles = new HashMap<String, String>();
+		final String[] roles = { "owner,moderator", "admin,moderator", "none,moderator", "member,participant", "none,participant", "none,visitor" };
+		List<String> nicknames = new ArrayList<String>();
+		for (int i = 0; i < OCCUPANTS; i++) {
+			String nickname = "user" + ((i * 7919) % OCCUPANTS);
+			nicknames.add(nickname);
+			usersandRoles.put(room + "/" + nickname, roles[i % 31 == 0 ? i % 4 : 4 + i % 2]);
+		}
+
+		Comparator<JLabel> labelComp = new Comparator<JLabel>() {
+			public int compare(JLabel item1, JLabel item2)
+			{
+				String[] roles1 = usersandRoles.get(room + "/" + item1.getText()).split(",");
+				String[] roles2 = usersandRoles.get(room + "/" + item2.getText()).split(",");
+				int user1 = ParticipantListModel.getRank(roles1[0], roles1[1]);
+				int user2 = ParticipantListModel.getRank(roles2[0], roles2[1]);
+				if (user1 != user2) {
+					return user1 < user2 ? -1 : 1;
+				}
+				return item1.getText().toLowerCase().compareTo(item2.getText().toLowerCase());
+			}
+		};
+
+		List<JLabel> sorted = new ArrayList<JLabel>();
+		for (String nickname : nicknames) {
+			sorted.add(new JLabel(nickname, null, JLabel.HORIZONTAL));
+		}
+		Collections.sort(sorted, labelComp);
+
+		ParticipantListModel model = new ParticipantListModel();
+		model.beginUpdate();
+		for (String nickname : nicknames) {
+			String[] role = usersandRoles.get(room + "/" + nickname).split(",");
+			model.put(nickname, null, ParticipantListModel.getRank(role[0], role[1]));
+		}
+		model.endUpdate();
+
+		assertEquals(OCCUPANTS, model.getSize());
+		for (int i = 0; i < OCCUPANTS; i++) {
+			assertEquals(sorted.get(i).getText(), model.getElementAt(i).getText());
+		}
+	}
+
+	private static List<String> names(ParticipantListModel model)
+	{
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < model.getSize(); i++) {
+			names.add(model.getElementAt(i).getText());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,216 @@
+package org.jivesoftware.spark.ui.conferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoomDirectoryTest
+{
+	private static final int ROOMS = 100;
+	private static final long ROUND_TRIP = 20;
+
+	/**
+	 * Lists rooms of a service with a bounded number of room information requests
+	 * in flight, then again from the cache of the directory.
+	 */
+	@Test
+	public void testDiscovery() throws Exception
+	{
+		TestDirectory directory = new TestDirectory(60000);
+
+		CollectingListener first = discover(directory, false);
+		assertEquals(ROOMS, first.rooms.size());
+		assertEquals(ROOMS, new HashSet<String>(first.names()).size());
+		assertEquals(7, first.occupants("room7@conference.example.com"));
+		assertTrue(first.locked.contains("room10@conference.example.com"));
+		assertFalse(first.locked.contains("room11@conference.example.com"));
+		assertEquals(ROOMS, directory.infoRequests.get());
+		assertTrue(directory.maxInFlight.get() <= RoomDirectory.CONCURRENT_REQUESTS);
+
+		CollectingListener cached = discover(directory, false);
+		assertEquals(ROOMS, cached.rooms.size());
+		assertEquals(ROOMS, directory.infoRequests.get());
+		assertEquals(1, directory.listRequests.get());
+
+		// Refreshing asks again, and so do rooms cached for too long.
+		discover(directory, true);
+		assertEquals(2 * ROOMS, directory.infoRequests.get());
+		assertEquals(2, directory.listRequests.get());
+
+		TestDirectory expiring = new TestDirectory(0);
+		discover(expiring, false);
+		Thread.sleep(5);
+		discover(expiring, false);
+		assertEquals(2 * ROOMS, expiring.infoRequests.get());
+		directory.invalidate("conference.example.com");
+		discover(directory, false);
+		assertEquals(3, directory.listRequests.get());
+		assertEquals(2 * ROOMS, directory.infoRequests.get());
+	}
+
+	@Test
+	public void testFailures() throws InterruptedException
+	{
+		TestDirectory directory = new TestDirectory(60000);
+		directory.failing = true;
+		CollectingListener listener = discover(directory, false);
+		// Rooms whose information failed are listed without it.
+		assertEquals(ROOMS, listener.rooms.size());
+		assertEquals(-1, listener.occupants("room7@conference.example.com"));
+
+		final CountDownLatch failed = new CountDownLatch(1);
+		new TestDirectory(60000) {
+			protected List<RoomDirectory.Room> requestRooms(String serviceName) throws Exception
+			{
+				throw new Exception("service unavailable");
+			}
+		}.discover("conference.example.com", false, new CollectingListener() {
+			public void discoveryFailed(Exception e)
+			{
+				failed.countDown();
+			}
+		});
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+		// Nothing is handed out once a discovery is cancelled.
+		CollectingListener cancelled = new CollectingListener();
+		directory.discover("conference.example.com", true, cancelled).cancel();
+		Thread.sleep(200);
+		assertFalse(cancelled.finished.await(0, TimeUnit.MILLISECONDS));
+		assertTrue(cancelled.rooms.size() <= RoomDirectory.CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * Joining a room asks whether it requires a password once, and the room browser
+	 * lists the room under its name from the listing of the service.
+	 */
+	@Test
+	public void testGetRoom() throws InterruptedException
+	{
+		TestDirectory directory = new TestDirectory(60000);
+		RoomDirectory.Room room = directory.getRoom("room20@conference.example.com");
+		assertEquals("room20", room.getName());
+		assertTrue(room.isPasswordProtected());
+		assertTrue(room.isLocked());
+		assertFalse(directory.getRoom("room21@conference.example.com").isPasswordProtected());
+		directory.getRoom("room20@conference.example.com");
+		assertEquals(2, directory.infoRequests.get());
+
+		CollectingListener listener = discover(directory, false);
+		assertEquals(ROOMS, directory.infoRequests.get());
+		assertTrue(listener.names().contains("Room 20"));
+		assertFalse(listener.names().contains("room20"));
+
+		directory.failing = true;
+		assertFalse(directory.getRoom("lost@conference.example.com").isPasswordProtected());
+	}
+
+	private static CollectingListener discover(RoomDirectory directory, boolean refresh) throws InterruptedException
+	{
+		CollectingListener listener = new CollectingListener();
+		directory.discover("conference.example.com", refresh, listener);
+		assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+		return listener;
+	}
+
+	private static class TestDirectory extends RoomDirectory
+	{
+		final AtomicInteger listRequests = new AtomicInteger();
+		final AtomicInteger infoRequests = new AtomicInteger();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		volatile boolean failing;
+
+		TestDirectory(long cacheTimeout)
+		{
+			super(cacheTimeout, CONCURRENT_REQUESTS);
+		}
+
+		protected List<RoomDirectory.Room> requestRooms(String serviceName) throws Exception
+		{
+			listRequests.incrementAndGet();
+			List<RoomDirectory.Room> rooms = new ArrayList<RoomDirectory.Room>();
+			for (int i = 0; i < ROOMS; i++) {
+				rooms.add(new RoomDirectory.Room("room" + i + "@" + serviceName, "Room " + i, -1, false));
+			}
+			return rooms;
+		}
+
+		protected RoomDirectory.Room requestRoomInfo(RoomDirectory.Room room) throws Exception
+		{
+			infoRequests.incrementAndGet();
+			int current = inFlight.incrementAndGet();
+			while (maxInFlight.get() < current) {
+				maxInFlight.compareAndSet(maxInFlight.get(), current);
+			}
+			try {
+				Thread.sleep(ROUND_TRIP);
+				if (failing) {
+					throw new Exception("item-not-found");
+				}
+				int number = Integer.parseInt(room.getJid().substring(4, room.getJid().indexOf('@')));
+				return new RoomDirectory.Room(room.getJid(), room.getName(), number, false, number % 10 == 0);
+			}
+			finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private static class CollectingListener implements RoomDirectory.DiscoveryListener
+	{
+		final List<RoomDirectory.Room> rooms = Collections.synchronizedList(new ArrayList<RoomDirectory.Room>());
+		final Set<String> locked = Collections.synchronizedSet(new HashSet<String>());
+		final CountDownLatch finished = new CountDownLatch(1);
+
+		public void roomDiscovered(RoomDirectory.Room room)
+		{
+			rooms.add(room);
+			if (room.isLocked()) {
+				locked.add(room.getJid());
+			}
+		}
+
+		public void discoveryFinished()
+		{
+			finished.countDown();
+		}
+
+		public void discoveryFailed(Exception e)
+		{
+		}
+
+		List<String> names()
+		{
+			List<String> names = new ArrayList<String>();
+			synchronized (rooms) {
+				for (RoomDirectory.Room room : rooms) {
+					names.add(room.getName());
+				}
+			}
+			return names;
+		}
+
+		int occupants(String jid)
+		{
+			synchronized (rooms) {
+				for (RoomDirectory.Room room : rooms) {
+					if (room.getJid().equals(jid)) {
+						return room.getOccupants();
+					}
+				}
+			}
+			return -2;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.jivesoftware.spark.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AvatarCacheTest
+{
+	private static final int RENDERS = 100;
+
+	@Test
+	public void testScaling() throws IOException
+	{
+		AvatarCache cache = new AvatarCache(1024 * 1024);
+		byte[] wide = png(64, 32);
+
+		ImageIcon icon = cache.getIcon("wide", wide, 32, 32, true);
+		assertEquals(32, icon.getIconWidth());
+		assertEquals(16, icon.getIconHeight());
+
+		// Small photos keep their size unless they may be enlarged.
+		icon = cache.getIcon("wide", wide, 128, 128, false);
+		assertEquals(64, icon.getIconWidth());
+		icon = cache.getIcon("wide", wide, 128, 128, true);
+		assertEquals(128, icon.getIconWidth());
+		assertEquals(64, icon.getIconHeight());
+
+		assertNull(cache.getIcon("broken", new byte[] { 1, 2, 3 }, 32, 32, true));
+		assertEquals(3, cache.getCount());
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		// Room for two 32x32 avatars.
+		AvatarCache cache = new AvatarCache(2 * 4 * 32 * 32);
+		ImageIcon first = cache.getIcon("a", png(32, 32), 32, 32, true);
+		cache.getIcon("b", png(32, 32), 32, 32, true);
+		assertSame(first, cache.getIcon("a", png(32, 32), 32, 32, true));
+
+		// The least recently used avatar makes room.
+		cache.getIcon("c", png(32, 32), 32, 32, true);
+		assertEquals(2, cache.getCount());
+		assertEquals(1, cache.getEvictions());
+		assertSame(first, cache.getIcon("a", png(32, 32), 32, 32, true));
+		assertTrue(cache.getSize() <= 2 * 4 * 32 * 32);
+	}
+
+	@Test
+	public void testAsynchronousDecoding() throws Exception
+	{
+		AvatarCache cache = new AvatarCache(1024 * 1024);
+		File file = File.createTempFile("avatar", ".png");
+		try {
+			ImageIO.write(image(48, 48), "PNG", file);
+
+			final CountDownLatch latch = new CountDownLatch(2);
+			final AtomicReference<ImageIcon> loaded = new AtomicReference<ImageIcon>();
+			AvatarCache.Callback callback = new AvatarCache.Callback() {
+				public void avatarLoaded(ImageIcon icon)
+				{
+					loaded.set(icon);
+					latch.countDown();
+				}
+			};
+			assertNull(cache.getIcon("hash", file.toURI().toURL(), 24, 24, true, callback));
+			// A second request while decoding waits for the same result.
+			assertNull(cache.getIcon("hash", file.toURI().toURL(), 24, 24, true, callback));
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+			assertNotNull(loaded.get());
+			assertEquals(24, loaded.get().getIconWidth());
+			assertSame(loaded.get(), cache.getIcon("hash", file.toURI().toURL(), 24, 24, true, callback));
+			assertEquals(1, cache.getCount());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Rendering an avatar again and again decodes and scales it once.
+	 */
+	@Test
+	public void testRepeatedRenders() throws IOException
+	{
+		byte[] bytes = png(64, 64);
+		AvatarCache cache = new AvatarCache(1024 * 1024);
+		ImageIcon first = cache.getIcon("hash", bytes, 32, 32, true);
+		assertEquals(32, first.getIconWidth());
+		for (int i = 1; i < RENDERS; i++) {
+			assertSame(first, cache.getIcon("hash", bytes, 32, 32, true));
+		}
+
+		assertEquals(RENDERS - 1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	private static BufferedImage image(int width, int height)
+	{
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.ORANGE);
+		g.fillRect(0, 0, width, height);
+		g.setColor(Color.BLUE);
+		g.fillOval(0, 0, width, height);
+		g.dispose();
+		return image;
+	}
+
+	private static byte[] png(int width, int height) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image(width, height), "PNG", out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,131 @@
+package org.jivesoftware.spark.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IconRegistryTest
+{
+	private static final int LOOKUPS = 1000;
+
+	private File green;
+	private File away;
+	private final Map<String, URL> bundle = new HashMap<String, URL>();
+	private final IconRegistry.Locator locator = new IconRegistry.Locator() {
+		public URL getURL(String name)
+		{
+			return bundle.get(name);
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException
+	{
+		green = icon(Color.GREEN);
+		away = icon(Color.ORANGE);
+		bundle.put("GREEN_BALL", green.toURI().toURL());
+		bundle.put("IM_AWAY", away.toURI().toURL());
+	}
+
+	@After
+	public void tearDown()
+	{
+		green.delete();
+		away.delete();
+	}
+
+	@Test
+	public void testInterning() throws MalformedURLException
+	{
+		IconRegistry registry = new IconRegistry(locator);
+		ImageIcon icon = registry.getIcon("GREEN_BALL");
+		assertEquals(16, icon.getIconWidth());
+		assertSame(icon, registry.getIcon("GREEN_BALL"));
+		assertNull(registry.getIcon("MISSING"));
+		assertEquals(1, registry.getHits());
+		assertEquals(2, registry.getMisses());
+
+		// A plugin naming the same image shares the loaded icon.
+		IconRegistry plugin = new IconRegistry(new IconRegistry.Locator() {
+			public URL getURL(String name)
+			{
+				return bundle.get("GREEN_BALL");
+			}
+		});
+		assertSame(icon, plugin.getIcon("AVAILABLE"));
+
+		// Replacing the image behind a name takes effect once the name is invalidated.
+		bundle.put("GREEN_BALL", away.toURI().toURL());
+		assertSame(icon, registry.getIcon("GREEN_BALL"));
+		registry.invalidate("GREEN_BALL");
+		assertNotSame(icon, registry.getIcon("GREEN_BALL"));
+		assertSame(registry.getIcon("IM_AWAY"), registry.getIcon("GREEN_BALL"));
+	}
+
+	@Test
+	public void testPreload() throws InterruptedException
+	{
+		IconRegistry registry = new IconRegistry(locator);
+		registry.preload("GREEN_BALL", "IM_AWAY", "MISSING");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (registry.getCount() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(registry.isLoaded("GREEN_BALL"));
+		assertTrue(registry.isLoaded("IM_AWAY"));
+		assertFalse(registry.isLoaded("MISSING"));
+
+		registry.getIcon("IM_AWAY");
+		assertEquals(1, registry.getHits());
+		assertEquals(0, registry.getMisses());
+	}
+
+	/**
+	 * Repeated presence icon lookups load each icon once and return the same instance.
+	 */
+	@Test
+	public void testPresenceLookups()
+	{
+		IconRegistry registry = new IconRegistry(locator);
+		ImageIcon available = registry.getIcon("GREEN_BALL");
+		ImageIcon away = registry.getIcon("IM_AWAY");
+		assertEquals(16, available.getIconWidth());
+		for (int i = 0; i < LOOKUPS; i++) {
+			assertSame(i % 2 == 0 ? available : away, registry.getIcon(i % 2 == 0 ? "GREEN_BALL" : "IM_AWAY"));
+		}
+
+		assertEquals(2, registry.getCount());
+		assertEquals(LOOKUPS, registry.getHits());
+	}
+
+	private static File icon(Color color) throws IOException
+	{
+		BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(color);
+		g.fillOval(0, 0, 16, 16);
+		g.dispose();
+		File file = File.createTempFile("icon", ".png");
+		ImageIO.write(image, "PNG", file);
+		return file;
+	}
+}
@@ -0,0 +1,84 @@
+package org.jivesoftware.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeywordMatcherTest
+{
+	private static final int MESSAGES = 100;
+
+	@Test
+	public void testFind()
+	{
+		KeywordMatcher matcher = new KeywordMatcher(Arrays.asList("alice", "Bob.", "release", "", null, "ease"));
+		assertTrue(matcher.find("ping ALICE"));
+		assertTrue(matcher.find("ask bob."));
+		assertFalse(matcher.find("ask bob!"));
+		// Overlapping keywords and a failed partial match.
+		assertTrue(matcher.find("the releasE"));
+		assertTrue(matcher.find("relrelease"));
+		assertTrue(matcher.find("releas ease"));
+		assertFalse(matcher.find("releas"));
+		assertFalse(matcher.find(""));
+		assertFalse(matcher.find(null));
+		assertEquals(Arrays.asList("alice", "Bob.", "release", "ease"), matcher.getKeywords());
+
+		assertFalse(new KeywordMatcher(new ArrayList<String>()).find("anything"));
+		assertFalse(KeywordMatcher.parse(null).find("anything"));
+		KeywordMatcher parsed = KeywordMatcher.parse(" deploy , outage,,");
+		assertEquals(Arrays.asList("deploy", "outage"), parsed.getKeywords());
+		assertTrue(parsed.find("Outage in eu-west"));
+	}
+
+	/**
+	 * Finds the same messages as a case insensitive pattern per keyword, as group chat
+	 * rooms used to compile for every message.
+	 */
+	@Test
+	public void testMessages()
+	{
+		final List<String> bodies = new ArrayList<String>();
+		for (int i = 0; i < MESSAGES; i++) {
+			bodies.add("message " + i + " about the build of the release, ping me when it is done");
+		}
+		bodies.add("ALICE, the build is done");
+		bodies.add("thanks alice smith");
+		bodies.add("see keyword42 and keyword7");
+		bodies.add("keyword is not a keyword");
+		final List<String> keywords = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			keywords.add("keyword" + i);
+		}
+		keywords.add("alice");
+		keywords.add("Alice Smith");
+
+		final List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String keyword : keywords) {
+			patterns.add(Pattern.compile(Pattern.quote(keyword), Pattern.CASE_INSENSITIVE));
+		}
+		final KeywordMatcher all = new KeywordMatcher(keywords);
+
+		int hits = 0;
+		for (String body : bodies) {
+			boolean expected = false;
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(body).find()) {
+					expected = true;
+					break;
+				}
+			}
+			assertEquals(body, expected, all.find(body));
+			if (expected) {
+				hits++;
+			}
+		}
+		assertEquals(3, hits);
+	}
+}
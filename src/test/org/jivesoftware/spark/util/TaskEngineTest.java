@@ -0,0 +1,214 @@
+package org.jivesoftware.spark.util;
+
+import java.awt.EventQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskEngineTest
+{
+	private static final int TASKS = 500;
+	private static final long ROUND_TRIP = 50;
+
+	/**
+	 * Submits as many blocking tasks as a reconnect submits at once, which run on
+	 * no more threads than the pool has.
+	 */
+	@Test
+	public void testReconnectStorm() throws InterruptedException
+	{
+		TaskEngine engine = new TaskEngine(TaskEngine.QUEUE_CAPACITY);
+		CountDownLatch done = new CountDownLatch(TASKS);
+		for (int i = 0; i < TASKS; i++) {
+			engine.submit(new RoundTrip(done));
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		TaskEngine.WorkloadStatistics io = engine.getWorkloadStatistics().get(TaskEngine.Workload.IO.ordinal());
+		assertEquals(TaskEngine.Workload.IO, io.getWorkload());
+		assertTrue(io.getLargestPoolSize() <= TaskEngine.Workload.IO.getThreads());
+		assertEquals(0, io.getRejectedCount());
+		assertEquals(0, io.getSpilledCount());
+
+		Thread.sleep(50);
+		TaskEngine.TaskStatistics statistics = engine.getTaskStatistics().get(RoundTrip.class.getName());
+		assertEquals(TASKS, statistics.getCount());
+		assertTrue(statistics.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(ROUND_TRIP));
+		assertTrue(statistics.getMaxWaitNanos() > 0);
+		engine.shutdown();
+	}
+
+	/**
+	 * A slow scheduled task used to hold the timer thread, and every task scheduled
+	 * after it waited.
+	 */
+	@Test
+	public void testSchedule() throws InterruptedException
+	{
+		TaskEngine engine = new TaskEngine(TaskEngine.QUEUE_CAPACITY);
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		engine.schedule(new TimerTask() {
+			public void run()
+			{
+				slowStarted.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					// Shut down
+				}
+			}
+		}, 0);
+		assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch fast = new CountDownLatch(1);
+		engine.schedule(new TimerTask() {
+			public void run()
+			{
+				fast.countDown();
+			}
+		}, 10);
+		assertTrue(fast.await(1, TimeUnit.SECONDS));
+		release.countDown();
+
+		final AtomicInteger runs = new AtomicInteger();
+		TimerTask periodic = new TimerTask() {
+			public void run()
+			{
+				runs.incrementAndGet();
+			}
+		};
+		engine.schedule(periodic, 0, 10);
+		Thread.sleep(100);
+		engine.cancelScheduledTask(periodic);
+		Thread.sleep(30);
+		int cancelled = runs.get();
+		assertTrue(cancelled > 1);
+		Thread.sleep(100);
+		assertEquals(cancelled, runs.get());
+		engine.shutdown();
+	}
+
+	/**
+	 * Tasks that find the queue of their pool full run on the thread that submits
+	 * them, instead of being lost or starting more threads.
+	 */
+	@Test
+	public void testRejection() throws InterruptedException
+	{
+		TaskEngine engine = new TaskEngine(4);
+		CountDownLatch done = new CountDownLatch(50);
+		Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		for (int i = 0; i < 50; i++) {
+			engine.submit(new RoundTrip(done, threads), TaskEngine.Workload.UI_PREP);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		TaskEngine.WorkloadStatistics uiPrep = engine.getWorkloadStatistics().get(TaskEngine.Workload.UI_PREP.ordinal());
+		assertTrue(uiPrep.getRejectedCount() > 0);
+		assertEquals(0, uiPrep.getSpilledCount());
+		assertTrue(threads.contains(Thread.currentThread()));
+		assertTrue(uiPrep.getLargestPoolSize() <= TaskEngine.Workload.UI_PREP.getThreads());
+		Thread.sleep(50);
+		assertEquals(50, engine.getTaskStatistics().get(RoundTrip.class.getName()).getCount());
+
+		// Tasks submitted or scheduled after the engine was shut down are rejected.
+		engine.shutdown();
+		CountDownLatch discarded = new CountDownLatch(1);
+		try {
+			engine.submit(new RoundTrip(discarded));
+			fail();
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down
+		}
+		TimerTask scheduled = new TimerTask() {
+			public void run()
+			{
+			}
+		};
+		try {
+			engine.schedule(scheduled, 10);
+			fail();
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down
+		}
+		try {
+			engine.schedule(scheduled, 10, 10);
+			fail();
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down
+		}
+		assertFalse(discarded.await(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Tasks that the event dispatch thread submits to a full pool are put off, and
+	 * run on the threads of the pool rather than on the event dispatch thread or on
+	 * the timer thread that hands them over again.
+	 */
+	@Test
+	public void testSpill() throws Exception
+	{
+		final TaskEngine engine = new TaskEngine(4);
+		final CountDownLatch done = new CountDownLatch(50);
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		EventQueue.invokeAndWait(new Runnable() {
+			public void run()
+			{
+				for (int i = 0; i < 50; i++) {
+					engine.submit(new RoundTrip(done, threads), TaskEngine.Workload.UI_PREP);
+				}
+			}
+		});
+		assertTrue(done.await(20, TimeUnit.SECONDS));
+		TaskEngine.WorkloadStatistics uiPrep = engine.getWorkloadStatistics().get(TaskEngine.Workload.UI_PREP.ordinal());
+		assertTrue(uiPrep.getSpilledCount() > 0);
+		assertEquals(0, uiPrep.getRejectedCount());
+		for (Thread thread : threads) {
+			assertTrue(thread.getName(), thread.getName().startsWith("pool-spark-ui_prep-"));
+		}
+		engine.shutdown();
+	}
+
+	private static class RoundTrip implements Runnable
+	{
+		private final CountDownLatch done;
+		private final Set<Thread> threads;
+
+		RoundTrip(CountDownLatch done)
+		{
+			this(done, Collections.synchronizedSet(new HashSet<Thread>()));
+		}
+
+		RoundTrip(CountDownLatch done, Set<Thread> threads)
+		{
+			this.done = done;
+			this.threads = threads;
+		}
+
+		public void run()
+		{
+			threads.add(Thread.currentThread());
+			try {
+				Thread.sleep(ROUND_TRIP);
+			}
+			catch (InterruptedException e) {
+				// Shut down
+			}
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.jivesoftware.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest
+{
+	private static final int ROOMS = 100;
+
+	@Test
+	public void testExpiry() throws InterruptedException
+	{
+		final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+		final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch latch = new CountDownLatch(3);
+		TimingWheel<String> wheel = new TimingWheel<String>("test", 10, 8, new TimingWheel.Handler<String>() {
+			public void expired(List<String> items)
+			{
+				batches.add(items);
+				times.add(System.currentTimeMillis());
+				for (int i = 0; i < items.size(); i++) {
+					latch.countDown();
+				}
+			}
+		});
+
+		long start = System.currentTimeMillis();
+		wheel.schedule("a", start + 30);
+		wheel.schedule("b", start + 200);
+		wheel.schedule("c", start + 200);
+		wheel.schedule("d", start + 50);
+		// Moved, and further than a turn of the wheel.
+		wheel.schedule("a", start + 150);
+		assertTrue(wheel.cancel("d"));
+		assertFalse(wheel.cancel("d"));
+		assertEquals(3, wheel.size());
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(2, batches.size());
+		assertEquals(Collections.singletonList("a"), batches.get(0));
+		assertEquals(2, batches.get(1).size());
+		assertTrue(times.get(0) >= start + 150);
+		assertTrue(times.get(1) >= start + 200);
+		assertEquals(0, wheel.size());
+
+		// Items due already are handed out on the next tick.
+		final CountDownLatch again = new CountDownLatch(1);
+		TimingWheel<String> late = new TimingWheel<String>("test", 10, 8, new TimingWheel.Handler<String>() {
+			public void expired(List<String> items)
+			{
+				again.countDown();
+			}
+		});
+		late.schedule("e", start - 1000);
+		assertTrue(again.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Rooms typed in are moved on every key and handed out once, when their user stops
+	 * typing.
+	 */
+	@Test
+	public void testIdleRooms() throws InterruptedException
+	{
+		final AtomicInteger wheelRuns = new AtomicInteger();
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>("test", 50, 64, new TimingWheel.Handler<Integer>() {
+			public void expired(List<Integer> items)
+			{
+				wheelRuns.addAndGet(items.size());
+			}
+		});
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < ROOMS; i++) {
+			// Typing moves the room, it is sent its paused state once.
+			for (int key = 0; key < 20; key++) {
+				wheel.schedule(i, start + 100 + key * 10);
+			}
+		}
+		assertEquals(ROOMS, wheel.size());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (wheel.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(ROOMS, wheelRuns.get());
+		assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * The thread of the wheel is replaced when it is interrupted, so that the items
+	 * scheduled are still handed out.
+	 */
+	@Test
+	public void testInterrupted() throws InterruptedException
+	{
+		final List<String> expired = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(3);
+		TimingWheel<String> wheel = new TimingWheel<String>("test", 10, 8, new TimingWheel.Handler<String>() {
+			public void expired(List<String> items)
+			{
+				expired.addAll(items);
+				for (int i = 0; i < items.size(); i++) {
+					latch.countDown();
+				}
+				Thread.currentThread().interrupt();
+			}
+		});
+		long start = System.currentTimeMillis();
+		wheel.schedule("a", start + 20);
+		wheel.schedule("b", start + 100);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (expired.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, expired.size());
+
+		// The wheel is empty when the thread is interrupted again, the next item starts a new one.
+		Thread.sleep(50);
+		wheel.schedule("c", System.currentTimeMillis() + 20);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "b", "c"), expired);
+	}
+}
@@ -0,0 +1,94 @@
+package org.jivesoftware.sparkimpl.plugin.emoticons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Measures finding the emoticons of a chat message with the matcher of a pack,
+ * against looking up every whitespace token in all equivalents of the pack as
+ * EmoticonManager.getEmoticon(String) did, for packs of growing size.
+ * <p/>
+ * Not part of the test run, start it with <code>main</code>.
+ */
+public class EmoticonLookupBenchmark
+{
+	private static final int MESSAGES = 20000;
+	private static final String MESSAGE = "Hey, are we still meeting at three :) I moved the review to room 4 ;-) "
+			+ "bring the slides and the numbers from last week, thanks (y)";
+
+	public static void main(String[] args)
+	{
+		for (int extra : new int[] { 0, 100, 500 }) {
+			List<Emoticon> pack = new ArrayList<Emoticon>();
+			pack.add(emoticon("smile", ":)", ":-)", "=)"));
+			pack.add(emoticon("grin", ":D", ":-D", "xD"));
+			pack.add(emoticon("wink", ";)", ";-)"));
+			pack.add(emoticon("angel", "O:)", "O:-)"));
+			pack.add(emoticon("confused", ":/", ":-/"));
+			pack.add(emoticon("thumbs", "(y)"));
+			for (int i = 0; i < extra; i++) {
+				pack.add(emoticon("extra" + i, "(e" + i + ")", ":e" + i + ":"));
+			}
+			EmoticonMatcher matcher = new EmoticonMatcher(pack);
+
+			// Warm up both before measuring.
+			int found = 0;
+			for (int run = 0; run < 2; run++) {
+				long start = System.nanoTime();
+				found = 0;
+				for (int i = 0; i < MESSAGES / 10; i++) {
+					found += lookupTokens(pack, MESSAGE);
+				}
+				long tokenNanos = (System.nanoTime() - start) / (MESSAGES / 10);
+
+				start = System.nanoTime();
+				int matched = 0;
+				for (int i = 0; i < MESSAGES; i++) {
+					matched += matcher.find(MESSAGE).size();
+				}
+				long matcherNanos = (System.nanoTime() - start) / MESSAGES;
+
+				if (run == 1) {
+					System.out.println("Emoticons in a message, " + pack.size() + " emoticons: per token " + tokenNanos / 1000.0
+							+ " us, matcher " + matcherNanos / 1000.0 + " us (" + found / (MESSAGES / 10) + " and "
+							+ matched / MESSAGES + " found)");
+				}
+			}
+		}
+	}
+
+	private static int lookupTokens(Collection<Emoticon> pack, String message)
+	{
+		int found = 0;
+		StringTokenizer tokenizer = new StringTokenizer(message, " \n \t", true);
+		while (tokenizer.hasMoreTokens()) {
+			if (lookup(pack, tokenizer.nextToken().toLowerCase()) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The lookup EmoticonManager.getEmoticon(String) did for every token.
+	 */
+	private static Emoticon lookup(Collection<Emoticon> emoticons, String key)
+	{
+		for (Emoticon emoticon : emoticons) {
+			for (String string : emoticon.getEquivalants()) {
+				if (key.toLowerCase().equals(string.toLowerCase())) {
+					return emoticon;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Emoticon emoticon(String name, String... equivalents)
+	{
+		return new Emoticon(name + ".png", name, Arrays.asList(equivalents), null);
+	}
+}
@@ -0,0 +1,137 @@
+package org.jivesoftware.sparkimpl.plugin.emoticons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmoticonMatcherTest
+{
+	private final Emoticon smile = emoticon("smile", ":)", ":-)", "=)");
+	private final Emoticon grin = emoticon("grin", ":D", ":-D", "xD");
+	private final Emoticon wink = emoticon("wink", ";)", ";-)");
+	private final Emoticon angel = emoticon("angel", "O:)", "O:-)");
+	private final Emoticon confused = emoticon("confused", ":/", ":-/");
+	private final Emoticon thumbs = emoticon("thumbs", "(y)");
+
+	@Test
+	public void testFind()
+	{
+		EmoticonMatcher matcher = new EmoticonMatcher(Arrays.asList(smile, grin, wink, angel, confused, thumbs));
+
+		assertMatches(matcher.find("hello :) there"), 6, 8, smile);
+		assertMatches(matcher.find(":-D"), 0, 3, grin);
+		// Not delimited by whitespace.
+		assertMatches(matcher.find("hi:)"), 2, 4, smile);
+		assertMatches(matcher.find("great(y)thanks;-)"), 5, 8, thumbs, 14, 17, wink);
+		// Case is ignored.
+		assertMatches(matcher.find("XD :d"), 0, 2, grin, 3, 5, grin);
+		// Leftmost, then longest.
+		assertMatches(matcher.find("o:-)"), 0, 4, angel);
+		assertMatches(matcher.find(":-):-D"), 0, 3, smile, 3, 6, grin);
+		assertMatches(matcher.find("::))"), 1, 3, smile);
+		// Equivalents made of letters only match whole words.
+		assertEquals(0, matcher.find("xdebug").size());
+		assertMatches(matcher.find("lol xD!"), 4, 6, grin);
+		// An equivalent rejected at a word boundary still lets a shorter one match.
+		assertMatches(matcher.find("so:)"), 2, 4, smile);
+		assertEquals(0, matcher.find("no emoticons here").size());
+
+		assertSame(grin, matcher.getEmoticon("Xd"));
+		assertNull(matcher.getEmoticon("x"));
+	}
+
+	@Test
+	public void testFirstEmoticonWins()
+	{
+		Emoticon happy = emoticon("happy", ":)");
+		EmoticonMatcher matcher = new EmoticonMatcher(Arrays.asList(smile, happy));
+		assertSame(smile, matcher.getEmoticon(":)"));
+		assertSame(smile, matcher.find(":)").get(0).getEmoticon());
+		assertTrue(new EmoticonMatcher(new ArrayList<Emoticon>()).isEmpty());
+	}
+
+	/**
+	 * A match that starts while a longer one is pending, but after it ends, is found
+	 * once the pending one is accepted.
+	 */
+	@Test
+	public void testMatchAfterPending()
+	{
+		Emoticon frown = emoticon("frown", ":)-(");
+		Emoticon dash = emoticon("dash", "-");
+		EmoticonMatcher matcher = new EmoticonMatcher(Arrays.asList(smile, frown, dash));
+		assertMatches(matcher.find(":)-!"), 0, 2, smile, 2, 3, dash);
+		assertMatches(matcher.find(":)-"), 0, 2, smile, 2, 3, dash);
+		assertMatches(matcher.find(":)-("), 0, 4, frown);
+		assertMatches(matcher.find(":)-:)-("), 0, 2, smile, 2, 3, dash, 3, 7, frown);
+	}
+
+	/**
+	 * Finds the same emoticons in a message as looking up every whitespace token in
+	 * all equivalents of a pack did.
+	 */
+	@Test
+	public void testMessageRendering()
+	{
+		List<Emoticon> pack = new ArrayList<Emoticon>(Arrays.asList(smile, grin, wink, angel, confused, thumbs));
+		for (int i = 0; i < 100; i++) {
+			pack.add(emoticon("extra" + i, "(e" + i + ")", ":e" + i + ":"));
+		}
+		String message = "Hey, are we still meeting at three :) I moved the review to room 4 ;-) "
+			+ "bring the slides and the numbers from last week, thanks (e42) (y)";
+
+		List<Emoticon> found = new ArrayList<Emoticon>();
+		StringTokenizer tokenizer = new StringTokenizer(message, " \n \t", true);
+		while (tokenizer.hasMoreTokens()) {
+			Emoticon emoticon = lookup(pack, tokenizer.nextToken().toLowerCase());
+			if (emoticon != null) {
+				found.add(emoticon);
+			}
+		}
+
+		List<Emoticon> matched = new ArrayList<Emoticon>();
+		for (EmoticonMatcher.Match match : new EmoticonMatcher(pack).find(message)) {
+			matched.add(match.getEmoticon());
+		}
+		assertEquals(4, found.size());
+		assertEquals(found, matched);
+	}
+
+	/**
+	 * The lookup EmoticonManager.getEmoticon(String) did for every token.
+	 */
+	private static Emoticon lookup(Collection<Emoticon> emoticons, String key)
+	{
+		for (Emoticon emoticon : emoticons) {
+			for (String string : emoticon.getEquivalants()) {
+				if (key.toLowerCase().equals(string.toLowerCase())) {
+					return emoticon;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void assertMatches(List<EmoticonMatcher.Match> matches, Object... expected)
+	{
+		assertEquals(matches.toString(), expected.length / 3, matches.size());
+		for (int i = 0; i < matches.size(); i++) {
+			assertEquals(expected[i * 3], matches.get(i).getStart());
+			assertEquals(expected[i * 3 + 1], matches.get(i).getEnd());
+			assertSame(expected[i * 3 + 2], matches.get(i).getEmoticon());
+		}
+	}
+
+	private static Emoticon emoticon(String name, String... equivalents)
+	{
+		return new Emoticon(name + ".png", name, Arrays.asList(equivalents), null);
+	}
+}
@@ -0,0 +1,282 @@
+package org.jivesoftware.sparkimpl.plugin.transcripts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptStoreTest
+{
+	private static final String JID = "alice@example.com";
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = File.createTempFile("transcripts", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown()
+	{
+		delete(directory);
+	}
+
+	@Test
+	public void testAppend()
+	{
+		TranscriptStore store = new TranscriptStore(directory);
+		assertFalse(store.hasTranscript(JID));
+		store.append(JID, messages(0, 3, 0));
+		store.append(JID, messages(3, 10, 0));
+		assertTrue(store.hasTranscript(JID));
+		assertEquals(10, store.getMessageCount(JID));
+		assertEquals(Arrays.asList("message 4", "message 5"), bodies(store.getMessages(JID, 4, 6)));
+		assertEquals(Arrays.asList("message 2", "message 7"), bodies(store.getMessages(JID, new int[] { 2, 7 })));
+		assertEquals(Arrays.asList("message 8", "message 9"), bodies(store.getLastMessages(JID, 2).getMessages()));
+
+		// The history is read back by another store.
+		TranscriptStore reopened = new TranscriptStore(directory);
+		assertEquals(10, reopened.getMessageCount(JID));
+		assertEquals(bodies(store.getTranscript(JID).getMessages()), bodies(reopened.getTranscript(JID).getMessages()));
+		assertTrue(reopened.getSize(JID) > 0);
+	}
+
+	/**
+	 * An index that cannot be read is rebuilt from the segments, leaving out a torn
+	 * write at their end, and the next append keeps the messages already stored.
+	 */
+	@Test
+	public void testUnreadableIndex() throws IOException
+	{
+		TranscriptStore store = new TranscriptStore(directory);
+		store.append(JID, messages(0, 10, 0));
+		File index = new File(store.getStoreDirectory(JID), "index");
+		File[] segments = store.getStoreDirectory(JID).listFiles();
+		for (File segment : segments) {
+			if (segment.getName().startsWith("segment-")) {
+				// Half of a record written before a crash.
+				FileOutputStream out = new FileOutputStream(segment, true);
+				out.write(new byte[] { 0, 0, 0, 100, 1, 2 });
+				out.close();
+			}
+		}
+
+		for (byte[] content : new byte[][] { { 0, 0, 0, 99, 0, 0, 0, 7 }, { 0, 0 } }) {
+			FileOutputStream out = new FileOutputStream(index);
+			out.write(content);
+			out.close();
+
+			TranscriptStore reopened = new TranscriptStore(directory);
+			assertEquals(10, reopened.getMessageCount(JID));
+			assertEquals(bodies(messages(0, 10, 0)), bodies(reopened.getTranscript(JID).getMessages()));
+		}
+
+		TranscriptStore reopened = new TranscriptStore(directory);
+		reopened.append(JID, messages(10, 12, 0));
+		assertEquals(12, reopened.getMessageCount(JID));
+		assertEquals(bodies(messages(0, 12, 0)), bodies(new TranscriptStore(directory).getTranscript(JID).getMessages()));
+	}
+
+	/**
+	 * Transcripts of older versions are imported on first use, and deleting the
+	 * history deletes them too so that they do not come back.
+	 */
+	@Test
+	public void testDelete() throws IOException
+	{
+		writeLegacyTranscript("bob@example.com", 5);
+		TranscriptStore store = new TranscriptStore(directory);
+		store.append(JID, messages(0, 3, 0));
+		assertEquals(Arrays.asList(JID, "bob@example.com"), sorted(store.getConversations()));
+		assertEquals(5, store.getMessageCount("bob@example.com"));
+		assertEquals(Arrays.asList("legacy 0", "legacy 1"), bodies(store.getMessages("bob@example.com", 0, 2)));
+
+		store.delete("bob@example.com");
+		assertFalse(new File(directory, "bob@example.com.xml").exists());
+		assertFalse(new File(directory, "bob@example.com").exists());
+		assertFalse(store.hasTranscript("bob@example.com"));
+		assertFalse(new TranscriptStore(directory).hasTranscript("bob@example.com"));
+		assertEquals(3, store.getMessageCount(JID));
+
+		store.deleteAll();
+		assertFalse(store.hasTranscript(JID));
+		assertEquals(0, directory.listFiles().length);
+		store.append(JID, messages(0, 1, 0));
+		assertEquals(1, store.getMessageCount(JID));
+	}
+
+	@Test
+	public void testSearch()
+	{
+		TranscriptStore store = new TranscriptStore(directory);
+		List<HistoryMessage> messages = new ArrayList<HistoryMessage>();
+		for (String body : new String[] { "Deploy the release tonight", "release notes are out", "The RELEASED build",
+				"nothing here", "notes on the deploy" }) {
+			messages.add(message(body, 0));
+		}
+		store.append(JID, messages);
+		assertSearch(store);
+		assertEquals(Arrays.asList("deploy", "notes", "are"), TranscriptStore.getSearchWords("\"notes are\" Deploy!"));
+
+		// Reloaded from the journal, then rebuilt from the log without it.
+		assertSearch(new TranscriptStore(directory));
+		assertTrue(new File(store.getStoreDirectory(JID), "terms").delete());
+		assertSearch(new TranscriptStore(directory));
+	}
+
+	/**
+	 * Messages appended while the index is read for the first time are found once it
+	 * is loaded.
+	 */
+	@Test
+	public void testSearchWhileAppending()
+	{
+		TranscriptStore store = new TranscriptStore(directory);
+		store.append(JID, messages(0, 50, 0));
+		assertTrue(new File(store.getStoreDirectory(JID), "terms").delete());
+
+		TranscriptIndex index = new TranscriptIndex(store.getStoreDirectory(JID), store.getLog(JID));
+		assertFalse(index.isLoaded());
+		TranscriptIndex.Snapshot snapshot = index.read();
+		store.append(JID, Arrays.asList(message("a late message", 0)));
+		synchronized (store.getLog(JID)) {
+			index.load(snapshot);
+			assertTrue(index.isLoaded());
+			assertEquals(Arrays.asList(50), index.search("late"));
+			assertEquals(Arrays.asList(7), index.search("\"message 7\""));
+		}
+		assertEquals(Arrays.asList(50), new TranscriptStore(directory).search(JID, "late"));
+		assertEquals(51, new TranscriptStore(directory).search(JID, "message").size());
+	}
+
+	/**
+	 * Messages are grouped into runs of the same day, which are rebuilt from the log
+	 * when the days file is missing.
+	 */
+	@Test
+	public void testPeriods()
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(2013, Calendar.APRIL, 10, 12, 0, 0);
+		long first = calendar.getTimeInMillis();
+		calendar.add(Calendar.DATE, 1);
+		long second = calendar.getTimeInMillis();
+
+		TranscriptStore store = new TranscriptStore(directory);
+		store.append(JID, messages(0, 3, first));
+		store.append(JID, messages(3, 5, first));
+		store.append(JID, messages(5, 9, second));
+		store.append(JID, messages(9, 10, first));
+		List<String> expected = Arrays.asList("20130410:0-5", "20130411:5-9", "20130410:9-10");
+		assertEquals(expected, periods(store.getPeriods(JID)));
+		assertEquals(201304, store.getPeriods(JID).get(0).getMonth());
+
+		assertEquals(expected, periods(new TranscriptStore(directory).getPeriods(JID)));
+		assertTrue(new File(store.getStoreDirectory(JID), "days").delete());
+		assertEquals(expected, periods(new TranscriptStore(directory).getPeriods(JID)));
+	}
+
+	private static List<String> periods(List<TranscriptPeriod> periods)
+	{
+		List<String> result = new ArrayList<String>();
+		for (TranscriptPeriod period : periods) {
+			result.add(period.getDay() + ":" + period.getStart() + "-" + period.getEnd());
+		}
+		return result;
+	}
+
+	private static void assertSearch(TranscriptStore store)
+	{
+		assertEquals(Arrays.asList(2, 1, 0), store.search(JID, "release"));
+		assertEquals(Arrays.asList(2, 1, 0), store.search(JID, "RELEASE"));
+		assertEquals(Arrays.asList(1), store.search(JID, "release notes"));
+		assertEquals(Arrays.asList(4, 0), store.search(JID, "deploy"));
+		assertEquals(Arrays.asList(1), store.search(JID, "\"notes are\""));
+		assertEquals(Arrays.asList(), store.search(JID, "\"are notes\""));
+		assertEquals(Arrays.asList(), store.search(JID, "missing"));
+		assertEquals(Arrays.asList(), store.search(JID, "  "));
+	}
+
+	private void writeLegacyTranscript(String jid, int count) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, jid + ".xml")), "UTF-8");
+		try {
+			writer.write("<transcript><messages>");
+			for (int i = 0; i < count; i++) {
+				writer.write("<message><to>" + jid + "</to><from>me@example.com</from><body>legacy " + i
+						+ "</body><date>2013-04-10 12:00:00.0 UTC</date></message>");
+			}
+			writer.write("</messages></transcript>");
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	static List<HistoryMessage> messages(int from, int to, long time)
+	{
+		List<HistoryMessage> messages = new ArrayList<HistoryMessage>();
+		for (int i = from; i < to; i++) {
+			messages.add(message("message " + i, time));
+		}
+		return messages;
+	}
+
+	static HistoryMessage message(String body, long time)
+	{
+		HistoryMessage message = new HistoryMessage();
+		message.setTo(JID);
+		message.setFrom("me@example.com");
+		message.setBody(body);
+		message.setDate(new Date(time > 0 ? time : System.currentTimeMillis()));
+		return message;
+	}
+
+	static List<String> bodies(List<HistoryMessage> messages)
+	{
+		List<String> bodies = new ArrayList<String>();
+		for (HistoryMessage message : messages) {
+			bodies.add(message.getBody());
+		}
+		return bodies;
+	}
+
+	private static List<String> sorted(Iterable<String> values)
+	{
+		List<String> result = new ArrayList<String>();
+		for (String value : values) {
+			result.add(value);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,199 @@
+package org.jivesoftware.sparkimpl.profile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VCardFetcherTest
+{
+	private static final int ROSTER = 200;
+	private static final long ROUND_TRIP = 10;
+
+	/**
+	 * Stands in for the server: answers every request after a round trip and records
+	 * the order and concurrency of the requests.
+	 */
+	private static class Responder implements VCardFetcher.Loader
+	{
+		final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+		final Map<String, List<Long>> requestTimes = new HashMap<String, List<Long>>();
+		final long roundTrip;
+		CountDownLatch gate = new CountDownLatch(0);
+		CountDownLatch done;
+		int running;
+		int maxRunning;
+
+		Responder(long roundTrip, int expected)
+		{
+			this.roundTrip = roundTrip;
+			this.done = new CountDownLatch(expected);
+		}
+
+		public void load(String jid) throws Exception
+		{
+			synchronized (this) {
+				running++;
+				maxRunning = Math.max(maxRunning, running);
+				String server = jid.substring(jid.indexOf('@') + 1);
+				if (!requestTimes.containsKey(server)) {
+					requestTimes.put(server, new ArrayList<Long>());
+				}
+				requestTimes.get(server).add(System.nanoTime());
+			}
+			requests.add(jid);
+			gate.await();
+			Thread.sleep(roundTrip);
+			synchronized (this) {
+				running--;
+			}
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void testBoundedAndDeduplicated() throws Exception
+	{
+		Responder responder = new Responder(ROUND_TRIP, ROSTER);
+		VCardFetcher fetcher = new VCardFetcher(responder, 4, 0);
+
+		for (int i = 0; i < ROSTER; i++) {
+			String jid = "user" + i + "@server" + (i % 4) + ".example.com";
+			fetcher.fetch(jid, false);
+			// Presence and the contact list ask again while the first request is pending.
+			fetcher.fetch(jid, false);
+		}
+		assertTrue(responder.done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(ROSTER, responder.requests.size());
+		assertEquals(ROSTER, responder.requestTimes.get("server0.example.com").size() * 4);
+		assertTrue(responder.maxRunning <= 4);
+		assertTrue(responder.maxRunning > 1);
+		waitForWorkers(fetcher);
+		assertEquals(0, fetcher.getQueueSize());
+		assertEquals(0, fetcher.getInFlightCount());
+	}
+
+	@Test
+	public void testServerRateLimit() throws Exception
+	{
+		Responder responder = new Responder(0, 10);
+		VCardFetcher fetcher = new VCardFetcher(responder, 4, 20);
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			fetcher.fetch("user" + i + "@example.com", false);
+		}
+		assertTrue(responder.done.await(10, TimeUnit.SECONDS));
+
+		// Every request waits for its own slot of the server.
+		List<Long> times = new ArrayList<Long>(responder.requestTimes.get("example.com"));
+		Collections.sort(times);
+		for (int i = 0; i < times.size(); i++) {
+			// Allow for timer granularity.
+			assertTrue(times.get(i) - start >= TimeUnit.MILLISECONDS.toNanos(i * 20 - 5));
+		}
+	}
+
+	@Test
+	public void testPriorityAndCancellation() throws Exception
+	{
+		Responder responder = new Responder(0, 5);
+		responder.gate = new CountDownLatch(1);
+		VCardFetcher fetcher = new VCardFetcher(responder, 1, 0);
+
+		// The single worker is held up by the first request.
+		fetcher.fetch("first@example.com", false);
+		while (fetcher.getInFlightCount() == 0) {
+			Thread.sleep(1);
+		}
+		fetcher.fetch("a@example.com", false);
+		fetcher.fetch("b@example.com", false);
+		fetcher.fetch("c@example.com", false);
+		assertTrue(fetcher.fetch("d@example.com", true));
+		assertFalse(fetcher.fetch("d@example.com", false));
+		assertFalse(fetcher.fetch("first@example.com", true));
+		fetcher.cancel(Arrays.asList("b@example.com"));
+		assertEquals(3, fetcher.getQueueSize());
+
+		responder.gate.countDown();
+		waitForWorkers(fetcher);
+		assertEquals(Arrays.asList("first@example.com", "d@example.com", "a@example.com", "c@example.com"), responder.requests);
+
+		// Showing the contact again resumes its request.
+		fetcher.prioritize(Arrays.asList("b@example.com", "a@example.com"));
+		assertTrue(responder.done.await(10, TimeUnit.SECONDS));
+		waitForWorkers(fetcher);
+		assertEquals(5, responder.requests.size());
+		assertEquals("b@example.com", responder.requests.get(4));
+	}
+
+	/**
+	 * A worker that dies of an error gives back its place, so that later requests are
+	 * still fetched.
+	 */
+	@Test
+	public void testWorkerError() throws Exception
+	{
+		final CountDownLatch done = new CountDownLatch(1);
+		VCardFetcher fetcher = new VCardFetcher(new VCardFetcher.Loader() {
+			public void load(String jid)
+			{
+				if (jid.startsWith("broken")) {
+					throw new AssertionError(jid);
+				}
+				done.countDown();
+			}
+		}, 1, 0);
+		fetcher.fetch("broken@example.com", false);
+		waitForWorkers(fetcher);
+		assertEquals(0, fetcher.getInFlightCount());
+
+		fetcher.fetch("a@example.com", false);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		waitForWorkers(fetcher);
+	}
+
+	@Test
+	public void testCancelledLimit() throws Exception
+	{
+		Responder responder = new Responder(0, 1);
+		responder.gate = new CountDownLatch(1);
+		VCardFetcher fetcher = new VCardFetcher(responder, 1, 0);
+		fetcher.fetch("first@example.com", false);
+		List<String> jids = new ArrayList<String>();
+		for (int i = 0; i < VCardFetcher.MAX_CANCELLED + 10; i++) {
+			String jid = "user" + i + "@example.com";
+			fetcher.fetch(jid, false);
+			jids.add(jid);
+		}
+		fetcher.cancel(jids);
+		assertEquals(VCardFetcher.MAX_CANCELLED, fetcher.getCancelledCount());
+		responder.gate.countDown();
+		waitForWorkers(fetcher);
+
+		// The oldest cancellations are forgotten, the newest can still be resumed.
+		responder.done = new CountDownLatch(1);
+		fetcher.prioritize(Arrays.asList("user0@example.com", "user" + VCardFetcher.MAX_CANCELLED + "@example.com"));
+		assertTrue(responder.done.await(10, TimeUnit.SECONDS));
+		waitForWorkers(fetcher);
+		assertEquals(Arrays.asList("first@example.com", "user" + VCardFetcher.MAX_CANCELLED + "@example.com"), responder.requests);
+	}
+
+	private static void waitForWorkers(VCardFetcher fetcher) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fetcher.getWorkerCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, fetcher.getWorkerCount());
+	}
+}
@@ -0,0 +1,157 @@
+package org.jivesoftware.sparkimpl.profile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VCardStoreTest
+{
+	private static final int ROSTER = 3000;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory("vcards").toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		deleteAll(directory);
+	}
+
+	@Test
+	public void testPutAndReopen() throws IOException
+	{
+		VCardStore store = new VCardStore(directory);
+		store.put("User@Example.com", vcard("User"), "abc", 1000);
+		// Pending vCards can be read before they are written.
+		assertEquals(vcard("User"), store.getXML("user@example.com"));
+		assertEquals(1, store.getPendingCount());
+		store.flush();
+		assertEquals(0, store.getPendingCount());
+
+		store.put("user@example.com", vcard("Renamed"), "def", 2000);
+		store.put("other@example.com", vcard("Other"), null, 3000);
+		store.flush();
+		assertEquals(vcard("Renamed"), store.getXML("user@example.com"));
+
+		store = new VCardStore(directory);
+		assertEquals(2, store.size());
+		assertEquals(vcard("Renamed"), store.getXML("user@example.com"));
+		assertEquals("def", store.getPhotoHash("user@example.com"));
+		assertEquals(2000, store.getFetchedTime("user@example.com"));
+		assertNull(store.getPhotoHash("other@example.com"));
+		assertFalse(store.contains("nobody@example.com"));
+		assertEquals(0, store.getFetchedTime("nobody@example.com"));
+	}
+
+	@Test
+	public void testTornWrite() throws IOException
+	{
+		VCardStore store = new VCardStore(directory);
+		store.put("user@example.com", vcard("User"), "abc", 1000);
+		store.flush();
+		long length = store.getLength();
+
+		// A crash while appending leaves part of a record behind.
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, "vcards-1.dat"), "rw");
+		raf.seek(length);
+		raf.writeInt(500);
+		raf.write(new byte[20]);
+		raf.close();
+
+		store = new VCardStore(directory);
+		assertEquals(length, store.getLength());
+		store.put("other@example.com", vcard("Other"), null, 2000);
+		store.flush();
+
+		store = new VCardStore(directory);
+		assertEquals(vcard("User"), store.getXML("user@example.com"));
+		assertEquals(vcard("Other"), store.getXML("other@example.com"));
+	}
+
+	@Test
+	public void testCompaction() throws IOException
+	{
+		VCardStore store = new VCardStore(directory);
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put("user" + i + "@example.com", vcard("User " + i + " round " + round) + padding(), "hash" + round, round);
+			}
+			store.flush();
+		}
+		assertTrue(store.getLength() < VCardStore.COMPACTION_THRESHOLD * 2);
+		assertTrue(new File(directory, "vcards-2.dat").exists());
+
+		store = new VCardStore(directory);
+		assertEquals(100, store.size());
+		assertEquals(vcard("User 7 round 19") + padding(), store.getXML("user7@example.com"));
+		assertEquals("hash19", store.getPhotoHash("user7@example.com"));
+		assertEquals(1, directory.list().length);
+
+		// A compaction interrupted before its rename leaves only a temporary file.
+		new FileOutputStream(new File(directory, "vcards-9.dat.tmp")).close();
+		store = new VCardStore(directory);
+		assertEquals(100, store.size());
+		assertEquals(1, directory.list().length);
+	}
+
+	/**
+	 * Opening a store of 3,000 vCards indexes every photo hash without reading the
+	 * vCards.
+	 */
+	@Test
+	public void testStartup() throws IOException
+	{
+		VCardStore store = new VCardStore(directory);
+		for (int i = 0; i < ROSTER; i++) {
+			store.put("user" + i + "@example.com", vcard("User " + i) + padding(), "hash" + i, i);
+		}
+		store.flush();
+
+		store = new VCardStore(directory);
+		assertEquals(ROSTER, store.size());
+		for (int i = 0; i < ROSTER; i++) {
+			assertEquals("hash" + i, store.getPhotoHash("user" + i + "@example.com"));
+		}
+		assertEquals(vcard("User 1234") + padding(), store.getXML("user1234@example.com"));
+	}
+
+	private static String vcard(String name)
+	{
+		return "<vCard xmlns=\"vcard-temp\"><FN>" + name + "</FN></vCard>";
+	}
+
+	private static String padding()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			builder.append("<NOTE>padding</NOTE>");
+		}
+		return builder.toString();
+	}
+
+	private static void deleteAll(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+}